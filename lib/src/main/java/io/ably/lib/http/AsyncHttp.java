@@ -11,6 +11,7 @@ import java.util.concurrent.TimeoutException;
 
 import io.ably.lib.http.Http.RequestBody;
 import io.ably.lib.http.Http.ResponseHandler;
+import io.ably.lib.transport.Hosts;
 import io.ably.lib.types.AblyException;
 import io.ably.lib.types.Callback;
 import io.ably.lib.types.ErrorInfo;
@@ -171,26 +172,31 @@ public class AsyncHttp extends ThreadPoolExecutor {
 		}
 		@Override
 		public void run() {
-			String candidateHost = http.getHost();
-			int retryCountRemaining = http.hosts.getFallback(candidateHost) != null ? http.options.httpMaxRetryCount : 0;
+			String[] candidates = http.hosts.getCandidates();
+			String candidateHost = candidates[0];
+			int retryCountRemaining = candidates.length > 1 ? http.options.httpMaxRetryCount : 0;
 
 			while(!isCancelled) {
+				long startTime = System.currentTimeMillis();
 				try {
 					result = httpExecuteWithRetry(candidateHost, path, true);
+					http.hosts.getHealth().onSuccess(candidateHost, System.currentTimeMillis() - startTime);
 					setResult(result);
 					break;
 				} catch (AblyException.HostFailedException e) {
+					http.hosts.getHealth().onFailure(candidateHost);
 					if(--retryCountRemaining < 0) {
 						setError(e.errorInfo);
 						break;
 					}
-					Log.d(TAG, "Connection failed to host `" + candidateHost + "`. Searching for new host...");
-					candidateHost = http.hosts.getFallback(candidateHost);
+					Log.d(TAG, "Connection failed to host `{}`. Searching for new host...", candidateHost);
+					candidateHost = Hosts.getNextCandidate(candidates, candidateHost);
 					if (candidateHost == null) {
 						setError(e.errorInfo);
 						break;
 					}
-					Log.d(TAG, "Switched to `" + candidateHost + "`.");
+					Log.d(TAG, "Switched to `{}`.", candidateHost);
+					http.onFallback(candidateHost);
 				} catch(AblyException e) {
 					setError(e.errorInfo);
 					break;
@@ -15,6 +15,7 @@ import io.ably.lib.debug.DebugOptions.RawHttpListener;
 import io.ably.lib.rest.Auth;
 import io.ably.lib.rest.Auth.AuthMethod;
 import io.ably.lib.transport.Defaults;
+import io.ably.lib.transport.HostHealth;
 import io.ably.lib.transport.Hosts;
 import io.ably.lib.types.AblyException;
 import io.ably.lib.types.ClientOptions;
@@ -24,6 +25,7 @@ import io.ably.lib.types.Param;
 import io.ably.lib.types.ProxyOptions;
 import io.ably.lib.util.Base64Coder;
 import io.ably.lib.util.Log;
+import io.ably.lib.util.Metrics;
 import io.ably.lib.util.Serialisation;
 
 /**
@@ -213,6 +215,15 @@ public class Http {
 		return hosts.getHost();
 	}
 
+	/**
+	 * Gets the tracker of host health used by this HTTP client
+	 *
+	 * @return
+	 */
+	public HostHealth getHostHealth() {
+		return hosts.getHealth();
+	}
+
 	/**
 	 * Simple HTTP GET; no auth, headers, returning response body as string
 	 * @param url
@@ -392,22 +403,30 @@ public class Http {
 	 * @throws AblyException
 	 */
 	public <T> T ablyHttpExecute(String path, String method, Param[] headers, Param[] params, RequestBody requestBody, ResponseHandler<T> responseHandler) throws AblyException {
-		String candidateHost = getHost();
-		int retryCountRemaining = hosts.getFallback(candidateHost) != null ? options.httpMaxRetryCount : 0;
+		/* try hosts in order of health, so a failing host is not
+		 * retried first on every request */
+		String[] candidates = hosts.getCandidates();
+		String candidateHost = candidates[0];
+		int retryCountRemaining = candidates.length > 1 ? options.httpMaxRetryCount : 0;
 		URL url;
 
 		while(true) {
 			url = buildURL(scheme, candidateHost, port, path, params);
+			long startTime = System.currentTimeMillis();
 			try {
-				return httpExecuteWithRetry(url, method, headers, requestBody, responseHandler, true);
+				T result = httpExecuteWithRetry(url, method, headers, requestBody, responseHandler, true);
+				hosts.getHealth().onSuccess(candidateHost, System.currentTimeMillis() - startTime);
+				return result;
 			} catch (AblyException.HostFailedException e) {
+				hosts.getHealth().onFailure(candidateHost);
 				if(--retryCountRemaining < 0)
 					throw e; /* reached httpMaxRetryCount */
-				Log.d(TAG, "Connection failed to host `" + candidateHost + "`. Searching for new host...");
-				candidateHost = hosts.getFallback(candidateHost);
+				Log.d(TAG, "Connection failed to host `{}`. Searching for new host...", candidateHost);
+				candidateHost = Hosts.getNextCandidate(candidates, candidateHost);
 				if (candidateHost == null)
 					throw e; /* run out of fallback hosts */
-				Log.d(TAG, "Switched to `" + candidateHost + "`.");
+				Log.d(TAG, "Switched to `{}`.", candidateHost);
+				onFallback(candidateHost);
 			}
 		}
 	}
@@ -470,6 +489,8 @@ public class Http {
 		boolean credentialsIncluded = false;
 		RawHttpListener rawHttpListener = null;
 		String id = null;
+		Metrics metrics = options.metrics;
+		long startTime = 0;
 		try {
 			/* prepare connection */
 			conn.setRequestMethod(method);
@@ -503,19 +524,19 @@ public class Http {
 			byte[] body = null;
 			if(requestBody != null) {
 				body = prepareRequestBody(requestBody, conn);
-				if (Log.level <= Log.VERBOSE)
+				if (Log.isLoggable(Log.VERBOSE))
 					Log.v(TAG, System.lineSeparator() + new String(body));
 			}
 
 			/* log raw request details */
 			Map<String, List<String>> requestProperties = conn.getRequestProperties();
-			if (Log.level <= Log.VERBOSE) {
-				Log.v(TAG, "HTTP request: " + conn.getURL() + " " + method);
+			if (Log.isLoggable(Log.VERBOSE)) {
+				Log.v(TAG, "HTTP request: {} {}", conn.getURL(), method);
 				if (credentialsIncluded)
-					Log.v(TAG, "  " + AUTHORIZATION + ": " + authHeader);
+					Log.v(TAG, "  {}: {}", AUTHORIZATION, authHeader);
 				for (Map.Entry<String, List<String>> entry : requestProperties.entrySet())
 					for (String val : entry.getValue())
-						Log.v(TAG, "  " + entry.getKey() + ": " + val);
+						Log.v(TAG, "  {}: {}", entry.getKey(), val);
 			}
 
 			if(options instanceof DebugOptions) {
@@ -527,6 +548,7 @@ public class Http {
 			}
 
 			/* send request body */
+			startTime = System.currentTimeMillis();
 			if(requestBody != null) {
 				writeRequestBody(body, conn);
 			}
@@ -534,16 +556,40 @@ public class Http {
 			if(rawHttpListener != null) {
 				rawHttpListener.onRawHttpResponse(id, response);
 			}
+			if(metrics != null) {
+				String host = conn.getURL().getHost();
+				metrics.record(Metrics.HTTP_REQUEST_TIME, host, System.currentTimeMillis() - startTime);
+				String responses = getResponsesMetric(response.statusCode);
+				if(responses != null)
+					metrics.count(responses, host, 1);
+			}
 		} catch(IOException ioe) {
 			if(rawHttpListener != null) {
 				rawHttpListener.onRawHttpException(id, ioe);
 			}
+			if(metrics != null)
+				metrics.count(Metrics.HTTP_FAILURES, conn.getURL().getHost(), 1);
 			throw AblyException.fromThrowable(ioe);
 		}
 
 		return handleResponse(conn, credentialsIncluded, response, responseHandler);
 	}
 
+	/**
+	 * Get the name of the counter of responses with a given status code
+	 * @param statusCode
+	 * @return the name, or null if the status code is not a valid one
+	 */
+	private static String getResponsesMetric(int statusCode) {
+		switch(statusCode / 100) {
+		case 2: return Metrics.HTTP_RESPONSES_2XX;
+		case 3: return Metrics.HTTP_RESPONSES_3XX;
+		case 4: return Metrics.HTTP_RESPONSES_4XX;
+		case 5: return Metrics.HTTP_RESPONSES_5XX;
+		default: return null;
+		}
+	}
+
 	/**
 	 * Make a synchronous HTTP request specified by URL and proxy, retrying if necessary on WWW-Authenticate
 	 * @param url
@@ -565,17 +611,20 @@ public class Http {
 					if(authPending) {
 						authorize(false);
 						authPending = false;
+						onRetry(url);
 						continue;
 					}
 					if(are.expired && renewPending) {
 						authorize(true);
 						renewPending = false;
+						onRetry(url);
 						continue;
 					}
 				}
 				if(are.proxyAuthChallenge != null && proxyAuthPending && proxyAuth != null) {
 					proxyAuth.processAuthenticateHeaders(are.proxyAuthChallenge);
 					proxyAuthPending = false;
+					onRetry(url);
 					continue;
 				}
 				throw are;
@@ -583,6 +632,20 @@ public class Http {
 		}
 	}
 
+	private void onRetry(URL url) {
+		if(options.metrics != null)
+			options.metrics.count(Metrics.HTTP_RETRIES, url.getHost(), 1);
+	}
+
+	/**
+	 * Record that a request is being made to a fallback host
+	 * @param host
+	 */
+	void onFallback(String host) {
+		if(options.metrics != null)
+			options.metrics.count(Metrics.HTTP_FALLBACKS, host, 1);
+	}
+
 	/**
 	 * Handle HTTP response
 	 * @param conn
@@ -717,9 +780,9 @@ public class Http {
 		for (Map.Entry<String, List<String>> entry : caseSensitiveHeaders.entrySet()) {
 			if (entry.getKey() != null) {
 				response.headers.put(entry.getKey().toLowerCase(), entry.getValue());
-				if (Log.level <= Log.VERBOSE)
+				if (Log.isLoggable(Log.VERBOSE))
 					for (String val : entry.getValue())
-						Log.v(TAG, entry.getKey() + ": " + val);
+						Log.v(TAG, "{}: {}", entry.getKey(), val);
 			}
 		}
 
@@ -739,7 +802,8 @@ public class Http {
 
 		try {
 			response.body = readInputStream(is, response.contentLength);
-			Log.v(TAG, System.lineSeparator() + new String(response.body));
+			if (Log.isLoggable(Log.VERBOSE))
+				Log.v(TAG, System.lineSeparator() + new String(response.body));
 		} catch (NullPointerException e) {
 			/* nothing to read */
 		} finally {
@@ -1,8 +1,8 @@
 package io.ably.lib.realtime;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 import io.ably.lib.rest.AblyRest;
 import io.ably.lib.transport.ITransport;
@@ -12,6 +12,8 @@ import io.ably.lib.types.ClientOptions;
 import io.ably.lib.types.ErrorInfo;
 import io.ably.lib.types.ProtocolMessage;
 import io.ably.lib.util.Log;
+import io.ably.lib.util.Scheduler;
+import io.ably.lib.util.SerialExecutor;
 
 /**
  * AblyRealtime
@@ -29,6 +31,11 @@ public class AblyRealtime extends AblyRest {
 	 */
 	public Channels channels;
 
+	/**
+	 * The {@link Scheduler} used for timers associated with this instance.
+	 */
+	public final Scheduler scheduler;
+
 	/**
 	 * Instance the Ably library using a key only.
 	 * This is simply a convenience constructor for the
@@ -48,9 +55,38 @@ public class AblyRealtime extends AblyRest {
 	 */
 	public AblyRealtime(ClientOptions options) throws AblyException {
 		super(options);
+		if(options.perMessageDeflate && (options.deflateServerMaxWindowBits < 8 || options.deflateServerMaxWindowBits > 15)) {
+			String msg = "deflateServerMaxWindowBits must be between 8 and 15";
+			Log.e(TAG, msg);
+			throw AblyException.fromErrorInfo(new ErrorInfo(msg, 400, 40000));
+		}
+		scheduler = (options.timerExecutor != null) ? new Scheduler(options.timerExecutor) : Scheduler.getDefault();
+		if(options.asyncDispatch)
+			dispatchExecutor = (options.dispatchExecutor != null) ? options.dispatchExecutor : SerialExecutor.getDefaultExecutor();
+		else
+			dispatchExecutor = null;
 		connection = new Connection(this);
+		channelReattacher = new ChannelReattacher(this);
 		channels = new Channels();
-		if(options.autoConnect) connection.connect();
+		List<String> restored = null;
+		if(options.recoveryStore != null) {
+			recoveryCheckpoint = new RecoveryCheckpoint(this, options.recoveryStore, options.recoveryCheckpointInterval);
+			restored = recoveryCheckpoint.restore();
+		} else {
+			recoveryCheckpoint = null;
+		}
+		if(options.autoConnect) {
+			connection.connect();
+			if(restored != null) {
+				for(String channelName : restored) {
+					try {
+						channels.get(channelName).attach();
+					} catch(AblyException e) {
+						Log.e(TAG, "Unable to reattach restored channel " + channelName, e);
+					}
+				}
+			}
+		}
 	}
 
 	/**
@@ -81,9 +117,14 @@ public class AblyRealtime extends AblyRest {
 	 * A collection of the Channels associated with this Realtime
 	 * instance.
 	 *
+	 * Channels may be created and released from any thread. Lookups take
+	 * no lock, and iteration is weakly consistent: it never throws
+	 * ConcurrentModificationException, and includes the channels present
+	 * when it started, but may or may not include those added or
+	 * removed since.
 	 */
 	@SuppressWarnings("serial")
-	public class Channels extends HashMap<String, Channel> {
+	public class Channels extends ConcurrentHashMap<String, Channel> {
 		public Channels() {
 			/* remove all channels when the connection is closed, to avoid stalled state */
 			connection.on(ConnectionEvent.closed, new ConnectionStateListener() {
@@ -103,8 +144,12 @@ public class AblyRealtime extends AblyRest {
 		public Channel get(String channelName) {
 			Channel channel = super.get(channelName);
 			if(channel == null) {
-				channel = new Channel(AblyRealtime.this, channelName);
-				put(channelName, channel);
+				/* if another thread creates it first, use that one;
+				 * the channel constructor has no side effects */
+				Channel created = new Channel(AblyRealtime.this, channelName);
+				channel = putIfAbsent(channelName, created);
+				if(channel == null)
+					channel = created;
 			}
 			return channel;
 		}
@@ -131,6 +176,7 @@ public class AblyRealtime extends AblyRest {
 		 */
 		public void release(String channelName) {
 			Channel channel = remove(channelName);
+			connection.connectionManager.setChannelPublishLatency(channelName, false);
 			if(channel != null) {
 				try {
 					channel.detach();
@@ -142,8 +188,8 @@ public class AblyRealtime extends AblyRest {
 
 		public void onChannelMessage(ITransport transport, ProtocolMessage msg) {
 			String channelName = msg.channel;
-			Channel channel;
-			synchronized(this) { channel = channels.get(channelName); }
+			/* look up without creating the channel */
+			Channel channel = (channelName == null) ? null : super.get(channelName);
 			if(channel == null) {
 				Log.e(TAG, "Received channel message for non-existent channel");
 				return;
@@ -151,11 +197,24 @@ public class AblyRealtime extends AblyRest {
 			channel.onChannelMessage(msg);
 		}
 
+		/**
+		 * Resume all channels, when the connection becomes connected;
+		 * see {@link ReattachProgress}.
+		 */
+		public void reattachAll() {
+			channelReattacher.start(values());
+		}
+
+		/**
+		 * Stop resuming channels, when the connection is no longer connected.
+		 */
+		public void stopReattach() {
+			channelReattacher.stop();
+		}
+
 		public void suspendAll(ErrorInfo error) {
-			for(Iterator<Map.Entry<String, Channel>> it = entrySet().iterator(); it.hasNext(); ) {
-				Map.Entry<String, Channel> entry = it.next();
-				entry.getValue().setSuspended(error);
-			}
+			for(Channel channel : values())
+				channel.setSuspended(error);
 		}
 	}
 
@@ -163,5 +222,14 @@ public class AblyRealtime extends AblyRest {
 	 * internal
 	 ********************/
 
+	/* delivers to the application's listeners, if asyncDispatch is set */
+	final Executor dispatchExecutor;
+
+	/* resumes channels when the connection becomes connected */
+	final ChannelReattacher channelReattacher;
+
+	/* checkpoints the recovery state to options.recoveryStore, if set */
+	final RecoveryCheckpoint recoveryCheckpoint;
+
 	private static final String TAG = AblyRealtime.class.getName();
 }
@@ -10,9 +10,14 @@ import io.ably.lib.types.*;
 import io.ably.lib.types.ProtocolMessage.Action;
 import io.ably.lib.types.ProtocolMessage.Flag;
 import io.ably.lib.util.EventEmitter;
+import io.ably.lib.util.LatencyHistogram;
 import io.ably.lib.util.Log;
+import io.ably.lib.util.Metrics;
+import io.ably.lib.util.Scheduler;
+import io.ably.lib.util.SerialExecutor;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -63,7 +68,7 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 		setState(newState, reason, false);
 	}
 	private void setState(ChannelState newState, ErrorInfo reason, boolean resumed) {
-		Log.v(TAG, "setState(): channel = " + name + "; setting " + newState);
+		Log.v(TAG, "setState(): channel = {}; setting {}", name, newState);
 		ChannelStateListener.ChannelStateChange stateChange;
 		synchronized(this) {
 			stateChange = new ChannelStateListener.ChannelStateChange(newState, this.state, reason, resumed);
@@ -110,7 +115,7 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	}
 
 	private void attachImpl(final CompletionListener listener) throws AblyException {
-		Log.v(TAG, "attach(); channel = " + name);
+		Log.v(TAG, "attach(); channel = {}", name);
 		/* check preconditions */
 		switch(state) {
 			case attaching:
@@ -166,7 +171,7 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	}
 
 	private void detachImpl(CompletionListener listener) throws AblyException {
-		Log.v(TAG, "detach(); channel = " + name);
+		Log.v(TAG, "detach(); channel = {}", name);
 		/* check preconditions */
 		switch(state) {
 			case initialized:
@@ -202,7 +207,7 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	}
 
 	public void sync() throws AblyException {
-		Log.v(TAG, "sync(); channel = " + name);
+		Log.v(TAG, "sync(); channel = {}", name);
 		/* check preconditions */
 		switch(state) {
 			case initialized:
@@ -228,10 +233,10 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	private void setAttached(ProtocolMessage message) {
 		clearAttachTimers();
 		boolean resumed = (message.flags & ( 1 << Flag.resumed.ordinal())) != 0;
-		Log.v(TAG, "setAttached(); channel = " + name + ", resumed = " + resumed);
+		Log.v(TAG, "setAttached(); channel = {}, resumed = {}", name, resumed);
 		properties.attachSerial = message.channelSerial;
 		if(state == ChannelState.attached) {
-			Log.v(TAG, String.format("Server initiated attach for channel %s", name));
+			Log.v(TAG, "Server initiated attach for channel {}", name);
 			/* emit UPDATE event according to RTL12 */
 			emitUpdate(null, resumed);
 		} else {
@@ -243,7 +248,7 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 
 	private void setDetached(ErrorInfo reason) {
 		clearAttachTimers();
-		Log.v(TAG, "setDetached(); channel = " + name);
+		Log.v(TAG, "setDetached(); channel = {}", name);
 		setState(ChannelState.detached, reason);
 		failQueuedMessages(reason);
 		presence.setDetached(reason);
@@ -251,29 +256,27 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 
 	private void setFailed(ErrorInfo reason) {
 		clearAttachTimers();
-		Log.v(TAG, "setFailed(); channel = " + name);
+		Log.v(TAG, "setFailed(); channel = {}", name);
 		setState(ChannelState.failed, reason);
 		failQueuedMessages(reason);
 		presence.setDetached(reason);
 	}
 
 	/* Timer for attach operation */
-	private Timer attachTimer;
+	private Scheduler.Task attachTimer;
 
 	/* Timer for reattaching if attach failed */
-	private Timer reattachTimer;
+	private Scheduler.Task reattachTimer;
 
 	/**
 	 * Cancel attach/reattach timers
 	 */
 	synchronized private void clearAttachTimers() {
-		Timer[] timers = new Timer[]{attachTimer, reattachTimer};
+		Scheduler.Task[] timers = new Scheduler.Task[]{attachTimer, reattachTimer};
 		attachTimer = reattachTimer = null;
-		for (Timer t: timers) {
-			if (t != null) {
+		for (Scheduler.Task t: timers) {
+			if (t != null)
 				t.cancel();
-				t.purge();
-			}
 		}
 	}
 
@@ -282,7 +285,22 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	 * set up timer to reattach it later
 	 */
 	synchronized private void attachWithTimeout(final CompletionListener listener) throws AblyException {
-		final Timer currentAttachTimer = new Timer();
+		final Scheduler.Task currentAttachTimer = new Scheduler.Task() {
+			@Override
+			public void run() {
+				String errorMessage = String.format("Attach timed out for channel %s", name);
+				Log.v(TAG, errorMessage);
+				synchronized (Channel.this) {
+					if(attachTimer != this)
+						return;
+					attachTimer = null;
+					if(state == ChannelState.attaching) {
+						setSuspended(new ErrorInfo(errorMessage, 91200));
+						reattachAfterTimeout();
+					}
+				}
+			}
+		};
 		attachTimer = currentAttachTimer;
 
 		try {
@@ -309,23 +327,7 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 			/* operation has already succeeded or failed, no need to set the timer */
 			return;
 
-		attachTimer.schedule(
-				new TimerTask() {
-					@Override
-					public void run() {
-						String errorMessage = String.format("Attach timed out for channel %s", name);
-						Log.v(TAG, errorMessage);
-						synchronized (Channel.this) {
-							if(attachTimer != currentAttachTimer)
-								return;
-							attachTimer = null;
-							if(state == ChannelState.attaching) {
-								setSuspended(new ErrorInfo(errorMessage, 91200));
-								reattachAfterTimeout();
-							}
-						}
-					}
-				}, Defaults.realtimeRequestTimeout);
+		ably.scheduler.schedule(currentAttachTimer, Defaults.realtimeRequestTimeout);
 	}
 
 	/**
@@ -333,14 +335,11 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	 * try to attach the channel
 	 */
 	synchronized private void reattachAfterTimeout() {
-		final Timer currentReattachTimer = new Timer();
-		reattachTimer = currentReattachTimer;
-
-		reattachTimer.schedule(new TimerTask() {
+		reattachTimer = ably.scheduler.schedule(new Scheduler.Task() {
 			@Override
 			public void run() {
 				synchronized (Channel.this) {
-					if (currentReattachTimer != reattachTimer)
+					if (reattachTimer != this)
 						return;
 					reattachTimer = null;
 					if (state == ChannelState.suspended) {
@@ -361,7 +360,22 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	 */
 	synchronized private void detachWithTimeout(final CompletionListener listener) throws AblyException {
 		final ChannelState originalState = state;
-		final Timer currentDetachTimer = new Timer();
+		final Scheduler.Task currentDetachTimer = new Scheduler.Task() {
+			@Override
+			public void run() {
+				synchronized (Channel.this) {
+					if (attachTimer != this)
+						return;
+					attachTimer = null;
+					if (state == ChannelState.detaching) {
+						ErrorInfo reason = new ErrorInfo("Detach operation timed out", 90007);
+						if(listener != null)
+							listener.onError(reason);
+						setState(originalState, reason);
+					}
+				}
+			}
+		};
 		attachTimer = currentDetachTimer;
 
 		try {
@@ -388,47 +402,81 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 			/* operation has already succeeded or failed, no need to set the timer */
 			return;
 
-		attachTimer.schedule(new TimerTask() {
-			@Override
-			public void run() {
-				synchronized (Channel.this) {
-					if (currentDetachTimer != attachTimer)
-						return;
-					attachTimer = null;
-					if (state == ChannelState.detaching) {
-						ErrorInfo reason = new ErrorInfo("Detach operation timed out", 90007);
-						if(listener != null)
-							listener.onError(reason);
-						setState(originalState, reason);
-					}
-				}
-			}
-		}, Defaults.realtimeRequestTimeout);
+		ably.scheduler.schedule(currentDetachTimer, Defaults.realtimeRequestTimeout);
 	}
 
 	/* State changes provoked by ConnectionManager state changes. */
 
 	public void setConnected() {
+		try {
+			resume(null, true);
+		} catch (AblyException e) {
+			Log.e(TAG, "setConnected(): Unable to resume; channel = " + name, e);
+		}
+	}
+
+	/**
+	 * Resume this channel on a new connection, as setConnected() does, but
+	 * without starting an attach timer; the ChannelReattacher times out
+	 * the attaches it starts together.
+	 * @param listener registered for the outcome of an attach, if started
+	 * @return true if an attach was started
+	 */
+	boolean reattach(ChannelStateListener listener) throws AblyException {
+		return resume(listener, false);
+	}
+
+	/**
+	 * Resume this channel on a new connection: an attached channel is
+	 * synced, and a suspended channel is attached (RTL3d).
+	 * @param listener registered for the outcome of an attach, if not null
+	 * @param withTimeout if true, the attach is timed out by this channel
+	 * @return true if an attach was started
+	 */
+	synchronized private boolean resume(ChannelStateListener listener, boolean withTimeout) throws AblyException {
 		if(state == ChannelState.attached) {
-			try {
-				sync();
-			} catch (AblyException e) {
-				Log.e(TAG, "setConnected(): Unable to sync; channel = " + name, e);
-			}
-		} else if (state == ChannelState.suspended) {
-			/* (RTL3d) If the connection state enters the CONNECTED state, then
-			 * a SUSPENDED channel will initiate an attach operation. If the
-			 * attach operation for the channel times out and the channel
-			 * returns to the SUSPENDED state (see #RTL4f)
-			 */
-			try {
+			sync();
+			return false;
+		}
+		if(state != ChannelState.suspended)
+			return false;
+		clearAttachTimers();
+		if(listener != null)
+			on(listener);
+		try {
+			if(withTimeout)
 				attachWithTimeout(null);
-			} catch (AblyException e) {
-				Log.e(TAG, "setConnected(): Unable to initiate attach; channel = " + name, e);
-			}
+			else
+				attachImpl(null);
+		} catch(AblyException e) {
+			if(listener != null)
+				off(listener);
+			throw e;
+		}
+		return true;
+	}
+
+	/**
+	 * An attach started by reattach() has not completed in time;
+	 * suspend the channel and retry later, as for any other attach.
+	 */
+	synchronized void onReattachTimeout() {
+		if(state == ChannelState.attaching) {
+			String errorMessage = String.format("Attach timed out for channel %s", name);
+			Log.v(TAG, errorMessage);
+			setSuspended(new ErrorInfo(errorMessage, 91200));
+			reattachAfterTimeout();
 		}
 	}
 
+	/**
+	 * Whether the application has subscribed for messages or presence
+	 * on this channel
+	 */
+	boolean hasSubscribers() {
+		return !listeners.isEmpty() || !eventListeners.isEmpty() || !unnamedListeners.isEmpty() || !filterIndex.isEmpty() || presence.hasSubscribers();
+	}
+
 	/** If the connection state enters the FAILED state, then an ATTACHING
 	 * or ATTACHED channel state will transition to FAILED and set the
 	 * Channel#errorReason
@@ -454,7 +502,7 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	public synchronized void setSuspended(ErrorInfo reason) {
 		clearAttachTimers();
 		if (state == ChannelState.attached || state == ChannelState.attaching) {
-			Log.v(TAG, "setSuspended(); channel = " + name);
+			Log.v(TAG, "setSuspended(); channel = {}", name);
 			setState(ChannelState.suspended, reason);
 			failQueuedMessages(reason);		
 			presence.setSuspended(reason);
@@ -488,9 +536,11 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	 * </p>
 	 */
 	public synchronized void unsubscribe() {
-		Log.v(TAG, "unsubscribe(); channel = " + this.name);
+		Log.v(TAG, "unsubscribe(); channel = {}", this.name);
 		listeners.clear();
 		eventListeners.clear();
+		unnamedListeners.clear();
+		filterIndex = MessageFilterIndex.EMPTY;
 	}
 
 	/**
@@ -500,7 +550,7 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	 * @throws AblyException
 	 */
 	public synchronized void subscribe(MessageListener listener) throws AblyException {
-		Log.v(TAG, "subscribe(); channel = " + this.name);
+		Log.v(TAG, "subscribe(); channel = {}", this.name);
 		listeners.add(listener);
 		attach();
 	}
@@ -510,11 +560,13 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	 * @param listener: the previously subscribed listener.
 	 */
 	public synchronized void unsubscribe(MessageListener listener) {
-		Log.v(TAG, "unsubscribe(); channel = " + this.name);
+		Log.v(TAG, "unsubscribe(); channel = {}", this.name);
 		listeners.remove(listener);
 		for (MessageMulticaster multicaster: eventListeners.values()) {
 			multicaster.remove(listener);
 		}
+		unnamedListeners.remove(listener);
+		filterIndex = filterIndex.without(null, listener);
 	}
 
 	/**
@@ -525,7 +577,7 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	 * @throws AblyException
 	 */
 	public synchronized void subscribe(String name, MessageListener listener) throws AblyException {
-		Log.v(TAG, "subscribe(); channel = " + this.name + "; event = " + name);
+		Log.v(TAG, "subscribe(); channel = {}; event = {}", this.name, name);
 		subscribeImpl(name, listener);
 		attach();
 	}
@@ -536,7 +588,7 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	 * @param listener: the previously subscribed listener.
 	 */
 	public synchronized void unsubscribe(String name, MessageListener listener) {
-		Log.v(TAG, "unsubscribe(); channel = " + this.name + "; event = " + name);
+		Log.v(TAG, "unsubscribe(); channel = {}; event = {}", this.name, name);
 		unsubscribeImpl(name, listener);
 	}
 
@@ -548,7 +600,7 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	 * @throws AblyException
 	 */
 	public synchronized void subscribe(String[] names, MessageListener listener) throws AblyException {
-		Log.v(TAG, "subscribe(); channel = " + this.name + "; (multiple events)");
+		Log.v(TAG, "subscribe(); channel = {}; (multiple events)", this.name);
 		for(String name : names)
 			subscribeImpl(name, listener);
 		attach();
@@ -560,50 +612,124 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	 * @param listener: the previously subscribed listener.
 	 */
 	public synchronized void unsubscribe(String[] names, MessageListener listener) {
-		Log.v(TAG, "unsubscribe(); channel = " + this.name + "; (multiple events)");
+		Log.v(TAG, "unsubscribe(); channel = {}; (multiple events)", this.name);
 		for(String name : names)
 			unsubscribeImpl(name, listener);
 	}
 
+	/**
+	 * Subscribe for messages on this channel matching the given filter.
+	 * The filter is evaluated before a message is decoded, so messages that
+	 * no listener wants are not decoded; see {@link MessageFilter}.
+	 * This implicitly attaches the channel if not already attached.
+	 * @param filter: the filter
+	 * @param listener: the MessageListener
+	 * @throws AblyException
+	 */
+	public synchronized void subscribe(MessageFilter filter, MessageListener listener) throws AblyException {
+		Log.v(TAG, "subscribe(); channel = {}; filter name = {}", this.name, filter.name);
+		filterIndex = filterIndex.with(new MessageFilterIndex.Subscription(filter, listener));
+		attach();
+	}
+
+	/**
+	 * Unsubscribe a listener previously subscribed with the given filter.
+	 * @param filter: the filter
+	 * @param listener: the previously subscribed listener.
+	 */
+	public synchronized void unsubscribe(MessageFilter filter, MessageListener listener) {
+		Log.v(TAG, "unsubscribe(); channel = {}; filter name = {}", this.name, filter.name);
+		filterIndex = filterIndex.without(filter, listener);
+	}
+
 	/***
 	 * internal
 	 *
 	 */
 	private void onMessage(ProtocolMessage message) {
-		Log.v(TAG, "onMessage(); channel = " + name);
-		Message[] messages = message.messages;
+		Log.v(TAG, "onMessage(); channel = {}", name);
+		final Message[] messages = message.messages;
+		Metrics metrics = ably.options.metrics;
+		if(metrics != null)
+			metrics.count(Metrics.CHANNEL_DELIVERED, name, messages.length);
+		MessageFilterIndex filterIndex = this.filterIndex;
+		final MessageListener[][] filtered = filterIndex.isEmpty() ? null : new MessageListener[messages.length][];
+		boolean[] unwanted = null;
 		for(int i = 0; i < messages.length; i++) {
 			Message msg = messages[i];
-			try {
-				msg.decode(options);
-			} catch (MessageDecodeException e) {
-				Log.e(TAG, String.format("%s on channel %s", e.errorInfo.message, name));
-			}
 			/* populate fields derived from protocol message */
 			if(msg.connectionId == null) msg.connectionId = message.connectionId;
 			if(msg.timestamp == 0) msg.timestamp = message.timestamp;
 			if(msg.id == null) msg.id = message.id + ':' + i;
-			/* broadcast */
-			MessageMulticaster listeners = eventListeners.get(msg.name);
+			/* subscriptions are matched before decoding, so that a message
+			 * no listener wants is never decrypted or parsed */
+			MessageListener[] matched = (filtered == null) ? null : (filtered[i] = filterIndex.match(msg));
+			if(matched == null && listeners.isEmpty() && (msg.name == null ? unnamedListeners.isEmpty() : !eventListeners.containsKey(msg.name))) {
+				if(unwanted == null)
+					unwanted = new boolean[messages.length];
+				unwanted[i] = true;
+				continue;
+			}
+			decode(msg);
+		}
+		final boolean[] skip = unwanted;
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				deliverMessages(messages, filtered, skip);
+			}
+		});
+	}
+
+	private void deliverMessages(Message[] messages, MessageListener[][] filtered, boolean[] skip) {
+		for(int i = 0; i < messages.length; i++) {
+			if(skip != null && skip[i])
+				continue;
+			Message msg = messages[i];
+			MessageMulticaster listeners = (msg.name == null) ? unnamedListeners : eventListeners.get(msg.name);
 			if(listeners != null)
 				listeners.onMessage(msg);
+			if(filtered != null && filtered[i] != null)
+				for(MessageListener listener : filtered[i])
+					try {
+						listener.onMessage(msg);
+					} catch (Throwable t) {
+						Log.e(TAG, "Unexpected exception calling listener", t);
+					}
 		}
 
-		for (Message msg : message.messages) {
-			this.listeners.onMessage(msg);
+		for(int i = 0; i < messages.length; i++) {
+			if(skip == null || !skip[i])
+				this.listeners.onMessage(messages[i]);
 		}
 	}
 
+	/**
+	 * Run a delivery to the application's listeners: on this channel's
+	 * dispatcher, in order with its other deliveries, if the client
+	 * dispatches to an executor, or else on the calling thread
+	 */
+	void dispatch(Runnable delivery) {
+		if(dispatcher == null)
+			delivery.run();
+		else
+			dispatcher.execute(delivery);
+	}
+
+	/**
+	 * Get the number of deliveries awaiting the application's listeners;
+	 * this is always zero unless the client dispatches to an executor.
+	 */
+	public int getDispatchQueueDepth() {
+		return (dispatcher == null) ? 0 : dispatcher.getDepth();
+	}
+
 	private void onPresence(ProtocolMessage message, String syncChannelSerial) {
-		Log.v(TAG, "onPresence(); channel = " + name + "; syncChannelSerial = " + syncChannelSerial);
+		Log.v(TAG, "onPresence(); channel = {}; syncChannelSerial = {}", name, syncChannelSerial);
 		PresenceMessage[] messages = message.presence;
 		for(int i = 0; i < messages.length; i++) {
 			PresenceMessage msg = messages[i];
-			try {
-				msg.decode(options);
-			} catch (MessageDecodeException e) {
-				Log.e(TAG, String.format("%s on channel %s", e.errorInfo.message, name));
-			}
+			decode(msg);
 			/* populate fields derived from protocol message */
 			if(msg.connectionId == null) msg.connectionId = message.connectionId;
 			if(msg.timestamp == 0) msg.timestamp = message.timestamp;
@@ -612,14 +738,36 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 		presence.setPresence(messages, true, syncChannelSerial);
 	}
 
+	/**
+	 * Decode a received message, or with lazyDecoding, defer that
+	 * until its data is read
+	 */
+	private void decode(BaseMessage msg) {
+		if(ably.options.lazyDecoding) {
+			msg.decodeLazily(options);
+			return;
+		}
+		try {
+			msg.decode(options);
+		} catch (MessageDecodeException e) {
+			Log.e(TAG, "{} on channel {}", e.errorInfo.message, name);
+		}
+	}
+
 	private void onSync(ProtocolMessage message) {
-		Log.v(TAG, "onSync(); channel = " + name);
+		Log.v(TAG, "onSync(); channel = {}", name);
 		if(message.presence != null)
 			onPresence(message, (syncChannelSerial = message.channelSerial));
 	}
 
 	private MessageMulticaster listeners = new MessageMulticaster();
-	private HashMap<String, MessageMulticaster> eventListeners = new HashMap<String, MessageMulticaster>();
+	/* read without locking when delivering messages */
+	private ConcurrentHashMap<String, MessageMulticaster> eventListeners = new ConcurrentHashMap<String, MessageMulticaster>();
+	/* listeners subscribed with a null name, for messages with no name;
+	 * held apart since the map has no null key */
+	private MessageMulticaster unnamedListeners = new MessageMulticaster();
+	/* replaced on each change to filtered subscriptions */
+	private volatile MessageFilterIndex filterIndex = MessageFilterIndex.EMPTY;
 
 	private static class MessageMulticaster extends io.ably.lib.util.Multicaster<MessageListener> implements MessageListener {
 		@Override
@@ -634,6 +782,10 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	}
 
 	private void subscribeImpl(String name, MessageListener listener) throws AblyException {
+		if(name == null) {
+			unnamedListeners.add(listener);
+			return;
+		}
 		MessageMulticaster listeners = eventListeners.get(name);
 		if(listeners == null) {
 			listeners = new MessageMulticaster();
@@ -643,6 +795,10 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	}
 
 	private void unsubscribeImpl(String name, MessageListener listener) {
+		if(name == null) {
+			unnamedListeners.remove(listener);
+			return;
+		}
 		MessageMulticaster listeners = eventListeners.get(name);
 		if(listeners != null) {
 			listeners.remove(listener);
@@ -695,7 +851,7 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	 * @throws AblyException
 	 */
 	public void publish(String name, Object data, CompletionListener listener) throws AblyException {
-		Log.v(TAG, "publish(String, Object); channel = " + this.name + "; event = " + name);
+		Log.v(TAG, "publish(String, Object); channel = {}; event = {}", this.name, name);
 		publish(new Message[] {new Message(name, data)}, listener);
 	}
 
@@ -707,7 +863,7 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	 * @throws AblyException
 	 */
 	public void publish(Message message, CompletionListener listener) throws AblyException {
-		Log.v(TAG, "publish(Message); channel = " + this.name + "; event = " + message.name);
+		Log.v(TAG, "publish(Message); channel = {}; event = {}", this.name, message.name);
 		publish(new Message[] {message}, listener);
 	}
 
@@ -719,7 +875,7 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	 * @throws AblyException
 	 */
 	public synchronized void publish(Message[] messages, CompletionListener listener) throws AblyException {
-		Log.v(TAG, "publish(Message[]); channel = " + this.name);
+		Log.v(TAG, "publish(Message[]); channel = {}", this.name);
 		boolean connected = (ably.connection.state == ConnectionState.connected);
 		try {
 			for(Message message : messages) {
@@ -752,6 +908,9 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 			ConnectionManager connectionManager = ably.connection.connectionManager;
 			connectionManager.send(msg, ably.options.queueMessages, listener);
 		}
+		Metrics metrics = ably.options.metrics;
+		if(metrics != null)
+			metrics.count(Metrics.CHANNEL_PUBLISHED, name, messages.length);
 	}
 
 	/***
@@ -868,12 +1027,31 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 		return new PaginatedQuery<>(ably.http, basePath + "/history", HttpUtils.defaultAcceptHeaders(ably.options.useBinaryProtocol), params, bodyHandler).get();
 	}
 
+	/**
+	 * Restore the serials saved in the recovery state of an
+	 * earlier connection, before the channel is reattached
+	 */
+	void restore(String attachSerial, String syncChannelSerial) {
+		properties.attachSerial = attachSerial;
+		this.syncChannelSerial = syncChannelSerial;
+	}
+
 	/************************************
 	 * Channel options 
 	 ************************************/
 
 	public void setOptions(ChannelOptions options) throws AblyException {
 		this.options = options;
+		ably.connection.connectionManager.setChannelPublishLatency(name, options != null && options.recordPublishLatency);
+	}
+
+	/**
+	 * The times, in microseconds, from publishing each message or presence
+	 * message on this channel until its ACK, if recorded for this channel.
+	 * @return the histogram, or null unless ChannelOptions.recordPublishLatency is set
+	 */
+	public LatencyHistogram getPublishLatency() {
+		return ably.connection.connectionManager.getChannelPublishLatency(name);
 	}
 
 	/************************************
@@ -906,15 +1084,30 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	}
 
 	Channel(AblyRealtime ably, String name) {
-		Log.v(TAG, "RealtimeChannel(); channel = " + name);
+		Log.v(TAG, "RealtimeChannel(); channel = {}", name);
 		this.ably = ably;
 		this.name = name;
 		this.basePath = "/channels/" + HttpUtils.encodeURIComponent(name);
 		this.presence = new Presence(this);
+		this.dispatcher = createDispatcher(ably, name);
 		state = ChannelState.initialized;
 		queuedMessages = new ArrayList<QueuedMessage>();
 	}
 
+	private static SerialExecutor createDispatcher(AblyRealtime ably, final String name) {
+		if(ably.dispatchExecutor == null)
+			return null;
+		final Metrics metrics = ably.options.metrics;
+		if(metrics == null)
+			return new SerialExecutor(ably.dispatchExecutor);
+		return new SerialExecutor(ably.dispatchExecutor) {
+			@Override
+			protected void onDepthChanged(int depth) {
+				metrics.gauge(Metrics.CHANNEL_DISPATCH_QUEUE, name, depth);
+			}
+		};
+	}
+
 	void onChannelMessage(ProtocolMessage msg) {
 		switch(msg.action) {
 		case attached:
@@ -926,7 +1119,7 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 			setDetached((msg.error != null) ? msg.error : REASON_NOT_ATTACHED);
 			if(oldState == ChannelState.attaching || oldState == ChannelState.attached || oldState == ChannelState.suspended) {
 				/* Unexpected detach, reattach when possible */
-				Log.v(TAG, String.format("Server initiated detach for channel %s", name));
+				Log.v(TAG, "Server initiated detach for channel {}", name);
 				try {
 					attachWithTimeout(null);
 				} catch (AblyException e) {
@@ -948,7 +1141,7 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 			setFailed(msg.error);
 			break;
 		default:
-			Log.e(TAG, "onChannelMessage(): Unexpected message action (" + msg.action + ")");
+			Log.e(TAG, "onChannelMessage(): Unexpected message action ({})", msg.action);
 		}
 	}
 
@@ -978,4 +1171,7 @@ public class Channel extends EventEmitter<ChannelEvent, ChannelStateListener> {
 	final String basePath;
 	ChannelOptions options;
 	String syncChannelSerial;
+
+	/* delivers to the application's listeners, if the client dispatches to an executor */
+	private final SerialExecutor dispatcher;
 }
@@ -0,0 +1,258 @@
+package io.ably.lib.realtime;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.util.Log;
+import io.ably.lib.util.Scheduler;
+
+/**
+ * Resumes the channels of a client when the connection becomes connected,
+ * syncing those that are attached and reattaching those that are suspended.
+ *
+ * Rather than sending every sync and attach at once, which for many channels
+ * provokes throttling by the service, these are sent at most at
+ * channelReattachRate per second, with a burst of up to
+ * channelReattachMaxInFlight, and with no more than channelReattachMaxInFlight
+ * attaches awaiting a response. Channels that the application has subscribed
+ * to are resumed first. Attaches are timed out by a single timer, in place
+ * of the timer per channel used for an attach by the application.
+ */
+class ChannelReattacher {
+
+	ChannelReattacher(AblyRealtime ably) {
+		ClientOptions options = ably.options;
+		this.ably = ably;
+		this.maxInFlight = Math.max(1, options.channelReattachMaxInFlight);
+		this.rate = options.channelReattachRate;
+		this.tokens = maxInFlight;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Start resuming the given channels, replacing any not yet resumed
+	 * after an earlier connection; attaches already in flight continue.
+	 */
+	void start(Collection<Channel> channels) {
+		synchronized(this) {
+			++generation;
+			pending.clear();
+			completed = failed = 0;
+			List<Channel> unsubscribed = new ArrayList<Channel>();
+			for(Channel channel : channels) {
+				if(channel.state != ChannelState.attached && channel.state != ChannelState.suspended)
+					continue;
+				if(inFlight.containsKey(channel))
+					continue;
+				if(channel.hasSubscribers())
+					pending.add(channel);
+				else
+					unsubscribed.add(channel);
+			}
+			pending.addAll(unsubscribed);
+			total = pending.size();
+			active = true;
+			if(total > 0)
+				Log.v(TAG, "start(): resuming {} channels", total);
+		}
+		pump();
+	}
+
+	/**
+	 * Stop resuming channels, because the connection is no longer connected;
+	 * attaches already in flight are still timed out.
+	 */
+	synchronized void stop() {
+		active = false;
+		pending.clear();
+		if(pumpTask != null) {
+			pumpTask.cancel();
+			pumpTask = null;
+		}
+	}
+
+	synchronized ReattachProgress getProgress() {
+		return new ReattachProgress(total, completed, failed, inFlight.size(), pending.size());
+	}
+
+	/**
+	 * Send syncs and attaches for as many pending channels as the limits
+	 * allow. Only one thread does this at a time, so a reattach completing
+	 * synchronously does not recurse.
+	 */
+	private void pump() {
+		synchronized(this) {
+			if(pumping)
+				return;
+			pumping = true;
+		}
+		try {
+			while(true) {
+				Attach attach;
+				synchronized(this) {
+					if(!active || pending.isEmpty() || inFlight.size() >= maxInFlight || !takeToken()) {
+						pumping = false;
+						return;
+					}
+					Channel channel = pending.poll();
+					attach = new Attach(channel, generation, System.currentTimeMillis() + Defaults.realtimeRequestTimeout);
+					inFlight.put(channel, attach);
+					scheduleTimeout();
+				}
+				try {
+					if(!attach.channel.reattach(attach))
+						/* synced, or no longer needing to be resumed */
+						complete(attach, true);
+				} catch(AblyException e) {
+					Log.e(TAG, "pump(): Unable to resume channel; channel = " + attach.channel.name, e);
+					complete(attach, false);
+				}
+			}
+		} catch(RuntimeException e) {
+			synchronized(this) { pumping = false; }
+			throw e;
+		}
+	}
+
+	/**
+	 * Take a token from the bucket, or schedule the pump for
+	 * when one is next available.
+	 */
+	private boolean takeToken() {
+		if(rate <= 0)
+			return true;
+		long now = System.nanoTime();
+		tokens = Math.min(maxInFlight, tokens + (now - lastRefill) * rate / 1000000000.0);
+		lastRefill = now;
+		if(tokens >= 1) {
+			tokens -= 1;
+			return true;
+		}
+		if(pumpTask == null) {
+			long delay = (long)Math.ceil((1 - tokens) * 1000 / rate);
+			pumpTask = ably.scheduler.schedule(new Scheduler.Task() {
+				@Override
+				public void run() {
+					synchronized(ChannelReattacher.this) {
+						if(pumpTask != this)
+							return;
+						pumpTask = null;
+					}
+					pump();
+				}
+			}, delay);
+		}
+		return false;
+	}
+
+	/**
+	 * Schedule the timer for the earliest attach in flight, if not already
+	 * scheduled; attaches are in order of their deadlines.
+	 */
+	private void scheduleTimeout() {
+		if(timeoutTask != null || inFlight.isEmpty())
+			return;
+		long delay = inFlight.values().iterator().next().deadline - System.currentTimeMillis();
+		timeoutTask = ably.scheduler.schedule(new Scheduler.Task() {
+			@Override
+			public void run() {
+				onTimeout(this);
+			}
+		}, Math.max(0, delay));
+	}
+
+	private void onTimeout(Scheduler.Task task) {
+		List<Attach> expired = new ArrayList<Attach>();
+		synchronized(this) {
+			if(timeoutTask != task)
+				return;
+			timeoutTask = null;
+			long now = System.currentTimeMillis();
+			for(Iterator<Attach> it = inFlight.values().iterator(); it.hasNext(); ) {
+				Attach attach = it.next();
+				if(attach.deadline > now)
+					break;
+				it.remove();
+				expired.add(attach);
+				if(attach.generation == generation)
+					++failed;
+			}
+			scheduleTimeout();
+		}
+		if(!expired.isEmpty())
+			Log.v(TAG, "onTimeout(): {} channel attaches timed out", expired.size());
+		for(Attach attach : expired) {
+			attach.channel.off(attach);
+			attach.channel.onReattachTimeout();
+		}
+		pump();
+	}
+
+	private synchronized void complete(Attach attach, boolean success) {
+		if(inFlight.get(attach.channel) != attach)
+			return;
+		inFlight.remove(attach.channel);
+		if(attach.generation != generation)
+			return;
+		if(success)
+			++completed;
+		else
+			++failed;
+		if(completed + failed == total)
+			Log.v(TAG, "complete(): resumed {} channels; {} failed", completed, failed);
+	}
+
+	/**
+	 * A channel being resumed; an attach awaits a change
+	 * from the attaching state.
+	 */
+	private class Attach implements ChannelStateListener {
+		private final Channel channel;
+		private final int generation;
+		private final long deadline;
+
+		private Attach(Channel channel, int generation, long deadline) {
+			this.channel = channel;
+			this.generation = generation;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public void onChannelStateChanged(ChannelStateChange stateChange) {
+			if(stateChange.current == ChannelState.attaching)
+				return;
+			channel.off(this);
+			complete(this, stateChange.current == ChannelState.attached);
+			pump();
+		}
+	}
+
+	private final AblyRealtime ably;
+	private final int maxInFlight;
+	private final int rate;
+
+	private final ArrayDeque<Channel> pending = new ArrayDeque<Channel>();
+	private final LinkedHashMap<Channel, Attach> inFlight = new LinkedHashMap<Channel, Attach>();
+	private boolean active;
+	private boolean pumping;
+	private int generation;
+	private int total;
+	private int completed;
+	private int failed;
+
+	/* token bucket */
+	private double tokens;
+	private long lastRefill;
+
+	private Scheduler.Task pumpTask;
+	private Scheduler.Task timeoutTask;
+
+	private static final String TAG = ChannelReattacher.class.getName();
+}
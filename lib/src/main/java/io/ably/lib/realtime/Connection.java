@@ -4,6 +4,7 @@ import io.ably.lib.realtime.ConnectionStateListener.ConnectionStateChange;
 import io.ably.lib.transport.ConnectionManager;
 import io.ably.lib.types.ErrorInfo;
 import io.ably.lib.util.EventEmitter;
+import io.ably.lib.util.LatencyHistogram;
 
 /**
  * A class representing the connection associated with an AblyRealtime instance.
@@ -51,6 +52,14 @@ public class Connection extends EventEmitter<ConnectionEvent, ConnectionStateLis
 		connectionManager.connect();
 	}
 
+	/**
+	 * Get the progress of resuming the channels of this client
+	 * since the connection last became connected.
+	 */
+	public ReattachProgress getReattachProgress() {
+		return ably.channelReattacher.getProgress();
+	}
+
 	/**
 	 * Send a heartbeat message to the Ably service and await a response.
 	 * @param listener: a listener to be notified of the outcome of this message.
@@ -59,6 +68,40 @@ public class Connection extends EventEmitter<ConnectionEvent, ConnectionStateLis
 		connectionManager.ping(listener);
 	}
 
+	/**
+	 * Send a heartbeat message to the Ably service and await a response.
+	 * @param listener: a listener to be notified of the outcome of this message,
+	 * and the measured round trip time.
+	 */
+	public void ping(PingListener listener) {
+		connectionManager.ping(listener);
+	}
+
+	/**
+	 * The round trip time, in milliseconds, measured by the most recent
+	 * successful ping, or -1 if there has been none.
+	 */
+	public long getRoundTripTime() {
+		return connectionManager.getRoundTripTime();
+	}
+
+	/**
+	 * A moving average of the round trip times, in milliseconds, measured
+	 * by pings, or -1 if there has been none.
+	 */
+	public long getAverageRoundTripTime() {
+		return connectionManager.getAverageRoundTripTime();
+	}
+
+	/**
+	 * The times, in microseconds, from sending each message or presence
+	 * message on this connection until its ACK. Percentiles can be read
+	 * for all messages, or for each interval between snapshots.
+	 */
+	public LatencyHistogram getPublishLatency() {
+		return connectionManager.getPublishLatency();
+	}
+
 	/**
 	 * Causes the connection to close, entering the closed state, from any state except
 	 * the failed state. Once closed, the library will not attempt to re-establish the
@@ -70,6 +113,28 @@ public class Connection extends EventEmitter<ConnectionEvent, ConnectionStateLis
 		connectionManager.close();
 	}
 
+	/**
+	 * Whether publishes are currently sent without delay. This becomes false when
+	 * the limit on messages awaiting acknowledgement (ClientOptions.maxInFlightMessages
+	 * or maxInFlightBytes) is reached, so that publishers can pause until it
+	 * becomes true again.
+	 */
+	public boolean isWritable() {
+		return connectionManager.isWritable();
+	}
+
+	/**
+	 * Register a listener to be notified when the value of isWritable() changes.
+	 * @param listener
+	 */
+	public void addWritabilityListener(WritabilityListener listener) {
+		connectionManager.addWritabilityListener(listener);
+	}
+
+	public void removeWritabilityListener(WritabilityListener listener) {
+		connectionManager.removeWritabilityListener(listener);
+	}
+
 	/*****************
 	 * internal
 	 *****************/
@@ -83,6 +148,8 @@ public class Connection extends EventEmitter<ConnectionEvent, ConnectionStateLis
 	public void onConnectionStateChange(ConnectionStateChange stateChange) {
 		state = stateChange.current;
 		reason = stateChange.reason;
+		if(ably.recoveryCheckpoint != null)
+			ably.recoveryCheckpoint.onConnectionStateChange(state);
 		emit(state, stateChange);
 	}
 
@@ -0,0 +1,191 @@
+package io.ably.lib.realtime;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import io.ably.lib.realtime.Channel.MessageListener;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.MessageFilter;
+
+/**
+ * The filtered subscriptions of a channel, compiled into an immutable index:
+ * name patterns are held in a trie, so that the subscriptions whose pattern
+ * matches a message name are found in one pass over the name, and each
+ * candidate's remaining predicates are then compared with the message.
+ *
+ * A channel replaces its index on each subscribe and unsubscribe, so
+ * matching takes no lock.
+ */
+class MessageFilterIndex {
+
+	static final MessageFilterIndex EMPTY = new MessageFilterIndex(new ArrayList<Subscription>());
+
+	/**
+	 * A compiled subscription; the filter's fields are copied, so
+	 * later changes to it have no effect
+	 */
+	static class Subscription {
+		final MessageFilter filter;
+		final MessageListener listener;
+		private final String name;
+		private final String clientId;
+		private final String connectionId;
+		private final String encoding;
+		private final MessageFilter.DataType dataType;
+
+		Subscription(MessageFilter filter, MessageListener listener) {
+			this.filter = filter;
+			this.listener = listener;
+			this.name = filter.name;
+			this.clientId = filter.clientId;
+			this.connectionId = filter.connectionId;
+			this.encoding = filter.encoding;
+			this.dataType = filter.dataType;
+		}
+
+		private boolean matches(Message message) {
+			if(clientId != null && !clientId.equals(message.clientId))
+				return false;
+			if(connectionId != null && !connectionId.equals(message.connectionId))
+				return false;
+			if(encoding != null && !encoding.equals(message.encoding == null ? "" : message.encoding))
+				return false;
+			if(dataType != null && dataType != MessageFilter.getDataType(message.data, message.encoding))
+				return false;
+			return true;
+		}
+	}
+
+	/**
+	 * Create an index with the given subscription added
+	 */
+	MessageFilterIndex with(Subscription subscription) {
+		List<Subscription> updated = new ArrayList<Subscription>(subscriptions);
+		updated.add(subscription);
+		return new MessageFilterIndex(updated);
+	}
+
+	/**
+	 * Create an index without the subscriptions of the given listener,
+	 * with the given filter or, if filter is null, with any filter
+	 */
+	MessageFilterIndex without(MessageFilter filter, MessageListener listener) {
+		List<Subscription> updated = new ArrayList<Subscription>(subscriptions.size());
+		for(Subscription subscription : subscriptions)
+			if(!(subscription.listener.equals(listener) && (filter == null || subscription.filter == filter)))
+				updated.add(subscription);
+		return (updated.size() == subscriptions.size()) ? this : new MessageFilterIndex(updated);
+	}
+
+	boolean isEmpty() {
+		return subscriptions.isEmpty();
+	}
+
+	/**
+	 * Get the listeners of subscriptions matching the message, in the order
+	 * they subscribed; the message is not yet decoded.
+	 * @return the listeners, or null if there are none
+	 */
+	MessageListener[] match(Message message) {
+		if(subscriptions.isEmpty())
+			return null;
+		boolean[] candidates = new boolean[subscriptions.size()];
+		boolean found = false;
+		for(int i = 0; i < unnamed.size(); i++)
+			found |= (candidates[unnamed.get(i)] = true);
+		if(message.name != null)
+			found |= root.match(message.name, 0, candidates);
+		else
+			found |= root.matchEmptyOrStar(candidates);
+		if(!found)
+			return null;
+		int count = 0;
+		for(int i = 0; i < candidates.length; i++)
+			if(candidates[i] && (candidates[i] = subscriptions.get(i).matches(message)))
+				++count;
+		if(count == 0)
+			return null;
+		MessageListener[] listeners = new MessageListener[count];
+		for(int i = 0, j = 0; i < candidates.length; i++)
+			if(candidates[i])
+				listeners[j++] = subscriptions.get(i).listener;
+		return listeners;
+	}
+
+	/**
+	 * A node of the trie of name patterns, for the prefix leading to it
+	 */
+	private static class Node {
+		private final HashMap<Character, Node> children = new HashMap<Character, Node>();
+		/* the pattern continuing with '*' */
+		private Node star;
+		/* indexes of the subscriptions whose pattern ends here */
+		private final List<Integer> terminal = new ArrayList<Integer>();
+
+		private void insert(String pattern, int from, int subscription) {
+			if(from == pattern.length()) {
+				terminal.add(subscription);
+				return;
+			}
+			char c = pattern.charAt(from);
+			Node next;
+			if(c == '*') {
+				if(star == null)
+					star = new Node();
+				next = star;
+				/* consecutive stars are equivalent to one */
+				while(from + 1 < pattern.length() && pattern.charAt(from + 1) == '*')
+					++from;
+			} else {
+				next = children.get(c);
+				if(next == null)
+					children.put(c, next = new Node());
+			}
+			next.insert(pattern, from + 1, subscription);
+		}
+
+		private boolean match(String name, int from, boolean[] candidates) {
+			boolean found = false;
+			if(from == name.length()) {
+				for(int i = 0; i < terminal.size(); i++)
+					found |= (candidates[terminal.get(i)] = true);
+			} else {
+				Node next = children.get(name.charAt(from));
+				if(next != null)
+					found |= next.match(name, from + 1, candidates);
+			}
+			/* '*' consumes any number of the remaining characters */
+			if(star != null)
+				for(int i = from; i <= name.length(); i++)
+					found |= star.match(name, i, candidates);
+			return found;
+		}
+
+		/* a message with no name matches only "*" */
+		private boolean matchEmptyOrStar(boolean[] candidates) {
+			if(star == null)
+				return false;
+			boolean found = false;
+			for(int i = 0; i < star.terminal.size(); i++)
+				found |= (candidates[star.terminal.get(i)] = true);
+			return found;
+		}
+	}
+
+	private MessageFilterIndex(List<Subscription> subscriptions) {
+		this.subscriptions = subscriptions;
+		for(int i = 0; i < subscriptions.size(); i++) {
+			String name = subscriptions.get(i).name;
+			if(name == null)
+				unnamed.add(i);
+			else
+				root.insert(name, 0, i);
+		}
+	}
+
+	private final List<Subscription> subscriptions;
+	/* indexes of the subscriptions with no name pattern */
+	private final List<Integer> unnamed = new ArrayList<Integer>();
+	private final Node root = new Node();
+}
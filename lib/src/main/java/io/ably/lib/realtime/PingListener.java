@@ -0,0 +1,22 @@
+package io.ably.lib.realtime;
+
+import io.ably.lib.types.ErrorInfo;
+
+/**
+ * An interface allowing a client to be notified of the outcome
+ * of a Connection.ping().
+ */
+public interface PingListener {
+	/**
+	 * Called when the heartbeat response is received.
+	 * @param roundTripTime: the time, in milliseconds, between sending
+	 * the heartbeat and receiving the response.
+	 */
+	public void onSuccess(long roundTripTime);
+
+	/**
+	 * Called if the ping could not be sent, or no response was received in time.
+	 * @param reason: information about the error.
+	 */
+	public void onError(ErrorInfo reason);
+}
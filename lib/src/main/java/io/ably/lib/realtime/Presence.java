@@ -12,8 +12,10 @@ import io.ably.lib.types.PresenceMessage;
 import io.ably.lib.types.PresenceSerializer;
 import io.ably.lib.types.ProtocolMessage;
 import io.ably.lib.util.Log;
+import io.ably.lib.util.Metrics;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A class that provides access to presence operations and state for the
@@ -51,7 +53,7 @@ public class Presence {
 			Collection<PresenceMessage> values = presence.get(params);
 			return values.toArray(new PresenceMessage[values.size()]);
 		} catch (InterruptedException e) {
-			Log.v(TAG, String.format("Channel %s: get() operation interrupted", channel.name));
+			Log.v(TAG, "Channel {}: get() operation interrupted", channel.name);
 			throw AblyException.fromThrowable(e);
 		}
 	}
@@ -115,6 +117,7 @@ public class Presence {
 		for (Multicaster multicaster: eventListeners.values()) {
 			multicaster.remove(listener);
 		}
+		unknownActionListeners.remove(listener);
 	}
 
 	/**
@@ -189,6 +192,7 @@ public class Presence {
 	public void unsubscribe() {
 		listeners.clear();
 		eventListeners.clear();
+		unknownActionListeners.clear();
 	}
 
 
@@ -276,10 +280,17 @@ public class Presence {
 			}
 			internalPresence.clear();
 		}
+		updateMemberMetrics();
+	}
+
+	private void updateMemberMetrics() {
+		Metrics metrics = channel.ably.options.metrics;
+		if(metrics != null)
+			metrics.gauge(Metrics.PRESENCE_MEMBERS, channel.name, presence.size());
 	}
 
 	void setPresence(PresenceMessage[] messages, boolean broadcast, String syncChannelSerial) {
-		Log.v(TAG, "setPresence(); channel = " + channel.name + "; broadcast = " + broadcast + "; syncChannelSerial = " + syncChannelSerial);
+		Log.v(TAG, "setPresence(); channel = {}; broadcast = {}; syncChannelSerial = {}", channel.name, broadcast, syncChannelSerial);
 		String syncCursor = null;
 		if(syncChannelSerial != null) {
 			int colonPos = syncChannelSerial.indexOf(':');
@@ -327,21 +338,38 @@ public class Presence {
 		/* if this is the last message in a sequence of sync updates, end the sync */
 		if(syncChannelSerial == null || syncCursor.length() <= 1) {
 			endSyncAndEmitLeaves();
+		} else {
+			updateMemberMetrics();
 		}
 	}
 
-	private void broadcastPresence(PresenceMessage[] messages) {
+	private void broadcastPresence(final PresenceMessage[] messages) {
+		if(messages.length == 0)
+			return;
+		channel.dispatch(new Runnable() {
+			@Override
+			public void run() {
+				deliverPresence(messages);
+			}
+		});
+	}
+
+	private void deliverPresence(PresenceMessage[] messages) {
 		for(PresenceMessage message : messages) {
 			listeners.onPresenceMessage(message);
 
-			Multicaster eventListener = eventListeners.get(message.action);
+			Multicaster eventListener = (message.action == null) ? unknownActionListeners : eventListeners.get(message.action);
 			if(eventListener != null)
 				eventListener.onPresenceMessage(message);
 		}
 	}
 
 	private final Multicaster listeners = new Multicaster();
-	private final EnumMap<PresenceMessage.Action, Multicaster> eventListeners = new EnumMap<>(PresenceMessage.Action.class);
+	/* read without locking when delivering presence messages */
+	private final ConcurrentHashMap<PresenceMessage.Action, Multicaster> eventListeners = new ConcurrentHashMap<PresenceMessage.Action, Multicaster>();
+	/* listeners subscribed with a null action, for messages with no action;
+	 * held apart since the map has no null key */
+	private final Multicaster unknownActionListeners = new Multicaster();
 
 	private static class Multicaster extends io.ably.lib.util.Multicaster<PresenceListener> implements PresenceListener {
 		@Override
@@ -353,7 +381,15 @@ public class Presence {
 		}
 	}
 
+	boolean hasSubscribers() {
+		return !listeners.isEmpty() || !eventListeners.isEmpty() || !unknownActionListeners.isEmpty();
+	}
+
 	private void subscribeImpl(PresenceMessage.Action action, PresenceListener listener) {
+		if(action == null) {
+			unknownActionListeners.add(listener);
+			return;
+		}
 		Multicaster listeners = eventListeners.get(action);
 		if(listeners == null) {
 			listeners = new Multicaster();
@@ -363,6 +399,10 @@ public class Presence {
 	}
 
 	private void unsubscribeImpl(PresenceMessage.Action action, PresenceListener listener) {
+		if(action == null) {
+			unknownActionListeners.remove(listener);
+			return;
+		}
 		Multicaster listeners = eventListeners.get(action);
 		if(listeners != null) {
 			listeners.remove(listener);
@@ -386,7 +426,7 @@ public class Presence {
 	 * @throws AblyException
 	 */
 	public void enter(Object data, CompletionListener listener) throws AblyException {
-		Log.v(TAG, "enter(); channel = " + channel.name);
+		Log.v(TAG, "enter(); channel = {}", channel.name);
 		updatePresence(new PresenceMessage(PresenceMessage.Action.enter, null, data), listener);
 	}
 
@@ -400,7 +440,7 @@ public class Presence {
 	 * @throws AblyException
 	 */
 	public void update(Object data, CompletionListener listener) throws AblyException {
-		Log.v(TAG, "update(); channel = " + channel.name);
+		Log.v(TAG, "update(); channel = {}", channel.name);
 		updatePresence(new PresenceMessage(PresenceMessage.Action.update, null, data), listener);
 	}
 
@@ -413,7 +453,7 @@ public class Presence {
 	 * @throws AblyException
 	 */
 	public void leave(Object data, CompletionListener listener) throws AblyException {
-		Log.v(TAG, "leave(); channel = " + channel.name);
+		Log.v(TAG, "leave(); channel = {}", channel.name);
 		updatePresence(new PresenceMessage(PresenceMessage.Action.leave, null, data), listener);
 	}
 
@@ -477,7 +517,7 @@ public class Presence {
 				return;
 			}
 		}
-		Log.v(TAG, "enterClient(); channel = " + channel.name + "; clientId = " + clientId);
+		Log.v(TAG, "enterClient(); channel = {}; clientId = {}", channel.name, clientId);
 		updatePresence(new PresenceMessage(PresenceMessage.Action.enter, clientId, data), listener);
 	}
 
@@ -528,7 +568,7 @@ public class Presence {
 				return;
 			}
 		}
-		Log.v(TAG, "updateClient(); channel = " + channel.name + "; clientId = " + clientId);
+		Log.v(TAG, "updateClient(); channel = {}; clientId = {}", channel.name, clientId);
 		updatePresence(new PresenceMessage(PresenceMessage.Action.update, clientId, data), listener);
 	}
 
@@ -571,7 +611,7 @@ public class Presence {
 				return;
 			}
 		}
-		Log.v(TAG, "leaveClient(); channel = " + channel.name + "; clientId = " + clientId);
+		Log.v(TAG, "leaveClient(); channel = {}; clientId = {}", channel.name, clientId);
 		updatePresence(new PresenceMessage(PresenceMessage.Action.leave, clientId, data), listener);
 	}
 
@@ -584,7 +624,7 @@ public class Presence {
 	 * @throws AblyException
 	 */
 	public void updatePresence(PresenceMessage msg, CompletionListener listener) throws AblyException {
-		Log.v(TAG, "update(); channel = " + channel.name);
+		Log.v(TAG, "update(); channel = {}", channel.name);
 
 		AblyRealtime ably = channel.ably;
 		boolean connected = (ably.connection.state == ConnectionState.connected);
@@ -736,6 +776,7 @@ public class Presence {
 		failQueuedMessages(reason);
 		presence.clear();
 		internalPresence.clear();
+		updateMemberMetrics();
 	}
 
 	void setSuspended(ErrorInfo reason) {
@@ -946,11 +987,12 @@ public class Presence {
 		 * the last.
 		 */
 		synchronized void startSync() {
-			Log.v(TAG, "startSync(); channel = " + channel.name + "; syncInProgress = " + syncInProgress);
+			Log.v(TAG, "startSync(); channel = {}; syncInProgress = {}", channel.name, syncInProgress);
 			/* we might be called multiple times while a sync is in progress */
 			if(!syncInProgress) {
 				residualMembers = new HashSet<String>(members.keySet());
 				syncInProgress = true;
+				syncStartTime = System.currentTimeMillis();
 			}
 		}
 
@@ -958,7 +1000,7 @@ public class Presence {
 		 * Finish a sync sequence. Returns "residual" items that were removed as a part of a sync
 		 */
 		synchronized List<PresenceMessage> endSync() {
-			Log.v(TAG, "endSync(); channel = " + channel.name + "; syncInProgress = " + syncInProgress);
+			Log.v(TAG, "endSync(); channel = {}; syncInProgress = {}", channel.name, syncInProgress);
 			ArrayList<PresenceMessage> removedEntries = new ArrayList<>();
 			if(syncInProgress) {
 				/* we can now strip out the absent members, as we have
@@ -980,12 +1022,23 @@ public class Presence {
 	
 				/* finish, notifying any waiters */
 				syncInProgress = false;
+				Metrics metrics = channel.ably.options.metrics;
+				if(metrics != null)
+					metrics.record(Metrics.PRESENCE_SYNC_TIME, channel.name, System.currentTimeMillis() - syncStartTime);
 			}
 			syncComplete = true;
 			notifyAll();
 			return removedEntries;
 		}
 
+		/**
+		 * Get the number of entries, including any absent members
+		 * retained while a sync is in progress
+		 */
+		synchronized int size() {
+			return members.size();
+		}
+
 		/**
 		 * Clear all entries
 		 */
@@ -996,6 +1049,7 @@ public class Presence {
 		}
 
 		private boolean syncInProgress;
+		private long syncStartTime;
 		private Collection<String> residualMembers;
 		private final HashMap<String, PresenceMessage> members = new HashMap<String, PresenceMessage>();
 	}
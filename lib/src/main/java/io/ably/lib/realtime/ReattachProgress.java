@@ -0,0 +1,56 @@
+package io.ably.lib.realtime;
+
+/**
+ * The progress of resuming the channels of a client after the connection
+ * becomes connected: attached channels are synced, and suspended channels
+ * are reattached, at a rate limited by ClientOptions.channelReattachRate
+ * and ClientOptions.channelReattachMaxInFlight.
+ */
+public class ReattachProgress {
+
+	/**
+	 * The number of channels to be resumed since the connection was
+	 * last connected
+	 */
+	public final int total;
+
+	/**
+	 * The number of those channels synced or reattached
+	 */
+	public final int completed;
+
+	/**
+	 * The number of those channels whose reattach failed or timed out
+	 */
+	public final int failed;
+
+	/**
+	 * The number of attaches awaiting a response
+	 */
+	public final int inFlight;
+
+	/**
+	 * The number of channels not yet resumed
+	 */
+	public final int pending;
+
+	ReattachProgress(int total, int completed, int failed, int inFlight, int pending) {
+		this.total = total;
+		this.completed = completed;
+		this.failed = failed;
+		this.inFlight = inFlight;
+		this.pending = pending;
+	}
+
+	/**
+	 * @return true if every channel has been resumed, or has failed to reattach
+	 */
+	public boolean isComplete() {
+		return completed + failed == total;
+	}
+
+	@Override
+	public String toString() {
+		return "ReattachProgress{total=" + total + ", completed=" + completed + ", failed=" + failed + ", inFlight=" + inFlight + ", pending=" + pending + "}";
+	}
+}
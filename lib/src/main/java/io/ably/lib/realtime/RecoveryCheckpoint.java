@@ -0,0 +1,149 @@
+package io.ably.lib.realtime;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.ably.lib.transport.RecoveryState;
+import io.ably.lib.transport.RecoveryStore;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.util.Log;
+import io.ably.lib.util.Scheduler;
+
+/**
+ * Checkpoints the recovery state of a client to its RecoveryStore, and
+ * restores it when the client is created.
+ *
+ * Checkpoints are made by a task on the client's scheduler, at most once
+ * per interval while the connection is active, and only when the state has
+ * changed; nothing is done on the thread receiving messages. When the
+ * connection closes or fails, and so can no longer be recovered, the saved
+ * state is cleared.
+ */
+class RecoveryCheckpoint {
+
+	RecoveryCheckpoint(AblyRealtime ably, RecoveryStore store, long interval) {
+		this.ably = ably;
+		this.store = store;
+		this.interval = interval;
+	}
+
+	/**
+	 * Load the saved state, if any, using its recovery key to recover
+	 * the connection unless ClientOptions.recover is already set, and
+	 * creating the channels that were attached.
+	 * @return the names of the channels restored
+	 */
+	List<String> restore() {
+		List<String> restored = new ArrayList<String>();
+		RecoveryState saved;
+		try {
+			saved = store.load();
+		} catch(AblyException e) {
+			Log.e(TAG, "restore(): Unable to load recovery state", e);
+			return restored;
+		}
+		if(saved == null || saved.recoveryKey == null)
+			return restored;
+		if(ably.options.recover != null && !ably.options.recover.equals(saved.recoveryKey))
+			/* recovering some other connection */
+			return restored;
+		ably.connection.connectionManager.setRestoredRecoveryKey(saved.recoveryKey);
+		Log.v(TAG, "restore(): recovering {} with {} channels", saved.recoveryKey, saved.channels.size());
+		for(RecoveryState.Channel savedChannel : saved.channels) {
+			if(savedChannel.name == null)
+				continue;
+			ably.channels.get(savedChannel.name).restore(savedChannel.attachSerial, savedChannel.syncChannelSerial);
+			restored.add(savedChannel.name);
+		}
+		return restored;
+	}
+
+	/**
+	 * Schedule a checkpoint after a connection state change; this is
+	 * called on the ConnectionManager thread, so it does not wait for it.
+	 */
+	synchronized void onConnectionStateChange(ConnectionState state) {
+		boolean terminal = (state == ConnectionState.closed || state == ConnectionState.failed);
+		if(task != null) {
+			if(!terminal)
+				return;
+			/* clear the saved state without waiting for the interval */
+			task.cancel();
+		}
+		task = ably.scheduler.schedule(new CheckpointTask(), terminal ? 0 : interval);
+	}
+
+	private class CheckpointTask extends Scheduler.Task {
+		@Override
+		public void run() {
+			checkpoint();
+			synchronized(RecoveryCheckpoint.this) {
+				if(task != this)
+					return;
+				ConnectionState state = ably.connection.state;
+				boolean active = !(state == ConnectionState.closed || state == ConnectionState.failed || state == ConnectionState.initialized);
+				task = active ? ably.scheduler.schedule(new CheckpointTask(), interval) : null;
+			}
+		}
+	}
+
+	/**
+	 * Save the current state, if changed since the last checkpoint, or
+	 * clear it if the connection has closed or failed.
+	 */
+	void checkpoint() {
+		/* this lock is not held by the ConnectionManager thread,
+		 * so it never waits for the store */
+		synchronized(checkpointLock) {
+			ConnectionState connectionState = ably.connection.state;
+			try {
+				if(connectionState == ConnectionState.closed || connectionState == ConnectionState.failed) {
+					if(!cleared) {
+						store.clear();
+						lastSaved = null;
+						cleared = true;
+					}
+					return;
+				}
+				/* until connected, there is nothing new to save */
+				String recoveryKey = ably.connection.recoveryKey;
+				if(recoveryKey == null)
+					return;
+				RecoveryState state = new RecoveryState();
+				state.recoveryKey = recoveryKey;
+				for(Channel channel : ably.channels.values()) {
+					switch(channel.state) {
+					case attaching:
+					case attached:
+					case suspended:
+						state.channels.add(new RecoveryState.Channel(channel.name, channel.properties.attachSerial, channel.syncChannelSerial));
+						break;
+					default:
+					}
+				}
+				/* the timestamp is excluded from the comparison */
+				String json = state.asJSON();
+				if(json.equals(lastSaved))
+					return;
+				state.timestamp = System.currentTimeMillis();
+				store.save(state);
+				lastSaved = json;
+				cleared = false;
+			} catch(AblyException e) {
+				Log.e(TAG, "checkpoint(): Unable to save recovery state", e);
+			}
+		}
+	}
+
+	private final AblyRealtime ably;
+	private final RecoveryStore store;
+	private final long interval;
+	private CheckpointTask task;
+
+	/* guards lastSaved and cleared */
+	private final Object checkpointLock = new Object();
+	private String lastSaved;
+	private boolean cleared;
+
+	private static final String TAG = RecoveryCheckpoint.class.getName();
+}
@@ -0,0 +1,27 @@
+package io.ably.lib.realtime;
+
+/**
+ * An interface allowing a client to be notified when the connection
+ * stops, or resumes, accepting publishes without holding them back.
+ * See Connection.isWritable().
+ */
+public interface WritabilityListener {
+	/**
+	 * Called, on the library's connection thread, when the connection's
+	 * writability changes.
+	 * @param writable: the new value of Connection.isWritable()
+	 */
+	public void onWritabilityChanged(boolean writable);
+
+	public static class Multicaster extends io.ably.lib.util.Multicaster<WritabilityListener> implements WritabilityListener {
+		public Multicaster(WritabilityListener... members) { super(members); }
+
+		@Override
+		public void onWritabilityChanged(boolean writable) {
+			for(WritabilityListener member : members)
+				try {
+					member.onWritabilityChanged(writable);
+				} catch(Throwable t) {}
+		}
+	}
+}
@@ -916,7 +916,7 @@ public class Auth {
 		if(tokenDetails != null) {
 			if(tokenDetails.expires == 0 || tokenValid(tokenDetails)) {
 				if (!force) {
-					Log.i("Auth.assertValidToken()", "using cached token; expires = " + tokenDetails.expires);
+					Log.i("Auth.assertValidToken()", "using cached token; expires = {}", tokenDetails.expires);
 					return tokenDetails;
 				}
 			} else {
@@ -9,22 +9,33 @@ import io.ably.lib.types.AblyException;
 import io.ably.lib.types.ClientOptions;
 import io.ably.lib.types.ConnectionDetails;
 import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.FlowControlPolicy;
 import io.ably.lib.types.ProtocolMessage;
 import io.ably.lib.types.ProtocolMessage.Action;
 import io.ably.lib.types.ProtocolSerializer;
+import io.ably.lib.types.QueueOverflowPolicy;
+import io.ably.lib.util.LatencyHistogram;
 import io.ably.lib.util.Log;
+import io.ably.lib.util.Metrics;
+import io.ably.lib.util.Scheduler;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 
 public class ConnectionManager implements Runnable, ConnectListener {
 
 	private static final String TAG = ConnectionManager.class.getName();
-	private static final String INTERNET_CHECK_URL = "http://internet-up.ably-realtime.com/is-the-internet-up.txt";
-	private static final String INTERNET_CHECK_OK = "yes";
 
 	/***********************************
 	 * default errors
@@ -111,7 +122,7 @@ public class ConnectionManager implements Runnable, ConnectListener {
 			if (change == null) {
 				try { wait(); } catch(InterruptedException e) {}
 			}
-			Log.d(TAG, "ConnectionWaiter.waitFor done: state=" + state + ")");
+			Log.d(TAG, "ConnectionWaiter.waitFor done: state={})", state);
 			ErrorInfo reason = change.reason;
 			change = null;
 			return reason;
@@ -168,12 +179,20 @@ public class ConnectionManager implements Runnable, ConnectListener {
 		this.ably = ably;
 		this.options = ably.options;
 		this.connection = connection;
-		queuedMessages = new ArrayList<QueuedMessage>();
+		queuedMessages = new MessageQueue(options);
 		pendingMessages = new PendingMessageQueue();
+		pendingMessages.setAckListener(new PendingMessageQueue.AckListener() {
+			@Override
+			public void onAck(QueuedMessage msg, long latencyNanos) {
+				recordPublishLatency(msg, latencyNanos);
+			}
+		});
+		commands = new ConcurrentLinkedQueue<Runnable>();
+		metrics = options.metrics;
 		state = states.get(ConnectionState.initialized);
 		String transportClass = Defaults.TRANSPORT;
 		try {
-			this.hosts = new Hosts(options.realtimeHost, Defaults.HOST_REALTIME, options);
+			this.hosts = new Hosts(options.realtimeHost, Defaults.HOST_REALTIME, options, ably.http.getHostHealth());
 			/* debug options */
 			if(options instanceof DebugOptions)
 				protocolListener = ((DebugOptions)options).protocolListener;
@@ -184,9 +203,7 @@ public class ConnectionManager implements Runnable, ConnectListener {
 			Log.e(getClass().getName(), msg, e);
 			throw new RuntimeException(msg, e);
 		}
-		synchronized(this) {
-			setSuspendTime();
-		}
+		setSuspendTime();
 	}
 	
 	/*********************
@@ -197,43 +214,91 @@ public class ConnectionManager implements Runnable, ConnectListener {
 	public String getHost() {
 		return lastUsedHost;
 	}
+
+	/**
+	 * Set the recovery key restored from a RecoveryStore, used to recover
+	 * the connection unless ClientOptions.recover is set. This does not
+	 * change the ClientOptions.
+	 * @param recoveryKey
+	 */
+	public void setRestoredRecoveryKey(String recoveryKey) {
+		restoredRecoveryKey = recoveryKey;
+	}
 	
 	/*********************
 	 * state management
 	 *********************/
 
 	public void connect() {
-		boolean connectionExist = state.state == ConnectionState.connected;
-		boolean connectionAttemptInProgress = (requestedState != null && requestedState.state == ConnectionState.connecting) ||
-				state.state == ConnectionState.connecting;
-
-		if(!connectionExist && !connectionAttemptInProgress) {
-			startThread(); // Start thread if not already started.
-			requestState(ConnectionState.connecting);
-		}
+		/* the command is queued before the thread is started, so it cannot
+		 * be missed by a thread that is just exiting */
+		post(new Runnable() {
+			@Override
+			public void run() {
+				/* ignore if a connection exists or an attempt is already in progress */
+				if(state.state != ConnectionState.connected && state.state != ConnectionState.connecting)
+					handleStateRequest(new StateIndication(ConnectionState.connecting, null));
+			}
+		});
+		startThread(); // Start thread if not already started.
 	}
 
 	public void close() {
 		requestState(ConnectionState.closing);
 	}
 
-	public synchronized StateInfo getConnectionState() {
+	public StateInfo getConnectionState() {
 		return state;
 	}
+
+	/**
+	 * Get the number of messages queued awaiting a connection.
+	 */
+	public int getQueuedMessageCount() {
+		return queuedMessages.getQueuedCount();
+	}
+
+	/**
+	 * Get the estimated size, in bytes, of the messages queued awaiting a connection.
+	 */
+	public long getQueuedMessageBytes() {
+		return queuedMessages.getQueuedBytes();
+	}
 	
 	private void setState(StateIndication newState) {
-		Log.v(TAG, "setState(): setting " + newState.state);
+		Log.v(TAG, "setState(): setting {}", newState.state);
 		ConnectionStateListener.ConnectionStateChange change;
 		StateInfo newStateInfo = states.get(newState.state);
-		synchronized(this) {
-			ErrorInfo reason = newState.reason; if(reason == null) reason = newStateInfo.defaultErrorInfo;
-			change = new ConnectionStateListener.ConnectionStateChange(state.state, newState.state, newStateInfo.timeout, reason);
-			newStateInfo.host = newState.currentHost;
-			state = newStateInfo;
-
-			if (change.current != change.previous)
-				/* any state change clears pending reauth flag */
-				pendingReauth = false;
+		ErrorInfo reason = newState.reason; if(reason == null) reason = newStateInfo.defaultErrorInfo;
+		change = new ConnectionStateListener.ConnectionStateChange(state.state, newState.state, newStateInfo.timeout, reason);
+		newStateInfo.host = newState.currentHost;
+		state = newStateInfo;
+		resetStateTimer();
+		if(metrics != null)
+			metrics.count(Metrics.CONNECTION_STATE, newState.state.name(), 1);
+
+		/* racing connection attempts only continue while connecting */
+		if(state.state != ConnectionState.connecting)
+			abortRacers();
+
+		if (change.current != change.previous)
+			/* any state change clears pending reauth flag */
+			pendingReauth = false;
+
+		/* a terminal state ends the association with the transport, so any
+		 * subsequent indications from it are ignored */
+		if(newStateInfo.terminal)
+			transport = null;
+
+		/* a pending batch can no longer be sent on this connection; it is
+		 * queued or failed, just as if it had been published in this state */
+		if(!state.sendEvents && pendingBatch != null) {
+			QueuedMessage batch = pendingBatch;
+			pendingBatch = null;
+			if(batchQueueEvents)
+				queuedMessages.addFirst(batch);
+			else
+				callOnError(batch.listener, state.defaultErrorInfo);
 		}
 
 		/* broadcast state change */
@@ -242,9 +307,9 @@ public class ConnectionManager implements Runnable, ConnectListener {
 		/* if now connected, send queued messages, etc */
 		if(state.sendEvents) {
 			sendQueuedMessages();
-			for(Channel channel : ably.channels.values())
-				channel.setConnected();
+			ably.channels.reattachAll();
 		} else { 
+			ably.channels.stopReattach();
 			if(!state.queueEvents)
 				failQueuedMessages(state.defaultErrorInfo);
 			for(Channel channel : ably.channels.values()) {
@@ -282,66 +347,222 @@ public class ConnectionManager implements Runnable, ConnectListener {
 		requestState(new StateIndication(state, null));
 	}
 
-	public synchronized void requestState(StateIndication state) {
-		Log.v(TAG, "requestState(): requesting " + state.state + "; id = " + connection.key);
-		requestedState = state;
-		notify();
+	public void requestState(final StateIndication state) {
+		Log.v(TAG, "requestState(): requesting {}; id = {}", state.state, connection.key);
+		post(new Runnable() {
+			@Override
+			public void run() {
+				handleStateRequest(state);
+			}
+		});
 	}
 
-	synchronized void notifyState(ITransport transport, StateIndication state) {
+	void notifyState(final ITransport transport, final StateIndication state) {
+		if (Thread.currentThread() == mgrThread) {
+			handleTransportState(transport, state);
+		}
+		else {
+			post(new Runnable() {
+				@Override
+				public void run() {
+					handleTransportState(transport, state);
+				}
+			});
+		}
+	}
+
+	void notifyState(final StateIndication state) {
+		Log.v(TAG, "notifyState(): notifying {}; id = {}", state.state, connection.key);
+		if (Thread.currentThread() == mgrThread) {
+			handleStateChange(state);
+		}
+		else {
+			post(new Runnable() {
+				@Override
+				public void run() {
+					handleStateChange(state);
+				}
+			});
+		}
+	}
+
+	private void handleTransportState(ITransport transport, StateIndication state) {
 		if(this.transport == transport) {
+			/* if a racing attempt can continue the connection attempt, do that */
+			if(state.state == ConnectionState.disconnected && promoteRacer(state.reason))
+				return;
 			/* if this transition signifies the end of the transport, clear the transport */
 			if(states.get(state.state).terminal)
 				this.transport = null;
 			notifyState(state);
-		} else
+		} else {
+			if(state.state == ConnectionState.disconnected || state.state == ConnectionState.failed)
+				onRacerFailed(transport);
 			Log.v(TAG, "notifyState: wrong transport");
+		}
 	}
 
-	synchronized void notifyState(StateIndication state) {
-		Log.v(TAG, "notifyState(): notifying " + state.state + "; id = " + connection.key);
-		if (Thread.currentThread() == mgrThread) {
-			handleStateChange(state);
+	public void ping(final CompletionListener listener) {
+		ping(new PingListener() {
+			@Override
+			public void onSuccess(long roundTripTime) {
+				if(listener != null)
+					listener.onSuccess();
+			}
+			@Override
+			public void onError(ErrorInfo reason) {
+				if(listener != null)
+					listener.onError(reason);
+			}
+		});
+	}
+
+	/**
+	 * Send a heartbeat, with a unique id, and notify the listener when the
+	 * response with the same id is received, or when HEARTBEAT_TIMEOUT expires.
+	 * The timeout runs on the shared scheduler, so a ping doesn't occupy a thread.
+	 */
+	public void ping(final PingListener listener) {
+		if(state.state != ConnectionState.connected) {
+			callOnError(listener, new ErrorInfo("Unable to ping service; not connected", 40000, 400));
+			return;
 		}
-		else {
-			indicatedState = state;
-			notify();
+		Ping ping = new Ping(String.valueOf(pingSerial.incrementAndGet()), listener);
+		synchronized(pings) {
+			pings.put(ping.id, ping);
+		}
+		ably.scheduler.schedule(ping, HEARTBEAT_TIMEOUT);
+		try {
+			ProtocolMessage msg = new ProtocolMessage(ProtocolMessage.Action.heartbeat);
+			msg.id = ping.id;
+			send(msg, false, null);
+		} catch (AblyException e) {
+			if(removePing(ping.id) != null)
+				callOnError(listener, e.errorInfo);
 		}
 	}
 
-	public void ping(final CompletionListener listener) {
-		if(state.state != ConnectionState.connected) {
-			if(listener != null)
-				listener.onError(new ErrorInfo("Unable to ping service; not connected", 40000, 400));
+	/**
+	 * Get the round trip time, in milliseconds, measured by the most recent ping.
+	 * @return the time, or -1 if no ping has succeeded
+	 */
+	public long getRoundTripTime() {
+		synchronized(pings) {
+			return lastRoundTripTime;
+		}
+	}
+
+	/**
+	 * Get a moving average of the round trip times measured by pings,
+	 * weighting recent pings more heavily.
+	 * @return the average time in milliseconds, or -1 if no ping has succeeded
+	 */
+	public long getAverageRoundTripTime() {
+		synchronized(pings) {
+			return (averageRoundTripTime < 0) ? -1 : Math.round(averageRoundTripTime);
+		}
+	}
+
+	/**
+	 * Get the histogram of the times, in microseconds, from sending each
+	 * message or presence message until its ACK, on this connection.
+	 */
+	public LatencyHistogram getPublishLatency() {
+		return publishLatency;
+	}
+
+	/**
+	 * Get the histogram of publish latencies for a channel.
+	 * @return the histogram, or null if latencies are not recorded for the channel
+	 */
+	public LatencyHistogram getChannelPublishLatency(String channelName) {
+		return channelPublishLatency.get(channelName);
+	}
+
+	/**
+	 * Start, or stop, recording publish latencies for a channel.
+	 * @param channelName
+	 * @param record
+	 * @return the histogram, or null if recording has stopped
+	 */
+	public LatencyHistogram setChannelPublishLatency(String channelName, boolean record) {
+		if(!record) {
+			channelPublishLatency.remove(channelName);
+			return null;
+		}
+		LatencyHistogram histogram = channelPublishLatency.get(channelName);
+		if(histogram == null) {
+			LatencyHistogram existing = channelPublishLatency.putIfAbsent(channelName, histogram = new LatencyHistogram());
+			if(existing != null) histogram = existing;
+		}
+		return histogram;
+	}
+
+	private void recordPublishLatency(QueuedMessage msg, long latencyNanos) {
+		long latency = latencyNanos / 1000;
+		publishLatency.record(latency);
+		String channelName = msg.msg.channel;
+		if(channelName == null)
 			return;
+		if(!channelPublishLatency.isEmpty()) {
+			LatencyHistogram histogram = channelPublishLatency.get(channelName);
+			if(histogram != null)
+				histogram.record(latency);
 		}
-		if(listener != null) {
-			Runnable waiter = new Runnable() {
-				public void run() {
-					boolean pending;
-					synchronized(heartbeatWaiters) {
-						pending = heartbeatWaiters.contains(this);
-						if(pending)
-							try { heartbeatWaiters.wait(HEARTBEAT_TIMEOUT); } catch(InterruptedException ie) {}
-	
-						pending = heartbeatWaiters.remove(this);
-					}
-					if(pending)
-						listener.onError(new ErrorInfo("Timed out waiting for heartbeat response", 50000, 500));
-					else
-						listener.onSuccess();
+		if(metrics != null)
+			metrics.record(Metrics.CHANNEL_PUBLISH_LATENCY, channelName, latency / 1000);
+	}
+
+	/**
+	 * A ping awaiting its heartbeat response. When run, the ping has timed out.
+	 */
+	private class Ping extends Scheduler.Task {
+		Ping(String id, PingListener listener) {
+			this.id = id;
+			this.listener = listener;
+		}
+
+		@Override
+		public void run() {
+			if(removePing(id) != null)
+				callOnError(listener, new ErrorInfo("Timed out waiting for heartbeat response", 50000, 500));
+		}
+
+		void onResponse(long receivedAt) {
+			cancel();
+			long roundTripTime = TimeUnit.NANOSECONDS.toMillis(receivedAt - sentAt);
+			synchronized(pings) {
+				lastRoundTripTime = roundTripTime;
+				averageRoundTripTime = (averageRoundTripTime < 0) ? roundTripTime
+						: averageRoundTripTime + (roundTripTime - averageRoundTripTime) * RTT_WEIGHT;
+			}
+			if(listener != null) {
+				try {
+					listener.onSuccess(roundTripTime);
+				} catch(Throwable t) {
+					Log.e(TAG, "Unexpected error calling listener", t);
 				}
-			};
-			synchronized(heartbeatWaiters) {
-				heartbeatWaiters.add(waiter);
-				(new Thread(waiter)).start();
 			}
 		}
-		try {
-			send(new ProtocolMessage(ProtocolMessage.Action.heartbeat), false, null);
-		} catch (AblyException e) {
-			if(listener != null)
-				listener.onError(e.errorInfo);
+
+		final String id;
+		final long sentAt = System.nanoTime();
+		private final PingListener listener;
+	}
+
+	private Ping removePing(String id) {
+		synchronized(pings) {
+			return pings.remove(id);
+		}
+	}
+
+	private static void callOnError(PingListener listener, ErrorInfo reason) {
+		if(listener != null) {
+			try {
+				listener.onError(reason);
+			} catch (Throwable t) {
+				Log.e(TAG, "Unexpected error calling listener", t);
+			}
 		}
 	}
 
@@ -409,7 +630,7 @@ public class ConnectionManager implements Runnable, ConnectListener {
 	 * @param errorInfo Error associated with unsuccessful authentication
 	 */
 	public void onAuthError(ErrorInfo errorInfo) {
-		Log.i(TAG, String.format("onAuthError: (%d) %s", errorInfo.code, errorInfo.message));
+		Log.i(TAG, "onAuthError: ({}) {}", errorInfo.code, errorInfo.message);
 		switch (state.state) {
 			case connecting:
 				ITransport transport = this.transport;
@@ -438,11 +659,20 @@ public class ConnectionManager implements Runnable, ConnectListener {
 	 * @param message
 	 * @throws AblyException
 	 */
-	public void onMessage(ITransport transport, ProtocolMessage message) throws AblyException {
-		if (transport != null && this.transport != transport)
+	public void onMessage(final ITransport transport, final ProtocolMessage message) throws AblyException {
+		if (transport != null && this.transport != transport) {
+			if (message.action == Action.connected && racers.containsKey(transport)) {
+				post(new Runnable() {
+					@Override
+					public void run() { onRacerConnected(transport, message); }
+				});
+			}
 			return;
-		if (Log.level <= Log.VERBOSE)
-			Log.v(TAG, "onMessage(): " + message.action + ": " + new String(ProtocolSerializer.writeJSON(message)));
+		}
+		if (Log.isLoggable(Log.VERBOSE))
+			Log.v(TAG, "onMessage(): {}: {}", message.action, new String(ProtocolSerializer.writeJSON(message)));
+		if (metrics != null)
+			metrics.count(Metrics.CONNECTION_FRAMES_IN, message.action.name(), 1);
 		try {
 			if(protocolListener != null)
 				protocolListener.onRawMessageRecv(message);
@@ -455,23 +685,32 @@ public class ConnectionManager implements Runnable, ConnectListener {
 					if(reason == null)
 						Log.e(TAG, "onMessage(): ERROR message received (no error detail)");
 					else
-						Log.e(TAG, "onMessage(): ERROR message received; message = " + reason.message + "; code = " + reason.code);
+						Log.e(TAG, "onMessage(): ERROR message received; message = {}; code = {}", reason.message, reason.code);
 
 			/* an error message may signify an error state in a channel, or in the connection */
 					if(message.channel != null)
 						onChannelMessage(message);
 					else
-						onError(message);
+						post(new TransportCommand(transport) {
+							@Override
+							void execute() { onError(message); }
+						});
 					break;
 				case connected:
-					onConnected(message);
+					post(new TransportCommand(transport) {
+						@Override
+						void execute() { onConnected(message); }
+					});
 					break;
 				case disconnect:
 				case disconnected:
 					onDisconnected(message);
 					break;
 				case closed:
-					onClosed(message);
+					post(new TransportCommand(transport) {
+						@Override
+						void execute() { onClosed(message); }
+					});
 					break;
 				case ack:
 					onAck(message);
@@ -480,10 +719,13 @@ public class ConnectionManager implements Runnable, ConnectListener {
 					onNack(message);
 					break;
 				case auth:
-					synchronized (this) {
-						pendingReauth = true;
-						notify();
-					}
+					post(new TransportCommand(transport) {
+						@Override
+						void execute() {
+							pendingReauth = true;
+							handleReauth();
+						}
+					});
 					break;
 				default:
 					onChannelMessage(message);
@@ -504,7 +746,14 @@ public class ConnectionManager implements Runnable, ConnectListener {
 		ably.channels.onChannelMessage(transport, message);						
 	}
 
-	private synchronized void onConnected(ProtocolMessage message) {
+	private void onConnected(ProtocolMessage message) {
+		/* the latency of the attempt is recorded once; a later CONNECTED
+		 * on the same transport, as on reauth (RTC8a), is not a connect */
+		if(pendingConnect.startTime != 0) {
+			hosts.getHealth().onSuccess(pendingConnect.host, System.currentTimeMillis() - pendingConnect.startTime);
+			pendingConnect.startTime = 0;
+		}
+
 		/* Set the http host to try and ensure that realtime and rest use the
 		 * same region:
 		 *  - if we're on the default realtime host, set http to the default
@@ -544,6 +793,7 @@ public class ConnectionManager implements Runnable, ConnectListener {
 
 		/* Get any parameters from connectionDetails. */
 		maxIdleInterval = connectionDetails.maxIdleInterval;
+		maxMessageSize = (connectionDetails.maxMessageSize == null) ? 0 : connectionDetails.maxMessageSize.longValue();
 
 		/* set the clientId resolved from token, if any */
 		String clientId = connectionDetails.clientId;
@@ -551,6 +801,7 @@ public class ConnectionManager implements Runnable, ConnectListener {
 			ably.auth.setClientId(clientId);
 		} catch (AblyException e) {
 			notifyState(transport, new StateIndication(ConnectionState.failed, e.errorInfo));
+			return;
 		}
 
 		/* indicated connected state */
@@ -558,11 +809,11 @@ public class ConnectionManager implements Runnable, ConnectListener {
 		notifyState(new StateIndication(ConnectionState.connected, error));
 	}
 
-	private synchronized void onDisconnected(ProtocolMessage message) {
+	private void onDisconnected(ProtocolMessage message) {
 		onTransportUnavailable(transport, null, message.error);
 	}
 
-	private synchronized void onClosed(ProtocolMessage message) {
+	private void onClosed(ProtocolMessage message) {
 		if(message.error != null) {
 			this.onError(message);
 		} else {
@@ -571,7 +822,7 @@ public class ConnectionManager implements Runnable, ConnectListener {
 		}
 	}
 
-	private synchronized void onError(ProtocolMessage message) {
+	private void onError(ProtocolMessage message) {
 		connection.key = null;
 		ConnectionState destinationState = isFatalError(message.error) ? ConnectionState.failed : ConnectionState.disconnected;
 		notifyState(transport, new StateIndication(destinationState, message.error));
@@ -579,53 +830,94 @@ public class ConnectionManager implements Runnable, ConnectListener {
 
 	private void onAck(ProtocolMessage message) {
 		pendingMessages.ack(message.msgSerial, message.count, message.error);
+		onWindowUpdated();
 	}
 
 	private void onNack(ProtocolMessage message) {
 		pendingMessages.nack(message.msgSerial, message.count, message.error);
+		onWindowUpdated();
 	}
 
 	private void onHeartbeat(ProtocolMessage message) {
-		synchronized(heartbeatWaiters) {
-			heartbeatWaiters.clear();
-			heartbeatWaiters.notifyAll();
+		long receivedAt = System.nanoTime();
+		Ping[] responded;
+		synchronized(pings) {
+			if(message.id != null) {
+				Ping ping = pings.remove(message.id);
+				responded = (ping == null) ? null : new Ping[] { ping };
+			} else {
+				/* a response that doesn't identify the ping it answers
+				 * counts as a response to all outstanding pings */
+				responded = pings.values().toArray(new Ping[pings.size()]);
+				pings.clear();
+			}
 		}
+		if(responded != null)
+			for(Ping ping : responded)
+				ping.onResponse(receivedAt);
 	}
 
 	/**************************
 	 * ConnectionManager thread
 	 **************************/
 
+	/**
+	 * A command that relates to a specific transport, and is discarded
+	 * if that is no longer the current transport when it is executed.
+	 */
+	private abstract class TransportCommand implements Runnable {
+		TransportCommand(ITransport transport) { this.transport = transport; }
+
+		@Override
+		public void run() {
+			if(transport != null && ConnectionManager.this.transport != transport) {
+				Log.v(TAG, "TransportCommand: wrong transport");
+				return;
+			}
+			execute();
+		}
+
+		abstract void execute();
+
+		private final ITransport transport;
+	}
+
+	/**
+	 * Queue a command for execution, in order, on the ConnectionManager thread.
+	 * This never blocks, and may be called from any thread.
+	 */
+	private void post(Runnable command) {
+		commands.add(command);
+		Thread thread = mgrThread;
+		if(thread != null)
+			LockSupport.unpark(thread);
+	}
+
 	private boolean startThread() {
 		boolean creating = false;
+		Thread thread = null;
 		synchronized(this) {
 			if(mgrThread == null) {
-				mgrThread = new Thread(this);
+				thread = mgrThread = new Thread(this);
 				state = states.get(ConnectionState.initialized);
 				creating = true;
 			}
 		}
-		if(creating) {
-			synchronized(mgrThread) {
-				mgrThread.start();
-				try { mgrThread.wait(); } catch(InterruptedException ie) {}
-			}
-		}
+		if(creating)
+			thread.start();
 
 		return creating;
 	}
 
-	private void stopThread() {
-		synchronized(this) {
-			if(mgrThread != null) {
-				mgrThread.interrupt();
-				mgrThread = null;
-			}
-		}
-	}
-
-	private void handleStateRequest() {
+	private void handleStateRequest(StateIndication requestedState) {
 		boolean handled = false;
+		resetStateTimer();
+		/* any request supersedes a pending connectivity check */
+		connectivityCheck = null;
+		/* send any batched publishes before acting on the request,
+		 * so that they are handled in the order the calls were made */
+		if(state.sendEvents)
+			flushBatch();
 		switch(requestedState.state) {
 		case failed:
 			if(transport != null) {
@@ -647,7 +939,7 @@ public class ConnectionManager implements Runnable, ConnectListener {
 			break;
 		case connecting:
 			if(!connectImpl(requestedState)) {
-				indicatedState = new StateIndication(ConnectionState.failed, new ErrorInfo("Connection failed; no host available", 404, 80000), null, requestedState.currentHost);
+				handleStateChange(new StateIndication(ConnectionState.failed, new ErrorInfo("Connection failed; no host available", 404, 80000), null, requestedState.currentHost));
 			}
 
 			handled = true;
@@ -659,9 +951,8 @@ public class ConnectionManager implements Runnable, ConnectListener {
 		}
 		if(!handled) {
 			/* the transport wasn't there, so we just transition directly */
-			indicatedState = requestedState;
+			handleStateChange(requestedState);
 		}
-		requestedState = null;
 	}
 
 	private void handleStateChange(StateIndication stateChange) {
@@ -689,7 +980,6 @@ public class ConnectionManager implements Runnable, ConnectListener {
 					transport = null;
 				}
 				stateChange = null;
-				stopThread();
 				break;
 			case connected:
 				/* we were connected, so retry immediately */
@@ -723,92 +1013,153 @@ public class ConnectionManager implements Runnable, ConnectListener {
 		/* We got here when a connection attempt failed and we need to check to
 		 * see whether we should go into disconnected or suspended state.
 		 * There are three options:
-		 * - First check to see whether or not internet connectivity is ok;
-		 *   if so we'll trigger a new connect attempt with a fallback host.
+		 * - if there is a fallback host, check to see whether or not internet
+		 *   connectivity is ok; if so we'll trigger a new connect attempt
+		 *   with the fallback host. The check is asynchronous, and we stay
+		 *   in the connecting state until it completes;
 		 * - we're entering disconnected and will schedule a retry after the
 		 *   reconnect timer;
 		 * - the suspend timer has expired, so we're going into suspended state.
 		 */
 
+		/* a connectivity check is already in progress for this failure */
+		if(connectivityCheck != null)
+			return null;
+
+		/* any racing attempts are abandoned with the one that failed */
+		abortRacers();
 		if(pendingConnect != null && (stateChange.reason == null || stateChange.reason.statusCode >= 500)) {
-			if (checkConnectivity()) {
-				/* we will try a fallback host */
-				String hostFallback = hosts.getFallback(pendingConnect.host);
-				if (hostFallback != null) {
-					Log.v(TAG, "checkSuspend: fallback to " + hostFallback);
-					requestState(new StateIndication(ConnectionState.connecting, null, hostFallback, pendingConnect.host));
-					/* returning null ensures we stay in the connecting state */
-					return null;
-				}
+			hosts.getHealth().onFailure(pendingConnect.host);
+			/* we will try the next host in order of health
+			 * that has not already been tried by a racing attempt */
+			final String hostFallback = Hosts.getNextCandidate(hostCandidates, lastCandidate);
+			if (hostFallback != null) {
+				final String failedHost = pendingConnect.host;
+				final ErrorInfo reason = stateChange.reason;
+				final Object check = connectivityCheck = new Object();
+				checkConnectivity(new ConnectivityProbe.Listener() {
+					@Override
+					public void onResult(final boolean connected) {
+						post(new Runnable() {
+							@Override
+							public void run() {
+								onConnectivityChecked(check, connected, hostFallback, failedHost, reason);
+							}
+						});
+					}
+				});
+				/* returning null ensures we stay in the connecting state */
+				return null;
 			}
 		}
+		return notFallingBack(stateChange.reason);
+	}
+
+	private void onConnectivityChecked(Object check, boolean connected, String hostFallback, String failedHost, ErrorInfo reason) {
+		if(check != connectivityCheck || state.state != ConnectionState.connecting) {
+			/* superseded by another state request */
+			return;
+		}
+		connectivityCheck = null;
+		if(connected) {
+			Log.v(TAG, "checkSuspend: fallback to {}", hostFallback);
+			requestState(new StateIndication(ConnectionState.connecting, null, hostFallback, failedHost));
+			return;
+		}
+		pendingConnect = null;
+		setState(notFallingBack(reason));
+	}
+
+	private StateIndication notFallingBack(ErrorInfo reason) {
 		Log.v(TAG, "checkSuspend: not falling back");
 		boolean suspendMode = System.currentTimeMillis() > suspendTime;
 		ConnectionState expiredState = suspendMode ? ConnectionState.suspended : ConnectionState.disconnected;
-		return new StateIndication(expiredState, stateChange.reason);
+		return new StateIndication(expiredState, reason);
 	}
 
-	private void tryWait(long timeout) {
-		if(requestedState == null && indicatedState == null && !pendingReauth)
-			try {
-				if(timeout == 0) wait();
-				else wait(timeout);
-			} catch (InterruptedException e) {}
+	/**
+	 * Restart the timer for the current state; this runs from entry to
+	 * the state, or from the last state request.
+	 */
+	private void resetStateTimer() {
+		stateTimeout = (state.timeout == 0) ? 0 : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(state.timeout);
+	}
+
+	private void handleStateTimeout() {
+		/* if our state wants us to retry on timer expiry, do that */
+		if(state.retry) {
+			handleStateRequest(new StateIndication(ConnectionState.connecting, null));
+			return;
+		}
+
+		/* otherwise the timer expired while we were in the connecting/closing state */
+		StateIndication stateChange = checkSuspend(new StateIndication(ConnectionState.disconnected, REASON_TIMEDOUT));
+		if(stateChange != null)
+			handleStateChange(stateChange);
+		else
+			resetStateTimer();
 	}
 
+	/**
+	 * The ConnectionManager event loop. All state transitions, state timers,
+	 * and sends are executed in order on this thread; other threads interact
+	 * with it only by queueing commands.
+	 */
 	public void run() {
-		StateIndication stateChange;
 		Thread thisThread = Thread.currentThread();
-		while(!state.terminal) {
-			stateChange = null;
-			synchronized(this) {
-				/* if we're initialising, then tell the starting thread that
-				 * we're ready to receive events */
-				if(state.state == ConnectionState.initialized) {
-					synchronized(thisThread) {
-						thisThread.notify();
-					}
+		resetStateTimer();
+		while(true) {
+			Runnable command = commands.poll();
+			if(command != null) {
+				try {
+					command.run();
+				} catch(Throwable t) {
+					Log.e(TAG, "run(): Unexpected exception executing command", t);
 				}
-	
-				while(stateChange == null) {
-					tryWait(state.timeout);
-					/* if during the wait some action was requested, handle it */
-					if(requestedState != null) {
-						handleStateRequest();
-						continue;
-					}
-	
-					/* if during the wait we were told that a transition
-					 * needs to be enacted, handle that (outside the lock) */
-					if(indicatedState != null) {
-						stateChange = indicatedState;
-						indicatedState = null;
-						break;
-					}
+				continue;
+			}
 
-					/* if our state wants us to retry on timer expiry, do that */
-					if(state.retry) {
-						requestState(ConnectionState.connecting);
-						continue;
-					}
+			/* the queues change only when commands run */
+			if(metrics != null)
+				updateQueueMetrics();
 
-					if(pendingReauth) {
-						handleReauth();
-						break;
+			if(state.terminal) {
+				synchronized(this) {
+					/* exit, unless a command was queued since we last looked */
+					if(commands.isEmpty()) {
+						if(mgrThread == thisThread)
+							mgrThread = null;
+						return;
 					}
+				}
+				continue;
+			}
 
-					/* no indicated state or requested action, so the timer
-					 * expired while we were in the connecting/closing state */
-					stateChange = checkSuspend(new StateIndication(ConnectionState.disconnected, REASON_TIMEDOUT));
+			long now = System.nanoTime();
+			if(pendingBatch != null && batchTimeout - now <= 0) {
+				flushBatch();
+				continue;
+			}
+			if(stateTimeout != 0 && stateTimeout - now <= 0) {
+				try {
+					handleStateTimeout();
+				} catch(Throwable t) {
+					Log.e(TAG, "run(): Unexpected exception handling state timeout", t);
 				}
+				continue;
 			}
 
-			if(stateChange != null)
-				handleStateChange(stateChange);
-		}
-		synchronized(this) {
-			if(mgrThread == thisThread)
-				mgrThread = null;
+			if(isFlowControlled())
+				updateWritable();
+
+			/* wait for a command, or the next of the state and batch timeouts */
+			long deadline = stateTimeout;
+			if(pendingBatch != null && (deadline == 0 || batchTimeout - deadline < 0))
+				deadline = batchTimeout;
+			if(deadline == 0)
+				LockSupport.park(this);
+			else
+				LockSupport.parkNanos(this, deadline - now);
 		}
 	}
 
@@ -841,15 +1192,25 @@ public class ConnectionManager implements Runnable, ConnectListener {
 	}
 
 	@Override
-	public synchronized void onTransportUnavailable(ITransport transport, TransportParams params, ErrorInfo reason) {
-		if (this.transport != transport) {
-			/* This is from a transport that we have already abandoned. */
-			Log.v(TAG, "onTransportUnavailable: wrong transport");
-			return;
-		}
-		ably.auth.onAuthError(reason);
-		notifyState(new StateIndication(ConnectionState.disconnected, reason, null, transport.getHost()));
-		this.transport = null;
+	public void onTransportUnavailable(final ITransport transport, TransportParams params, final ErrorInfo reason) {
+		post(new Runnable() {
+			@Override
+			public void run() {
+				if (ConnectionManager.this.transport != transport) {
+					/* This is from a transport that we have already abandoned,
+					 * or a racing connection attempt. */
+					onRacerFailed(transport);
+					Log.v(TAG, "onTransportUnavailable: wrong transport");
+					return;
+				}
+				/* if a racing attempt can continue the connection attempt, do that */
+				if (promoteRacer(reason))
+					return;
+				ably.auth.onAuthError(reason);
+				notifyState(new StateIndication(ConnectionState.disconnected, reason, null, transport.getHost()));
+				ConnectionManager.this.transport = null;
+			}
+		});
 	}
 
 	private class ConnectParams extends TransportParams {
@@ -857,8 +1218,12 @@ public class ConnectionManager implements Runnable, ConnectListener {
 			this.options = options;
 			this.connectionKey = connection.key;
 			this.connectionSerial = String.valueOf(connection.serial);
+			this.recover = (options.recover != null) ? options.recover : restoredRecoveryKey;
 			this.port = Defaults.getPort(options);
 		}
+
+		/* when the connection attempt started, for measuring connect latency */
+		long startTime;
 	}
 
 	private boolean connectImpl(StateIndication request) {
@@ -867,38 +1232,176 @@ public class ConnectionManager implements Runnable, ConnectListener {
 		 * First, choose the transport. (Right now there's only one.)
 		 * Second, choose the host. ConnectParams will use the default
 		 * (or requested) host, unless fallback!=null, in which case
-		 * checkSuspend has already chosen a fallback host at random */
+		 * checkSuspend has already chosen the next candidate host.
+		 * The candidates are ordered by health at the start of each
+		 * sequence of attempts, so a host known to be failing is not
+		 * tried first. */
 
 		String host = request.fallback;
-		if (host == null)
-			host = hosts.getHost();
+		if (host == null) {
+			abortRacers();
+			hostCandidates = hosts.getCandidates();
+			host = hostCandidates[0];
+		}
 		pendingConnect = new ConnectParams(options);
 		pendingConnect.host = host;
 		lastUsedHost = host;
+		lastCandidate = host;
 
 		/* enter the connecting state */
 		notifyState(request);
 
 		/* try the connection */
-		ITransport transport;
+		ITransport transport = newTransport(pendingConnect);
+		ITransport oldTransport = this.transport;
+		this.transport = transport;
+		if (oldTransport != null)
+			oldTransport.abort(REASON_TIMEDOUT);
+		pendingConnect.startTime = System.currentTimeMillis();
+		transport.connect(this);
+
+		/* a new connection may race attempts to other hosts;
+		 * a resume or recover must go to a single host */
+		if (options.connectionRacing && connection.key == null && options.recover == null && restoredRecoveryKey == null)
+			scheduleRacer();
+		return true;
+	}
+
+	private ITransport newTransport(ConnectParams params) {
 		try {
-			transport = factory.getTransport(pendingConnect, this);
+			return factory.getTransport(params, this);
 		} catch(Exception e) {
 			String msg = "Unable to instance transport class";
 			Log.e(getClass().getName(), msg, e);
 			throw new RuntimeException(msg, e);
 		}
-		ITransport oldTransport;
-		synchronized(this) {
-			oldTransport = this.transport;
-			this.transport = transport;
+	}
+
+	/******************
+	 * connection racing
+	 ******************/
+
+	/**
+	 * Start a racing attempt to the next candidate host after the racing delay,
+	 * if the connection attempt has not completed by then.
+	 */
+	private void scheduleRacer() {
+		if (Hosts.getNextCandidate(hostCandidates, lastCandidate) == null)
+			return;
+		if (racerTask != null)
+			racerTask.cancel();
+		racerTask = ably.scheduler.schedule(new RacerTask(), options.connectionRacingDelay);
+	}
+
+	/**
+	 * When run, the racing delay has expired.
+	 */
+	private class RacerTask extends Scheduler.Task {
+		@Override
+		public void run() {
+			post(new Runnable() {
+				@Override
+				public void run() {
+					if (racerTask == RacerTask.this && !isCancelled())
+						startRacer();
+				}
+			});
 		}
+	}
+
+	private void startRacer() {
+		racerTask = null;
+		if (state.state != ConnectionState.connecting || transport == null)
+			return;
+		String host = Hosts.getNextCandidate(hostCandidates, lastCandidate);
+		if (host == null)
+			return;
+		Log.v(TAG, "startRacer: racing connection attempt to {}", host);
+		lastCandidate = host;
+		ConnectParams params = new ConnectParams(options);
+		params.host = host;
+		ITransport racer = newTransport(params);
+		racers.put(racer, params);
+		params.startTime = System.currentTimeMillis();
+		racer.connect(this);
+		scheduleRacer();
+	}
+
+	/**
+	 * A racing attempt has connected, so it becomes the connection,
+	 * and all other attempts are abandoned.
+	 */
+	private void onRacerConnected(ITransport racer, ProtocolMessage message) {
+		ConnectParams params = racers.remove(racer);
+		if (params == null) {
+			/* it has been abandoned, or has already become the current attempt */
+			if (transport == racer)
+				onConnected(message);
+			return;
+		}
+		if (state.state != ConnectionState.connecting) {
+			racer.abort(REASON_CLOSED);
+			return;
+		}
+		Log.v(TAG, "onRacerConnected: connected to {}", params.host);
+		ITransport oldTransport = transport;
+		transport = racer;
+		pendingConnect = params;
+		lastUsedHost = params.host;
 		if (oldTransport != null)
-			oldTransport.abort(REASON_TIMEDOUT);
-		transport.connect(this);
+			oldTransport.abort(REASON_CLOSED);
+		abortRacers();
+		onConnected(message);
+	}
+
+	/**
+	 * The current connection attempt has failed; if racing attempts are in
+	 * progress, continue with the earliest of them instead of reporting the failure.
+	 * @return true if a racing attempt became the current attempt
+	 */
+	private boolean promoteRacer(ErrorInfo reason) {
+		if (state.state != ConnectionState.connecting || racers.isEmpty())
+			return false;
+		if (reason != null && reason.statusCode < 500)
+			return false;
+		Map.Entry<ITransport, ConnectParams> next;
+		synchronized(racers) {
+			Iterator<Map.Entry<ITransport, ConnectParams>> it = racers.entrySet().iterator();
+			next = it.next();
+			it.remove();
+		}
+		hosts.getHealth().onFailure(pendingConnect.host);
+		Log.v(TAG, "promoteRacer: continuing with connection attempt to {}", next.getValue().host);
+		transport = next.getKey();
+		pendingConnect = next.getValue();
+		lastUsedHost = pendingConnect.host;
 		return true;
 	}
 
+	private void onRacerFailed(ITransport racer) {
+		ConnectParams params = racers.remove(racer);
+		if (params != null) {
+			Log.v(TAG, "onRacerFailed: connection attempt to {} failed", params.host);
+			hosts.getHealth().onFailure(params.host);
+		}
+	}
+
+	private void abortRacers() {
+		if (racerTask != null) {
+			racerTask.cancel();
+			racerTask = null;
+		}
+		if (racers.isEmpty())
+			return;
+		List<ITransport> abandoned;
+		synchronized(racers) {
+			abandoned = new ArrayList<ITransport>(racers.keySet());
+			racers.clear();
+		}
+		for (ITransport racer : abandoned)
+			racer.abort(REASON_CLOSED);
+	}
+
 	private void closeImpl(StateIndication request) {
 		boolean connectionExist = state.state == ConnectionState.connected;
 		/* enter the closing state */
@@ -908,6 +1411,8 @@ public class ConnectionManager implements Runnable, ConnectListener {
 		if(connectionExist && transport != null) {
 			try {
 				transport.send(new ProtocolMessage(Action.close));
+				if(metrics != null)
+					metrics.count(Metrics.CONNECTION_FRAMES_OUT, Action.close.name(), 1);
 			} catch (AblyException e) {
 				transport.abort(e.errorInfo);
 			}
@@ -921,13 +1426,36 @@ public class ConnectionManager implements Runnable, ConnectListener {
 	 * without reference to a specific ably host. This is to determine whether
 	 * it is better to try a fallback host, or keep retrying with the default
 	 * host.
-	 * @return boolean, true if network is available
+	 * The result is passed to the listener, which may be called on any thread;
+	 * this must not block the ConnectionManager thread.
+	 * @param listener called with true if network is available
 	 */
-	protected boolean checkConnectivity() {
-		try {
-			return ably.http.getUrlString(INTERNET_CHECK_URL).contains(INTERNET_CHECK_OK);
-		} catch(AblyException e) {
-			return false;
+	protected void checkConnectivity(ConnectivityProbe.Listener listener) {
+		getConnectivityProbe().check(listener);
+	}
+
+	/**
+	 * Get the probe for network availability. This is shared by all clients,
+	 * unless this client uses a proxy, in which case the check must also use
+	 * that proxy.
+	 */
+	private ConnectivityProbe getConnectivityProbe() {
+		if(options.proxy == null)
+			return ConnectivityProbe.getDefault();
+		synchronized(this) {
+			if(proxyConnectivityProbe == null) {
+				proxyConnectivityProbe = new ConnectivityProbe(new ConnectivityProbe.Check() {
+					@Override
+					public boolean isConnected() {
+						try {
+							return ably.http.getUrlString(Defaults.INTERNET_CHECK_URL).contains(Defaults.INTERNET_CHECK_OK);
+						} catch(AblyException e) {
+							return false;
+						}
+					}
+				});
+			}
+			return proxyConnectivityProbe;
 		}
 	}
 
@@ -939,197 +1467,353 @@ public class ConnectionManager implements Runnable, ConnectListener {
 		public final ProtocolMessage msg;
 		public CompletionListener listener;
 		private boolean isMerged;
+		/* the number, and estimated size, of messages counted towards the queue limits */
+		int count;
+		int size;
+		/* the System.nanoTime() at which the message was sent */
+		long sendTime;
 		public QueuedMessage(ProtocolMessage msg, CompletionListener listener) {
 			this.msg = msg;
 			this.listener = listener;
 		}
 	}
 
-	public void send(ProtocolMessage msg, boolean queueEvents, CompletionListener listener) throws AblyException {
-		StateInfo state;
-		synchronized(this) {
-			state = this.state;
-			if(state.sendEvents) {
-				sendImpl(msg, listener);
+	/**
+	 * Send, or queue, a message. This does not block; the message is handed
+	 * to the ConnectionManager thread which sends it, or queues it if not yet
+	 * connected, in order with any other messages and state changes.
+	 * Failures after the message has been accepted are indicated to the listener.
+	 * The exceptions are when the message would be queued, the queue is full and
+	 * the overflow policy is QueueOverflowPolicy.block, and when the in-flight
+	 * window is full and the flow control policy is FlowControlPolicy.block;
+	 * then this blocks until there is room.
+	 * @throws AblyException if the connection is in a state where the message
+	 * can be neither sent nor queued, or the wait for room timed out.
+	 */
+	public void send(final ProtocolMessage msg, final boolean queueEvents, final CompletionListener listener) throws AblyException {
+		StateInfo state = this.state;
+		if(!state.sendEvents && !(state.queueEvents && queueEvents))
+			throw AblyException.fromErrorInfo(state.defaultErrorInfo);
+
+		boolean reserve = !state.sendEvents
+				&& options.queueOverflowPolicy == QueueOverflowPolicy.block
+				&& ProtocolMessage.ackRequired(msg)
+				/* the ConnectionManager thread empties the queue, so mustn't wait for it */
+				&& Thread.currentThread() != mgrThread;
+		if(reserve) {
+			try {
+				if(!queuedMessages.reserve(msg, options.queueBlockTimeout))
+					throw AblyException.fromErrorInfo(MessageQueue.REASON_QUEUE_FULL);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw AblyException.fromThrowable(e);
+			}
+		}
+
+		boolean awaitWindow = state.sendEvents
+				&& options.flowControlPolicy == FlowControlPolicy.block
+				&& isFlowControlled()
+				&& ProtocolMessage.ackRequired(msg)
+				&& Thread.currentThread() != mgrThread;
+		if(awaitWindow) {
+			try {
+				if(!awaitWritable(options.flowControlTimeout))
+					throw AblyException.fromErrorInfo(REASON_WINDOW_FULL);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw AblyException.fromThrowable(e);
+			}
+		}
+
+		final boolean reserved = reserve;
+		post(new Runnable() {
+			@Override
+			public void run() {
+				sendOrQueue(msg, queueEvents, listener, reserved);
+			}
+		});
+	}
+
+	private void sendOrQueue(ProtocolMessage msg, boolean queueEvents, CompletionListener listener, boolean reserved) {
+		if(reserved && (state.sendEvents || !(state.queueEvents && queueEvents))) {
+			/* the room reserved in the queue isn't needed */
+			queuedMessages.release(msg);
+			reserved = false;
+		}
+		if(state.sendEvents) {
+			if(isFlowControlled() && ProtocolMessage.ackRequired(msg)
+					&& (!queuedMessages.isEmpty() || !windowHasRoom(MessageQueue.getCount(msg), MessageQueue.getSize(msg)))) {
+				/* the window is full, or other messages are already waiting for it */
+				if(options.flowControlPolicy == FlowControlPolicy.fail)
+					callOnError(listener, REASON_WINDOW_FULL);
+				else if(!queuedMessages.add(msg, listener, false, false))
+					callOnError(listener, MessageQueue.REASON_QUEUE_FULL);
 				return;
 			}
-			if(state.queueEvents && queueEvents) {
-				int queueSize = queuedMessages.size();
-				if(queueSize > 0) {
-					QueuedMessage lastQueued = queuedMessages.get(queueSize - 1);
-					ProtocolMessage lastMessage = lastQueued.msg;
-					if(ProtocolMessage.mergeTo(lastMessage, msg)) {
-						if(!lastQueued.isMerged) {
-							lastQueued.listener = new CompletionListener.Multicaster(lastQueued.listener);
-							lastQueued.isMerged = true;
-						}
-						((CompletionListener.Multicaster)lastQueued.listener).add(listener);
-						return;
-					}
-				}
-				queuedMessages.add(new QueuedMessage(msg, listener));
+			if(options.publishBatchLinger > 0 && ProtocolMessage.ackRequired(msg)) {
+				addToBatch(msg, queueEvents, listener);
 				return;
 			}
+			/* anything batched was published first */
+			flushBatch();
+			try {
+				sendImpl(new QueuedMessage(msg, listener));
+			} catch (AblyException e) {
+				Log.e(TAG, "send(): Unable to send message", e);
+				callOnError(listener, e.errorInfo);
+			}
+			return;
 		}
-		throw AblyException.fromErrorInfo(state.defaultErrorInfo);
+		if(state.queueEvents && queueEvents) {
+			if(!queuedMessages.add(msg, listener, reserved))
+				callOnError(listener, MessageQueue.REASON_QUEUE_FULL);
+			return;
+		}
+		/* the state changed after the message was accepted */
+		callOnError(listener, state.defaultErrorInfo);
 	}
 
-	@SuppressWarnings("unused")
-	private void sendImpl(ProtocolMessage message) throws AblyException {
-		if(protocolListener != null)
-			protocolListener.onRawMessageSend(message);
-		transport.send(message);
+	/**
+	 * Merge a message, if possible, into a QueuedMessage so that they are sent
+	 * together; the QueuedMessage's listener is then notified of the result
+	 * for each of the merged messages.
+	 * @return true if merged
+	 */
+	static boolean mergeTo(QueuedMessage dest, ProtocolMessage msg, CompletionListener listener) {
+		if(!ProtocolMessage.mergeTo(dest.msg, msg))
+			return false;
+		if(listener != null) {
+			if(!dest.isMerged) {
+				dest.listener = (dest.listener == null) ? new CompletionListener.Multicaster() : new CompletionListener.Multicaster(dest.listener);
+				dest.isMerged = true;
+			}
+			((CompletionListener.Multicaster)dest.listener).add(listener);
+		}
+		return true;
 	}
 
-	private void sendImpl(ProtocolMessage message, CompletionListener listener) throws AblyException {
-		if(ProtocolMessage.ackRequired(message)) {
-			message.msgSerial = msgSerial++;
-			pendingMessages.push(new QueuedMessage(message, listener));
+	/**
+	 * Add a publish to the pending batch, starting a new batch if it
+	 * can't be merged into the current one. The batch is sent when its
+	 * linger time expires, or as soon as it reaches the maximum size.
+	 */
+	private void addToBatch(ProtocolMessage msg, boolean queueEvents, CompletionListener listener) {
+		int size = ProtocolMessage.getEstimatedSize(msg);
+		int maxSize = getMaxBatchSize();
+		boolean merged = false;
+		if(pendingBatch != null) {
+			if(queueEvents == batchQueueEvents && batchSize + size <= maxSize)
+				merged = mergeTo(pendingBatch, msg, listener);
+			if(merged)
+				batchSize += size;
+			else
+				flushBatch();
 		}
-		if(protocolListener != null)
-			protocolListener.onRawMessageSend(message);
-		transport.send(message);
+		if(!merged) {
+			pendingBatch = new QueuedMessage(msg, listener);
+			batchSize = size;
+			batchQueueEvents = queueEvents;
+			batchTimeout = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(options.publishBatchLinger);
+		}
+		if(batchSize >= maxSize)
+			flushBatch();
 	}
 
-	private void sendImpl(QueuedMessage msg) throws AblyException {
-		ProtocolMessage message = msg.msg;
-		if(ProtocolMessage.ackRequired(message)) {
-			message.msgSerial = msgSerial++;
-			pendingMessages.push(msg);
-		}
-		transport.send(message);
+	private int getMaxBatchSize() {
+		int maxSize = options.publishBatchMaxBytes;
+		if(maxMessageSize > 0 && maxMessageSize < maxSize)
+			maxSize = (int)maxMessageSize;
+		return maxSize;
 	}
 
-	private void sendQueuedMessages() {
-		synchronized(this) {
-			while(queuedMessages.size() > 0) {
-				try {
-					sendImpl(queuedMessages.get(0));
-				} catch (AblyException e) {
-					Log.e(TAG, "sendQueuedMessages(): Unexpected error sending queued messages", e);
-				} finally {
-					queuedMessages.remove(0);
-				}
+	private void flushBatch() {
+		QueuedMessage batch = pendingBatch;
+		if(batch == null)
+			return;
+		pendingBatch = null;
+		if(isFlowControlled()) {
+			measure(batch);
+			if(!windowHasRoom(batch.count, batch.size)) {
+				/* the window has closed since the batch was started */
+				queuedMessages.addFirst(batch);
+				return;
 			}
 		}
+		try {
+			sendImpl(batch);
+		} catch (AblyException e) {
+			Log.e(TAG, "flushBatch(): Unable to send batched messages", e);
+			callOnError(batch.listener, e.errorInfo);
+		}
 	}
 
-	private void failQueuedMessages(ErrorInfo reason) {
-		synchronized(this) {
-			for (QueuedMessage queued: queuedMessages) {
-				if (queued.listener != null) {
-					try {
-						queued.listener.onError(reason);
-					} catch (Throwable t) {
-						Log.e(TAG, "failQueuedMessages(): Unexpected error calling listener", t);
-					}
-				}
-			}
-			queuedMessages.clear();
+	/******************
+	 * flow control
+	 ******************/
+
+	private boolean isFlowControlled() {
+		return options.maxInFlightMessages > 0 || options.maxInFlightBytes > 0;
+	}
+
+	/**
+	 * Measure a message for the in-flight window, if not already done.
+	 */
+	private static void measure(QueuedMessage queued) {
+		if(queued.count == 0) {
+			queued.count = MessageQueue.getCount(queued.msg);
+			queued.size = MessageQueue.getSize(queued.msg);
 		}
 	}
 
-	private class PendingMessageQueue {
-		private long startSerial = 0L;
-		private ArrayList<QueuedMessage> queue = new ArrayList<QueuedMessage>();
+	/**
+	 * Whether a message can be sent without exceeding the in-flight limits.
+	 * If nothing is in flight, a message is always sent, even if by itself
+	 * it exceeds the limits.
+	 */
+	private boolean windowHasRoom(int count, int size) {
+		int inFlightCount = pendingMessages.getMessageCount();
+		if(inFlightCount == 0)
+			return true;
+		if(options.maxInFlightMessages > 0 && inFlightCount + count > options.maxInFlightMessages)
+			return false;
+		if(options.maxInFlightBytes > 0 && pendingMessages.getMessageBytes() + size > options.maxInFlightBytes)
+			return false;
+		return true;
+	}
+
+	/**
+	 * Called after an ack or nack; sends any messages held waiting for
+	 * the window to open.
+	 */
+	private void onWindowUpdated() {
+		/* acks are processed on the transport's thread */
+		if(metrics != null)
+			updateQueueMetrics();
+		if(!isFlowControlled())
+			return;
+		post(new Runnable() {
+			@Override
+			public void run() {
+				if(state.sendEvents)
+					sendQueuedMessages();
+			}
+		});
+	}
 
-		public synchronized void push(QueuedMessage msg) {
-			queue.add(msg);
+	/**
+	 * Update the writability of the connection, notifying listeners and
+	 * blocked publishers of any change. The connection is writable if
+	 * the in-flight window is not full, and no publishes are waiting.
+	 */
+	private void updateWritable() {
+		boolean isWritable = queuedMessages.getQueuedCount() == 0
+				&& (options.maxInFlightMessages == 0 || pendingMessages.getMessageCount() < options.maxInFlightMessages)
+				&& (options.maxInFlightBytes == 0 || pendingMessages.getMessageBytes() < options.maxInFlightBytes);
+		if(isWritable == writable)
+			return;
+		synchronized(writabilityListeners) {
+			writable = isWritable;
+			writabilityListeners.notifyAll();
 		}
+		writabilityListeners.onWritabilityChanged(isWritable);
+	}
 
-		public void ack(long msgSerial, int count, ErrorInfo reason) {
-			QueuedMessage[] ackMessages = null, nackMessages = null;
-			synchronized(this) {
-				if(msgSerial < startSerial) {
-					/* this is an error condition and shouldn't happen but
-					 * we can handle it gracefully by only processing the
-					 * relevant portion of the response */
-					count -= (int)(startSerial - msgSerial);
-					if(count < 0)
-						count = 0;
-					msgSerial = startSerial;
-				}
-				if(msgSerial > startSerial) {
-					/* this counts as a nack of the messages earlier than serial,
-					 * as well as an ack */
-					int nCount = (int)(msgSerial - startSerial);
-					List<QueuedMessage> nackList = queue.subList(0, nCount);
-					nackMessages = nackList.toArray(new QueuedMessage[nCount]);
-					nackList.clear();
-					startSerial = msgSerial;
-				}
-				if(msgSerial == startSerial) {
-					List<QueuedMessage> ackList = queue.subList(0, count);
-					ackMessages = ackList.toArray(new QueuedMessage[count]);
-					ackList.clear();
-					startSerial += count;
-				}
+	private boolean awaitWritable(long timeout) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		synchronized(writabilityListeners) {
+			while(!writable) {
+				long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if(remaining <= 0)
+					return false;
+				writabilityListeners.wait(remaining);
 			}
-			if(nackMessages != null) {
-				if(reason == null)
-					reason = new ErrorInfo("Unknown error", 500, 50000);
-				for(QueuedMessage msg : nackMessages) {
-					try {
-						if(msg.listener != null)
-							msg.listener.onError(reason);
-					} catch(Throwable t) {
-						Log.e(TAG, "ack(): listener exception", t);
-					}
-				}
+		}
+		return true;
+	}
+
+	/**
+	 * Whether publishes are sent without delay. This is false while
+	 * publishes are held because the limit set by ClientOptions.maxInFlightMessages
+	 * or maxInFlightBytes has been reached, or are queued awaiting a connection.
+	 */
+	public boolean isWritable() {
+		return writable;
+	}
+
+	public void addWritabilityListener(WritabilityListener listener) {
+		writabilityListeners.add(listener);
+	}
+
+	public void removeWritabilityListener(WritabilityListener listener) {
+		writabilityListeners.remove(listener);
+	}
+
+	static void callOnError(CompletionListener listener, ErrorInfo reason) {
+		if(listener != null) {
+			try {
+				listener.onError(reason);
+			} catch (Throwable t) {
+				Log.e(TAG, "Unexpected error calling listener", t);
 			}
-			if(ackMessages != null) {
-				for(QueuedMessage msg : ackMessages) {
-					try {
-						if(msg.listener != null)
-							msg.listener.onSuccess();
-					} catch(Throwable t) {
-						Log.e(TAG, "ack(): listener exception", t);
-					}
-				}
+		}
+	}
+
+	private void sendImpl(QueuedMessage msg) throws AblyException {
+		ProtocolMessage message = msg.msg;
+		boolean ackRequired = ProtocolMessage.ackRequired(message);
+		if(ackRequired) {
+			/* the in-flight window is measured for flow control, and for metrics */
+			if(isFlowControlled() || metrics != null)
+				measure(msg);
+			message.msgSerial = msgSerial++;
+			pendingMessages.push(msg);
+		}
+		if(protocolListener != null)
+			protocolListener.onRawMessageSend(message);
+		try {
+			transport.send(message);
+			if(metrics != null)
+				metrics.count(Metrics.CONNECTION_FRAMES_OUT, message.action.name(), 1);
+		} catch (AblyException e) {
+			if(ackRequired) {
+				/* the message was not sent, so it will not be acked */
+				pendingMessages.removeLast();
+				--msgSerial;
 			}
+			throw e;
 		}
+	}
 
-		public synchronized void nack(long serial, int count, ErrorInfo reason) {
-			QueuedMessage[] nackMessages = null;
-			synchronized(this) {
-				if(serial != startSerial) {
-					/* this is an error condition and shouldn't happen but
-					 * we can handle it gracefully by only processing the
-					 * relevant portion of the response */
-					count -= (int)(startSerial - serial);
-					serial = startSerial;
-				}
-				List<QueuedMessage> nackList = queue.subList(0, count);
-				nackMessages = nackList.toArray(new QueuedMessage[count]);
-				nackList.clear();
-				startSerial += count;
+	private void sendQueuedMessages() {
+		QueuedMessage queued;
+		while((queued = queuedMessages.peek()) != null) {
+			if(isFlowControlled() && ProtocolMessage.ackRequired(queued.msg)) {
+				measure(queued);
+				if(!windowHasRoom(queued.count, queued.size))
+					/* the rest are sent as acks open the window */
+					break;
 			}
-			if(nackMessages != null) {
-				if(reason == null)
-					reason = new ErrorInfo("Unknown error", 500, 50000);
-				for(QueuedMessage msg : nackMessages) {
-					try {
-						if(msg.listener != null)
-							msg.listener.onError(reason);
-					} catch(Throwable t) {
-						Log.e(TAG, "nack(): listener exception", t);
-					}
-				}
+			queuedMessages.poll();
+			try {
+				sendImpl(queued);
+			} catch (AblyException e) {
+				Log.e(TAG, "sendQueuedMessages(): Unexpected error sending queued messages", e);
+				callOnError(queued.listener, e.errorInfo);
 			}
 		}
+	}
 
-		/**
-		 * reset the pending message queue, failing any currently pending messages.
-		 * Used when a resume fails and we get a different connection id.
-		 * @param oldMsgSerial the next message serial number for the old
-		 *		connection, and thus one more than the highest message serial
-		 *		in the queue.
-		 */
-		public synchronized void reset(long oldMsgSerial, ErrorInfo err) {
-			nack(startSerial, (int)(oldMsgSerial - startSerial), err);
-			startSerial = 0;
-		}
+	private void updateQueueMetrics() {
+		metrics.gauge(Metrics.CONNECTION_QUEUED_MESSAGES, null, queuedMessages.getQueuedCount());
+		metrics.gauge(Metrics.CONNECTION_QUEUED_BYTES, null, queuedMessages.getQueuedBytes());
+		metrics.gauge(Metrics.CONNECTION_IN_FLIGHT_MESSAGES, null, pendingMessages.getMessageCount());
+		metrics.gauge(Metrics.CONNECTION_IN_FLIGHT_BYTES, null, pendingMessages.getMessageBytes());
+	}
 
+	private void failQueuedMessages(ErrorInfo reason) {
+		QueuedMessage queued;
+		while((queued = queuedMessages.poll()) != null)
+			callOnError(queued.listener, reason);
 	}
 
 	/*******************
@@ -1152,27 +1836,63 @@ public class ConnectionManager implements Runnable, ConnectListener {
 	 * private members
 	 ******************/
 
-	private Thread mgrThread;
+	private volatile Thread mgrThread;
 	final AblyRealtime ably;
 	private final ClientOptions options;
 	private final Connection connection;
 	private final ITransport.Factory factory;
-	private final List<QueuedMessage> queuedMessages;
+	private final ConcurrentLinkedQueue<Runnable> commands;
+	private final MessageQueue queuedMessages;
 	private final PendingMessageQueue pendingMessages;
-	private final HashSet<Object> heartbeatWaiters = new HashSet<Object>();
+
+	/* pings awaiting a heartbeat response, by id; also guards the round trip times */
+	private final HashMap<String, Ping> pings = new HashMap<String, Ping>();
+	private final AtomicLong pingSerial = new AtomicLong();
+	private long lastRoundTripTime = -1;
+	private double averageRoundTripTime = -1;
+
+	/* publish latencies for the connection, and for channels that record them */
+	private final LatencyHistogram publishLatency = new LatencyHistogram();
+	private final ConcurrentHashMap<String, LatencyHistogram> channelPublishLatency = new ConcurrentHashMap<String, LatencyHistogram>();
 	private final Hosts hosts;
 
-	private StateInfo state;
-	private StateIndication indicatedState, requestedState;
+	private volatile StateInfo state;
 	private ConnectParams pendingConnect;
 	private boolean pendingReauth;
-	private ITransport transport;
+	private volatile ITransport transport;
+	private long stateTimeout;
 	private long suspendTime;
 	private long msgSerial;
+	private long maxMessageSize;
+
+	/* flow control; see ClientOptions.maxInFlightMessages */
+	private volatile boolean writable = true;
+	private final WritabilityListener.Multicaster writabilityListeners = new WritabilityListener.Multicaster();
+
+	/* publish batching; see ClientOptions.publishBatchLinger */
+	private QueuedMessage pendingBatch;
+	private int batchSize;
+	private long batchTimeout;
+	private boolean batchQueueEvents;
 
 	/* for debug/test only */
 	private RawProtocolListener protocolListener;
+	private final Metrics metrics;
 	private String lastUsedHost;
+	/* the recovery key restored from options.recoveryStore, if any */
+	private volatile String restoredRecoveryKey;
+	private String[] hostCandidates;
+	/* the last of the candidates to which a connection attempt was started */
+	private String lastCandidate;
+	/* racing connection attempts, in the order started; only modified
+	 * on the ConnectionManager thread */
+	private final Map<ITransport, ConnectParams> racers = Collections.synchronizedMap(new LinkedHashMap<ITransport, ConnectParams>());
+	private RacerTask racerTask;
+	/* identifies the connectivity check in progress, if any */
+	private Object connectivityCheck;
+	private ConnectivityProbe proxyConnectivityProbe;
 
 	private static final long HEARTBEAT_TIMEOUT = 5000L;
+	private static final double RTT_WEIGHT = 0.125;
+	private static final ErrorInfo REASON_WINDOW_FULL = new ErrorInfo("Unable to publish; too many messages awaiting acknowledgement", 429, 42910);
 }
@@ -0,0 +1,204 @@
+package io.ably.lib.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.ably.lib.util.Log;
+
+/**
+ * Determines whether the network is available, without reference to a
+ * specific Ably host, so that a client can decide whether to try a
+ * fallback host after a connection failure.
+ *
+ * A check runs on its own thread, so no caller waits for it; callers that
+ * ask while a check is in progress share its result. The result is cached
+ * for a time, and the default instance is shared by all clients in the JVM,
+ * so a failure affecting many connections results in a single request.
+ */
+public class ConnectivityProbe {
+
+	/**
+	 * The function that determines, synchronously, whether the network is available.
+	 */
+	public interface Check {
+		public boolean isConnected();
+	}
+
+	/**
+	 * A listener for the result of a check.
+	 */
+	public interface Listener {
+		public void onResult(boolean connected);
+	}
+
+	/**
+	 * A check that makes a GET request to a URL, and expects a response
+	 * containing a given string.
+	 */
+	public static class UrlCheck implements Check {
+		public UrlCheck(String url, String expected) {
+			this.url = url;
+			this.expected = expected;
+		}
+
+		@Override
+		public boolean isConnected() {
+			HttpURLConnection conn = null;
+			try {
+				conn = (HttpURLConnection)new URL(url).openConnection();
+				conn.setConnectTimeout(Defaults.TIMEOUT_HTTP_OPEN);
+				conn.setReadTimeout(Defaults.TIMEOUT_HTTP_REQUEST);
+				if(conn.getResponseCode() != HttpURLConnection.HTTP_OK)
+					return false;
+				InputStream is = conn.getInputStream();
+				byte[] body = new byte[MAX_BODY];
+				int length = 0, read;
+				while(length < body.length && (read = is.read(body, length, body.length - length)) > 0)
+					length += read;
+				return new String(body, 0, length, "UTF-8").contains(expected);
+			} catch(IOException e) {
+				Log.v(TAG, "UrlCheck: check failed", e);
+				return false;
+			} finally {
+				if(conn != null)
+					conn.disconnect();
+			}
+		}
+
+		private final String url;
+		private final String expected;
+		private static final int MAX_BODY = 1024;
+	}
+
+	/**
+	 * Create a probe with the default time for which a result is cached.
+	 * @param check
+	 */
+	public ConnectivityProbe(Check check) {
+		this(check, Defaults.CONNECTIVITY_CHECK_TTL);
+	}
+
+	/**
+	 * @param check the function that performs a check
+	 * @param ttl the time, in milliseconds, for which a result is cached
+	 */
+	public ConnectivityProbe(Check check, long ttl) {
+		this.check = check;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Get the probe shared by all clients in the JVM, creating it if necessary.
+	 * By default, this checks Defaults.INTERNET_CHECK_URL.
+	 */
+	public static synchronized ConnectivityProbe getDefault() {
+		if(defaultProbe == null)
+			defaultProbe = new ConnectivityProbe(new UrlCheck(Defaults.INTERNET_CHECK_URL, Defaults.INTERNET_CHECK_OK));
+		return defaultProbe;
+	}
+
+	/**
+	 * Replace the probe shared by all clients in the JVM.
+	 * @param probe the probe, or null to restore the default
+	 */
+	public static synchronized void setDefault(ConnectivityProbe probe) {
+		defaultProbe = probe;
+	}
+
+	/**
+	 * Obtain the network availability. If a result is cached, the listener is
+	 * called immediately, on the calling thread; otherwise it is called on
+	 * the thread performing the check when that completes.
+	 * @param listener
+	 */
+	public void check(Listener listener) {
+		Boolean result;
+		boolean start = false;
+		synchronized(this) {
+			result = getCachedResultLocked();
+			if(result == null) {
+				listeners.add(listener);
+				if(!checking)
+					checking = start = true;
+			}
+		}
+		if(result != null) {
+			callListener(listener, result);
+			return;
+		}
+		if(start) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					runCheck();
+				}
+			}, "ably-connectivity-check");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * @return the cached result, or null if there is none,
+	 * or it has expired
+	 */
+	public synchronized Boolean getCachedResult() {
+		return getCachedResultLocked();
+	}
+
+	/**
+	 * Discard any cached result, so the next request performs a check.
+	 */
+	public synchronized void invalidate() {
+		resultTime = 0;
+	}
+
+	private Boolean getCachedResultLocked() {
+		if(resultTime == 0 || System.currentTimeMillis() - resultTime >= ttl)
+			return null;
+		return result;
+	}
+
+	private void runCheck() {
+		boolean connected = false;
+		try {
+			connected = check.isConnected();
+		} catch(Throwable t) {
+			Log.e(TAG, "Unexpected exception checking connectivity", t);
+		}
+		List<Listener> waiting;
+		synchronized(this) {
+			result = connected;
+			resultTime = System.currentTimeMillis();
+			checking = false;
+			waiting = new ArrayList<Listener>(listeners);
+			listeners.clear();
+		}
+		Log.v(TAG, "runCheck: connected = {}", connected);
+		for(Listener listener : waiting)
+			callListener(listener, connected);
+	}
+
+	private static void callListener(Listener listener, boolean connected) {
+		try {
+			listener.onResult(connected);
+		} catch(Throwable t) {
+			Log.e(TAG, "Unexpected exception calling listener", t);
+		}
+	}
+
+	private final Check check;
+	private final long ttl;
+	private final List<Listener> listeners = new ArrayList<Listener>();
+	private boolean checking;
+	private boolean result;
+	private long resultTime;
+
+	private static ConnectivityProbe defaultProbe;
+
+	private static final String TAG = ConnectivityProbe.class.getName();
+}
@@ -28,6 +28,8 @@ public class Defaults {
 	public static int TIMEOUT_DISCONNECT            = 30000;
 	public static int TIMEOUT_SUSPEND               = 120000;
 	public static int TIMEOUT_CHANNEL_RETRY			= 15000;
+	public static long TIMEOUT_QUEUE_BLOCK          = 10000L;
+	public static long TIMEOUT_FLOW_CONTROL         = 10000L;
 
 	/* TO313 */
 	public static int TIMEOUT_HTTP_OPEN = 4000;
@@ -38,6 +40,35 @@ public class Defaults {
 	/* CD2h (but no default in the spec) */
 	public static long maxIdleInterval = 20000L;
 
+	/* Publish batching */
+	public static int PUBLISH_BATCH_MAX_BYTES       = 65536;
+
+	/* permessage-deflate (RFC 7692) */
+	public static int DEFLATE_MAX_WINDOW_BITS       = 15;
+	public static int DEFLATE_THRESHOLD             = 256;
+
+	/* Host health tracking */
+	public static int HOST_FAILURE_THRESHOLD        = 2;
+	public static long HOST_COOLDOWN                = 10000L;
+	public static long HOST_COOLDOWN_MAX            = 600000L;
+	public static long CONNECTION_RACING_DELAY      = 250L;
+
+	/* Connectivity check (RTN17c) */
+	public static String INTERNET_CHECK_URL         = "http://internet-up.ably-realtime.com/is-the-internet-up.txt";
+	public static String INTERNET_CHECK_OK          = "yes";
+	public static long CONNECTIVITY_CHECK_TTL       = 10000L;
+
+	/* Resuming channels after reconnection */
+	public static int CHANNEL_REATTACH_MAX_IN_FLIGHT = 100;
+	public static int CHANNEL_REATTACH_RATE         = 500;
+
+	/* Delivery to listeners */
+	public static boolean ASYNC_DISPATCH             = false;
+	public static boolean LAZY_DECODING              = false;
+
+	/* Durable recovery state */
+	public static long RECOVERY_CHECKPOINT_INTERVAL = 1000L;
+
 	public static final String[] TRANSPORTS         = new String[]{"web_socket"};
 	public static String TRANSPORT = "io.ably.lib.transport.WebSocketTransport$Factory";
 	public static final int HTTP_MAX_RETRY_COUNT    = 3;
@@ -0,0 +1,79 @@
+package io.ably.lib.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ErrorInfo;
+
+/**
+ * A RecoveryStore that keeps the state in a local file.
+ *
+ * Each save writes a temporary file, forces it to the storage device, and
+ * renames it over the previous one, so a crash at any point leaves either
+ * the old or the new state, never a partial one. Saves are batched by
+ * the client, which checkpoints at most once per
+ * ClientOptions.recoveryCheckpointInterval, and only when the state has
+ * changed.
+ */
+public class FileRecoveryStore implements RecoveryStore {
+
+	public FileRecoveryStore(File file) {
+		this.file = file;
+		this.tempFile = new File(file.getPath() + ".tmp");
+	}
+
+	@Override
+	public synchronized RecoveryState load() throws AblyException {
+		FileInputStream is;
+		try {
+			is = new FileInputStream(file);
+		} catch(FileNotFoundException e) {
+			return null;
+		}
+		try {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int read;
+			while((read = is.read(buf)) > 0)
+				os.write(buf, 0, read);
+			return RecoveryState.fromJSON(os.toString("UTF-8"));
+		} catch(IOException e) {
+			throw AblyException.fromThrowable(e);
+		} finally {
+			try { is.close(); } catch(IOException e) {}
+		}
+	}
+
+	@Override
+	public synchronized void save(RecoveryState state) throws AblyException {
+		try {
+			FileOutputStream os = new FileOutputStream(tempFile);
+			try {
+				os.write(state.asJSON().getBytes("UTF-8"));
+				os.flush();
+				os.getFD().sync();
+			} finally {
+				os.close();
+			}
+		} catch(IOException e) {
+			throw AblyException.fromThrowable(e);
+		}
+		/* where rename doesn't replace an existing file, delete it first */
+		if(!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file)))
+			throw AblyException.fromErrorInfo(new ErrorInfo("Unable to replace recovery state file " + file, 500, 50000));
+	}
+
+	@Override
+	public synchronized void clear() throws AblyException {
+		if(file.exists() && !file.delete())
+			throw AblyException.fromErrorInfo(new ErrorInfo("Unable to delete recovery state file " + file, 500, 50000));
+	}
+
+	private final File file;
+	private final File tempFile;
+}
@@ -0,0 +1,129 @@
+package io.ably.lib.transport;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tracks the health of the hosts used by a client, so that requests and
+ * connection attempts go first to the hosts most likely to succeed.
+ *
+ * For each host, an exponentially weighted moving average is kept of the
+ * latency of successful requests and of the rate of failures. A host that
+ * fails HOST_FAILURE_THRESHOLD times in succession is put in a cooldown,
+ * during which it is only used if no other host is available; the cooldown
+ * doubles with each further failure, up to HOST_COOLDOWN_MAX, and ends on
+ * the first success.
+ *
+ * A single instance is shared by the rest and realtime parts of a client.
+ */
+public class HostHealth {
+
+	public HostHealth() {
+		this(Defaults.HOST_FAILURE_THRESHOLD, Defaults.HOST_COOLDOWN, Defaults.HOST_COOLDOWN_MAX);
+	}
+
+	/**
+	 * @param failureThreshold the number of successive failures after
+	 * which a host is put in a cooldown
+	 * @param cooldown the initial cooldown, in milliseconds
+	 * @param maxCooldown the maximum cooldown, in milliseconds
+	 */
+	public HostHealth(int failureThreshold, long cooldown, long maxCooldown) {
+		this.failureThreshold = Math.max(failureThreshold, 1);
+		this.cooldown = cooldown;
+		this.maxCooldown = Math.max(maxCooldown, cooldown);
+	}
+
+	/**
+	 * Record a successful request to, or connection to, a host
+	 * @param host
+	 * @param latency the time taken, in milliseconds
+	 */
+	public synchronized void onSuccess(String host, long latency) {
+		Stats stats = getStats(host);
+		stats.latency = (stats.latency < 0) ? latency : ALPHA * latency + (1 - ALPHA) * stats.latency;
+		stats.failureRate = (1 - ALPHA) * stats.failureRate;
+		stats.successiveFailures = 0;
+		stats.cooldownUntil = 0;
+	}
+
+	/**
+	 * Record a failed request to, or connection attempt to, a host
+	 * @param host
+	 */
+	public synchronized void onFailure(String host) {
+		Stats stats = getStats(host);
+		stats.failureRate = ALPHA + (1 - ALPHA) * stats.failureRate;
+		int excess = ++stats.successiveFailures - failureThreshold;
+		if(excess >= 0) {
+			long hostCooldown = (excess < 32) ? Math.min(cooldown << excess, maxCooldown) : maxCooldown;
+			stats.cooldownUntil = System.currentTimeMillis() + hostCooldown;
+		}
+	}
+
+	/**
+	 * @return true if the host is not in a cooldown following failures
+	 */
+	public synchronized boolean isAvailable(String host) {
+		Stats stats = hosts.get(host);
+		return stats == null || stats.cooldownUntil <= System.currentTimeMillis();
+	}
+
+	/**
+	 * Get the score of a host, which is lower for a host more likely
+	 * to respond quickly. A host with no history is given a nominal
+	 * latency, so that it ranks after hosts known to be fast, but
+	 * before hosts known to be slow or failing.
+	 * @return the expected latency in milliseconds, weighted by the
+	 * failure rate
+	 */
+	public synchronized double getScore(String host) {
+		Stats stats = hosts.get(host);
+		if(stats == null)
+			return UNKNOWN_LATENCY;
+		double latency = (stats.latency < 0) ? UNKNOWN_LATENCY : stats.latency;
+		return latency * (1 + FAILURE_WEIGHT * stats.failureRate);
+	}
+
+	/**
+	 * @return the average latency of the host, in milliseconds,
+	 * or -1 if there has been no successful request
+	 */
+	public synchronized double getLatency(String host) {
+		Stats stats = hosts.get(host);
+		return (stats == null) ? -1 : stats.latency;
+	}
+
+	/**
+	 * @return the average rate of failures of the host, between 0 and 1
+	 */
+	public synchronized double getFailureRate(String host) {
+		Stats stats = hosts.get(host);
+		return (stats == null) ? 0 : stats.failureRate;
+	}
+
+	private Stats getStats(String host) {
+		Stats stats = hosts.get(host);
+		if(stats == null)
+			hosts.put(host, stats = new Stats());
+		return stats;
+	}
+
+	private static class Stats {
+		double latency = -1;
+		double failureRate;
+		int successiveFailures;
+		long cooldownUntil;
+	}
+
+	private final Map<String, Stats> hosts = new HashMap<String, Stats>();
+	private final int failureThreshold;
+	private final long cooldown;
+	private final long maxCooldown;
+
+	/* weight of the latest sample in each moving average */
+	private static final double ALPHA = 0.3;
+	/* a host that always fails scores as if (1 + FAILURE_WEIGHT) times slower */
+	private static final double FAILURE_WEIGHT = 10;
+	private static final double UNKNOWN_LATENCY = 500;
+}
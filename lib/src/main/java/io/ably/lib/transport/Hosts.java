@@ -4,8 +4,13 @@ import io.ably.lib.types.AblyException;
 import io.ably.lib.types.ClientOptions;
 import io.ably.lib.types.ErrorInfo;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -18,6 +23,7 @@ public class Hosts {
 	private final String[] fallbackHosts;
 	private final boolean fallbackHostsIsDefault;
 	private final boolean fallbackHostsUseDefault;
+	private final HostHealth health;
 
 	/**
 	 * Create Hosts object
@@ -35,7 +41,17 @@ public class Hosts {
 	 * setHost() and fallback is not used.
 	 */
 	public Hosts(String primaryHost, String defaultHost, ClientOptions options) throws AblyException {
+		this(primaryHost, defaultHost, options, new HostHealth());
+	}
+
+	/**
+	 * Create Hosts object sharing host health with other Hosts
+	 *
+	 * @param health the tracker of host health used to order candidate hosts
+	 */
+	public Hosts(String primaryHost, String defaultHost, ClientOptions options, HostHealth health) throws AblyException {
 		this.defaultHost = defaultHost;
+		this.health = health;
 		if (primaryHost != null) {
 			setHost(primaryHost);
 			if (options.environment != null) {
@@ -91,6 +107,78 @@ public class Hosts {
 		return primaryHost;
 	}
 
+	/**
+	 * Get the tracker of host health
+	 */
+	public HostHealth getHealth() {
+		return health;
+	}
+
+	/**
+	 * Get the hosts to try for a request, in order of preference.
+	 *
+	 * The primary host is first, unless it is in a cooldown following
+	 * failures, followed by the fallback hosts (if fallback is permitted)
+	 * ordered by their health score. Hosts in a cooldown come last, so
+	 * that they are still tried if no other host succeeds.
+	 *
+	 * @return the candidate hosts; never empty
+	 */
+	public String[] getCandidates() {
+		if (!isFallbackPermitted())
+			return new String[] { primaryHost };
+		List<String> candidates = new ArrayList<String>(fallbackHosts.length + 1);
+		List<String> unavailable = new ArrayList<String>();
+		if (health.isAvailable(primaryHost))
+			candidates.add(primaryHost);
+		else
+			unavailable.add(primaryHost);
+		List<String> fallbacks = new ArrayList<String>(Arrays.asList(fallbackHosts));
+		final Map<String, Double> scores = new HashMap<String, Double>();
+		for (String fallback : fallbacks)
+			scores.put(fallback, health.getScore(fallback));
+		/* the sort is stable, so hosts with equal scores remain in shuffled order */
+		Collections.sort(fallbacks, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				return Double.compare(scores.get(a), scores.get(b));
+			}
+		});
+		for (String fallback : fallbacks) {
+			if (fallback.equals(primaryHost))
+				continue;
+			if (health.isAvailable(fallback))
+				candidates.add(fallback);
+			else
+				unavailable.add(fallback);
+		}
+		candidates.addAll(unavailable);
+		return candidates.toArray(new String[candidates.size()]);
+	}
+
+	/**
+	 * Get the candidate following the given host
+	 *
+	 * @param candidates the result of getCandidates()
+	 * @param lastHost the host last tried
+	 * @return the next candidate, or null if there is none
+	 */
+	public static String getNextCandidate(String[] candidates, String lastHost) {
+		int idx = Arrays.asList(candidates).indexOf(lastHost);
+		if (idx < 0 || idx + 1 >= candidates.length)
+			return null;
+		return candidates[idx + 1];
+	}
+
+	/**
+	 * RSC15b, RTN17b: only use fallback if the hostname has not been overridden
+	 * or if ClientOptions#fallbackHostsUseDefault is true
+	 * or if ClientOptions#fallbackHosts was provided.
+	 */
+	private boolean isFallbackPermitted() {
+		return primaryHostIsDefault || fallbackHostsUseDefault || !fallbackHostsIsDefault;
+	}
+
 	/**
 	 * Get next fallback host if any
 	 *
@@ -103,10 +191,7 @@ public class Hosts {
 			return null;
 		int idx;
 		if (lastHost.equals(primaryHost)) {
-			/* RSC15b, RTN17b: only use fallback if the hostname has not been overridden
-			 * or if ClientOptions#fallbackHostsUseDefault is true
-			 * or if ClientOptions#fallbackHosts was provided. */
-			if (!primaryHostIsDefault && !fallbackHostsUseDefault && fallbackHostsIsDefault)
+			if (!isFallbackPermitted())
 				return null;
 			idx = 0;
 		} else {
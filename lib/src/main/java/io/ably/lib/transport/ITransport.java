@@ -38,6 +38,8 @@ public interface ITransport {
 		int port;
 		String connectionKey;
 		String connectionSerial;
+		/* the recovery key, if recovering a connection */
+		String recover;
 		Mode mode;
 		boolean heartbeats;
 
@@ -45,6 +47,10 @@ public interface ITransport {
 			heartbeats = true; /* default to requiring Ably heartbeats */
 		}
 
+		public String getHost() {
+			return host;
+		}
+
 		public Param[] getConnectParams(Param[] baseParams) {
 			List<Param> paramList = new ArrayList<Param>(Arrays.asList(baseParams));
 			paramList.add(new Param(Defaults.ABLY_VERSION_PARAM, Defaults.ABLY_VERSION));
@@ -56,10 +62,10 @@ public interface ITransport {
 				paramList.add(new Param("resume", connectionKey));
 				if(connectionSerial != null)
 					paramList.add(new Param("connectionSerial", connectionSerial));
-			} else if(options.recover != null) {
+			} else if(recover != null) {
 				mode = Mode.recover;
 				Pattern recoverSpec = Pattern.compile("^([\\w\\-\\!]+):(\\-?\\d+)$");
-				Matcher match = recoverSpec.matcher(options.recover);
+				Matcher match = recoverSpec.matcher(recover);
 				if(match.matches()) {
 					paramList.add(new Param("recover", match.group(1)));
 					paramList.add(new Param("connectionSerial", match.group(2)));
@@ -73,7 +79,7 @@ public interface ITransport {
 				paramList.add(new Param("heartbeats", "false"));
 
 			paramList.add(new Param(Defaults.ABLY_LIB_PARAM, Defaults.ABLY_LIB_VERSION));
-			Log.d(TAG, "getConnectParams: params = " + paramList);
+			Log.d(TAG, "getConnectParams: params = {}", paramList);
 			return paramList.toArray(new Param[paramList.size()]);
 		}
 	}
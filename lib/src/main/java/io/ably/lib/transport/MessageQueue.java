@@ -0,0 +1,234 @@
+package io.ably.lib.transport;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.ably.lib.realtime.CompletionListener;
+import io.ably.lib.transport.ConnectionManager.QueuedMessage;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.QueueOverflowPolicy;
+
+/**
+ * The queue of messages awaiting a connection, bounded by the number and
+ * estimated size of the messages it holds.
+ *
+ * Only message and presence publishes count towards the limits, and only
+ * they are dropped or rejected; other messages (eg attach and detach) are
+ * always queued.
+ *
+ * Messages are added and removed on the ConnectionManager thread; the queue
+ * is synchronized so that publishing threads can wait for room in the queue
+ * (QueueOverflowPolicy.block) and read the queue depth.
+ */
+public class MessageQueue {
+
+	public MessageQueue(ClientOptions options) {
+		this.maxCount = options.maxQueuedMessages;
+		this.maxBytes = options.maxQueuedBytes;
+		this.policy = (options.queueOverflowPolicy == null) ? QueueOverflowPolicy.rejectNewest : options.queueOverflowPolicy;
+	}
+
+	/**
+	 * Wait until there is room in the queue for the given message, and
+	 * reserve that room so that a subsequent add() succeeds.
+	 * @param msg
+	 * @param timeout the maximum time to wait, in milliseconds
+	 * @return false if the timeout expired
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean reserve(ProtocolMessage msg, long timeout) throws InterruptedException {
+		int count = getCount(msg), size = getSize(msg);
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		while(!hasRoom(count, size)) {
+			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if(remaining <= 0)
+				return false;
+			wait(remaining);
+		}
+		reservedCount += count;
+		reservedBytes += size;
+		return true;
+	}
+
+	/**
+	 * Release room reserved for a message that was not, after all, queued.
+	 */
+	public synchronized void release(ProtocolMessage msg) {
+		reservedCount -= getCount(msg);
+		reservedBytes -= getSize(msg);
+		notifyAll();
+	}
+
+	/**
+	 * Queue a message, merging it with the last queued message if possible.
+	 * If the queue is full, messages are dropped or rejected according to the
+	 * overflow policy; the listeners of any dropped messages are called
+	 * before this returns.
+	 * @param msg
+	 * @param listener
+	 * @param reserved true if room for the message was reserved with reserve()
+	 * @return false if the message was rejected because the queue is full
+	 */
+	public boolean add(ProtocolMessage msg, CompletionListener listener, boolean reserved) {
+		return add(msg, listener, reserved, true);
+	}
+
+	/**
+	 * Queue a message, as add(ProtocolMessage, CompletionListener, boolean),
+	 * optionally without merging. Messages held for the in-flight window are
+	 * not merged, so that they can be sent as soon as the window has room
+	 * for each of them.
+	 */
+	public boolean add(ProtocolMessage msg, CompletionListener listener, boolean reserved, boolean merge) {
+		List<QueuedMessage> dropped = null;
+		synchronized(this) {
+			int count = 0, size = 0;
+			if(ProtocolMessage.ackRequired(msg)) {
+				count = getCount(msg);
+				size = getSize(msg);
+				if(reserved) {
+					reservedCount -= count;
+					reservedBytes -= size;
+				} else {
+					while(!hasRoom(count, size)) {
+						if(policy != QueueOverflowPolicy.dropOldest)
+							return false;
+						QueuedMessage oldest = removeOldestCounted();
+						if(oldest == null)
+							break;
+						if(dropped == null)
+							dropped = new ArrayList<QueuedMessage>();
+						dropped.add(oldest);
+					}
+				}
+				queuedCount += count;
+				queuedBytes += size;
+			}
+			QueuedMessage last = queue.peekLast();
+			if(merge && last != null && ConnectionManager.mergeTo(last, msg, listener)) {
+				last.count += count;
+				last.size += size;
+			} else {
+				QueuedMessage queued = new QueuedMessage(msg, listener);
+				queued.count = count;
+				queued.size = size;
+				queue.addLast(queued);
+			}
+		}
+		if(dropped != null) {
+			for(QueuedMessage msgDropped : dropped)
+				ConnectionManager.callOnError(msgDropped.listener, REASON_DROPPED);
+		}
+		return true;
+	}
+
+	/**
+	 * Return a message, that had already been accepted, to the head of the queue.
+	 * This is not subject to the limits.
+	 */
+	public synchronized void addFirst(QueuedMessage queued) {
+		if(ProtocolMessage.ackRequired(queued.msg)) {
+			queued.count = getCount(queued.msg);
+			queued.size = getSize(queued.msg);
+			queuedCount += queued.count;
+			queuedBytes += queued.size;
+		}
+		queue.addFirst(queued);
+	}
+
+	/**
+	 * Remove the message at the head of the queue.
+	 * @return the message, or null if the queue is empty
+	 */
+	public synchronized QueuedMessage poll() {
+		QueuedMessage queued = queue.pollFirst();
+		if(queued != null)
+			removed(queued);
+		return queued;
+	}
+
+	/**
+	 * @return the message at the head of the queue, or null if the queue is empty
+	 */
+	public synchronized QueuedMessage peek() {
+		return queue.peekFirst();
+	}
+
+	public synchronized boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	/**
+	 * @return the number of queued messages counted towards the limit
+	 */
+	public synchronized int getQueuedCount() {
+		return queuedCount;
+	}
+
+	/**
+	 * @return the estimated size, in bytes, of the queued messages
+	 */
+	public synchronized long getQueuedBytes() {
+		return queuedBytes;
+	}
+
+	private boolean hasRoom(int count, int size) {
+		int totalCount = queuedCount + reservedCount;
+		if(maxCount > 0 && totalCount + count > maxCount)
+			return false;
+		/* a message larger than the limit is accepted into an otherwise empty
+		 * queue, so that it does not wait (or get dropped) indefinitely */
+		if(maxBytes > 0 && totalCount > 0 && queuedBytes + reservedBytes + size > maxBytes)
+			return false;
+		return true;
+	}
+
+	private QueuedMessage removeOldestCounted() {
+		Iterator<QueuedMessage> it = queue.iterator();
+		while(it.hasNext()) {
+			QueuedMessage queued = it.next();
+			if(queued.count > 0) {
+				it.remove();
+				removed(queued);
+				return queued;
+			}
+		}
+		return null;
+	}
+
+	private void removed(QueuedMessage queued) {
+		if(queued.count > 0) {
+			queuedCount -= queued.count;
+			queuedBytes -= queued.size;
+			notifyAll();
+		}
+	}
+
+	static int getCount(ProtocolMessage msg) {
+		int count = 0;
+		if(msg.messages != null) count += msg.messages.length;
+		if(msg.presence != null) count += msg.presence.length;
+		return Math.max(count, 1);
+	}
+
+	static int getSize(ProtocolMessage msg) {
+		return ProtocolMessage.getEstimatedSize(msg);
+	}
+
+	private final ArrayDeque<QueuedMessage> queue = new ArrayDeque<QueuedMessage>();
+	private final int maxCount;
+	private final long maxBytes;
+	private final QueueOverflowPolicy policy;
+	private int queuedCount;
+	private long queuedBytes;
+	private int reservedCount;
+	private long reservedBytes;
+
+	static final ErrorInfo REASON_QUEUE_FULL = new ErrorInfo("Unable to queue message; queue is full", 400, 40000);
+	static final ErrorInfo REASON_DROPPED = new ErrorInfo("Queued message discarded; queue is full", 400, 40000);
+}
@@ -0,0 +1,144 @@
+package io.ably.lib.transport;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.ably.lib.util.Log;
+
+/**
+ * A fixed set of threads, each running a java.nio Selector, that performs
+ * the I/O for any number of non-blocking connections (see NioWebSocketTransport).
+ *
+ * Each connection is assigned to one selector thread for its lifetime, and all
+ * of its I/O, and any tasks executed for it, run on that thread in order.
+ */
+public class NioSelectorPool {
+
+	/**
+	 * The interface implemented by the owner of a channel registered with the pool.
+	 */
+	public interface Handler {
+		/**
+		 * Called on the selector thread when the channel is ready for one
+		 * or more of the operations of interest.
+		 */
+		public void onReady(SelectionKey key);
+	}
+
+	/**
+	 * A single selector thread.
+	 */
+	public static class SelectorThread implements Runnable {
+
+		SelectorThread(String name) throws IOException {
+			selector = Selector.open();
+			thread = new Thread(this, name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/**
+		 * Run a task on this selector thread.
+		 * This never blocks, and may be called from any thread.
+		 */
+		public void execute(Runnable task) {
+			tasks.add(task);
+			/* this also ensures that, if called on this thread while handling
+			 * a channel, the task runs before the next blocking select() */
+			selector.wakeup();
+		}
+
+		/**
+		 * Register a channel with this selector; must be called on this thread.
+		 */
+		public SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+			return channel.register(selector, ops, handler);
+		}
+
+		public boolean isCurrentThread() {
+			return Thread.currentThread() == thread;
+		}
+
+		@Override
+		public void run() {
+			while(true) {
+				try {
+					selector.select();
+				} catch(IOException e) {
+					Log.e(TAG, "run(): Unexpected exception from select()", e);
+				}
+
+				Runnable task;
+				while((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch(Throwable t) {
+						Log.e(TAG, "run(): Unexpected exception executing task", t);
+					}
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if(!key.isValid())
+						continue;
+					try {
+						((Handler)key.attachment()).onReady(key);
+					} catch(Throwable t) {
+						Log.e(TAG, "run(): Unexpected exception handling channel", t);
+					}
+				}
+			}
+		}
+
+		private final Selector selector;
+		private final Thread thread;
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	}
+
+	/**
+	 * Create a pool with the given number of selector threads.
+	 * The threads are daemon threads, and run for the life of the process.
+	 * @param threadCount
+	 * @throws IOException if a selector could not be opened
+	 */
+	public NioSelectorPool(int threadCount) throws IOException {
+		int id = poolCount.incrementAndGet();
+		threads = new SelectorThread[threadCount];
+		for(int i = 0; i < threadCount; i++)
+			threads[i] = new SelectorThread("ably-nio-" + id + "-" + i);
+	}
+
+	/**
+	 * Get the library-wide pool, creating it if necessary. This has one
+	 * selector thread per processor, up to DEFAULT_MAX_THREADS.
+	 */
+	public static synchronized NioSelectorPool getDefault() throws IOException {
+		if(defaultPool == null)
+			defaultPool = new NioSelectorPool(Math.min(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_THREADS));
+		return defaultPool;
+	}
+
+	/**
+	 * Get the selector thread for a new connection; connections are
+	 * assigned to threads in turn.
+	 */
+	public SelectorThread next() {
+		return threads[(next.getAndIncrement() & Integer.MAX_VALUE) % threads.length];
+	}
+
+	private final SelectorThread[] threads;
+	private final AtomicInteger next = new AtomicInteger();
+
+	private static NioSelectorPool defaultPool;
+	private static final AtomicInteger poolCount = new AtomicInteger();
+	private static final int DEFAULT_MAX_THREADS = 4;
+	private static final String TAG = NioSelectorPool.class.getName();
+}
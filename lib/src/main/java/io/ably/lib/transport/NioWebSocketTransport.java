@@ -0,0 +1,858 @@
+package io.ably.lib.transport;
+
+import io.ably.lib.http.HttpUtils;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.transport.ConnectionManager.StateIndication;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.Param;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.ProtocolMessage.Action;
+import io.ably.lib.types.ProtocolSerializer;
+import io.ably.lib.util.Base64Coder;
+import io.ably.lib.util.Log;
+import io.ably.lib.util.Metrics;
+import io.ably.lib.util.Scheduler;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * A WebSocket transport that uses non-blocking java.nio channels, so that the
+ * I/O for any number of connections is performed by the few threads of a
+ * NioSelectorPool, instead of by threads dedicated to each connection.
+ *
+ * Select this transport by setting Defaults.TRANSPORT to
+ * "io.ably.lib.transport.NioWebSocketTransport$Factory".
+ *
+ * Messages received are processed on the selector thread, so listeners for
+ * messages and acknowledgements should not block.
+ *
+ * If ClientOptions.perMessageDeflate is set, the transport offers the
+ * permessage-deflate extension, and compresses messages if it is accepted.
+ *
+ * TLS connections use ClientOptions.sslContext, if set.
+ */
+public class NioWebSocketTransport implements ITransport, NioSelectorPool.Handler {
+
+	private static final String TAG = NioWebSocketTransport.class.getName();
+
+	/******************
+	 * public factory API
+	 ******************/
+
+	public static class Factory implements ITransport.Factory {
+		/**
+		 * Create a factory for transports that use the library-wide NioSelectorPool.
+		 */
+		public Factory() {
+			this(null);
+		}
+
+		/**
+		 * Create a factory for transports that use the given NioSelectorPool.
+		 */
+		public Factory(NioSelectorPool pool) {
+			this.pool = pool;
+		}
+
+		@Override
+		public NioWebSocketTransport getTransport(TransportParams params, ConnectionManager connectionManager) {
+			return new NioWebSocketTransport(params, connectionManager, pool);
+		}
+
+		private final NioSelectorPool pool;
+	}
+
+	/******************
+	 * protected constructor
+	 ******************/
+
+	protected NioWebSocketTransport(TransportParams params, ConnectionManager connectionManager, NioSelectorPool pool) {
+		this.params = params;
+		this.connectionManager = connectionManager;
+		this.pool = pool;
+		this.channelBinaryMode = params.options.useBinaryProtocol;
+		this.metrics = params.options.metrics;
+		this.deflate = params.options.perMessageDeflate ? new PerMessageDeflate(params.options) : null;
+		this.random = new SecureRandom();
+		/* We do not require Ably heartbeats, as we can use WebSocket pings instead. */
+		params.heartbeats = false;
+	}
+
+	/******************
+	 * ITransport methods
+	 ******************/
+
+	@Override
+	public void connect(ConnectListener connectListener) {
+		this.connectListener = connectListener;
+		try {
+			isTls = params.options.tls;
+			Param[] authParams = connectionManager.ably.auth.getAuthParams();
+			Param[] connectParams = params.getConnectParams(authParams);
+			path = HttpUtils.encodeParams("/", connectParams);
+			wsUri = (isTls ? "wss://" : "ws://") + params.host + ':' + params.port + path;
+
+			if(isTls) {
+				SSLContext sslContext = params.options.sslContext;
+				if(sslContext == null) {
+					sslContext = SSLContext.getInstance("TLS");
+					sslContext.init(null, null, null);
+				}
+				sslEngine = sslContext.createSSLEngine(params.host, params.port);
+				sslEngine.setUseClientMode(true);
+				SSLParameters sslParams = sslEngine.getSSLParameters();
+				sslParams.setEndpointIdentificationAlgorithm("HTTPS");
+				sslEngine.setSSLParameters(sslParams);
+				netIn = ByteBuffer.allocate(sslEngine.getSession().getPacketBufferSize());
+				netOut = ByteBuffer.allocate(sslEngine.getSession().getPacketBufferSize());
+				netOut.flip();
+				appIn = ByteBuffer.allocate(sslEngine.getSession().getApplicationBufferSize());
+			} else {
+				appIn = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+			}
+			socketChannel = SocketChannel.open();
+			socketChannel.configureBlocking(false);
+			socketChannel.socket().setTcpNoDelay(true);
+
+			selectorThread = ((pool != null) ? pool : NioSelectorPool.getDefault()).next();
+			selectorThread.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						/* the host is resolved here so that a slow lookup
+						 * does not block the ConnectionManager thread */
+						InetSocketAddress address = new InetSocketAddress(params.host, params.port);
+						if(address.isUnresolved())
+							throw new UnknownHostException(params.host);
+						selectionKey = selectorThread.register(socketChannel, SelectionKey.OP_CONNECT, NioWebSocketTransport.this);
+						if(socketChannel.connect(address))
+							onConnected();
+					} catch(Throwable t) {
+						onFailure(t);
+					}
+				}
+			});
+		} catch(AblyException e) {
+			Log.e(TAG, "Unexpected exception attempting connection; wsUri = " + wsUri, e);
+			closeChannel();
+			closed.set(true);
+			phase = Phase.closed;
+			connectListener.onTransportUnavailable(this, params, e.errorInfo);
+		} catch(Throwable t) {
+			Log.e(TAG, "Unexpected exception attempting connection; wsUri = " + wsUri, t);
+			closeChannel();
+			closed.set(true);
+			phase = Phase.closed;
+			connectListener.onTransportUnavailable(this, params, AblyException.fromThrowable(t).errorInfo);
+		}
+	}
+
+	@Override
+	public void close(boolean sendClose) {
+		if(phase == Phase.closed)
+			return;
+		if(phase != Phase.open) {
+			/* still connecting, so there is no closing handshake; abandon
+			 * the attempt and report the transport closed */
+			Runnable abandon = new Runnable() {
+				@Override
+				public void run() {
+					connectListener = null;
+					closeChannel();
+					onClosed(WebSocketTransport.CLOSE_NORMAL);
+				}
+			};
+			if(selectorThread != null)
+				selectorThread.execute(abandon);
+			else
+				abandon.run();
+			return;
+		}
+		if(sendClose) {
+			try {
+				send(new ProtocolMessage(Action.close));
+			} catch (AblyException e) {
+				Log.e(TAG, "Unexpected exception sending close", e);
+			}
+		}
+		sendCloseFrame(WebSocketTransport.CLOSE_NORMAL);
+		/* don't wait indefinitely for the closing handshake */
+		connectionManager.ably.scheduler.schedule(new Scheduler.Task() {
+			@Override
+			public void run() {
+				selectorThread.execute(new Runnable() {
+					@Override
+					public void run() {
+						closeChannel();
+						onClosed(WebSocketTransport.CLOSE_NORMAL);
+					}
+				});
+			}
+		}, CLOSE_TIMEOUT);
+	}
+
+	@Override
+	public void abort(ErrorInfo reason) {
+		closed.set(true);
+		if(selectorThread != null) {
+			selectorThread.execute(new Runnable() {
+				@Override
+				public void run() {
+					closeChannel();
+				}
+			});
+		} else {
+			closeChannel();
+		}
+		connectionManager.notifyState(this, new StateIndication(ConnectionState.failed, reason));
+	}
+
+	@Override
+	public void send(ProtocolMessage msg) throws AblyException {
+		if(phase != Phase.open)
+			throw AblyException.fromErrorInfo(new ErrorInfo("Unable to send message; transport not connected", 400, 80000));
+		try {
+			if(channelBinaryMode) {
+				byte[] encodedMsg = ProtocolSerializer.writeMsgpack(msg);
+				if (Log.isLoggable(Log.VERBOSE))
+					Log.v(TAG, "send(): {}: {}", msg.action, new String(ProtocolSerializer.writeJSON(msg)));
+				sendMessage(OPCODE_BINARY, encodedMsg);
+				if(metrics != null)
+					metrics.count(Metrics.CONNECTION_BYTES_OUT, null, encodedMsg.length);
+			} else {
+				byte[] encodedMsg = ProtocolSerializer.writeJSON(msg);
+				if (Log.isLoggable(Log.VERBOSE))
+					Log.v(TAG, "send(): {}", new String(encodedMsg));
+				sendMessage(OPCODE_TEXT, encodedMsg);
+				if(metrics != null)
+					metrics.count(Metrics.CONNECTION_BYTES_OUT, null, encodedMsg.length);
+			}
+		} catch (Exception e) {
+			throw AblyException.fromThrowable(e);
+		}
+	}
+
+	@Override
+	public String getHost() {
+		return params.host;
+	}
+
+	/**************************
+	 * selector thread
+	 **************************/
+
+	@Override
+	public void onReady(SelectionKey key) {
+		try {
+			if(key.isConnectable()) {
+				if(!socketChannel.finishConnect())
+					return;
+				onConnected();
+			}
+			if(key.isValid() && key.isReadable())
+				onReadable();
+			if(key.isValid() && key.isWritable())
+				flush();
+		} catch(Throwable t) {
+			onFailure(t);
+		}
+	}
+
+	private void onConnected() throws IOException {
+		phase = Phase.handshake;
+		selectionKey.interestOps(SelectionKey.OP_READ);
+		if(isTls)
+			sslEngine.beginHandshake();
+
+		byte[] nonce = new byte[16];
+		random.nextBytes(nonce);
+		wsKey = new String(Base64Coder.encode(nonce));
+		boolean defaultPort = params.port == (isTls ? 443 : 80);
+		String request = "GET " + path + " HTTP/1.1\r\n"
+				+ "Host: " + params.host + (defaultPort ? "" : ":" + params.port) + "\r\n"
+				+ "Upgrade: websocket\r\n"
+				+ "Connection: Upgrade\r\n"
+				+ "Sec-WebSocket-Key: " + wsKey + "\r\n"
+				+ "Sec-WebSocket-Version: 13\r\n"
+				+ ((deflate != null) ? "Sec-WebSocket-Extensions: " + deflate.getOffer() + "\r\n" : "")
+				+ "\r\n";
+		enqueue(ByteBuffer.wrap(request.getBytes("ISO-8859-1")));
+		flush();
+	}
+
+	private void onReadable() throws IOException {
+		if(isTls) {
+			if(socketChannel.read(netIn) < 0) {
+				onEof();
+				return;
+			}
+			netIn.flip();
+			while(netIn.hasRemaining()) {
+				SSLEngineResult result = sslEngine.unwrap(netIn, appIn);
+				if(result.getHandshakeStatus() == HandshakeStatus.NEED_TASK)
+					runDelegatedTasks();
+				if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					appIn = grow(appIn, appIn.capacity() + sslEngine.getSession().getApplicationBufferSize());
+					continue;
+				}
+				if(result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					netIn.compact();
+					onEof();
+					return;
+				}
+				if(result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW)
+					break;
+				if(result.bytesConsumed() == 0 && result.bytesProduced() == 0 && sslEngine.getHandshakeStatus() != HandshakeStatus.NEED_UNWRAP)
+					break;
+			}
+			netIn.compact();
+			if(!netIn.hasRemaining())
+				netIn = grow(netIn, netIn.capacity() + sslEngine.getSession().getPacketBufferSize());
+		} else {
+			if(socketChannel.read(appIn) < 0) {
+				onEof();
+				return;
+			}
+		}
+
+		appIn.flip();
+		try {
+			processInput();
+		} finally {
+			appIn.compact();
+		}
+		if(requiredInput > appIn.capacity())
+			appIn = grow(appIn, requiredInput);
+
+		/* the TLS handshake may need to send, or has
+		 * completed and the upgrade request can now be sent */
+		flush();
+	}
+
+	private void processInput() throws IOException {
+		while(phase != Phase.closed) {
+			if(phase == Phase.handshake) {
+				if(!readHandshakeResponse())
+					return;
+			} else if(!readFrame()) {
+				return;
+			}
+		}
+	}
+
+	private boolean readHandshakeResponse() throws IOException {
+		int start = appIn.position(), end = -1;
+		for(int i = start; i + 3 < appIn.limit(); i++) {
+			if(appIn.get(i) == '\r' && appIn.get(i + 1) == '\n' && appIn.get(i + 2) == '\r' && appIn.get(i + 3) == '\n') {
+				end = i + 4;
+				break;
+			}
+		}
+		if(end < 0) {
+			if(appIn.remaining() > MAX_HANDSHAKE_SIZE)
+				throw new IOException("WebSocket handshake response too large");
+			requiredInput = appIn.remaining() + INITIAL_BUFFER_SIZE;
+			return false;
+		}
+		byte[] header = new byte[end - start];
+		appIn.get(header);
+		String[] lines = new String(header, "ISO-8859-1").split("\r\n");
+		String expectedAccept;
+		try {
+			expectedAccept = new String(Base64Coder.encode(MessageDigest.getInstance("SHA-1").digest((wsKey + WS_GUID).getBytes("ISO-8859-1"))));
+		} catch(NoSuchAlgorithmException e) {
+			throw new IOException("Unable to verify WebSocket handshake", e);
+		}
+		boolean upgraded = lines[0].matches("HTTP/1\\.1 101\\b.*"), accepted = false;
+		String extensions = null;
+		for(int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if(colon <= 0)
+				continue;
+			String name = lines[i].substring(0, colon).trim(), value = lines[i].substring(colon + 1).trim();
+			if(name.equalsIgnoreCase("Sec-WebSocket-Accept"))
+				accepted = value.equals(expectedAccept);
+			else if(name.equalsIgnoreCase("Sec-WebSocket-Extensions"))
+				extensions = (extensions == null) ? value : extensions + ", " + value;
+		}
+		if(!upgraded || !accepted)
+			throw new IOException("Unexpected response to WebSocket handshake: " + lines[0]);
+		if(extensions != null) {
+			if(deflate == null)
+				throw new IOException("Unexpected WebSocket extension: " + extensions);
+			compressed = deflate.accept(extensions);
+		}
+
+		phase = Phase.open;
+		if(connectListener != null) {
+			connectListener.onTransportAvailable(this, params);
+			connectListener = null;
+		}
+		flagActivity();
+		return true;
+	}
+
+	private boolean readFrame() throws IOException {
+		int start = appIn.position(), available = appIn.remaining();
+		if(available < 2)
+			return false;
+		int b0 = appIn.get(start) & 0xff, b1 = appIn.get(start + 1) & 0xff;
+		boolean fin = (b0 & 0x80) != 0, rsv1 = (b0 & 0x40) != 0, masked = (b1 & 0x80) != 0;
+		int opcode = b0 & 0x0f;
+		if((b0 & 0x30) != 0 || (rsv1 && (!compressed || opcode >= OPCODE_CLOSE || opcode == OPCODE_CONTINUATION)))
+			throw new IOException("Unexpected WebSocket frame header");
+		long length = b1 & 0x7f;
+		int headerLength = 2;
+		if(length == 126) {
+			if(available < 4)
+				return false;
+			length = appIn.getShort(start + 2) & 0xffff;
+			headerLength = 4;
+		} else if(length == 127) {
+			if(available < 10)
+				return false;
+			length = appIn.getLong(start + 2);
+			headerLength = 10;
+		}
+		if(length < 0 || length > MAX_FRAME_SIZE) {
+			sendCloseFrame(WebSocketTransport.TOOBIG);
+			closeChannel();
+			onClosed(WebSocketTransport.TOOBIG);
+			return false;
+		}
+		byte[] mask = null;
+		if(masked) {
+			if(available < headerLength + 4)
+				return false;
+			mask = new byte[4];
+			for(int i = 0; i < 4; i++)
+				mask[i] = appIn.get(start + headerLength + i);
+			headerLength += 4;
+		}
+		if(available < headerLength + length) {
+			requiredInput = headerLength + (int)length;
+			return false;
+		}
+		byte[] payload = new byte[(int)length];
+		appIn.position(start + headerLength);
+		appIn.get(payload);
+		if(mask != null)
+			for(int i = 0; i < payload.length; i++)
+				payload[i] ^= mask[i & 3];
+		onFrame(fin, rsv1, opcode, payload);
+		return true;
+	}
+
+	private void onFrame(boolean fin, boolean rsv1, int opcode, byte[] payload) throws IOException {
+		flagActivity();
+		switch(opcode) {
+		case OPCODE_CONTINUATION:
+			if(fragments == null)
+				throw new IOException("Unexpected continuation frame");
+			fragments = grow(fragments, fragments.position() + payload.length);
+			fragments.put(payload);
+			if(fin) {
+				byte[] message = new byte[fragments.position()];
+				fragments.flip();
+				fragments.get(message);
+				fragments = null;
+				onMessage(fragmentsOpcode, fragmentsCompressed, message);
+			}
+			break;
+		case OPCODE_TEXT:
+		case OPCODE_BINARY:
+			if(fin) {
+				onMessage(opcode, rsv1, payload);
+			} else {
+				fragmentsOpcode = opcode;
+				fragmentsCompressed = rsv1;
+				fragments = ByteBuffer.allocate(Math.max(payload.length * 2, INITIAL_BUFFER_SIZE));
+				fragments.put(payload);
+			}
+			break;
+		case OPCODE_CLOSE:
+			int code = (payload.length >= 2) ? ((payload[0] & 0xff) << 8) | (payload[1] & 0xff) : WebSocketTransport.CLOSE_NORMAL;
+			sendCloseFrame(code);
+			flush();
+			closeChannel();
+			onClosed(code);
+			break;
+		case OPCODE_PING:
+			/* This allows us to detect a websocket ping, so we don't need Ably pings. */
+			sendFrame(OPCODE_PONG, payload);
+			break;
+		case OPCODE_PONG:
+			break;
+		default:
+			throw new IOException("Unexpected WebSocket opcode " + opcode);
+		}
+	}
+
+	private void onMessage(int opcode, boolean isCompressed, byte[] message) throws IOException {
+		if(isCompressed)
+			message = deflate.decompress(message, MAX_FRAME_SIZE);
+		if(metrics != null)
+			metrics.count(Metrics.CONNECTION_BYTES_IN, null, message.length);
+		try {
+			ProtocolMessage msg = (opcode == OPCODE_BINARY)
+					? ProtocolSerializer.readMsgpack(ByteBuffer.wrap(message), params.options.sliceBinaryData)
+					: ProtocolSerializer.readJSON(message);
+			connectionManager.onMessage(this, msg);
+		} catch (Exception e) {
+			String msg = "Unexpected exception processing received message";
+			Log.e(TAG, msg, e);
+		}
+	}
+
+	/**
+	 * Write as much pending output as the socket will accept, and select
+	 * for writability if there is more.
+	 */
+	private void flush() throws IOException {
+		if(socketChannel == null || !socketChannel.isConnected())
+			return;
+		boolean pending = isTls ? flushTls() : flushPlain();
+		if(selectionKey.isValid())
+			selectionKey.interestOps(SelectionKey.OP_READ | (pending ? SelectionKey.OP_WRITE : 0));
+	}
+
+	private boolean flushPlain() throws IOException {
+		while(true) {
+			ByteBuffer buffer;
+			synchronized(outQueue) {
+				buffer = outQueue.peek();
+			}
+			if(buffer == null)
+				return false;
+			socketChannel.write(buffer);
+			if(buffer.hasRemaining())
+				return true;
+			synchronized(outQueue) {
+				outQueue.poll();
+			}
+		}
+	}
+
+	private boolean flushTls() throws IOException {
+		while(true) {
+			if(netOut.hasRemaining()) {
+				socketChannel.write(netOut);
+				if(netOut.hasRemaining())
+					return true;
+			}
+			HandshakeStatus handshakeStatus = sslEngine.getHandshakeStatus();
+			if(handshakeStatus == HandshakeStatus.NEED_TASK) {
+				runDelegatedTasks();
+				continue;
+			}
+			if(handshakeStatus == HandshakeStatus.NEED_UNWRAP)
+				/* waiting for the server */
+				return false;
+			ByteBuffer src = EMPTY;
+			if(handshakeStatus != HandshakeStatus.NEED_WRAP) {
+				synchronized(outQueue) {
+					src = outQueue.peek();
+				}
+				if(src == null)
+					return false;
+			}
+			netOut.clear();
+			SSLEngineResult result = sslEngine.wrap(src, netOut);
+			netOut.flip();
+			if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				netOut = ByteBuffer.allocate(netOut.capacity() + sslEngine.getSession().getPacketBufferSize());
+				netOut.flip();
+				continue;
+			}
+			if(result.getStatus() == SSLEngineResult.Status.CLOSED)
+				throw new EOFException("TLS session closed");
+			if(src != EMPTY && !src.hasRemaining()) {
+				synchronized(outQueue) {
+					outQueue.poll();
+				}
+			}
+			if(result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+				return false;
+		}
+	}
+
+	private void runDelegatedTasks() {
+		Runnable task;
+		while((task = sslEngine.getDelegatedTask()) != null)
+			task.run();
+	}
+
+	private void onEof() {
+		closeChannel();
+		if(phase == Phase.open)
+			onClosed(WebSocketTransport.ABNORMAL_CLOSE);
+		else
+			onFailure(new EOFException("Connection closed by server"));
+	}
+
+	private void onFailure(Throwable t) {
+		closeChannel();
+		if(connectListener != null) {
+			Log.e(TAG, "Unable to connect; wsUri = " + wsUri, t);
+			ConnectListener listener = connectListener;
+			connectListener = null;
+			closed.set(true);
+			phase = Phase.closed;
+			listener.onTransportUnavailable(this, params, new ErrorInfo(t.getMessage(), 503, 80000));
+		} else {
+			Log.e(TAG, "Unexpected exception in connection; wsUri = " + wsUri, t);
+			onClosed(WebSocketTransport.ABNORMAL_CLOSE);
+		}
+	}
+
+	private void onClosed(int wsCode) {
+		phase = Phase.closed;
+		if(!closed.compareAndSet(false, true))
+			return;
+		synchronized(this) {
+			if(activityTimer != null) {
+				activityTimer.cancel();
+				activityTimer = null;
+			}
+		}
+		connectionManager.notifyState(this, WebSocketTransport.getCloseIndication(wsCode));
+	}
+
+	private void closeChannel() {
+		if(deflate != null)
+			deflate.end();
+		if(selectionKey != null)
+			selectionKey.cancel();
+		if(socketChannel != null) {
+			try {
+				socketChannel.close();
+			} catch(IOException e) {}
+		}
+	}
+
+	/**************************
+	 * output
+	 **************************/
+
+	private void sendCloseFrame(int code) {
+		if(closeSent)
+			return;
+		closeSent = true;
+		sendFrame(OPCODE_CLOSE, new byte[] { (byte)(code >> 8), (byte)code });
+	}
+
+	/**
+	 * Queue a data frame for sending, compressing it if permessage-deflate
+	 * is in use; this may be called from any thread.
+	 */
+	private void sendMessage(int opcode, byte[] payload) {
+		if(compressed) {
+			/* messages must be queued in the order in which they
+			 * are compressed, as each may refer to its predecessors */
+			synchronized(deflate) {
+				byte[] compressedPayload = deflate.compress(payload);
+				if(compressedPayload != null) {
+					sendFrame(opcode | RSV1, compressedPayload);
+					return;
+				}
+			}
+		}
+		sendFrame(opcode, payload);
+	}
+
+	/**
+	 * Queue a masked frame for sending; this may be called from any thread.
+	 * @param opcode the opcode, and any RSV bits, of the frame
+	 */
+	private void sendFrame(int opcode, byte[] payload) {
+		int length = payload.length;
+		int headerLength = (length < 126) ? 2 : (length <= 0xffff) ? 4 : 10;
+		ByteBuffer frame = ByteBuffer.allocate(headerLength + 4 + length);
+		frame.put((byte)(0x80 | opcode));
+		if(length < 126) {
+			frame.put((byte)(0x80 | length));
+		} else if(length <= 0xffff) {
+			frame.put((byte)(0x80 | 126));
+			frame.putShort((short)length);
+		} else {
+			frame.put((byte)(0x80 | 127));
+			frame.putLong(length);
+		}
+		byte[] mask = new byte[4];
+		random.nextBytes(mask);
+		frame.put(mask);
+		for(int i = 0; i < length; i++)
+			frame.put((byte)(payload[i] ^ mask[i & 3]));
+		frame.flip();
+		enqueue(frame);
+		if(selectorThread.isCurrentThread()) {
+			try {
+				flush();
+			} catch(IOException e) {
+				onFailure(e);
+			}
+		} else if(flushRequested.compareAndSet(false, true)) {
+			selectorThread.execute(flushTask);
+		}
+	}
+
+	private void enqueue(ByteBuffer buffer) {
+		synchronized(outQueue) {
+			outQueue.add(buffer);
+		}
+	}
+
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flushRequested.set(false);
+			try {
+				flush();
+			} catch(Throwable t) {
+				onFailure(t);
+			}
+		}
+	};
+
+	private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+		if(buffer.capacity() >= capacity)
+			return buffer;
+		ByteBuffer grown = ByteBuffer.allocate(capacity);
+		buffer.flip();
+		grown.put(buffer);
+		return grown;
+	}
+
+	/**************************
+	 * activity timer
+	 **************************/
+
+	private void flagActivity() {
+		lastActivityTime = System.currentTimeMillis();
+		if (activityTimer == null && connectionManager.maxIdleInterval != 0) {
+			/* No timer currently running because previously there was no
+			 * maxIdleInterval configured, but now there is a
+			 * maxIdleInterval configured. */
+			checkActivity();
+		}
+	}
+
+	private synchronized void checkActivity() {
+		if(closed.get())
+			return;
+		long timeout = connectionManager.maxIdleInterval;
+		if (timeout == 0) {
+			Log.v(TAG, "checkActivity: infinite timeout");
+			activityTimer = null;
+			return;
+		}
+		timeout += connectionManager.ably.options.realtimeRequestTimeout;
+		long now = System.currentTimeMillis();
+		long next = lastActivityTime + timeout;
+		if (now < next) {
+			/* We have not reached maxIdleInterval+realtimeRequestTimeout
+			 * of inactivity.  Schedule a new timer for that long after the
+			 * last activity time. */
+			if (activityTimer != null)
+				activityTimer.cancel();
+			activityTimer = connectionManager.ably.scheduler.schedule(new Scheduler.Task() {
+				@Override
+				public void run() {
+					checkActivity();
+				}
+			}, next - now);
+		} else {
+			/* Timeout has been reached. Close the connection. */
+			Log.e(TAG, "No activity for " + timeout + "ms, closing connection");
+			selectorThread.execute(new Runnable() {
+				@Override
+				public void run() {
+					closeChannel();
+					onClosed(WebSocketTransport.ABNORMAL_CLOSE);
+				}
+			});
+		}
+	}
+
+	public String toString() {
+		return NioWebSocketTransport.class.getName() + " [" + wsUri + "]";
+	}
+
+	/******************
+	 * private members
+	 ******************/
+
+	private enum Phase { connecting, handshake, open, closed }
+
+	private final TransportParams params;
+	private final ConnectionManager connectionManager;
+	private final Metrics metrics;
+	private final NioSelectorPool pool;
+	private final boolean channelBinaryMode;
+	private final PerMessageDeflate deflate;
+	/* for the handshake nonce and frame masks; one per transport, so
+	 * that connections do not contend for it */
+	private final SecureRandom random;
+	private volatile boolean compressed;
+	private boolean isTls;
+	private String path;
+	private String wsUri;
+	private String wsKey;
+	private ConnectListener connectListener;
+	private volatile Phase phase = Phase.connecting;
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private volatile boolean closeSent;
+
+	/* the following are only accessed on the selector thread */
+	private NioSelectorPool.SelectorThread selectorThread;
+	private SocketChannel socketChannel;
+	private SelectionKey selectionKey;
+	private SSLEngine sslEngine;
+	private ByteBuffer netIn;
+	private ByteBuffer netOut;
+	private ByteBuffer appIn;
+	private int requiredInput;
+	private ByteBuffer fragments;
+	private int fragmentsOpcode;
+	private boolean fragmentsCompressed;
+
+	private final ArrayDeque<ByteBuffer> outQueue = new ArrayDeque<ByteBuffer>();
+	private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+	private Scheduler.Task activityTimer;
+	private volatile long lastActivityTime;
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private static final String WS_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	private static final int OPCODE_CONTINUATION = 0x0;
+	private static final int OPCODE_TEXT = 0x1;
+	private static final int OPCODE_BINARY = 0x2;
+	private static final int OPCODE_CLOSE = 0x8;
+	private static final int OPCODE_PING = 0x9;
+	private static final int OPCODE_PONG = 0xa;
+	private static final int RSV1 = 0x40;
+
+	private static final int INITIAL_BUFFER_SIZE = 16384;
+	private static final int MAX_HANDSHAKE_SIZE = 65536;
+	private static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+	private static final long CLOSE_TIMEOUT = 5000L;
+}
@@ -0,0 +1,258 @@
+package io.ably.lib.transport;
+
+import java.util.Arrays;
+
+import io.ably.lib.transport.ConnectionManager.QueuedMessage;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.util.Log;
+
+/**
+ * The queue of messages that have been sent on a connection and are
+ * awaiting an ACK or NACK.
+ *
+ * Messages are held in a circular buffer, in msgSerial order, so the message
+ * with a given msgSerial is at (msgSerial - startSerial) from the head.
+ * Acks, nacks and reset take time proportional to the number of messages
+ * they complete, regardless of the number still in flight, and don't
+ * allocate except when the buffers need to grow.
+ */
+public class PendingMessageQueue {
+
+	/**
+	 * A listener notified of each message acked, with the time
+	 * since it was pushed, before the message's own listener is called.
+	 */
+	public interface AckListener {
+		public void onAck(QueuedMessage msg, long latencyNanos);
+	}
+
+	public PendingMessageQueue() {
+		this(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Create a queue with the given initial capacity; the queue grows as required.
+	 * @param capacity
+	 */
+	public PendingMessageQueue(int capacity) {
+		int size = INITIAL_CAPACITY;
+		while(size < capacity)
+			size <<= 1;
+		buffer = new QueuedMessage[size];
+		completed = new QueuedMessage[INITIAL_CAPACITY];
+	}
+
+	public void setAckListener(AckListener ackListener) {
+		this.ackListener = ackListener;
+	}
+
+	/**
+	 * Add a message that has been sent, recording the time it was sent.
+	 */
+	public synchronized void push(QueuedMessage msg) {
+		msg.sendTime = System.nanoTime();
+		if(count == buffer.length)
+			grow();
+		buffer[(head + count) & (buffer.length - 1)] = msg;
+		++count;
+		messageCount += msg.count;
+		messageBytes += msg.size;
+	}
+
+	/**
+	 * Remove the most recently pushed message, if it could not be sent.
+	 */
+	public synchronized void removeLast() {
+		if(count > 0) {
+			int index = (head + --count) & (buffer.length - 1);
+			messageCount -= buffer[index].count;
+			messageBytes -= buffer[index].size;
+			buffer[index] = null;
+		}
+	}
+
+	/**
+	 * @return the number of messages awaiting ACK or NACK
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * @return the number of individual messages awaiting ACK or NACK,
+	 * as counted by QueuedMessage.count
+	 */
+	public synchronized int getMessageCount() {
+		return messageCount;
+	}
+
+	/**
+	 * @return the estimated size, in bytes, of the messages awaiting ACK or NACK,
+	 * as counted by QueuedMessage.size
+	 */
+	public synchronized long getMessageBytes() {
+		return messageBytes;
+	}
+
+	/**
+	 * @return the msgSerial of the oldest message awaiting ACK or NACK
+	 */
+	public synchronized long getStartSerial() {
+		return startSerial;
+	}
+
+	public void ack(long msgSerial, int count, ErrorInfo reason) {
+		synchronized(completedLock) {
+			int nackCount = 0, ackCount;
+			synchronized(this) {
+				if(msgSerial < startSerial) {
+					/* this is an error condition and shouldn't happen but
+					 * we can handle it gracefully by only processing the
+					 * relevant portion of the response */
+					count -= (int)(startSerial - msgSerial);
+					if(count < 0)
+						count = 0;
+					msgSerial = startSerial;
+				}
+				if(msgSerial > startSerial) {
+					/* this counts as a nack of the messages earlier than serial,
+					 * as well as an ack */
+					nackCount = removeFirst((int)Math.min(msgSerial - startSerial, this.count), 0);
+				}
+				ackCount = removeFirst(count, nackCount);
+			}
+			if(nackCount > 0)
+				callOnError(0, nackCount, reason, "ack()");
+			AckListener ackListener = this.ackListener;
+			long now = (ackListener != null && ackCount > 0) ? System.nanoTime() : 0;
+			for(int i = nackCount; i < nackCount + ackCount; i++) {
+				QueuedMessage msg = completed[i];
+				completed[i] = null;
+				if(ackListener != null) {
+					try {
+						ackListener.onAck(msg, now - msg.sendTime);
+					} catch(Throwable t) {
+						Log.e(TAG, "ack(): ack listener exception", t);
+					}
+				}
+				try {
+					if(msg.listener != null)
+						msg.listener.onSuccess();
+				} catch(Throwable t) {
+					Log.e(TAG, "ack(): listener exception", t);
+				}
+			}
+		}
+	}
+
+	public void nack(long serial, int count, ErrorInfo reason) {
+		synchronized(completedLock) {
+			int nackCount;
+			synchronized(this) {
+				if(serial != startSerial) {
+					/* this is an error condition and shouldn't happen but
+					 * we can handle it gracefully by only processing the
+					 * relevant portion of the response */
+					count -= (int)(startSerial - serial);
+				}
+				nackCount = removeFirst(count, 0);
+			}
+			callOnError(0, nackCount, reason, "nack()");
+		}
+	}
+
+	/**
+	 * reset the pending message queue, failing any currently pending messages.
+	 * Used when a resume fails and we get a different connection id.
+	 * @param oldMsgSerial the next message serial number for the old
+	 *		connection, and thus one more than the highest message serial
+	 *		in the queue.
+	 */
+	public void reset(long oldMsgSerial, ErrorInfo err) {
+		synchronized(completedLock) {
+			int nackCount;
+			synchronized(this) {
+				nackCount = removeFirst((int)(oldMsgSerial - startSerial), 0);
+				startSerial = 0;
+			}
+			callOnError(0, nackCount, err, "reset()");
+		}
+	}
+
+	/**
+	 * Remove up to count messages from the head of the queue, copying them
+	 * into the completed array at the given offset.
+	 * @return the number of messages removed
+	 */
+	private int removeFirst(int count, int offset) {
+		if(count > this.count)
+			count = this.count;
+		if(count <= 0)
+			return 0;
+		if(offset + count > completed.length) {
+			int size = completed.length;
+			while(size < offset + count)
+				size <<= 1;
+			completed = Arrays.copyOf(completed, size);
+		}
+		int first = Math.min(count, buffer.length - head);
+		System.arraycopy(buffer, head, completed, offset, first);
+		Arrays.fill(buffer, head, head + first, null);
+		if(first < count) {
+			System.arraycopy(buffer, 0, completed, offset + first, count - first);
+			Arrays.fill(buffer, 0, count - first, null);
+		}
+		for(int i = offset; i < offset + count; i++) {
+			messageCount -= completed[i].count;
+			messageBytes -= completed[i].size;
+		}
+		head = (head + count) & (buffer.length - 1);
+		this.count -= count;
+		startSerial += count;
+		return count;
+	}
+
+	private void callOnError(int from, int to, ErrorInfo reason, String method) {
+		if(from == to)
+			return;
+		if(reason == null)
+			reason = new ErrorInfo("Unknown error", 500, 50000);
+		for(int i = from; i < to; i++) {
+			QueuedMessage msg = completed[i];
+			completed[i] = null;
+			try {
+				if(msg.listener != null)
+					msg.listener.onError(reason);
+			} catch(Throwable t) {
+				Log.e(TAG, method + ": listener exception", t);
+			}
+		}
+	}
+
+	private void grow() {
+		QueuedMessage[] grown = new QueuedMessage[buffer.length << 1];
+		int first = buffer.length - head;
+		System.arraycopy(buffer, head, grown, 0, first);
+		System.arraycopy(buffer, 0, grown, first, head);
+		buffer = grown;
+		head = 0;
+	}
+
+	/* the buffer length is always a power of 2 */
+	private QueuedMessage[] buffer;
+	private int head;
+	private int count;
+	private long startSerial = 0L;
+	private int messageCount;
+	private long messageBytes;
+
+	/* messages that have been removed from the buffer, while their
+	 * listeners are being called; guarded by completedLock */
+	private QueuedMessage[] completed;
+	private final Object completedLock = new Object();
+
+	private volatile AckListener ackListener;
+
+	private static final int INITIAL_CAPACITY = 64;
+	private static final String TAG = PendingMessageQueue.class.getName();
+}
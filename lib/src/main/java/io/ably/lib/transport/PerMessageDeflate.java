@@ -0,0 +1,185 @@
+package io.ably.lib.transport;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import io.ably.lib.types.ClientOptions;
+
+/**
+ * The permessage-deflate WebSocket extension (RFC 7692), as negotiated
+ * and used by NioWebSocketTransport.
+ *
+ * java.util.zip always compresses with a 15-bit window, so the client
+ * never offers client_max_window_bits; the service may be asked to use a
+ * smaller window for the messages it sends, since any window can be
+ * decompressed.
+ *
+ * Messages are compressed on whichever thread sends them, and decompressed
+ * on the selector thread; the methods are synchronized so that the
+ * extension can be ended while in use.
+ */
+class PerMessageDeflate {
+
+	static final String EXTENSION_NAME = "permessage-deflate";
+
+	PerMessageDeflate(ClientOptions options) {
+		serverMaxWindowBits = options.deflateServerMaxWindowBits;
+		requestClientNoContextTakeover = options.deflateClientNoContextTakeover;
+		requestServerNoContextTakeover = options.deflateServerNoContextTakeover;
+		threshold = options.deflateThreshold;
+	}
+
+	/**
+	 * @return the value of the Sec-WebSocket-Extensions header offering this extension
+	 */
+	String getOffer() {
+		StringBuilder offer = new StringBuilder(EXTENSION_NAME);
+		if(requestClientNoContextTakeover)
+			offer.append("; client_no_context_takeover");
+		if(requestServerNoContextTakeover)
+			offer.append("; server_no_context_takeover");
+		/* a 15-bit window is the default, so needs no parameter */
+		if(serverMaxWindowBits < MAX_WINDOW_BITS)
+			offer.append("; server_max_window_bits=").append(serverMaxWindowBits);
+		return offer.toString();
+	}
+
+	/**
+	 * Process the extensions accepted by the server in the handshake response.
+	 * @param response the value of the Sec-WebSocket-Extensions response header
+	 * @return true if this extension was accepted; false if it was not
+	 * @throws IOException if the response is not a valid acceptance of the offer
+	 */
+	synchronized boolean accept(String response) throws IOException {
+		for(String extension : response.split(",")) {
+			String[] parts = extension.split(";");
+			if(!parts[0].trim().equalsIgnoreCase(EXTENSION_NAME))
+				throw new IOException("Unexpected WebSocket extension: " + extension.trim());
+			for(int i = 1; i < parts.length; i++) {
+				String param = parts[i].trim(), value = null;
+				int equals = param.indexOf('=');
+				if(equals >= 0) {
+					value = param.substring(equals + 1).trim().replace("\"", "");
+					param = param.substring(0, equals).trim();
+				}
+				if(param.equals("client_no_context_takeover")) {
+					clientNoContextTakeover = true;
+				} else if(param.equals("server_no_context_takeover")) {
+					serverNoContextTakeover = true;
+				} else if(param.equals("server_max_window_bits")) {
+					int bits;
+					try {
+						bits = Integer.parseInt(value);
+					} catch(NumberFormatException e) {
+						throw new IOException("Invalid permessage-deflate parameter: " + parts[i].trim());
+					}
+					if(bits < MIN_WINDOW_BITS || bits > MAX_WINDOW_BITS)
+						throw new IOException("Invalid permessage-deflate parameter: " + parts[i].trim());
+				} else {
+					/* this includes client_max_window_bits, which was not offered */
+					throw new IOException("Unsupported permessage-deflate parameter: " + parts[i].trim());
+				}
+			}
+			if(requestServerNoContextTakeover && !serverNoContextTakeover)
+				throw new IOException("permessage-deflate accepted without server_no_context_takeover");
+			deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			inflater = new Inflater(true);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Compress a message payload.
+	 * @return the compressed payload, or null if the message is below the threshold
+	 * for compression, in which case it should be sent uncompressed
+	 */
+	synchronized byte[] compress(byte[] payload) {
+		if(deflater == null || payload.length < threshold)
+			return null;
+		deflater.setInput(payload);
+		if(deflateBuffer == null || deflateBuffer.length < payload.length / 2 + TAIL.length)
+			deflateBuffer = new byte[Math.max(payload.length / 2 + TAIL.length, INITIAL_BUFFER_SIZE)];
+		int length = 0;
+		while(true) {
+			length += deflater.deflate(deflateBuffer, length, deflateBuffer.length - length, Deflater.SYNC_FLUSH);
+			if(length < deflateBuffer.length)
+				break;
+			deflateBuffer = Arrays.copyOf(deflateBuffer, deflateBuffer.length * 2);
+		}
+		if(clientNoContextTakeover)
+			deflater.reset();
+		/* the message ends with the empty stored block
+		 * of the sync flush, which is not sent */
+		return Arrays.copyOf(deflateBuffer, length - TAIL.length);
+	}
+
+	/**
+	 * Decompress a received message payload.
+	 * @param maxSize the maximum permitted size of the decompressed payload
+	 */
+	synchronized byte[] decompress(byte[] payload, int maxSize) throws IOException {
+		if(inflater == null)
+			throw new IOException("Unexpected compressed WebSocket message");
+		byte[] input = Arrays.copyOf(payload, payload.length + TAIL.length);
+		System.arraycopy(TAIL, 0, input, payload.length, TAIL.length);
+		inflater.setInput(input);
+		if(inflateBuffer == null || inflateBuffer.length < payload.length * 4)
+			inflateBuffer = new byte[Math.max(payload.length * 4, INITIAL_BUFFER_SIZE)];
+		int length = 0;
+		try {
+			while(true) {
+				int inflated = inflater.inflate(inflateBuffer, length, inflateBuffer.length - length);
+				length += inflated;
+				if(length < inflateBuffer.length && (inflater.needsInput() || inflater.finished()))
+					break;
+				if(length == inflateBuffer.length) {
+					if(length >= maxSize)
+						throw new IOException("Decompressed WebSocket message too large");
+					inflateBuffer = Arrays.copyOf(inflateBuffer, Math.min(inflateBuffer.length * 2, maxSize));
+				} else if(inflated == 0) {
+					throw new IOException("Unable to decompress WebSocket message");
+				}
+			}
+		} catch(DataFormatException e) {
+			throw new IOException("Unable to decompress WebSocket message: " + e.getMessage());
+		}
+		if(serverNoContextTakeover || inflater.finished())
+			inflater.reset();
+		return Arrays.copyOf(inflateBuffer, length);
+	}
+
+	/**
+	 * Release the compression state; subsequent messages are not compressed.
+	 */
+	synchronized void end() {
+		if(deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+		if(inflater != null) {
+			inflater.end();
+			inflater = null;
+		}
+		deflateBuffer = inflateBuffer = null;
+	}
+
+	private final int serverMaxWindowBits;
+	private final boolean requestClientNoContextTakeover;
+	private final boolean requestServerNoContextTakeover;
+	private final int threshold;
+	private boolean clientNoContextTakeover;
+	private boolean serverNoContextTakeover;
+	private Deflater deflater;
+	private Inflater inflater;
+	private byte[] deflateBuffer;
+	private byte[] inflateBuffer;
+
+	private static final byte[] TAIL = new byte[] { 0, 0, (byte)0xff, (byte)0xff };
+	private static final int MIN_WINDOW_BITS = 8;
+	private static final int MAX_WINDOW_BITS = 15;
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+}
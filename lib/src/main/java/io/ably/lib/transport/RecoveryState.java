@@ -0,0 +1,64 @@
+package io.ably.lib.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.JsonParseException;
+
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.util.Serialisation;
+
+/**
+ * The state needed to recover a connection, and the channels attached
+ * on it, after the client process restarts; this is checkpointed to a
+ * RecoveryStore while the connection is active.
+ */
+public class RecoveryState {
+
+	/**
+	 * The state of a channel attached on the connection
+	 */
+	public static class Channel {
+		public String name;
+		public String attachSerial;
+		public String syncChannelSerial;
+
+		public Channel() {}
+
+		public Channel(String name, String attachSerial, String syncChannelSerial) {
+			this.name = name;
+			this.attachSerial = attachSerial;
+			this.syncChannelSerial = syncChannelSerial;
+		}
+	}
+
+	/**
+	 * The connection recovery key, in the form used for ClientOptions.recover
+	 */
+	public String recoveryKey;
+
+	/**
+	 * The time at which the state was checkpointed, in milliseconds since the epoch
+	 */
+	public long timestamp;
+
+	public List<Channel> channels = new ArrayList<Channel>();
+
+	public String asJSON() {
+		return Serialisation.gson.toJson(this);
+	}
+
+	public static RecoveryState fromJSON(String json) throws AblyException {
+		try {
+			RecoveryState state = Serialisation.gson.fromJson(json, RecoveryState.class);
+			if(state == null)
+				throw AblyException.fromErrorInfo(new ErrorInfo("Invalid recovery state", 400, 40000));
+			if(state.channels == null)
+				state.channels = new ArrayList<Channel>();
+			return state;
+		} catch(JsonParseException e) {
+			throw AblyException.fromThrowable(e);
+		}
+	}
+}
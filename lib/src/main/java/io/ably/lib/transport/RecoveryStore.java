@@ -0,0 +1,31 @@
+package io.ably.lib.transport;
+
+import io.ably.lib.types.AblyException;
+
+/**
+ * A store to which a client checkpoints its RecoveryState, set in
+ * ClientOptions.recoveryStore, so that a client created after a process
+ * restart recovers the connection and channels of its predecessor.
+ *
+ * Methods are called on the library's scheduler thread, never on the
+ * thread receiving messages.
+ */
+public interface RecoveryStore {
+
+	/**
+	 * Get the most recently saved state.
+	 * @return the state, or null if there is none
+	 */
+	public RecoveryState load() throws AblyException;
+
+	/**
+	 * Save the state, replacing any previously saved.
+	 */
+	public void save(RecoveryState state) throws AblyException;
+
+	/**
+	 * Discard any saved state, when the connection has closed or failed
+	 * and so cannot be recovered.
+	 */
+	public void clear() throws AblyException;
+}
@@ -10,11 +10,11 @@ import io.ably.lib.types.ProtocolMessage;
 import io.ably.lib.types.ProtocolSerializer;
 import io.ably.lib.types.ProtocolMessage.Action;
 import io.ably.lib.util.Log;
+import io.ably.lib.util.Metrics;
+import io.ably.lib.util.Scheduler;
 
 import java.net.URI;
 import java.nio.ByteBuffer;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
@@ -48,6 +48,7 @@ public class WebSocketTransport implements ITransport {
 		this.params = params;
 		this.connectionManager = connectionManager;
 		this.channelBinaryMode = params.options.useBinaryProtocol;
+		this.metrics = params.options.metrics;
 		/* We do not require Ably heartbeats, as we can use WebSocket pings instead. */
 		params.heartbeats = false;
 	}
@@ -119,15 +120,18 @@ public class WebSocketTransport implements ITransport {
 		try {
 			if(channelBinaryMode) {
 				byte[] encodedMsg = ProtocolSerializer.writeMsgpack(msg);
-				if (Log.level <= Log.VERBOSE) {
-					ProtocolMessage decodedMsg = ProtocolSerializer.readMsgpack(encodedMsg);
-					Log.v(TAG, "send(): " + decodedMsg.action + ": " + new String(ProtocolSerializer.writeJSON(decodedMsg)));
-				}
+				if (Log.isLoggable(Log.VERBOSE))
+					Log.v(TAG, "send(): {}: {}", msg.action, new String(ProtocolSerializer.writeJSON(msg)));
 				wsConnection.send(encodedMsg);
+				if(metrics != null)
+					metrics.count(Metrics.CONNECTION_BYTES_OUT, null, encodedMsg.length);
 			} else {
-				if (Log.level <= Log.VERBOSE)
-					Log.v(TAG, "send(): " + new String(ProtocolSerializer.writeJSON(msg)));
-				wsConnection.send(ProtocolSerializer.writeJSON(msg));
+				byte[] encodedMsg = ProtocolSerializer.writeJSON(msg);
+				if (Log.isLoggable(Log.VERBOSE))
+					Log.v(TAG, "send(): {}", new String(encodedMsg));
+				wsConnection.send(encodedMsg);
+				if(metrics != null)
+					metrics.count(Metrics.CONNECTION_BYTES_OUT, null, encodedMsg.length);
 			}
 		} catch (Exception e) {
 			throw AblyException.fromThrowable(e);
@@ -160,8 +164,10 @@ public class WebSocketTransport implements ITransport {
 
 		@Override
 		public void onMessage(ByteBuffer blob) {
+			if(metrics != null)
+				metrics.count(Metrics.CONNECTION_BYTES_IN, null, blob.remaining());
 			try {
-				connectionManager.onMessage(WebSocketTransport.this, ProtocolSerializer.readMsgpack(blob.array()));
+				connectionManager.onMessage(WebSocketTransport.this, ProtocolSerializer.readMsgpack(blob, params.options.sliceBinaryData));
 			} catch (AblyException e) {
 				String msg = "Unexpected exception processing received binary message";
 				Log.e(TAG, msg, e);
@@ -171,6 +177,8 @@ public class WebSocketTransport implements ITransport {
 
 		@Override
 		public void onMessage(String string) {
+			if(metrics != null)
+				metrics.count(Metrics.CONNECTION_BYTES_IN, null, utf8Length(string));
 			try {
 				connectionManager.onMessage(WebSocketTransport.this, ProtocolSerializer.fromJSON(string));
 			} catch (AblyException e) {
@@ -191,50 +199,10 @@ public class WebSocketTransport implements ITransport {
 		@Override
 		public void onClose(int wsCode, String wsReason, boolean remote) {
 			flagActivity();
-			ConnectionState newState;
-			ErrorInfo reason;
-			switch(wsCode) {
-			case NEVER_CONNECTED:
-				newState = ConnectionState.disconnected;
-				reason = ConnectionManager.REASON_NEVER_CONNECTED;
-				break;
-			case CLOSE_NORMAL:
-			case BUGGYCLOSE:
-			case GOING_AWAY:
-			case ABNORMAL_CLOSE:
-				/* we don't know the specific reason that the connection closed in these cases,
-				 * but we have to assume it's a problem with connectivity rather than some other
-				 * application problem */
-				newState = ConnectionState.disconnected;
-				reason = ConnectionManager.REASON_DISCONNECTED;
-				break;
-			case REFUSE:
-			case POLICY_VALIDATION:
-				newState = ConnectionState.failed;
-				reason = ConnectionManager.REASON_REFUSED;
-				break;
-			case TOOBIG:
-				newState = ConnectionState.failed;
-				reason = ConnectionManager.REASON_TOO_BIG;
-				break;
-			case NO_UTF8:
-			case CLOSE_PROTOCOL_ERROR:
-			case UNEXPECTED_CONDITION:
-			case EXTENSION:
-			case TLS_ERROR:
-			default:
-				/* we don't know the specific reason that the connection closed in these cases,
-				 * but we have to assume it's an application problem, and the problem will
-				 * recur if we try again. The failed state means that we won't automatically
-				 * try again. */
-				newState = ConnectionState.failed;
-				reason = ConnectionManager.REASON_FAILED;
-				break;
-			}
 			synchronized(WebSocketTransport.this) {
 				wsConnection = null;
 			}
-			connectionManager.notifyState(WebSocketTransport.this, new StateIndication(newState, reason));
+			connectionManager.notifyState(WebSocketTransport.this, getCloseIndication(wsCode));
 			dispose();
 		}
 
@@ -248,7 +216,7 @@ public class WebSocketTransport implements ITransport {
 			}
 		}
 
-		private void dispose() {
+		private synchronized void dispose() {
 			/* dispose timer */
 			if(timer != null) {
 				timer.cancel();
@@ -284,13 +252,11 @@ public class WebSocketTransport implements ITransport {
 				 * of inactivity.  Schedule a new timer for that long after the
 				 * last activity time. */
 				Log.v(TAG, "checkActivity: ok");
-				if (timer == null) {
-					synchronized(this) {
-						if (timer == null)
-							timer = new Timer();
-					}
+				synchronized(this) {
+					if (timer != null)
+						timer.cancel();
+					timer = connectionManager.ably.scheduler.schedule(new WsClientTimerTask(this), next - now);
 				}
-				timer.schedule(new WsClientTimerTask(this), next - now);
 			} else {
 				/* Timeout has been reached. Close the connection. */
 				Log.e(TAG, "No activity for " + timeout + "ms, closing connection");
@@ -301,7 +267,7 @@ public class WebSocketTransport implements ITransport {
 		/* The TimerTask used to implement disconnection if no activity (inc
 		 * pings) is seen within a certain time.
 		 */
-		class WsClientTimerTask extends TimerTask {
+		class WsClientTimerTask extends Scheduler.Task {
 			private final WsClient client;
 
 			public WsClientTimerTask(WsClient client) {
@@ -317,41 +283,110 @@ public class WebSocketTransport implements ITransport {
 		 * WsClient private members
 		 ***************************/
 
-		private Timer timer;
+		private Scheduler.Task timer;
 		private long lastActivityTime;
 
 	}
 
+	/**
+	 * Get the connection state change indicated by a WebSocket close code.
+	 */
+	static StateIndication getCloseIndication(int wsCode) {
+		ConnectionState newState;
+		ErrorInfo reason;
+		switch(wsCode) {
+		case NEVER_CONNECTED:
+			newState = ConnectionState.disconnected;
+			reason = ConnectionManager.REASON_NEVER_CONNECTED;
+			break;
+		case CLOSE_NORMAL:
+		case BUGGYCLOSE:
+		case GOING_AWAY:
+		case ABNORMAL_CLOSE:
+			/* we don't know the specific reason that the connection closed in these cases,
+			 * but we have to assume it's a problem with connectivity rather than some other
+			 * application problem */
+			newState = ConnectionState.disconnected;
+			reason = ConnectionManager.REASON_DISCONNECTED;
+			break;
+		case REFUSE:
+		case POLICY_VALIDATION:
+			newState = ConnectionState.failed;
+			reason = ConnectionManager.REASON_REFUSED;
+			break;
+		case TOOBIG:
+			newState = ConnectionState.failed;
+			reason = ConnectionManager.REASON_TOO_BIG;
+			break;
+		case NO_UTF8:
+		case CLOSE_PROTOCOL_ERROR:
+		case UNEXPECTED_CONDITION:
+		case EXTENSION:
+		case TLS_ERROR:
+		default:
+			/* we don't know the specific reason that the connection closed in these cases,
+			 * but we have to assume it's an application problem, and the problem will
+			 * recur if we try again. The failed state means that we won't automatically
+			 * try again. */
+			newState = ConnectionState.failed;
+			reason = ConnectionManager.REASON_FAILED;
+			break;
+		}
+		return new StateIndication(newState, reason);
+	}
+
 	public String toString() {
 		return WebSocketTransport.class.getName() + " [" + wsUri + "]";
 	}
 
+	/* the length of the string's UTF-8 encoding, as received in a text frame */
+	private static int utf8Length(String string) {
+		int length = string.length();
+		int bytes = length;
+		for(int i = 0; i < length; i++) {
+			char c = string.charAt(i);
+			if(c < 0x80)
+				continue;
+			if(c < 0x800) {
+				bytes += 1;
+			} else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+				/* a pair of chars encoded in 4 bytes */
+				bytes += 2;
+				i++;
+			} else {
+				bytes += 2;
+			}
+		}
+		return bytes;
+	}
+
 	/******************
 	 * private members
 	 ******************/
 
 	private final TransportParams params;
 	private final ConnectionManager connectionManager;
+	private final Metrics metrics;
 	private final boolean channelBinaryMode;
 	private String wsUri;
 	private ConnectListener connectListener;
 
 	private WsClient wsConnection;
 
-	private static final int NEVER_CONNECTED      =   -1;
-	private static final int BUGGYCLOSE           =   -2;
-	private static final int CLOSE_NORMAL         = 1000;
-	private static final int GOING_AWAY           = 1001;
-	private static final int CLOSE_PROTOCOL_ERROR = 1002;
-	private static final int REFUSE               = 1003;
-/*	private static final int UNUSED               = 1004; */
-/*	private static final int NOCODE               = 1005; */
-	private static final int ABNORMAL_CLOSE       = 1006;
-	private static final int NO_UTF8              = 1007;
-	private static final int POLICY_VALIDATION    = 1008;
-	private static final int TOOBIG               = 1009;
-	private static final int EXTENSION            = 1010;
-	private static final int UNEXPECTED_CONDITION = 1011;
-	private static final int TLS_ERROR            = 1015;
+	static final int NEVER_CONNECTED      =   -1;
+	static final int BUGGYCLOSE           =   -2;
+	static final int CLOSE_NORMAL         = 1000;
+	static final int GOING_AWAY           = 1001;
+	static final int CLOSE_PROTOCOL_ERROR = 1002;
+	static final int REFUSE               = 1003;
+/*	static final int UNUSED               = 1004; */
+/*	static final int NOCODE               = 1005; */
+	static final int ABNORMAL_CLOSE       = 1006;
+	static final int NO_UTF8              = 1007;
+	static final int POLICY_VALIDATION    = 1008;
+	static final int TOOBIG               = 1009;
+	static final int EXTENSION            = 1010;
+	static final int UNEXPECTED_CONDITION = 1011;
+	static final int TLS_ERROR            = 1015;
 
 }
@@ -3,6 +3,7 @@ package io.ably.lib.types;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -14,6 +15,9 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonSerializationContext;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import io.ably.lib.util.Base64Coder;
 import io.ably.lib.util.Crypto.ChannelCipher;
@@ -47,10 +51,65 @@ public class BaseMessage implements Cloneable {
 	public String encoding;
 
 	/**
-	 * The message payload.
+	 * The message payload. Binary data is a byte[], or, for messages received
+	 * with ClientOptions.sliceBinaryData, a read-only java.nio.ByteBuffer.
+	 * For messages received with ClientOptions.lazyDecoding, this is the
+	 * payload as received until getData() is first called.
 	 */
 	public Object data;
 
+	/**
+	 * Get the message payload, first decoding it if its decoding was
+	 * deferred; the result, or the error, is kept for later calls.
+	 * @return the payload
+	 * @throws MessageDecodeException if the payload could not be decoded
+	 */
+	public synchronized Object getData() throws MessageDecodeException {
+		if(decodeOptions != null) {
+			ChannelOptions opts = decodeOptions;
+			decodeOptions = null;
+			try {
+				decode(opts);
+			} catch(MessageDecodeException e) {
+				decodeError = e;
+			}
+		}
+		if(decodeError != null)
+			throw decodeError;
+		return data;
+	}
+
+	/**
+	 * Defer decoding the payload until getData() is first called, when it
+	 * will be decoded with the given options.
+	 * @param opts
+	 */
+	public synchronized void decodeLazily(ChannelOptions opts) {
+		if(encoding != null)
+			decodeOptions = (opts == null) ? NO_OPTIONS : opts;
+	}
+
+	/**
+	 * Whether the payload is awaiting a deferred decode.
+	 */
+	public synchronized boolean isDecodePending() {
+		return decodeOptions != null;
+	}
+
+	/* the options for a deferred decode, until it is done */
+	private transient ChannelOptions decodeOptions;
+	/* the error from a deferred decode */
+	private transient MessageDecodeException decodeError;
+	private static final ChannelOptions NO_OPTIONS = new ChannelOptions();
+
+	/* copy the payload and its decoding state to the given message */
+	protected synchronized void copyData(BaseMessage target) {
+		target.encoding = encoding;
+		target.data = data;
+		target.decodeOptions = decodeOptions;
+		target.decodeError = decodeError;
+	}
+
 	/**
 	 * Generate a String summary of this BaseMessage
 	 * @return string
@@ -68,7 +127,31 @@ public class BaseMessage implements Cloneable {
 			builder.append(" id=").append(id);
 	}
 
-	public void decode(ChannelOptions opts) throws MessageDecodeException {
+	/**
+	 * Estimate the size of this message on the wire, in bytes; this
+	 * counts the payload and identifying strings, but not field names
+	 * or framing.
+	 * @return estimated size
+	 */
+	public int getEstimatedSize() {
+		int size = 0;
+		if(clientId != null) size += clientId.length();
+		if(encoding != null) size += encoding.length();
+		if(data != null) {
+			if(data instanceof byte[])
+				size += ((byte[])data).length;
+			else if(data instanceof ByteBuffer)
+				size += ((ByteBuffer)data).remaining();
+			else if(data instanceof String)
+				size += ((String)data).length();
+			else
+				size += data.toString().length();
+		}
+		return size;
+	}
+
+	public synchronized void decode(ChannelOptions opts) throws MessageDecodeException {
+		decodeOptions = null;
 		if(encoding != null) {
 			String[] xforms = encoding.split("\\/");
 			int i = 0, j = xforms.length;
@@ -86,7 +169,7 @@ public class BaseMessage implements Cloneable {
 							continue;
 
 						case "utf-8":
-							try { data = new String((byte[])data, "UTF-8"); } catch(UnsupportedEncodingException e) {}
+							try { data = new String(toBytes(data), "UTF-8"); } catch(UnsupportedEncodingException e) {}
 							continue;
 
 						case "json":
@@ -101,7 +184,7 @@ public class BaseMessage implements Cloneable {
 						case "cipher":
 							if(opts != null && opts.encrypted) {
 								try {
-									data = opts.getCipher().decrypt((byte[]) data);
+									data = opts.getCipher().decrypt(toBytes(data));
 								} catch(AblyException e) {
 									throw MessageDecodeException.fromDescription(e.errorInfo.message);
 								}
@@ -120,6 +203,11 @@ public class BaseMessage implements Cloneable {
 	}
 
 	public void encode(ChannelOptions opts) throws AblyException {
+		/* a received payload is encoded again only once decoded */
+		if(isDecodePending())
+			getData();
+		if(data instanceof ByteBuffer)
+			data = toBytes(data);
 		if(data != null) {
 			if(data instanceof JsonElement) {
 				data = Serialisation.gson.toJson((JsonElement)data);
@@ -145,6 +233,17 @@ public class BaseMessage implements Cloneable {
 		}
 	}
 
+	/* binary data as a byte[], copying it if it is a ByteBuffer */
+	private static byte[] toBytes(Object data) {
+		if(data instanceof ByteBuffer) {
+			ByteBuffer buffer = ((ByteBuffer)data).duplicate();
+			byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			return bytes;
+		}
+		return (byte[])data;
+	}
+
 	/* trivial utilities for processing encoding string */
 	private static Pattern xformPattern = Pattern.compile("([\\-\\w]+)(\\+([\\-\\w]+))?");
 	private String join(String[] elements, char separator, int start, int end) {
@@ -176,22 +275,84 @@ public class BaseMessage implements Cloneable {
 		}		
 	}
 
-	/* Msgpack processing */
-	boolean readField(MessageUnpacker unpacker, String fieldName, MessageFormat fieldType) throws IOException {
+	/* Streaming JSON processing */
+
+	/**
+	 * Write the fields of this message to an object being written,
+	 * as the Serializer does
+	 */
+	void writeJsonFields(JsonWriter writer) throws IOException {
+		String encoding = this.encoding;
+		if(data != null) {
+			if(data instanceof byte[] || data instanceof ByteBuffer) {
+				writer.name("data").value(new String(Base64Coder.encode(toBytes(data))));
+				encoding = (encoding == null) ? "base64" : encoding + "/base64";
+			} else {
+				writer.name("data").value(data.toString());
+			}
+			if(encoding != null) writer.name("encoding").value(encoding);
+		}
+		if(clientId != null) writer.name("clientId").value(clientId);
+		if(connectionId != null) writer.name("connectionId").value(connectionId);
+	}
+
+	/**
+	 * Read the value of a field of an object being read, if it is a
+	 * field of this message; its value is not null.
+	 * @return true if the field was read
+	 */
+	boolean readJsonField(JsonReader reader, String fieldName) throws IOException {
 		boolean result = true;
 		switch (fieldName) {
 			case "timestamp":
-				timestamp = unpacker.unpackLong(); break;
+				timestamp = reader.nextLong(); break;
 			case "id":
-				id = unpacker.unpackString(); break;
+				id = reader.nextString(); break;
 			case "clientId":
-				clientId = unpacker.unpackString(); break;
+				clientId = reader.nextString(); break;
 			case "connectionId":
-				connectionId = unpacker.unpackString(); break;
+				connectionId = reader.nextString(); break;
 			case "encoding":
-				encoding = unpacker.unpackString(); break;
+				encoding = reader.nextString(); break;
 			case "data":
-				if(fieldType.getValueType().isBinaryType()) {
+				/* data that is not a string is kept as a JsonElement */
+				data = (reader.peek() == JsonToken.STRING) ? reader.nextString() : Serialisation.gsonParser.parse(reader);
+				break;
+			default:
+				result = false;
+				break;
+		}
+		return result;
+	}
+
+	/* Msgpack processing */
+
+	/* msgpack field names, by position; those of subclasses follow */
+	static final int TIMESTAMP = 0, ID = 1, CLIENT_ID = 2, CONNECTION_ID = 3, ENCODING = 4, DATA = 5;
+	static final MsgpackKeys KEYS = new MsgpackKeys("timestamp", "id", "clientId", "connectionId", "encoding", "data");
+
+	/**
+	 * @param field the position of the field name in KEYS
+	 * @param source if non-null, the buffer being unpacked, of which
+	 * binary data is exposed as a read-only slice instead of a copy
+	 */
+	boolean readField(MessageUnpacker unpacker, int field, MessageFormat fieldType, ByteBuffer source) throws IOException {
+		boolean result = true;
+		switch (field) {
+			case TIMESTAMP:
+				timestamp = unpacker.unpackLong(); break;
+			case ID:
+				id = unpacker.unpackString(); break;
+			case CLIENT_ID:
+				clientId = unpacker.unpackString(); break;
+			case CONNECTION_ID:
+				connectionId = unpacker.unpackString(); break;
+			case ENCODING:
+				encoding = unpacker.unpackString(); break;
+			case DATA:
+				if(fieldType.getValueType().isBinaryType() && source != null) {
+					data = readSlice(unpacker, fieldType, source);
+				} else if(fieldType.getValueType().isBinaryType()) {
 					byte[] byteData = new byte[unpacker.unpackBinaryHeader()];
 					unpacker.readPayload(byteData);
 					data = byteData;
@@ -206,6 +367,19 @@ public class BaseMessage implements Cloneable {
 		return result;
 	}
 
+	/* skip a binary value, returning it as a slice of the source buffer,
+	 * located from the number of bytes the unpacker has consumed */
+	private static ByteBuffer readSlice(MessageUnpacker unpacker, MessageFormat format, ByteBuffer source) throws IOException {
+		int headerSize = (format == MessageFormat.BIN8) ? 2 : (format == MessageFormat.BIN16) ? 3 : 5;
+		int offset = (int)unpacker.getTotalReadBytes() + headerSize;
+		unpacker.skipValue();
+		int length = (int)unpacker.getTotalReadBytes() - offset;
+		ByteBuffer slice = source.duplicate();
+		slice.limit(source.position() + offset + length);
+		slice.position(source.position() + offset);
+		return slice.slice().asReadOnlyBuffer();
+	}
+
 	protected int countFields() {
 		int fieldCount = 0;
 		if(timestamp > 0) ++fieldCount;
@@ -218,23 +392,23 @@ public class BaseMessage implements Cloneable {
 
 	void writeFields(MessagePacker packer) throws IOException {
 		if(timestamp > 0) {
-			packer.packString("timestamp");
+			KEYS.write(packer, TIMESTAMP);
 			packer.packLong(timestamp);
 		}
 		if(clientId != null) {
-			packer.packString("clientId");
+			KEYS.write(packer, CLIENT_ID);
 			packer.packString(clientId);
 		}
 		if(connectionId != null) {
-			packer.packString("connectionId");
+			KEYS.write(packer, CONNECTION_ID);
 			packer.packString(connectionId);
 		}
 		if(encoding != null) {
-			packer.packString("encoding");
+			KEYS.write(packer, ENCODING);
 			packer.packString(encoding);
 		}
 		if(data != null) {
-			packer.packString("data");
+			KEYS.write(packer, DATA);
 			if(data instanceof byte[]) {
 				byte[] byteData = (byte[])data;
 				packer.packBinaryHeader(byteData.length);
@@ -0,0 +1,37 @@
+package io.ably.lib.types;
+
+import java.nio.ByteBuffer;
+
+import org.msgpack.core.buffer.MessageBuffer;
+import org.msgpack.core.buffer.MessageBufferInput;
+
+/**
+ * A MessageBufferInput that reads any ByteBuffer, including direct and
+ * read-only buffers, which msgpack cannot wrap; the content is copied
+ * through a single reused chunk. Array-backed buffers are unpacked
+ * in place instead (see ProtocolSerializer.newUnpacker()).
+ */
+class ByteBufferInput implements MessageBufferInput {
+
+	ByteBufferInput(ByteBuffer buffer) {
+		this.buffer = buffer.duplicate();
+		this.chunk = new byte[Math.min(Math.max(buffer.remaining(), 1), CHUNK_SIZE)];
+	}
+
+	@Override
+	public MessageBuffer next() {
+		int length = Math.min(buffer.remaining(), chunk.length);
+		if(length == 0)
+			return null;
+		buffer.get(chunk, 0, length);
+		return MessageBuffer.wrap(chunk, 0, length);
+	}
+
+	@Override
+	public void close() {}
+
+	private final ByteBuffer buffer;
+	private final byte[] chunk;
+
+	private static final int CHUNK_SIZE = 8192;
+}
@@ -8,6 +8,12 @@ public class ChannelOptions {
 	public boolean encrypted;
 	public Object cipherParams;
 
+	/**
+	 * If true, the times from publishing each message until its ACK are
+	 * recorded for the channel, as well as for the connection.
+	 */
+	public boolean recordPublishLatency;
+
 	public ChannelCipher getCipher() throws AblyException {
 		if(!encrypted) return null;
 		if(cipher != null) return cipher;
@@ -3,10 +3,16 @@ package io.ably.lib.types;
 import io.ably.lib.rest.Auth.AuthOptions;
 import io.ably.lib.rest.Auth.TokenParams;
 import io.ably.lib.transport.Defaults;
+import io.ably.lib.transport.RecoveryStore;
 import io.ably.lib.util.Log;
 import io.ably.lib.util.Log.LogHandler;
+import io.ably.lib.util.Metrics;
 
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.net.ssl.SSLContext;
 
 /**
  * Options: Ably library options for REST and Realtime APIs
@@ -169,4 +175,200 @@ public class ClientOptions extends AuthOptions {
 	 * Spec: RTL13b
 	 */
 	public int channelRetryTimeout = Defaults.TIMEOUT_CHANNEL_RETRY;
+
+	/**
+	 * Executor used to run the library's internal timers, such as channel attach
+	 * and detach timeouts and transport activity checks. If not set, a single
+	 * library-wide scheduler thread is shared by all client instances.
+	 * The executor is not shut down by the library.
+	 */
+	public ScheduledExecutorService timerExecutor;
+
+	/**
+	 * If non-zero, enables batching of publishes while connected: a message or
+	 * presence publish is held for up to this many milliseconds so that subsequent
+	 * publishes on the same channel can be merged with it and sent in a single
+	 * ProtocolMessage, acknowledged with a single ACK.
+	 */
+	public long publishBatchLinger;
+
+	/**
+	 * The maximum estimated size, in bytes, of the payload of a batch of publishes.
+	 * A batch is sent as soon as it reaches this size. This is also limited by the
+	 * maxMessageSize indicated by the service for the connection.
+	 */
+	public int publishBatchMaxBytes = Defaults.PUBLISH_BATCH_MAX_BYTES;
+
+	/**
+	 * The maximum number of messages that are queued while the connection is not
+	 * connected (see queueMessages); 0 means there is no limit.
+	 */
+	public int maxQueuedMessages;
+
+	/**
+	 * The maximum estimated size, in bytes, of the payloads of messages that are
+	 * queued while the connection is not connected; 0 means there is no limit.
+	 */
+	public long maxQueuedBytes;
+
+	/**
+	 * The action to take when a message is published and the queue is full.
+	 */
+	public QueueOverflowPolicy queueOverflowPolicy = QueueOverflowPolicy.rejectNewest;
+
+	/**
+	 * With QueueOverflowPolicy.block, the maximum time, in milliseconds, that a
+	 * publish will block waiting for room in the queue.
+	 */
+	public long queueBlockTimeout = Defaults.TIMEOUT_QUEUE_BLOCK;
+
+	/**
+	 * The maximum number of published messages that may be awaiting acknowledgement
+	 * on the connection at any time; 0 means there is no limit.
+	 */
+	public int maxInFlightMessages;
+
+	/**
+	 * The maximum estimated size, in bytes, of the published messages that may be
+	 * awaiting acknowledgement on the connection at any time; 0 means there is no limit.
+	 */
+	public long maxInFlightBytes;
+
+	/**
+	 * The action to take when a message is published and the limit on messages
+	 * awaiting acknowledgement has been reached.
+	 */
+	public FlowControlPolicy flowControlPolicy = FlowControlPolicy.hold;
+
+	/**
+	 * With FlowControlPolicy.block, the maximum time, in milliseconds, that a
+	 * publish will block waiting for acknowledgements.
+	 */
+	public long flowControlTimeout = Defaults.TIMEOUT_FLOW_CONTROL;
+
+	/**
+	 * If true, request the permessage-deflate WebSocket extension (RFC 7692), so
+	 * that messages sent and received on the realtime connection are compressed
+	 * if the service agrees. This is supported by NioWebSocketTransport.
+	 */
+	public boolean perMessageDeflate;
+
+	/**
+	 * With perMessageDeflate, the base 2 logarithm of the window size (8 to 15)
+	 * that the service may use to compress the messages it sends. A smaller
+	 * window reduces the memory used by the service for each connection;
+	 * the default, 15, places no limit on the service. Any other value is
+	 * rejected when the client is created.
+	 */
+	public int deflateServerMaxWindowBits = Defaults.DEFLATE_MAX_WINDOW_BITS;
+
+	/**
+	 * With perMessageDeflate, if true, each message sent is compressed
+	 * independently of those sent before it. This reduces the memory used by
+	 * the service for each connection, at the cost of compression.
+	 */
+	public boolean deflateClientNoContextTakeover;
+
+	/**
+	 * With perMessageDeflate, if true, the service is asked to compress each
+	 * message it sends independently of those sent before it.
+	 */
+	public boolean deflateServerNoContextTakeover;
+
+	/**
+	 * With perMessageDeflate, messages smaller than this many bytes
+	 * are sent uncompressed.
+	 */
+	public int deflateThreshold = Defaults.DEFLATE_THRESHOLD;
+
+	/**
+	 * The SSLContext used for TLS connections by NioWebSocketTransport, such
+	 * as to trust a private certificate authority. If not set, a context with
+	 * the platform's default key and trust managers is used. The server's
+	 * hostname is verified in either case.
+	 */
+	public SSLContext sslContext;
+
+	/**
+	 * If true, binary message data received with the binary protocol is not
+	 * copied, but is exposed as a read-only java.nio.ByteBuffer that is a slice
+	 * of the received frame. Retaining such data retains the whole frame.
+	 */
+	public boolean sliceBinaryData;
+
+	/**
+	 * If true, when an attempt to establish a new realtime connection has not
+	 * completed within connectionRacingDelay, an attempt is started in parallel
+	 * to the next candidate host, and so on at the same interval; the first
+	 * attempt to connect is used, and the others are abandoned.
+	 * This does not apply when resuming or recovering a connection, since
+	 * that must go to a single host.
+	 */
+	public boolean connectionRacing;
+
+	/**
+	 * With connectionRacing, the delay in milliseconds before each
+	 * further connection attempt is started.
+	 */
+	public long connectionRacingDelay = Defaults.CONNECTION_RACING_DELAY;
+
+	/**
+	 * If set, the library records metrics of the realtime connection, channels,
+	 * presence and HTTP requests. If null, no metrics are recorded.
+	 */
+	public Metrics metrics;
+
+	/**
+	 * The maximum number of channel attaches awaiting a response when
+	 * channels are reattached after the connection becomes connected.
+	 * This is also the burst allowed by channelReattachRate.
+	 */
+	public int channelReattachMaxInFlight = Defaults.CHANNEL_REATTACH_MAX_IN_FLIGHT;
+
+	/**
+	 * The maximum rate, per second, at which channels are synced or
+	 * reattached after the connection becomes connected; if zero or less,
+	 * the rate is limited only by channelReattachMaxInFlight.
+	 */
+	public int channelReattachRate = Defaults.CHANNEL_REATTACH_RATE;
+
+	/**
+	 * If true, messages and presence messages are delivered to the application's
+	 * listeners on dispatchExecutor, or if that is not set, on a library-wide
+	 * executor with a thread for each available processor, instead of on the
+	 * thread reading from the connection. Each channel's deliveries are made in
+	 * order, one at a time, while different channels are delivered in parallel;
+	 * so a slow listener delays only its own channel.
+	 */
+	public boolean asyncDispatch = Defaults.ASYNC_DISPATCH;
+
+	/**
+	 * The executor on which messages are delivered to listeners, if asyncDispatch
+	 * is true. The executor is not shut down by the library.
+	 */
+	public Executor dispatchExecutor;
+
+	/**
+	 * If true, the data of messages and presence messages received on realtime
+	 * channels is not decoded before they are delivered, but when getData() is
+	 * first called on each, which then throws any error decoding it; until then
+	 * the data field holds the payload as received, with its encoding. Messages
+	 * whose data is never read are not decrypted or parsed.
+	 */
+	public boolean lazyDecoding = Defaults.LAZY_DECODING;
+
+	/**
+	 * If set, the library checkpoints the connection recovery key, and the
+	 * serials of attached channels, to this store while the connection is
+	 * active; a client created later with the same store, such as after a
+	 * process restart, recovers that connection and reattaches its channels.
+	 * This has no effect if recover is set to a different recovery key.
+	 */
+	public RecoveryStore recoveryStore;
+
+	/**
+	 * The minimum interval in milliseconds between checkpoints of the
+	 * recovery state to the recoveryStore.
+	 */
+	public long recoveryCheckpointInterval = Defaults.RECOVERY_CHECKPOINT_INTERVAL;
 }
@@ -43,7 +43,7 @@ public class ConnectionDetails {
 			} else if(fieldName == "maxIdleInterval") {
 				maxIdleInterval = unpacker.unpackLong();
 			} else {
-				Log.v(TAG, "Unexpected field: " + fieldName);
+				Log.v(TAG, "Unexpected field: {}", fieldName);
 				unpacker.skipValue();
 			}
 		}
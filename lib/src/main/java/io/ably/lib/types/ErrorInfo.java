@@ -82,7 +82,7 @@ public class ErrorInfo {
 			} else if(fieldName == "statusCode") {
 				statusCode = unpacker.unpackInt();
 			} else {
-				Log.v(TAG, "Unexpected field: " + fieldName);
+				Log.v(TAG, "Unexpected field: {}", fieldName);
 				unpacker.skipValue();
 			}
 		}
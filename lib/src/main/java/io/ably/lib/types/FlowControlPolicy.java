@@ -0,0 +1,20 @@
+package io.ably.lib.types;
+
+/**
+ * The action to take when a message is published while the connection is
+ * connected, and the number or size of the messages awaiting acknowledgement
+ * has reached the limit set by ClientOptions.maxInFlightMessages or
+ * ClientOptions.maxInFlightBytes.
+ */
+public enum FlowControlPolicy {
+	/** queue the message, and send it when acknowledgements make room;
+	 * Connection.isWritable() indicates whether publishes are being held */
+	hold,
+	/** fail the message being published */
+	fail,
+	/** block the publishing thread until there is room, or until
+	 * ClientOptions.flowControlTimeout expires. Acknowledgements are
+	 * delivered on the transport's thread, so a CompletionListener must not
+	 * itself publish with this policy */
+	block
+}
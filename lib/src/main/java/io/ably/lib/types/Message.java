@@ -2,6 +2,7 @@ package io.ably.lib.types;
 
 import java.io.IOException;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
 
 import org.msgpack.core.MessageFormat;
 import org.msgpack.core.MessagePacker;
@@ -11,6 +12,10 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import io.ably.lib.util.Log;
 
@@ -63,39 +68,50 @@ public class Message extends BaseMessage {
 		return result.toString();
 	}
 
+	@Override
+	public int getEstimatedSize() {
+		int size = super.getEstimatedSize();
+		if(name != null) size += name.length();
+		return size;
+	}
+
 	void writeMsgpack(MessagePacker packer) throws IOException {
 		int fieldCount = super.countFields();
 		if(name != null) ++fieldCount;
 		packer.packMapHeader(fieldCount);
 		super.writeFields(packer);
 		if(name != null) {
-			packer.packString("name");
+			KEYS.write(packer, NAME);
 			packer.packString(name);
 		}
 	}
 
-	Message readMsgpack(MessageUnpacker unpacker) throws IOException {
+	Message readMsgpack(MessageUnpacker unpacker, ByteBuffer source) throws IOException {
 		int fieldCount = unpacker.unpackMapHeader();
 		for(int i = 0; i < fieldCount; i++) {
-			String fieldName = unpacker.unpackString().intern();
+			int field = KEYS.read(unpacker);
 			MessageFormat fieldFormat = unpacker.getNextFormat();
 			if(fieldFormat.equals(MessageFormat.NIL)) { unpacker.unpackNil(); continue; }
 
-			if(super.readField(unpacker, fieldName, fieldFormat)) continue;
-			if(fieldName == "name") {
+			if(super.readField(unpacker, field, fieldFormat, source)) continue;
+			if(field == NAME) {
 				name = unpacker.unpackString();
 			} else {
-				Log.v(TAG, "Unexpected field: " + fieldName);
+				Log.v(TAG, "Unexpected field: {}", MsgpackKeys.unknownName());
 				unpacker.skipValue();
 			}
 		}
 		return this;
 	}
 
-	static Message fromMsgpack(MessageUnpacker unpacker) throws IOException {
-		return (new Message()).readMsgpack(unpacker);
+	static Message fromMsgpack(MessageUnpacker unpacker, ByteBuffer source) throws IOException {
+		return (new Message()).readMsgpack(unpacker, source);
 	}
 
+	/* msgpack field names, following those of BaseMessage */
+	private static final int NAME = 6;
+	private static final MsgpackKeys KEYS = new MsgpackKeys(BaseMessage.KEYS, "name");
+
 	public static class Serializer extends BaseMessage.Serializer implements JsonSerializer<Message> {
 		@Override
 		public JsonElement serialize(Message message, Type typeOfMessage, JsonSerializationContext ctx) {
@@ -105,5 +121,53 @@ public class Message extends BaseMessage {
 		}		
 	}
 
+	void writeJson(JsonWriter writer) throws IOException {
+		writer.beginObject();
+		super.writeJsonFields(writer);
+		if(name != null) writer.name("name").value(name);
+		writer.endObject();
+	}
+
+	Message readJson(JsonReader reader) throws IOException {
+		reader.beginObject();
+		while(reader.hasNext()) {
+			String fieldName = reader.nextName();
+			if(reader.peek() == JsonToken.NULL) { reader.nextNull(); continue; }
+
+			if(super.readJsonField(reader, fieldName)) continue;
+			if(fieldName.equals("name")) {
+				name = reader.nextString();
+			} else {
+				Log.v(TAG, "Unexpected field: {}", fieldName);
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return this;
+	}
+
+	/**
+	 * A Gson TypeAdapter reading and writing Messages directly
+	 * from and to the JSON stream
+	 */
+	public static class JsonAdapter extends TypeAdapter<Message> {
+		@Override
+		public void write(JsonWriter writer, Message message) throws IOException {
+			if(message == null)
+				writer.nullValue();
+			else
+				message.writeJson(writer);
+		}
+
+		@Override
+		public Message read(JsonReader reader) throws IOException {
+			if(reader.peek() == JsonToken.NULL) {
+				reader.nextNull();
+				return null;
+			}
+			return (new Message()).readJson(reader);
+		}
+	}
+
 	private static final String TAG = Message.class.getName();
 }
@@ -0,0 +1,82 @@
+package io.ably.lib.types;
+
+/**
+ * A filter selecting the messages on a channel delivered to a listener
+ * subscribed with Channel.subscribe(MessageFilter, MessageListener).
+ *
+ * A message is delivered if it matches every field that is set; a filter
+ * with no fields set matches every message. The filter is compiled when
+ * subscribing, so later changes to it have no effect on that subscription.
+ * It is evaluated on the message as received, before its data is decoded,
+ * so a message that no listener wants is never decrypted or parsed.
+ */
+public class MessageFilter {
+
+	/**
+	 * The type of a message's data once decoded
+	 */
+	public enum DataType {
+		/* a String */
+		string,
+		/* a byte[] */
+		binary,
+		/* a JsonElement */
+		json
+	}
+
+	/**
+	 * A pattern for the message name, in which '*' matches any sequence of
+	 * characters, including none; for example "orders.*" matches every name
+	 * starting "orders.", and "*.created" every name ending ".created".
+	 * A message with no name matches only a null pattern, or "*".
+	 */
+	public String name;
+
+	/**
+	 * The clientId of the publisher
+	 */
+	public String clientId;
+
+	/**
+	 * The connectionId of the publisher
+	 */
+	public String connectionId;
+
+	/**
+	 * The encoding of the message as received, for example "json/base64";
+	 * use "" to match only messages with no encoding.
+	 */
+	public String encoding;
+
+	/**
+	 * The type of the data once decoded
+	 */
+	public DataType dataType;
+
+	public MessageFilter() {}
+
+	/**
+	 * A filter matching message names with the given pattern
+	 */
+	public MessageFilter(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Get the type that the given data will have once decoded
+	 * according to the given encoding
+	 */
+	public static DataType getDataType(Object data, String encoding) {
+		if(encoding != null && !encoding.isEmpty()) {
+			/* the first element of the encoding is the last to be decoded */
+			int end = encoding.indexOf('/');
+			String first = (end < 0) ? encoding : encoding.substring(0, end);
+			if(first.equals("json"))
+				return DataType.json;
+			if(first.equals("utf-8"))
+				return DataType.string;
+			return DataType.binary;
+		}
+		return (data instanceof byte[]) ? DataType.binary : DataType.string;
+	}
+}
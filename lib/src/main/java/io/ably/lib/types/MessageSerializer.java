@@ -2,6 +2,7 @@ package io.ably.lib.types;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import io.ably.lib.util.Log;
 import org.msgpack.core.MessagePacker;
@@ -9,7 +10,6 @@ import org.msgpack.core.MessageUnpacker;
 
 import io.ably.lib.http.Http;
 import io.ably.lib.http.Http.BodyHandler;
-import io.ably.lib.http.Http.JsonRequestBody;
 import io.ably.lib.http.Http.RequestBody;
 import io.ably.lib.util.Serialisation;
 
@@ -24,18 +24,33 @@ public class MessageSerializer {
 	 *            Msgpack decode
 	 ****************************************/
 	
-	static Message[] readMsgpackArray(MessageUnpacker unpacker) throws IOException {
+	static Message[] readMsgpackArray(MessageUnpacker unpacker, ByteBuffer source) throws IOException {
 		int count = unpacker.unpackArrayHeader();
 		Message[] result = new Message[count];
 		for(int i = 0; i < count; i++)
-			result[i] = Message.fromMsgpack(unpacker);
+			result[i] = Message.fromMsgpack(unpacker, source);
 		return result;
 	}
 
 	public static Message[] readMsgpack(byte[] packed) throws AblyException {
 		try {
 			MessageUnpacker unpacker = Serialisation.msgpackUnpackerConfig.newUnpacker(packed);
-			return readMsgpackArray(unpacker);
+			return readMsgpackArray(unpacker, null);
+		} catch(IOException ioe) {
+			throw AblyException.fromThrowable(ioe);
+		}
+	}
+
+	/**
+	 * Decode messages from the remaining content of a buffer, which may
+	 * be a direct or read-only buffer; the buffer's position is unchanged.
+	 * @param packed
+	 * @param sliceBinaryData if true, binary message data is a read-only
+	 * slice of the given buffer instead of a copy
+	 */
+	public static Message[] readMsgpack(ByteBuffer packed, boolean sliceBinaryData) throws AblyException {
+		try {
+			return readMsgpackArray(ProtocolSerializer.newUnpacker(packed), sliceBinaryData ? packed : null);
 		} catch(IOException ioe) {
 			throw AblyException.fromThrowable(ioe);
 		}
@@ -77,7 +92,7 @@ public class MessageSerializer {
 	 ****************************************/
 	
 	public static Message[] readJSON(byte[] packed) throws IOException {
-		return Serialisation.gson.fromJson(new String(packed), Message[].class);
+		return Serialisation.fromJson(packed, Message[].class);
 	}
 
 	/****************************************
@@ -89,7 +104,7 @@ public class MessageSerializer {
 	}
 
 	public static RequestBody asJsonRequest(Message[] messages) {
-		return new JsonRequestBody(Serialisation.gson.toJson(messages));
+		return new Http.ByteArrayRequestBody(Serialisation.toJson(messages, Message[].class), "application/json");
 	}
 
 	/****************************************
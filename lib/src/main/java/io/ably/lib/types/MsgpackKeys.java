@@ -0,0 +1,132 @@
+package io.ably.lib.types;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.msgpack.core.MessagePacker;
+import org.msgpack.core.MessageUnpacker;
+
+/**
+ * The field names of a type encoded as a msgpack map. Each name is encoded
+ * once, so that writing a key copies its bytes, and reading a key compares
+ * its bytes with the names of the same length, without decoding a String.
+ */
+final class MsgpackKeys {
+
+	/**
+	 * The result of read() for a key that is not one of the names
+	 */
+	static final int UNKNOWN = -1;
+
+	/**
+	 * @param names the field names, identified by their position
+	 */
+	MsgpackKeys(String... names) {
+		this.names = names;
+		encoded = new byte[names.length][];
+		packed = new byte[names.length][];
+		int maxLength = 0;
+		for(int i = 0; i < names.length; i++) {
+			byte[] bytes = names[i].getBytes(UTF8);
+			if(bytes.length > MAX_LENGTH)
+				throw new IllegalArgumentException("Field name too long: " + names[i]);
+			encoded[i] = bytes;
+			/* as packString() would write it, as a fixstr */
+			packed[i] = new byte[bytes.length + 1];
+			packed[i][0] = (byte)(0xa0 | bytes.length);
+			System.arraycopy(bytes, 0, packed[i], 1, bytes.length);
+			maxLength = Math.max(maxLength, bytes.length);
+		}
+		byLength = new int[maxLength + 1][];
+		for(int length = 0; length <= maxLength; length++) {
+			int[] candidates = new int[names.length];
+			int count = 0;
+			for(int i = 0; i < names.length; i++)
+				if(encoded[i].length == length)
+					candidates[count++] = i;
+			byLength[length] = Arrays.copyOf(candidates, count);
+		}
+	}
+
+	/**
+	 * Create the keys of a type extending another, whose names keep
+	 * their positions
+	 */
+	MsgpackKeys(MsgpackKeys base, String... names) {
+		this(concat(base.names, names));
+	}
+
+	/**
+	 * Write the key with the given position.
+	 */
+	void write(MessagePacker packer, int key) throws IOException {
+		packer.writePayload(packed[key]);
+	}
+
+	/**
+	 * Read a key, and return its position, or UNKNOWN if it is not one
+	 * of the names; its name is then available from unknownName().
+	 */
+	int read(MessageUnpacker unpacker) throws IOException {
+		int length = unpacker.unpackRawStringHeader();
+		Scratch scratch = SCRATCH.get();
+		scratch.unknownName = null;
+		if(length > MAX_LENGTH) {
+			scratch.unknownName = new String(unpacker.readPayload(length), UTF8);
+			return UNKNOWN;
+		}
+		byte[] bytes = scratch.bytes;
+		unpacker.readPayload(bytes, 0, length);
+		if(length < byLength.length) {
+			candidates:
+			for(int key : byLength[length]) {
+				byte[] name = encoded[key];
+				for(int i = 0; i < length; i++)
+					if(bytes[i] != name[i])
+						continue candidates;
+				return key;
+			}
+		}
+		scratch.unknownName = new String(bytes, 0, length, UTF8);
+		return UNKNOWN;
+	}
+
+	/**
+	 * Get the name of the last key read on this thread that was UNKNOWN.
+	 */
+	static String unknownName() {
+		return SCRATCH.get().unknownName;
+	}
+
+	private static String[] concat(String[] first, String[] second) {
+		String[] result = Arrays.copyOf(first, first.length + second.length);
+		System.arraycopy(second, 0, result, first.length, second.length);
+		return result;
+	}
+
+	/* a buffer for the key being read, per thread */
+	private static class Scratch {
+		private final byte[] bytes = new byte[MAX_LENGTH];
+		private String unknownName;
+	}
+
+	private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	private final String[] names;
+	/* the UTF-8 bytes of each name */
+	private final byte[][] encoded;
+	/* each name packed as a msgpack string */
+	private final byte[][] packed;
+	/* the positions of the names of each length */
+	private final int[][] byLength;
+
+	/* the longest fixstr */
+	private static final int MAX_LENGTH = 31;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+}
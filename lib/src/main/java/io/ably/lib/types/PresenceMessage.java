@@ -2,6 +2,7 @@ package io.ably.lib.types;
 
 import java.io.IOException;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
 
 import org.msgpack.core.MessageFormat;
 import org.msgpack.core.MessagePacker;
@@ -14,6 +15,10 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import io.ably.lib.util.Log;
 
@@ -84,8 +89,7 @@ public class PresenceMessage extends BaseMessage implements Cloneable {
 		result.timestamp = timestamp;
 		result.clientId = clientId;
 		result.connectionId = connectionId;
-		result.encoding = encoding;
-		result.data = data;
+		copyData(result);
 		result.action = action;
 		return result;
 	}
@@ -95,32 +99,36 @@ public class PresenceMessage extends BaseMessage implements Cloneable {
 		++fieldCount;
 		packer.packMapHeader(fieldCount);
 		super.writeFields(packer);
-		packer.packString("action");
+		KEYS.write(packer, ACTION);
 		packer.packInt(action.getValue());
 	}
 
-	PresenceMessage readMsgpack(MessageUnpacker unpacker) throws IOException {
+	PresenceMessage readMsgpack(MessageUnpacker unpacker, ByteBuffer source) throws IOException {
 		int fieldCount = unpacker.unpackMapHeader();
 		for(int i = 0; i < fieldCount; i++) {
-			String fieldName = unpacker.unpackString().intern();
+			int field = KEYS.read(unpacker);
 			MessageFormat fieldFormat = unpacker.getNextFormat();
 			if(fieldFormat.equals(MessageFormat.NIL)) { unpacker.unpackNil(); continue; }
 
-			if(super.readField(unpacker, fieldName, fieldFormat)) continue;
-			if(fieldName == "action") {
+			if(super.readField(unpacker, field, fieldFormat, source)) continue;
+			if(field == ACTION) {
 				action = Action.findByValue(unpacker.unpackInt());
 			} else {
-				Log.v(TAG, "Unexpected field: " + fieldName);
+				Log.v(TAG, "Unexpected field: {}", MsgpackKeys.unknownName());
 				unpacker.skipValue();
 			}
 		}
 		return this;
 	}
 
-	static PresenceMessage fromMsgpack(MessageUnpacker unpacker) throws IOException {
-		return (new PresenceMessage()).readMsgpack(unpacker);
+	static PresenceMessage fromMsgpack(MessageUnpacker unpacker, ByteBuffer source) throws IOException {
+		return (new PresenceMessage()).readMsgpack(unpacker, source);
 	}
 
+	/* msgpack field names, following those of BaseMessage */
+	private static final int ACTION = 6;
+	private static final MsgpackKeys KEYS = new MsgpackKeys(BaseMessage.KEYS, "action");
+
 	public static class ActionSerializer implements JsonDeserializer<Action> {
 		@Override
 		public Action deserialize(JsonElement json, Type t, JsonDeserializationContext ctx)
@@ -138,6 +146,54 @@ public class PresenceMessage extends BaseMessage implements Cloneable {
 		}		
 	}
 
+	void writeJson(JsonWriter writer) throws IOException {
+		writer.beginObject();
+		super.writeJsonFields(writer);
+		if(action != null) writer.name("action").value(action.getValue());
+		writer.endObject();
+	}
+
+	PresenceMessage readJson(JsonReader reader) throws IOException {
+		reader.beginObject();
+		while(reader.hasNext()) {
+			String fieldName = reader.nextName();
+			if(reader.peek() == JsonToken.NULL) { reader.nextNull(); continue; }
+
+			if(super.readJsonField(reader, fieldName)) continue;
+			if(fieldName.equals("action")) {
+				action = Action.findByValue(reader.nextInt());
+			} else {
+				Log.v(TAG, "Unexpected field: {}", fieldName);
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return this;
+	}
+
+	/**
+	 * A Gson TypeAdapter reading and writing PresenceMessages directly
+	 * from and to the JSON stream
+	 */
+	public static class JsonAdapter extends TypeAdapter<PresenceMessage> {
+		@Override
+		public void write(JsonWriter writer, PresenceMessage message) throws IOException {
+			if(message == null)
+				writer.nullValue();
+			else
+				message.writeJson(writer);
+		}
+
+		@Override
+		public PresenceMessage read(JsonReader reader) throws IOException {
+			if(reader.peek() == JsonToken.NULL) {
+				reader.nextNull();
+				return null;
+			}
+			return (new PresenceMessage()).readJson(reader);
+		}
+	}
+
 	/**
 	 * Get the member key for the PresenceMessage.
 	 * @return
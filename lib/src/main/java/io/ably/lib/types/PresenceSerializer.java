@@ -2,13 +2,14 @@ package io.ably.lib.types;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import io.ably.lib.util.Log;
 import org.msgpack.core.MessagePacker;
 import org.msgpack.core.MessageUnpacker;
 
 import io.ably.lib.http.Http.BodyHandler;
-import io.ably.lib.http.Http.JsonRequestBody;
+import io.ably.lib.http.Http.ByteArrayRequestBody;
 import io.ably.lib.http.Http.RequestBody;
 import io.ably.lib.util.Serialisation;
 
@@ -23,18 +24,33 @@ public class PresenceSerializer {
 	 *            Msgpack decode
 	 ****************************************/
 	
-	static PresenceMessage[] readMsgpackArray(MessageUnpacker unpacker) throws IOException {
+	static PresenceMessage[] readMsgpackArray(MessageUnpacker unpacker, ByteBuffer source) throws IOException {
 		int count = unpacker.unpackArrayHeader();
 		PresenceMessage[] result = new PresenceMessage[count];
 		for(int i = 0; i < count; i++)
-			result[i] = PresenceMessage.fromMsgpack(unpacker);
+			result[i] = PresenceMessage.fromMsgpack(unpacker, source);
 		return result;
 	}
 
 	public static PresenceMessage[] readMsgpack(byte[] packed) throws AblyException {
 		try {
 			MessageUnpacker unpacker = Serialisation.msgpackUnpackerConfig.newUnpacker(packed);
-			return readMsgpackArray(unpacker);
+			return readMsgpackArray(unpacker, null);
+		} catch(IOException ioe) {
+			throw AblyException.fromThrowable(ioe);
+		}
+	}
+
+	/**
+	 * Decode messages from the remaining content of a buffer, which may
+	 * be a direct or read-only buffer; the buffer's position is unchanged.
+	 * @param packed
+	 * @param sliceBinaryData if true, binary message data is a read-only
+	 * slice of the given buffer instead of a copy
+	 */
+	public static PresenceMessage[] readMsgpack(ByteBuffer packed, boolean sliceBinaryData) throws AblyException {
+		try {
+			return readMsgpackArray(ProtocolSerializer.newUnpacker(packed), sliceBinaryData ? packed : null);
 		} catch(IOException ioe) {
 			throw AblyException.fromThrowable(ioe);
 		}
@@ -68,7 +84,7 @@ public class PresenceSerializer {
 	 ****************************************/
 	
 	private static PresenceMessage[] readJson(byte[] packed) throws IOException {
-		return Serialisation.gson.fromJson(new String(packed), PresenceMessage[].class);
+		return Serialisation.fromJson(packed, PresenceMessage[].class);
 	}
 
 	/****************************************
@@ -80,7 +96,7 @@ public class PresenceSerializer {
 	}
 
 	public static RequestBody asJsonRequest(PresenceMessage[] messages) {
-		return new JsonRequestBody(Serialisation.gson.toJson(messages));
+		return new ByteArrayRequestBody(Serialisation.toJson(messages, PresenceMessage[].class), "application/json");
 	}
 
 	/****************************************
@@ -2,6 +2,8 @@ package io.ably.lib.types;
 
 import java.io.IOException;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 
 import org.msgpack.core.MessageFormat;
 import org.msgpack.core.MessagePacker;
@@ -14,8 +16,13 @@ import com.google.gson.JsonParseException;
 import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import io.ably.lib.util.Log;
+import io.ably.lib.util.Serialisation;
 
 /**
  * A message sent and received over the Realtime protocol.
@@ -62,7 +69,7 @@ public class ProtocolMessage {
 	public static boolean mergeTo(ProtocolMessage dest, ProtocolMessage src) {
 		boolean result = false;
 		Action action;
-		if(dest.channel == src.channel) {
+		if(dest.channel != null && dest.channel.equals(src.channel)) {
 			if((action = dest.action) == src.action) {
 				switch(action) {
 				case message: {
@@ -78,8 +85,8 @@ public class ProtocolMessage {
 						PresenceMessage[] srcMessages = src.presence;
 						PresenceMessage[] destMessages = dest.presence;
 						PresenceMessage[] mergedMessages = dest.presence = new PresenceMessage[destMessages.length + srcMessages.length];
-						System.arraycopy(mergedMessages, 0, destMessages, 0, destMessages.length);
-						System.arraycopy(mergedMessages, destMessages.length, srcMessages, 0, srcMessages.length);
+						System.arraycopy(destMessages, 0, mergedMessages, 0, destMessages.length);
+						System.arraycopy(srcMessages, 0, mergedMessages, destMessages.length, srcMessages.length);
 						result = true;
 					}
 					break;
@@ -94,6 +101,23 @@ public class ProtocolMessage {
 		return (msg.action == Action.message || msg.action == Action.presence);
 	}
 
+	/**
+	 * Estimate the size of the message or presence payload of
+	 * a ProtocolMessage, in bytes.
+	 * @param msg
+	 * @return estimated size
+	 */
+	public static int getEstimatedSize(ProtocolMessage msg) {
+		int size = 0;
+		if(msg.messages != null)
+			for(Message message : msg.messages)
+				size += message.getEstimatedSize();
+		if(msg.presence != null)
+			for(PresenceMessage message : msg.presence)
+				size += message.getEstimatedSize();
+		return size;
+	}
+
 	public ProtocolMessage() {}
 
 	public ProtocolMessage(Action action) {
@@ -123,85 +147,232 @@ public class ProtocolMessage {
 
 	void writeMsgpack(MessagePacker packer) throws IOException {
 		int fieldCount = 1; //action
+		if(id != null) ++fieldCount;
 		if(channel != null) ++fieldCount;
 		if(msgSerial != null) ++fieldCount;
 		if(messages != null) ++fieldCount;
 		if(presence != null) ++fieldCount;
 		if(auth != null) ++fieldCount;
 		packer.packMapHeader(fieldCount);
-		packer.packString("action");
+		KEYS.write(packer, ACTION);
 		packer.packInt(action.getValue());
+		if(id != null) {
+			KEYS.write(packer, ID);
+			packer.packString(id);
+		}
 		if(channel != null) {
-			packer.packString("channel");
+			KEYS.write(packer, CHANNEL);
 			packer.packString(channel);
 		}
 		if(msgSerial != null) {
-			packer.packString("msgSerial");
+			KEYS.write(packer, MSG_SERIAL);
 			packer.packLong(msgSerial.longValue());
 		}
 		if(messages != null) {
-			packer.packString("messages");
+			KEYS.write(packer, MESSAGES);
 			MessageSerializer.writeMsgpackArray(messages, packer);
 		}
 		if(presence != null) {
-			packer.packString("presence");
+			KEYS.write(packer, PRESENCE);
 			PresenceSerializer.writeMsgpackArray(presence, packer);
 		}
 		if(auth != null) {
-			packer.packString("auth");
+			KEYS.write(packer, AUTH);
 			auth.writeMsgpack(packer);
 		}
 	}
 
-	ProtocolMessage readMsgpack(MessageUnpacker unpacker) throws IOException {
+	ProtocolMessage readMsgpack(MessageUnpacker unpacker, ByteBuffer source) throws IOException {
 		int fieldCount = unpacker.unpackMapHeader();
 		for(int i = 0; i < fieldCount; i++) {
-			String fieldName = unpacker.unpackString().intern();
+			int field = KEYS.read(unpacker);
 			MessageFormat fieldFormat = unpacker.getNextFormat();
 			if(fieldFormat.equals(MessageFormat.NIL)) { unpacker.unpackNil(); continue; }
 
-			if(fieldName == "action") {
-				action = Action.findByValue(unpacker.unpackInt());
-			} else if(fieldName == "flags") {
-				flags = unpacker.unpackInt();
-			} else if(fieldName == "count") {
-				count = unpacker.unpackInt();
-			} else if(fieldName == "error") {
-				error = ErrorInfo.fromMsgpack(unpacker);
-			} else if(fieldName == "id") {
-				id = unpacker.unpackString();
-			} else if(fieldName == "channel") {
-				channel = unpacker.unpackString();
-			} else if(fieldName == "channelSerial") {
-				channelSerial = unpacker.unpackString();
-			} else if(fieldName == "connectionId") {
-				connectionId = unpacker.unpackString();
-			} else if(fieldName == "connectionSerial") {
-				connectionSerial = Long.valueOf(unpacker.unpackLong());
-			} else if(fieldName == "msgSerial") {
-				msgSerial = Long.valueOf(unpacker.unpackLong());
-			} else if(fieldName == "timestamp") {
-				timestamp = unpacker.unpackLong();
-			} else if(fieldName == "messages") {
-				messages = MessageSerializer.readMsgpackArray(unpacker);
-			} else if(fieldName == "presence") {
-				presence = PresenceSerializer.readMsgpackArray(unpacker);
-			} else if(fieldName == "connectionDetails") {
-				connectionDetails = ConnectionDetails.fromMsgpack(unpacker);
-			} else if(fieldName == "auth") {
-				auth = AuthDetails.fromMsgpack(unpacker);
-			} else {
-				Log.v(TAG, "Unexpected field: " + fieldName);
-				unpacker.skipValue();
+			switch(field) {
+				case ACTION:
+					action = Action.findByValue(unpacker.unpackInt()); break;
+				case FLAGS:
+					flags = unpacker.unpackInt(); break;
+				case COUNT:
+					count = unpacker.unpackInt(); break;
+				case ERROR:
+					error = ErrorInfo.fromMsgpack(unpacker); break;
+				case ID:
+					id = unpacker.unpackString(); break;
+				case CHANNEL:
+					channel = unpacker.unpackString(); break;
+				case CHANNEL_SERIAL:
+					channelSerial = unpacker.unpackString(); break;
+				case CONNECTION_ID:
+					connectionId = unpacker.unpackString(); break;
+				case CONNECTION_SERIAL:
+					connectionSerial = Long.valueOf(unpacker.unpackLong()); break;
+				case MSG_SERIAL:
+					msgSerial = Long.valueOf(unpacker.unpackLong()); break;
+				case TIMESTAMP:
+					timestamp = unpacker.unpackLong(); break;
+				case MESSAGES:
+					messages = MessageSerializer.readMsgpackArray(unpacker, source); break;
+				case PRESENCE:
+					presence = PresenceSerializer.readMsgpackArray(unpacker, source); break;
+				case CONNECTION_DETAILS:
+					connectionDetails = ConnectionDetails.fromMsgpack(unpacker); break;
+				case AUTH:
+					auth = AuthDetails.fromMsgpack(unpacker); break;
+				default:
+					Log.v(TAG, "Unexpected field: {}", MsgpackKeys.unknownName());
+					unpacker.skipValue();
+					break;
 			}
 		}
 		return this;
 	}
 
-	static ProtocolMessage fromMsgpack(MessageUnpacker unpacker) throws IOException {
-		return (new ProtocolMessage()).readMsgpack(unpacker);
+	/* msgpack field names, by position */
+	private static final int ACTION = 0, FLAGS = 1, COUNT = 2, ERROR = 3, ID = 4, CHANNEL = 5,
+			CHANNEL_SERIAL = 6, CONNECTION_ID = 7, CONNECTION_SERIAL = 8, MSG_SERIAL = 9,
+			TIMESTAMP = 10, MESSAGES = 11, PRESENCE = 12, CONNECTION_DETAILS = 13, AUTH = 14;
+	private static final MsgpackKeys KEYS = new MsgpackKeys("action", "flags", "count", "error", "id", "channel",
+			"channelSerial", "connectionId", "connectionSerial", "msgSerial",
+			"timestamp", "messages", "presence", "connectionDetails", "auth");
+
+	/**
+	 * @param source if non-null, the buffer being unpacked, of which binary
+	 * message data is exposed as read-only slices
+	 */
+	static ProtocolMessage fromMsgpack(MessageUnpacker unpacker, ByteBuffer source) throws IOException {
+		return (new ProtocolMessage()).readMsgpack(unpacker, source);
 	}
 
+	void writeJson(JsonWriter writer) throws IOException {
+		writer.beginObject();
+		writer.name("action").value(action.getValue());
+		if(flags != 0) writer.name("flags").value(flags);
+		if(count != 0) writer.name("count").value(count);
+		if(error != null) {
+			writer.name("error");
+			Serialisation.gson.toJson(error, ErrorInfo.class, writer);
+		}
+		if(id != null) writer.name("id").value(id);
+		if(channel != null) writer.name("channel").value(channel);
+		if(channelSerial != null) writer.name("channelSerial").value(channelSerial);
+		if(connectionId != null) writer.name("connectionId").value(connectionId);
+		if(connectionSerial != null) writer.name("connectionSerial").value(connectionSerial);
+		if(msgSerial != null) writer.name("msgSerial").value(msgSerial);
+		if(timestamp != 0) writer.name("timestamp").value(timestamp);
+		if(messages != null) {
+			writer.name("messages").beginArray();
+			for(Message message : messages)
+				messageAdapter.write(writer, message);
+			writer.endArray();
+		}
+		if(presence != null) {
+			writer.name("presence").beginArray();
+			for(PresenceMessage message : presence)
+				presenceAdapter.write(writer, message);
+			writer.endArray();
+		}
+		if(connectionDetails != null) {
+			writer.name("connectionDetails");
+			Serialisation.gson.toJson(connectionDetails, ConnectionDetails.class, writer);
+		}
+		if(auth != null) {
+			writer.name("auth").beginObject();
+			if(auth.accessToken != null) writer.name("accessToken").value(auth.accessToken);
+			writer.endObject();
+		}
+		writer.endObject();
+	}
+
+	ProtocolMessage readJson(JsonReader reader) throws IOException {
+		reader.beginObject();
+		while(reader.hasNext()) {
+			String fieldName = reader.nextName();
+			if(reader.peek() == JsonToken.NULL) { reader.nextNull(); continue; }
+
+			switch(fieldName) {
+				case "action":
+					action = Action.findByValue(reader.nextInt()); break;
+				case "flags":
+					flags = reader.nextInt(); break;
+				case "count":
+					count = reader.nextInt(); break;
+				case "error":
+					error = Serialisation.gson.fromJson(reader, ErrorInfo.class); break;
+				case "id":
+					id = reader.nextString(); break;
+				case "channel":
+					channel = reader.nextString(); break;
+				case "channelSerial":
+					channelSerial = reader.nextString(); break;
+				case "connectionId":
+					connectionId = reader.nextString(); break;
+				case "connectionSerial":
+					connectionSerial = Long.valueOf(reader.nextLong()); break;
+				case "msgSerial":
+					msgSerial = Long.valueOf(reader.nextLong()); break;
+				case "timestamp":
+					timestamp = reader.nextLong(); break;
+				case "messages": {
+					ArrayList<Message> list = new ArrayList<Message>();
+					reader.beginArray();
+					while(reader.hasNext())
+						list.add(messageAdapter.read(reader));
+					reader.endArray();
+					messages = list.toArray(new Message[list.size()]);
+					break;
+				}
+				case "presence": {
+					ArrayList<PresenceMessage> list = new ArrayList<PresenceMessage>();
+					reader.beginArray();
+					while(reader.hasNext())
+						list.add(presenceAdapter.read(reader));
+					reader.endArray();
+					presence = list.toArray(new PresenceMessage[list.size()]);
+					break;
+				}
+				case "connectionDetails":
+					connectionDetails = Serialisation.gson.fromJson(reader, ConnectionDetails.class); break;
+				case "auth":
+					auth = Serialisation.gson.fromJson(reader, AuthDetails.class); break;
+				default:
+					Log.v(TAG, "Unexpected field: {}", fieldName);
+					reader.skipValue();
+					break;
+			}
+		}
+		reader.endObject();
+		return this;
+	}
+
+	/**
+	 * A Gson TypeAdapter reading and writing ProtocolMessages, and the
+	 * Messages and PresenceMessages they contain, directly from and to
+	 * the JSON stream
+	 */
+	public static class JsonAdapter extends TypeAdapter<ProtocolMessage> {
+		@Override
+		public void write(JsonWriter writer, ProtocolMessage message) throws IOException {
+			if(message == null)
+				writer.nullValue();
+			else
+				message.writeJson(writer);
+		}
+
+		@Override
+		public ProtocolMessage read(JsonReader reader) throws IOException {
+			if(reader.peek() == JsonToken.NULL) {
+				reader.nextNull();
+				return null;
+			}
+			return (new ProtocolMessage()).readJson(reader);
+		}
+	}
+
+	private static final Message.JsonAdapter messageAdapter = new Message.JsonAdapter();
+	private static final PresenceMessage.JsonAdapter presenceAdapter = new PresenceMessage.JsonAdapter();
+
 	public static class ActionSerializer implements JsonSerializer<Action>, JsonDeserializer<Action> {
 		@Override
 		public Action deserialize(JsonElement json, Type t, JsonDeserializationContext ctx)
@@ -224,14 +395,14 @@ public class ProtocolMessage {
 		AuthDetails readMsgpack(MessageUnpacker unpacker) throws IOException {
 			int fieldCount = unpacker.unpackMapHeader();
 			for(int i = 0; i < fieldCount; i++) {
-				String fieldName = unpacker.unpackString().intern();
+				int field = KEYS.read(unpacker);
 				MessageFormat fieldFormat = unpacker.getNextFormat();
 				if(fieldFormat.equals(MessageFormat.NIL)) { unpacker.unpackNil(); continue; }
 
-				if(fieldName == "accessToken") {
+				if(field == ACCESS_TOKEN) {
 					accessToken = unpacker.unpackString();
 				} else {
-					System.out.println("Unexpected field: " + fieldName);
+					Log.v(TAG, "Unexpected field: {}", MsgpackKeys.unknownName());
 					unpacker.skipValue();
 				}
 			}
@@ -247,10 +418,13 @@ public class ProtocolMessage {
 			if(accessToken != null) ++fieldCount;
 			packer.packMapHeader(fieldCount);
 			if(accessToken != null) {
-				packer.packString("accessToken");
+				KEYS.write(packer, ACCESS_TOKEN);
 				packer.packString(accessToken);
 			}
 		}
+
+		private static final int ACCESS_TOKEN = 0;
+		private static final MsgpackKeys KEYS = new MsgpackKeys("accessToken");
 	}
 
 	private static final String TAG = ProtocolMessage.class.getName();
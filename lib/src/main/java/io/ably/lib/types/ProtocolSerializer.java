@@ -1,11 +1,11 @@
 package io.ably.lib.types;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
 
 import org.msgpack.core.MessagePacker;
 import org.msgpack.core.MessageUnpacker;
+import org.msgpack.core.buffer.ArrayBufferOutput;
 
 import io.ably.lib.util.Serialisation;
 
@@ -18,27 +18,76 @@ public class ProtocolSerializer {
 	public static ProtocolMessage readMsgpack(byte[] packed) throws AblyException {
 		try {
 			MessageUnpacker unpacker = Serialisation.msgpackUnpackerConfig.newUnpacker(packed);
-			return ProtocolMessage.fromMsgpack(unpacker);
+			return ProtocolMessage.fromMsgpack(unpacker, null);
 		} catch (IOException ioe) {
 			throw AblyException.fromThrowable(ioe);
 		}
 	}
 
+	/**
+	 * Decode a ProtocolMessage from the remaining content of a buffer, which
+	 * may be a direct or read-only buffer; the buffer's position is unchanged.
+	 * @param packed
+	 * @param sliceBinaryData if true, binary message data is a read-only
+	 * slice of the given buffer instead of a copy (see ClientOptions.sliceBinaryData)
+	 */
+	public static ProtocolMessage readMsgpack(ByteBuffer packed, boolean sliceBinaryData) throws AblyException {
+		try {
+			return ProtocolMessage.fromMsgpack(newUnpacker(packed), sliceBinaryData ? packed : null);
+		} catch (IOException ioe) {
+			throw AblyException.fromThrowable(ioe);
+		}
+	}
+
+	/**
+	 * Create an unpacker for the remaining content of a buffer, without
+	 * copying it if it is array-backed.
+	 */
+	static MessageUnpacker newUnpacker(ByteBuffer packed) {
+		if(packed.hasArray())
+			return Serialisation.msgpackUnpackerConfig.newUnpacker(packed.array(), packed.arrayOffset() + packed.position(), packed.remaining());
+		return Serialisation.msgpackUnpackerConfig.newUnpacker(new ByteBufferInput(packed));
+	}
+
 	/****************************************
 	 *            Msgpack encode
 	 ****************************************/
 	
+	/**
+	 * Encode a ProtocolMessage, with a packer and buffer kept for reuse by
+	 * the calling thread.
+	 */
 	public static byte[] writeMsgpack(ProtocolMessage message) {
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		MessagePacker packer = Serialisation.msgpackPackerConfig.newPacker(out);
+		ThreadPacker threadPacker = threadPackers.get();
+		boolean completed = false;
 		try {
-			message.writeMsgpack(packer);
-	
-			packer.flush();
-			return out.toByteArray();
-		} catch(IOException e) { return null; }
+			threadPacker.out.clear();
+			message.writeMsgpack(threadPacker.packer);
+			threadPacker.packer.flush();
+			completed = true;
+			return threadPacker.out.toByteArray();
+		} catch(IOException e) {
+			return null;
+		} finally {
+			/* a failed write leaves the packer holding part of the message */
+			if(!completed)
+				threadPackers.remove();
+		}
+	}
+
+	/* a packer writing to a buffer whose storage is reused between messages */
+	private static class ThreadPacker {
+		private final ArrayBufferOutput out = new ArrayBufferOutput();
+		private final MessagePacker packer = Serialisation.msgpackPackerConfig.newPacker(out);
 	}
 
+	private static final ThreadLocal<ThreadPacker> threadPackers = new ThreadLocal<ThreadPacker>() {
+		@Override
+		protected ThreadPacker initialValue() {
+			return new ThreadPacker();
+		}
+	};
+
 	/****************************************
 	 *              JSON decode
 	 ****************************************/
@@ -47,11 +96,19 @@ public class ProtocolSerializer {
 		return Serialisation.gson.fromJson(packed, ProtocolMessage.class);
 	}
 
+	/**
+	 * Decode a ProtocolMessage from UTF-8 encoded JSON, as received
+	 * @param packed
+	 */
+	public static ProtocolMessage readJSON(byte[] packed) throws AblyException {
+		return Serialisation.fromJson(packed, ProtocolMessage.class);
+	}
+
 	/****************************************
 	 *              JSON encode
 	 ****************************************/
 	
 	public static byte[] writeJSON(ProtocolMessage message) throws AblyException {
-		return Serialisation.gson.toJson(message).getBytes(Charset.forName("UTF-8"));
+		return Serialisation.toJson(message, ProtocolMessage.class);
 	}
 }
@@ -0,0 +1,16 @@
+package io.ably.lib.types;
+
+/**
+ * The action to take when a message is published while the connection is
+ * not connected, and the queue of messages awaiting connection is full.
+ * See ClientOptions.maxQueuedMessages and ClientOptions.maxQueuedBytes.
+ */
+public enum QueueOverflowPolicy {
+	/** fail the message being published */
+	rejectNewest,
+	/** discard, and fail, the oldest queued messages to make room */
+	dropOldest,
+	/** block the publishing thread until there is room, or until
+	 * ClientOptions.queueBlockTimeout expires */
+	block
+}
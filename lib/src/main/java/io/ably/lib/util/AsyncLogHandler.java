@@ -0,0 +1,171 @@
+package io.ably.lib.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import io.ably.lib.util.Log.LogHandler;
+
+/**
+ * A LogHandler that passes log records to another handler on a background
+ * thread, so that the threads that log do not wait for output.
+ *
+ * Records are held in a bounded ring buffer; logging never blocks or takes a
+ * lock. If the buffer is full, the record is dropped, and the number of
+ * records dropped is reported when the buffer has been drained.
+ *
+ * Usage: Log.setHandler(new AsyncLogHandler(Log.defaultHandler));
+ */
+public class AsyncLogHandler implements LogHandler {
+
+	/**
+	 * Create a handler with the default capacity.
+	 * @param handler the handler to which records are passed
+	 */
+	public AsyncLogHandler(LogHandler handler) {
+		this(handler, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param handler the handler to which records are passed
+	 * @param capacity the maximum number of records waiting to be passed to
+	 * the handler; this is rounded up to a power of 2
+	 */
+	public AsyncLogHandler(LogHandler handler, int capacity) {
+		int size = 2;
+		while(size < capacity)
+			size <<= 1;
+		this.handler = handler;
+		this.mask = size - 1;
+		this.records = new Record[size];
+		this.sequences = new AtomicLongArray(size);
+		for(int i = 0; i < size; i++)
+			sequences.set(i, i);
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "ably-log");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void println(int severity, String tag, String msg, Throwable tr) {
+		if(!offer(new Record(severity, tag, msg, tr))) {
+			dropped.incrementAndGet();
+			return;
+		}
+		if(waiting)
+			LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Wait until all records logged so far have been passed to the handler.
+	 * @param timeout the maximum time to wait, in milliseconds
+	 * @return false if the timeout expired
+	 */
+	public boolean flush(long timeout) {
+		long target = tail.get();
+		long deadline = System.currentTimeMillis() + timeout;
+		while(head < target) {
+			if(System.currentTimeMillis() >= deadline)
+				return false;
+			LockSupport.unpark(thread);
+			LockSupport.parkNanos(FLUSH_POLL_NANOS);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of records dropped because the buffer was full
+	 */
+	public long getDroppedCount() {
+		return totalDropped.get() + dropped.get();
+	}
+
+	/**
+	 * Claim the next slot, and publish the record to it.
+	 * Each slot's sequence is the position at which it can next be
+	 * written; once written, it is that position + 1, at which the
+	 * consumer can read it.
+	 */
+	private boolean offer(Record record) {
+		long position;
+		while(true) {
+			position = tail.get();
+			long available = sequences.get((int)position & mask) - position;
+			if(available < 0)
+				/* the slot has not been consumed since the previous lap */
+				return false;
+			if(available == 0 && tail.compareAndSet(position, position + 1))
+				break;
+		}
+		int index = (int)position & mask;
+		records[index] = record;
+		sequences.set(index, position + 1);
+		return true;
+	}
+
+	private void drain() {
+		while(true) {
+			int index = (int)head & mask;
+			if(sequences.get(index) != head + 1) {
+				long count = dropped.getAndSet(0);
+				if(count > 0) {
+					totalDropped.addAndGet(count);
+					print(new Record(Log.WARN, TAG, count + " log records dropped", null));
+				}
+				/* wait, rechecking after setting the flag
+				 * in case a record was published meanwhile */
+				waiting = true;
+				if(sequences.get(index) != head + 1)
+					LockSupport.parkNanos(IDLE_PARK_NANOS);
+				waiting = false;
+				continue;
+			}
+			Record record = records[index];
+			records[index] = null;
+			sequences.lazySet(index, head + mask + 1);
+			head++;
+			print(record);
+		}
+	}
+
+	private void print(Record record) {
+		try {
+			handler.println(record.severity, record.tag, record.msg, record.tr);
+		} catch(Throwable t) {}
+	}
+
+	private static class Record {
+		Record(int severity, String tag, String msg, Throwable tr) {
+			this.severity = severity;
+			this.tag = tag;
+			this.msg = msg;
+			this.tr = tr;
+		}
+		final int severity;
+		final String tag;
+		final String msg;
+		final Throwable tr;
+	}
+
+	private final LogHandler handler;
+	private final Thread thread;
+	private final Record[] records;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong totalDropped = new AtomicLong();
+	/* only written by the background thread */
+	private volatile long head;
+	private volatile boolean waiting;
+
+	private static final int DEFAULT_CAPACITY = 8192;
+	private static final long IDLE_PARK_NANOS = 100000000L;
+	private static final long FLUSH_POLL_NANOS = 1000000L;
+	private static final String TAG = AsyncLogHandler.class.getName();
+}
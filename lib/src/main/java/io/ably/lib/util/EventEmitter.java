@@ -1,10 +1,6 @@
 package io.ably.lib.util;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * An interface exposing the ability to register listeners for a class of events
@@ -19,8 +15,8 @@ public abstract class EventEmitter<Event, Listener> {
 	 * Remove all registered listeners irrespective of type
 	 */
 	public synchronized void off() {
-		listeners.clear();
-		filters.clear();
+		listeners = EMPTY;
+		filters = EMPTY;
 	}
 
 	/**
@@ -28,8 +24,8 @@ public abstract class EventEmitter<Event, Listener> {
 	 * @param listener
 	 */
 	public synchronized void on(Listener listener) {
-		if(!listeners.contains(listener))
-			listeners.add(listener);
+		if(indexOf(listeners, listener) < 0)
+			listeners = append(listeners, listener);
 	}
 
 	/**
@@ -37,7 +33,7 @@ public abstract class EventEmitter<Event, Listener> {
 	 * @param listener
 	 */
 	public synchronized void once(Listener listener) {
-		filters.put(listener, new Filter(null, listener, true));
+		putFilter(new Filter(null, listener, true));
 	}
 
 	/**
@@ -45,8 +41,12 @@ public abstract class EventEmitter<Event, Listener> {
 	 * @param listener
 	 */
 	public synchronized void off(Listener listener) {
-		listeners.remove(listener);
-		filters.remove(listener);
+		int index = indexOf(listeners, listener);
+		if(index >= 0)
+			listeners = removeAt(listeners, index);
+		index = indexOfFilter(listener);
+		if(index >= 0)
+			filters = removeAt(filters, index);
 	}
 
 	/**
@@ -54,7 +54,7 @@ public abstract class EventEmitter<Event, Listener> {
 	 * @param listener
 	 */
 	public synchronized void on(Event event, Listener listener) {
-		filters.put(listener, new Filter(event, listener, false));
+		putFilter(new Filter(event, listener, false));
 	}
 
 	/**
@@ -62,7 +62,7 @@ public abstract class EventEmitter<Event, Listener> {
 	 * @param listener
 	 */
 	public synchronized void once(Event event, Listener listener) {
-		filters.put(listener, new Filter(event, listener, true));
+		putFilter(new Filter(event, listener, true));
 	}
 
 	/**
@@ -70,25 +70,29 @@ public abstract class EventEmitter<Event, Listener> {
 	 * @param listener
 	 * @param event
 	 */
+	@SuppressWarnings("unchecked")
 	public synchronized void off(Event event, Listener listener) {
-		Filter filter = filters.get(listener);
-		if(filter != null && filter.event == event)
-			filters.remove(listener);
+		int index = indexOfFilter(listener);
+		if(index >= 0 && ((Filter)filters[index]).event == event)
+			filters = removeAt(filters, index);
 	}
 
 	/**
-	 * Emit the given event (broadcasting to registered listeners)
+	 * Emit the given event (broadcasting to registered listeners).
+	 * This takes no lock: it calls the listeners registered when it starts,
+	 * and listeners may be registered and removed concurrently.
 	 * @param event the Event
 	 * @param args the arguments to pass to listeners
 	 */
-	public synchronized void emit(Event event, Object... args) {
-		for (int i = listeners.size() - 1; i >= 0; i--) {
-			apply(listeners.get(i), event, args);
+	@SuppressWarnings("unchecked")
+	public void emit(Event event, Object... args) {
+		Object[] listeners = this.listeners;
+		for (int i = listeners.length - 1; i >= 0; i--) {
+			apply((Listener)listeners[i], event, args);
 		}
 
-		for(Iterator<Map.Entry<Listener, Filter>> it = filters.entrySet().iterator(); it.hasNext(); )
-			if(it.next().getValue().apply(event, args))
-				it.remove();
+		for(Object filter : filters)
+			((Filter)filter).apply(event, args);
 	}
 
 	protected abstract void apply(Listener listener, Event event, Object... args);
@@ -100,6 +104,9 @@ public abstract class EventEmitter<Event, Listener> {
 		private boolean once;
 		protected boolean apply(Event event, Object... args) {
 			if(this.event == event || this.event == null) {
+				/* a once filter is called only by the emit that removes it */
+				if(once && !removeFilter(this))
+					return false;
 				EventEmitter.this.apply(listener, event, args);
 				return once;
 			}
@@ -107,6 +114,61 @@ public abstract class EventEmitter<Event, Listener> {
 		}
 	}
 
-	Map<Listener, Filter> filters = new HashMap<Listener, Filter>();
-	List<Listener> listeners = new ArrayList<Listener>();
+	/* each listener has at most one filter, replaced by a later registration */
+	private void putFilter(Filter filter) {
+		int index = indexOfFilter(filter.listener);
+		if(index < 0) {
+			filters = append(filters, filter);
+		} else {
+			Object[] updated = filters.clone();
+			updated[index] = filter;
+			filters = updated;
+		}
+	}
+
+	private synchronized boolean removeFilter(Filter filter) {
+		for(int i = 0; i < filters.length; i++) {
+			if(filters[i] == filter) {
+				filters = removeAt(filters, i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@SuppressWarnings("unchecked")
+	private int indexOfFilter(Listener listener) {
+		Object[] filters = this.filters;
+		for(int i = 0; i < filters.length; i++)
+			if(((Filter)filters[i]).listener.equals(listener))
+				return i;
+		return -1;
+	}
+
+	private static int indexOf(Object[] array, Object element) {
+		for(int i = 0; i < array.length; i++)
+			if(array[i].equals(element))
+				return i;
+		return -1;
+	}
+
+	private static Object[] append(Object[] array, Object element) {
+		Object[] updated = Arrays.copyOf(array, array.length + 1);
+		updated[array.length] = element;
+		return updated;
+	}
+
+	private static Object[] removeAt(Object[] array, int index) {
+		Object[] updated = new Object[array.length - 1];
+		System.arraycopy(array, 0, updated, 0, index);
+		System.arraycopy(array, index + 1, updated, index, array.length - index - 1);
+		return updated;
+	}
+
+	/* immutable arrays, replaced under the emitter's lock on each change,
+	 * so that emit reads each once and iterates it with no lock */
+	private volatile Object[] filters = EMPTY;
+	private volatile Object[] listeners = EMPTY;
+
+	private static final Object[] EMPTY = new Object[0];
 }
@@ -0,0 +1,125 @@
+package io.ably.lib.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Metrics that keeps the current value of each counter and gauge, and a
+ * summary (count, total, minimum and maximum) of each histogram, in memory.
+ * This is useful for tests and diagnostics, and as a basis for an adapter
+ * to a metrics library that reads values periodically.
+ */
+public class InMemoryMetrics implements Metrics {
+
+	/**
+	 * A summary of the samples recorded in a histogram.
+	 */
+	public static class Summary {
+		public synchronized long getCount() { return count; }
+		public synchronized long getTotal() { return total; }
+		public synchronized long getMin() { return min; }
+		public synchronized long getMax() { return max; }
+
+		synchronized void add(long value) {
+			if(count++ == 0 || value < min) min = value;
+			if(count == 1 || value > max) max = value;
+			total += value;
+		}
+
+		private long count;
+		private long total;
+		private long min;
+		private long max;
+	}
+
+	@Override
+	public void count(String name, String tag, long delta) {
+		createLong(counters, name, tag).addAndGet(delta);
+	}
+
+	@Override
+	public void gauge(String name, String tag, long value) {
+		createLong(gauges, name, tag).set(value);
+	}
+
+	@Override
+	public void record(String name, String tag, long value) {
+		createSummary(name, tag).add(value);
+	}
+
+	/**
+	 * @return the value of a counter, or 0 if it has not been updated
+	 */
+	public long getCount(String name, String tag) {
+		AtomicLong counter = get(counters, name, tag);
+		return (counter == null) ? 0 : counter.get();
+	}
+
+	/**
+	 * @return the value of a gauge, or -1 if it has not been set
+	 */
+	public long getGauge(String name, String tag) {
+		AtomicLong gauge = get(gauges, name, tag);
+		return (gauge == null) ? -1 : gauge.get();
+	}
+
+	/**
+	 * @return the summary of a histogram, or null if no sample has been recorded
+	 */
+	public Summary getSummary(String name, String tag) {
+		Summary summary = get(histograms, name, tag);
+		return (summary == null || summary.getCount() == 0) ? null : summary;
+	}
+
+	/**
+	 * Discard all values.
+	 */
+	public void clear() {
+		counters.clear();
+		gauges.clear();
+		histograms.clear();
+	}
+
+	private static <T> T get(ConcurrentMap<String, ConcurrentMap<String, T>> metrics, String name, String tag) {
+		ConcurrentMap<String, T> tagged = metrics.get(name);
+		return (tagged == null) ? null : tagged.get(tag == null ? NO_TAG : tag);
+	}
+
+	private static AtomicLong createLong(ConcurrentMap<String, ConcurrentMap<String, AtomicLong>> metrics, String name, String tag) {
+		ConcurrentMap<String, AtomicLong> tagged = createTagged(metrics, name);
+		if(tag == null) tag = NO_TAG;
+		AtomicLong value = tagged.get(tag);
+		if(value == null) {
+			AtomicLong existing = tagged.putIfAbsent(tag, value = new AtomicLong());
+			if(existing != null) value = existing;
+		}
+		return value;
+	}
+
+	private Summary createSummary(String name, String tag) {
+		ConcurrentMap<String, Summary> tagged = createTagged(histograms, name);
+		if(tag == null) tag = NO_TAG;
+		Summary summary = tagged.get(tag);
+		if(summary == null) {
+			Summary existing = tagged.putIfAbsent(tag, summary = new Summary());
+			if(existing != null) summary = existing;
+		}
+		return summary;
+	}
+
+	private static <T> ConcurrentMap<String, T> createTagged(ConcurrentMap<String, ConcurrentMap<String, T>> metrics, String name) {
+		ConcurrentMap<String, T> tagged = metrics.get(name);
+		if(tagged == null) {
+			ConcurrentMap<String, T> existing = metrics.putIfAbsent(name, tagged = new ConcurrentHashMap<String, T>());
+			if(existing != null) tagged = existing;
+		}
+		return tagged;
+	}
+
+	private final ConcurrentMap<String, ConcurrentMap<String, AtomicLong>> counters = new ConcurrentHashMap<String, ConcurrentMap<String, AtomicLong>>();
+	private final ConcurrentMap<String, ConcurrentMap<String, AtomicLong>> gauges = new ConcurrentHashMap<String, ConcurrentMap<String, AtomicLong>>();
+	private final ConcurrentMap<String, ConcurrentMap<String, Summary>> histograms = new ConcurrentHashMap<String, ConcurrentMap<String, Summary>>();
+
+	private static final String NO_TAG = "";
+}
@@ -0,0 +1,203 @@
+package io.ably.lib.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, in microseconds, from which percentiles can
+ * be read. Recording a value does not allocate or lock.
+ *
+ * As in HdrHistogram, values are counted in buckets whose width grows with
+ * the value: each power of 2 is divided into SUB_BUCKET_HALF buckets, so a
+ * value read from the histogram is within about 6% of the value recorded,
+ * over the whole range of long values, in a fixed array of counts.
+ *
+ * Besides the totals since creation or the last reset, a snapshot can be
+ * taken of the values recorded since the previous interval snapshot, so
+ * that percentiles can be reported, and alerted on, for each interval.
+ */
+public class LatencyHistogram {
+
+	/**
+	 * An immutable copy of the values recorded in a histogram.
+	 */
+	public static class Snapshot {
+		Snapshot(long[] counts, long count, long total, long min, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.total = total;
+			this.min = min;
+			this.max = max;
+		}
+
+		/**
+		 * @return the number of values recorded
+		 */
+		public long getCount() { return count; }
+
+		/**
+		 * @return the smallest value recorded, or 0 if there is none
+		 */
+		public long getMin() { return min; }
+
+		/**
+		 * @return the largest value recorded, or 0 if there is none
+		 */
+		public long getMax() { return max; }
+
+		/**
+		 * @return the mean of the values recorded, or 0 if there is none
+		 */
+		public double getMean() { return (count == 0) ? 0 : (double)total / count; }
+
+		/**
+		 * Get the value at a given percentile. This is the largest value
+		 * in the bucket containing the percentile, and no more than the
+		 * largest value recorded.
+		 * @param percentile the percentile, from 0 to 100; eg 99.9
+		 * @return the value, or 0 if there is none
+		 */
+		public long getPercentile(double percentile) {
+			if(count == 0)
+				return 0;
+			long rank = (long)Math.ceil(Math.min(Math.max(percentile, 0), 100) / 100 * count);
+			if(rank < 1)
+				rank = 1;
+			long seen = 0;
+			for(int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if(seen >= rank)
+					return Math.max(Math.min(highestValue(i), max), min);
+			}
+			return max;
+		}
+
+		public long getP50() { return getPercentile(50); }
+		public long getP90() { return getPercentile(90); }
+		public long getP99() { return getPercentile(99); }
+		public long getP999() { return getPercentile(99.9); }
+
+		@Override
+		public String toString() {
+			return "count=" + count + " min=" + min + " p50=" + getP50() + " p90=" + getP90()
+					+ " p99=" + getP99() + " p99.9=" + getP999() + " max=" + max;
+		}
+
+		private final long[] counts;
+		private final long count;
+		private final long total;
+		private final long min;
+		private final long max;
+	}
+
+	/**
+	 * Record a value.
+	 * @param value the latency, in microseconds; negative values are recorded as 0
+	 */
+	public void record(long value) {
+		if(value < 0)
+			value = 0;
+		counts.incrementAndGet(index(value));
+		total.addAndGet(value);
+		long current;
+		while(value < (current = min.get()) && !min.compareAndSet(current, value)) {}
+		while(value > (current = max.get()) && !max.compareAndSet(current, value)) {}
+	}
+
+	/**
+	 * Get the values recorded since creation, or the last reset.
+	 */
+	public Snapshot getSnapshot() {
+		long[] copy = new long[BUCKET_COUNT];
+		long count = 0;
+		for(int i = 0; i < BUCKET_COUNT; i++)
+			count += (copy[i] = counts.get(i));
+		long minValue = min.get();
+		return new Snapshot(copy, count, total.get(), (count == 0 || minValue == Long.MAX_VALUE) ? 0 : minValue, max.get());
+	}
+
+	/**
+	 * Get the values recorded since the previous call to this method, or,
+	 * for the first call, since creation or the last reset. The minimum
+	 * and maximum are those of the buckets containing them.
+	 */
+	public synchronized Snapshot getIntervalSnapshot() {
+		Snapshot current = getSnapshot();
+		long[] counts = new long[BUCKET_COUNT];
+		long count = 0;
+		int first = -1, last = -1;
+		for(int i = 0; i < BUCKET_COUNT; i++) {
+			count += (counts[i] = current.counts[i] - intervalCounts[i]);
+			if(counts[i] > 0) {
+				if(first < 0) first = i;
+				last = i;
+			}
+		}
+		long total = current.total - intervalTotal;
+		intervalCounts = current.counts;
+		intervalTotal = current.total;
+		if(count == 0)
+			return new Snapshot(counts, 0, 0, 0, 0);
+		long minValue = Math.max(lowestValue(first), current.min);
+		long maxValue = Math.min(highestValue(last), current.max);
+		return new Snapshot(counts, count, total, minValue, maxValue);
+	}
+
+	/**
+	 * Discard all values recorded. Values recorded concurrently
+	 * with a reset may or may not be discarded.
+	 */
+	public synchronized void reset() {
+		for(int i = 0; i < BUCKET_COUNT; i++)
+			counts.set(i, 0);
+		total.set(0);
+		min.set(Long.MAX_VALUE);
+		max.set(0);
+		intervalCounts = new long[BUCKET_COUNT];
+		intervalTotal = 0;
+	}
+
+	/* values below SUB_BUCKET_COUNT have a bucket each; each higher power
+	 * of 2 is divided into SUB_BUCKET_HALF buckets */
+	static int index(long value) {
+		if(value < SUB_BUCKET_COUNT)
+			return (int)value;
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+		int sub = (int)(value >>> shift);
+		return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (sub - SUB_BUCKET_HALF);
+	}
+
+	static long lowestValue(int index) {
+		if(index < SUB_BUCKET_COUNT)
+			return index;
+		int k = index - SUB_BUCKET_COUNT;
+		int shift = k / SUB_BUCKET_HALF + 1;
+		long sub = k % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+		return sub << shift;
+	}
+
+	static long highestValue(int index) {
+		if(index < SUB_BUCKET_COUNT)
+			return index;
+		int k = index - SUB_BUCKET_COUNT;
+		int shift = k / SUB_BUCKET_HALF + 1;
+		long sub = k % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+		long high = ((sub + 1) << shift) - 1;
+		/* the last bucket extends to Long.MAX_VALUE */
+		return (high < 0) ? Long.MAX_VALUE : high;
+	}
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+	private static final int BUCKET_COUNT = index(Long.MAX_VALUE) + 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong max = new AtomicLong();
+
+	/* the counts at the previous interval snapshot; guarded by this */
+	private long[] intervalCounts = new long[BUCKET_COUNT];
+	private long intervalTotal;
+}
@@ -134,6 +134,111 @@ public class Log {
 		return 0;
 	}
 
+	/*
+	 * Parameterised logging: each "{}" in the format is replaced by the
+	 * string value of the next argument. The message is only formatted
+	 * if the severity is being logged, so these can be used freely in
+	 * hot paths, provided the arguments themselves are cheap to obtain.
+	 * Anything else that is expensive to prepare should be guarded with
+	 * isLoggable().
+	 */
+	public static int v(String tag, String format, Object arg) {
+		if(VERBOSE >= level)
+			print(VERBOSE, tag, format(format, arg), null);
+		return 0;
+	}
+
+	public static int v(String tag, String format, Object arg1, Object arg2) {
+		if(VERBOSE >= level)
+			print(VERBOSE, tag, format(format, arg1, arg2), null);
+		return 0;
+	}
+
+	public static int v(String tag, String format, Object... args) {
+		if(VERBOSE >= level)
+			print(VERBOSE, tag, format(format, args), null);
+		return 0;
+	}
+
+	public static int d(String tag, String format, Object arg) {
+		if(DEBUG >= level)
+			print(DEBUG, tag, format(format, arg), null);
+		return 0;
+	}
+
+	public static int d(String tag, String format, Object arg1, Object arg2) {
+		if(DEBUG >= level)
+			print(DEBUG, tag, format(format, arg1, arg2), null);
+		return 0;
+	}
+
+	public static int d(String tag, String format, Object... args) {
+		if(DEBUG >= level)
+			print(DEBUG, tag, format(format, args), null);
+		return 0;
+	}
+
+	public static int i(String tag, String format, Object arg) {
+		if(INFO >= level)
+			print(INFO, tag, format(format, arg), null);
+		return 0;
+	}
+
+	public static int i(String tag, String format, Object arg1, Object arg2) {
+		if(INFO >= level)
+			print(INFO, tag, format(format, arg1, arg2), null);
+		return 0;
+	}
+
+	public static int i(String tag, String format, Object... args) {
+		if(INFO >= level)
+			print(INFO, tag, format(format, args), null);
+		return 0;
+	}
+
+	public static int w(String tag, String format, Object arg) {
+		if(WARN >= level)
+			print(WARN, tag, format(format, arg), null);
+		return 0;
+	}
+
+	public static int w(String tag, String format, Object arg1, Object arg2) {
+		if(WARN >= level)
+			print(WARN, tag, format(format, arg1, arg2), null);
+		return 0;
+	}
+
+	public static int w(String tag, String format, Object... args) {
+		if(WARN >= level)
+			print(WARN, tag, format(format, args), null);
+		return 0;
+	}
+
+	public static int e(String tag, String format, Object arg) {
+		if(ERROR >= level)
+			print(ERROR, tag, format(format, arg), null);
+		return 0;
+	}
+
+	public static int e(String tag, String format, Object arg1, Object arg2) {
+		if(ERROR >= level)
+			print(ERROR, tag, format(format, arg1, arg2), null);
+		return 0;
+	}
+
+	public static int e(String tag, String format, Object... args) {
+		if(ERROR >= level)
+			print(ERROR, tag, format(format, args), null);
+		return 0;
+	}
+
+	/**
+	 * @return true if messages of the given severity are currently logged
+	 */
+	public static boolean isLoggable(int severity) {
+		return severity >= level;
+	}
+
     public static void setLevel(int level) { Log.level = (level != 0) ? level : defaultLevel; }
     public static final int defaultLevel = WARN;
     public static int level = defaultLevel;
@@ -144,6 +249,19 @@ public class Log {
 
 	private static String[] severities = new String[]{"", "", "VERBOSE", "DEBUG", "INFO", "WARN", "ERROR", "ASSERT"};
 	
+	static String format(String format, Object... args) {
+		StringBuilder builder = new StringBuilder(format.length() + 16 * args.length);
+		int start = 0, arg = 0;
+		while(arg < args.length) {
+			int index = format.indexOf("{}", start);
+			if(index < 0)
+				break;
+			builder.append(format, start, index).append(args[arg++]);
+			start = index + 2;
+		}
+		return builder.append(format, start, format.length()).toString();
+	}
+
 	private static void print(int severity, String tag, String msg, Throwable tr) {
 		if(severity >= level) {
 			handler.println(severity, tag, msg, tr);
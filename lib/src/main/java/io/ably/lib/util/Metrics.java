@@ -0,0 +1,95 @@
+package io.ably.lib.util;
+
+/**
+ * An interface to be implemented by an application that wants to collect
+ * metrics from the library, set in ClientOptions.metrics.
+ *
+ * Each metric is identified by one of the names defined here, and a tag
+ * that distinguishes instances of it: a channel name, a host, a connection
+ * state or a protocol action, or null if the metric has no tag. Names and
+ * tags are passed as existing strings, so no objects are created for a
+ * metric. When no Metrics is set, nothing is recorded, and the library does
+ * no extra work.
+ *
+ * Methods are called on the library's own threads, including the thread
+ * processing the realtime connection; they must be threadsafe, and must
+ * not block.
+ */
+public interface Metrics {
+
+	/**
+	 * Add to a counter.
+	 * @param name
+	 * @param tag
+	 * @param delta
+	 */
+	public void count(String name, String tag, long delta);
+
+	/**
+	 * Set the current value of a gauge.
+	 * @param name
+	 * @param tag
+	 * @param value
+	 */
+	public void gauge(String name, String tag, long value);
+
+	/**
+	 * Record a sample in a histogram. Durations are in milliseconds.
+	 * @param name
+	 * @param tag
+	 * @param value
+	 */
+	public void record(String name, String tag, long value);
+
+	/* connection: counters, tagged with the protocol action */
+	public static final String CONNECTION_FRAMES_IN = "ably.connection.frames.in";
+	public static final String CONNECTION_FRAMES_OUT = "ably.connection.frames.out";
+
+	/* connection: counters of the size of encoded protocol messages,
+	 * excluding WebSocket framing and compression, with no tag */
+	public static final String CONNECTION_BYTES_IN = "ably.connection.bytes.in";
+	public static final String CONNECTION_BYTES_OUT = "ably.connection.bytes.out";
+
+	/* connection: counter of state transitions, tagged with the new state */
+	public static final String CONNECTION_STATE = "ably.connection.state";
+
+	/* connection: gauges of messages queued awaiting a connection, and
+	 * of messages sent awaiting acknowledgement, with no tag */
+	public static final String CONNECTION_QUEUED_MESSAGES = "ably.connection.queued.messages";
+	public static final String CONNECTION_QUEUED_BYTES = "ably.connection.queued.bytes";
+	public static final String CONNECTION_IN_FLIGHT_MESSAGES = "ably.connection.inflight.messages";
+	public static final String CONNECTION_IN_FLIGHT_BYTES = "ably.connection.inflight.bytes";
+
+	/* channel: counters of messages, tagged with the channel name */
+	public static final String CHANNEL_PUBLISHED = "ably.channel.published";
+	public static final String CHANNEL_DELIVERED = "ably.channel.delivered";
+
+	/* channel: histogram of the time from sending a message until its ACK,
+	 * tagged with the channel name */
+	public static final String CHANNEL_PUBLISH_LATENCY = "ably.channel.publish.latency";
+
+	/* channel: gauge of deliveries awaiting the application's listeners,
+	 * when delivery is dispatched to an executor, tagged with the channel name */
+	public static final String CHANNEL_DISPATCH_QUEUE = "ably.channel.dispatch.queue";
+
+	/* presence: gauge of members, and histogram of sync duration,
+	 * tagged with the channel name */
+	public static final String PRESENCE_MEMBERS = "ably.presence.members";
+	public static final String PRESENCE_SYNC_TIME = "ably.presence.sync.time";
+
+	/* http: histogram of request duration, and counters of responses
+	 * by status class and of requests failing without a response,
+	 * tagged with the host */
+	public static final String HTTP_REQUEST_TIME = "ably.http.request.time";
+	public static final String HTTP_RESPONSES_2XX = "ably.http.responses.2xx";
+	public static final String HTTP_RESPONSES_3XX = "ably.http.responses.3xx";
+	public static final String HTTP_RESPONSES_4XX = "ably.http.responses.4xx";
+	public static final String HTTP_RESPONSES_5XX = "ably.http.responses.5xx";
+	public static final String HTTP_FAILURES = "ably.http.failures";
+
+	/* http: counters of requests repeated to the same host after an
+	 * authentication challenge, and of requests made to a fallback
+	 * host, tagged with the host */
+	public static final String HTTP_RETRIES = "ably.http.retries";
+	public static final String HTTP_FALLBACKS = "ably.http.fallbacks";
+}
@@ -1,19 +1,31 @@
 package io.ably.lib.util;
 
-import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * A set of listeners to which a subclass broadcasts each call.
+ *
+ * The members are held in a copy-on-write list, so a broadcast iterates
+ * them with no lock; it is unaffected by members added or removed
+ * concurrently, and never waits for them.
+ */
 public abstract class Multicaster<T> {
 
-	protected final List<T> members = new ArrayList<T>();
+	protected final List<T> members = new CopyOnWriteArrayList<T>();
 
 	public Multicaster(T... members) { for(T m : members) this.members.add(m); }
-	
+
 	public void add(T member) { members.add(member); }
 	public void remove(T member) { members.remove(member); }
 	public void clear() { members.clear(); }
 	public boolean isEmpty() { return members.isEmpty(); }
 	public int size() { return members.size(); }
-	public Iterator<T>  iterator() { return members.iterator(); }
+
+	/**
+	 * Get an iterator over the members at the time of the call; it is
+	 * unaffected by later changes, and does not support removal.
+	 */
+	public Iterator<T> iterator() { return members.iterator(); }
 }
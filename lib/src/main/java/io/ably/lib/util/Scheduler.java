@@ -0,0 +1,117 @@
+package io.ably.lib.util;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A scheduler for the library's internal timers (attach and detach timeouts,
+ * channel reattach, transport activity checks, etc).
+ *
+ * All timers share a single executor instead of creating a java.util.Timer,
+ * and therefore a thread, for each timeout. Unless the client supplies its own
+ * executor in ClientOptions, a library-wide instance is used.
+ */
+public class Scheduler {
+
+	/**
+	 * A task that may be scheduled on a Scheduler. Once cancelled, a task will
+	 * not run, even if it has already been handed to the executor.
+	 */
+	public static abstract class Task implements Runnable {
+
+		/**
+		 * Cancel this task.
+		 * @return false if the task had already started running or completed
+		 */
+		public boolean cancel() {
+			ScheduledFuture<?> future;
+			synchronized(this) {
+				cancelled = true;
+				future = this.future;
+				this.future = null;
+			}
+			return future == null || future.cancel(false);
+		}
+
+		public synchronized boolean isCancelled() {
+			return cancelled;
+		}
+
+		private boolean cancelled;
+		private ScheduledFuture<?> future;
+	}
+
+	/**
+	 * Create a Scheduler that runs its tasks on the given executor.
+	 * The executor is owned by the caller, and is not shut down by the library.
+	 * @param executor
+	 */
+	public Scheduler(ScheduledExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Get the library-wide Scheduler, creating it if necessary.
+	 */
+	public static synchronized Scheduler getDefault() {
+		if(defaultScheduler == null) {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ably-scheduler");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			/* don't retain cancelled timeouts until they would have expired */
+			executor.setRemoveOnCancelPolicy(true);
+			defaultScheduler = new Scheduler(executor);
+		}
+		return defaultScheduler;
+	}
+
+	/**
+	 * Schedule a task to run once after the given delay.
+	 * @param scheduled the task
+	 * @param delay delay in milliseconds
+	 * @return the task
+	 */
+	public <T extends Task> T schedule(T scheduled, long delay) {
+		final Task task = scheduled;
+		synchronized(task) {
+			if(!task.cancelled)
+				task.future = executor.schedule(new Runnable() {
+					@Override
+					public void run() {
+						synchronized(task) {
+							if(task.cancelled)
+								return;
+							task.future = null;
+						}
+						try {
+							task.run();
+						} catch(Throwable t) {
+							Log.e(TAG, "Unexpected exception in scheduled task", t);
+						}
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+		}
+		return scheduled;
+	}
+
+	/**
+	 * Run a task as soon as possible on the scheduler thread.
+	 * @param task
+	 */
+	public <T extends Task> T execute(T task) {
+		return schedule(task, 0);
+	}
+
+	private final ScheduledExecutorService executor;
+	private static Scheduler defaultScheduler;
+
+	private static final String TAG = Scheduler.class.getName();
+}
@@ -0,0 +1,132 @@
+package io.ably.lib.util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An Executor that runs its tasks one at a time, in the order submitted,
+ * on an underlying Executor that may be shared by many SerialExecutors.
+ *
+ * The library uses one per channel to deliver messages to the application's
+ * listeners, so that each channel's messages arrive in order while different
+ * channels are delivered in parallel, and so that a slow listener does not
+ * stop the connection from reading.
+ */
+public class SerialExecutor implements Executor {
+
+	/**
+	 * Create a SerialExecutor running its tasks on the given executor.
+	 * @param executor
+	 */
+	public SerialExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Get the library-wide executor used for delivery when the client
+	 * does not supply its own, creating it if necessary; it has one
+	 * thread for each available processor.
+	 */
+	public static synchronized Executor getDefaultExecutor() {
+		if(defaultExecutor == null) {
+			final AtomicInteger threadCount = new AtomicInteger();
+			defaultExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ably-dispatch-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return defaultExecutor;
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		boolean start;
+		synchronized(queue) {
+			queue.add(task);
+			onDepthChanged(queue.size());
+			start = !running;
+			running = true;
+		}
+		if(start) {
+			try {
+				executor.execute(drain);
+			} catch(RejectedExecutionException e) {
+				/* rather than lose the tasks, run them here */
+				Log.e(TAG, "execute(): executor rejected task; running on calling thread", e);
+				drain.run();
+			}
+		}
+	}
+
+	/**
+	 * Get the number of tasks submitted and not yet completed.
+	 */
+	public int getDepth() {
+		synchronized(queue) {
+			return queue.size();
+		}
+	}
+
+	/**
+	 * Called when the number of tasks submitted and not yet completed
+	 * changes, in the order of the changes; the default does nothing.
+	 * @param depth
+	 */
+	protected void onDepthChanged(int depth) {}
+
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			for(int i = 0; i < MAX_TASKS_PER_RUN; i++) {
+				Runnable task;
+				synchronized(queue) {
+					task = queue.peek();
+					if(task == null) {
+						running = false;
+						return;
+					}
+				}
+				try {
+					task.run();
+				} catch(Throwable t) {
+					Log.e(TAG, "Unexpected exception running task", t);
+				}
+				synchronized(queue) {
+					queue.poll();
+					onDepthChanged(queue.size());
+				}
+			}
+			/* yield the thread to other SerialExecutors, and continue later */
+			synchronized(queue) {
+				if(queue.isEmpty()) {
+					running = false;
+					return;
+				}
+			}
+			try {
+				executor.execute(this);
+			} catch(RejectedExecutionException e) {
+				Log.e(TAG, "run(): executor rejected task; running on current thread", e);
+				run();
+			}
+		}
+	};
+
+	/* tasks submitted; the head is running, or about to */
+	private final ArrayDeque<Runnable> queue = new ArrayDeque<Runnable>();
+	private boolean running;
+	private final Executor executor;
+
+	private static final int MAX_TASKS_PER_RUN = 64;
+	private static ExecutorService defaultExecutor;
+	private static final String TAG = SerialExecutor.class.getName();
+}
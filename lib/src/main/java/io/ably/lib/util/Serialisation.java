@@ -1,12 +1,17 @@
 package io.ably.lib.util;
 
+import java.lang.reflect.Type;
+
 import org.msgpack.core.MessagePack;
 import org.msgpack.core.MessagePack.PackerConfig;
 import org.msgpack.core.MessagePack.UnpackerConfig;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import io.ably.lib.types.Message;
 import io.ably.lib.types.PresenceMessage;
@@ -23,8 +28,9 @@ public class Serialisation {
 	static {
 		gsonParser = new JsonParser();
 		gsonBuilder = new GsonBuilder();
-		gsonBuilder.registerTypeAdapter(Message.class, new Message.Serializer());
-		gsonBuilder.registerTypeAdapter(PresenceMessage.class, new PresenceMessage.Serializer());
+		gsonBuilder.registerTypeAdapter(Message.class, new Message.JsonAdapter());
+		gsonBuilder.registerTypeAdapter(PresenceMessage.class, new PresenceMessage.JsonAdapter());
+		gsonBuilder.registerTypeAdapter(ProtocolMessage.class, new ProtocolMessage.JsonAdapter());
 		gsonBuilder.registerTypeAdapter(PresenceMessage.Action.class, new PresenceMessage.ActionSerializer());
 		gsonBuilder.registerTypeAdapter(ProtocolMessage.Action.class, new ProtocolMessage.ActionSerializer());
 		gson = gsonBuilder.create();
@@ -35,4 +41,35 @@ public class Serialisation {
 
 		msgpackUnpackerConfig = MessagePack.DEFAULT_UNPACKER_CONFIG;
 	}
+
+	/**
+	 * Read a value from UTF-8 encoded JSON, without first decoding
+	 * the whole text to a String.
+	 * @throws JsonParseException
+	 */
+	public static <T> T fromJson(byte[] json, Type type) {
+		return gson.fromJson(new JsonReader(new Utf8Reader(json)), type);
+	}
+
+	/**
+	 * Write a value as UTF-8 encoded JSON, without first writing the
+	 * whole text to a String; the buffer is kept for reuse by the
+	 * calling thread.
+	 */
+	public static byte[] toJson(Object value, Type type) {
+		Utf8Writer out = threadWriters.get();
+		out.reset(MAX_RETAINED_BUFFER);
+		gson.toJson(value, type, new JsonWriter(out));
+		return out.toByteArray();
+	}
+
+	private static final ThreadLocal<Utf8Writer> threadWriters = new ThreadLocal<Utf8Writer>() {
+		@Override
+		protected Utf8Writer initialValue() {
+			return new Utf8Writer();
+		}
+	};
+
+	/* the largest buffer kept for reuse by each thread */
+	private static final int MAX_RETAINED_BUFFER = 64 * 1024;
 }
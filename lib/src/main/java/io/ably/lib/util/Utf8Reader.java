@@ -0,0 +1,101 @@
+package io.ably.lib.util;
+
+import java.io.Reader;
+
+/**
+ * A Reader decoding characters from UTF-8 encoded bytes directly into the
+ * reader's buffer. Unlike an InputStreamReader, it has no intermediate
+ * buffer and takes no lock on each read.
+ *
+ * A malformed sequence is read as U+FFFD.
+ */
+final class Utf8Reader extends Reader {
+
+	Utf8Reader(byte[] bytes) {
+		this.bytes = bytes;
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) {
+		if(len == 0)
+			return 0;
+		int i = off, limit = off + len;
+		if(pendingLow != 0) {
+			cbuf[i++] = pendingLow;
+			pendingLow = 0;
+		}
+		while(i < limit && position < bytes.length) {
+			int b = bytes[position];
+			if(b >= 0) {
+				cbuf[i++] = (char)b;
+				++position;
+				continue;
+			}
+			int codePoint = decode();
+			if(codePoint < 0x10000) {
+				cbuf[i++] = (char)codePoint;
+			} else {
+				cbuf[i++] = Character.highSurrogate(codePoint);
+				if(i < limit)
+					cbuf[i++] = Character.lowSurrogate(codePoint);
+				else
+					pendingLow = Character.lowSurrogate(codePoint);
+			}
+		}
+		return (i == off) ? -1 : i - off;
+	}
+
+	@Override
+	public int read() {
+		return (read(single, 0, 1) == -1) ? -1 : single[0];
+	}
+
+	@Override
+	public void close() {}
+
+	/* decode the multi-byte sequence at the current position, and pass it */
+	private int decode() {
+		int b = bytes[position];
+		int length, codePoint;
+		if((b & 0xe0) == 0xc0) {
+			length = 2;
+			codePoint = b & 0x1f;
+		} else if((b & 0xf0) == 0xe0) {
+			length = 3;
+			codePoint = b & 0x0f;
+		} else if((b & 0xf8) == 0xf0) {
+			length = 4;
+			codePoint = b & 0x07;
+		} else {
+			++position;
+			return REPLACEMENT;
+		}
+		int j = 1;
+		for(; j < length && position + j < bytes.length; j++) {
+			int next = bytes[position + j];
+			if((next & 0xc0) != 0x80)
+				break;
+			codePoint = (codePoint << 6) | (next & 0x3f);
+		}
+		if(j < length) {
+			/* a truncated sequence */
+			position += j;
+			return REPLACEMENT;
+		}
+		position += length;
+		if(codePoint < MIN_VALUE[length] || codePoint > Character.MAX_CODE_POINT
+				|| (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE))
+			return REPLACEMENT;
+		return codePoint;
+	}
+
+	private final byte[] bytes;
+	private int position;
+	/* the second char of a surrogate pair that did not fit the last read */
+	private char pendingLow;
+	private final char[] single = new char[1];
+
+	/* the smallest code point that each length may encode */
+	private static final int[] MIN_VALUE = { 0, 0, 0x80, 0x800, 0x10000 };
+	private static final char REPLACEMENT = '\uFFFD';
+}
@@ -0,0 +1,125 @@
+package io.ably.lib.util;
+
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * A Writer encoding its characters as UTF-8 into a byte array that grows as
+ * required and is kept for reuse. Unlike an OutputStreamWriter to a
+ * ByteArrayOutputStream, or a StringWriter, it has no intermediate buffer
+ * and takes no lock on each write.
+ *
+ * An unpaired surrogate is written as '?', as String.getBytes() does.
+ */
+final class Utf8Writer extends Writer {
+
+	/**
+	 * Discard the bytes written so far; the storage is kept unless
+	 * it has grown beyond the given size.
+	 */
+	void reset(int maxRetained) {
+		if(bytes.length > maxRetained)
+			bytes = new byte[INITIAL_SIZE];
+		count = 0;
+		highSurrogate = 0;
+	}
+
+	/**
+	 * Get a copy of the bytes written since the last reset.
+	 */
+	byte[] toByteArray() {
+		if(highSurrogate != 0) {
+			highSurrogate = 0;
+			putByte('?');
+		}
+		return Arrays.copyOf(bytes, count);
+	}
+
+	@Override
+	public void write(int c) {
+		put((char)c);
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) {
+		/* room for ASCII; other characters make their own room */
+		ensureCapacity(len);
+		for(int i = off; i < off + len; i++) {
+			char c = cbuf[i];
+			if(c < 0x80 && highSurrogate == 0 && count < bytes.length)
+				bytes[count++] = (byte)c;
+			else
+				put(c);
+		}
+	}
+
+	@Override
+	public void write(String str, int off, int len) {
+		/* room for ASCII; other characters make their own room */
+		ensureCapacity(len);
+		for(int i = off; i < off + len; i++) {
+			char c = str.charAt(i);
+			if(c < 0x80 && highSurrogate == 0 && count < bytes.length)
+				bytes[count++] = (byte)c;
+			else
+				put(c);
+		}
+	}
+
+	@Override
+	public void flush() {}
+
+	@Override
+	public void close() {}
+
+	private void put(char c) {
+		if(highSurrogate != 0) {
+			char high = highSurrogate;
+			highSurrogate = 0;
+			if(Character.isLowSurrogate(c)) {
+				int codePoint = Character.toCodePoint(high, c);
+				ensureCapacity(4);
+				bytes[count++] = (byte)(0xf0 | (codePoint >> 18));
+				bytes[count++] = (byte)(0x80 | ((codePoint >> 12) & 0x3f));
+				bytes[count++] = (byte)(0x80 | ((codePoint >> 6) & 0x3f));
+				bytes[count++] = (byte)(0x80 | (codePoint & 0x3f));
+				return;
+			}
+			putByte('?');
+		}
+		if(c < 0x80) {
+			putByte(c);
+		} else if(c < 0x800) {
+			ensureCapacity(2);
+			bytes[count++] = (byte)(0xc0 | (c >> 6));
+			bytes[count++] = (byte)(0x80 | (c & 0x3f));
+		} else if(Character.isHighSurrogate(c)) {
+			highSurrogate = c;
+		} else if(Character.isLowSurrogate(c)) {
+			putByte('?');
+		} else {
+			ensureCapacity(3);
+			bytes[count++] = (byte)(0xe0 | (c >> 12));
+			bytes[count++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+			bytes[count++] = (byte)(0x80 | (c & 0x3f));
+		}
+	}
+
+	private void putByte(int b) {
+		ensureCapacity(1);
+		bytes[count++] = (byte)b;
+	}
+
+	/* ensure there is room for at least the given number of bytes */
+	private void ensureCapacity(int required) {
+		if(count + required > bytes.length)
+			bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, count + required));
+	}
+
+	private byte[] bytes = new byte[INITIAL_SIZE];
+	private int count;
+	/* a high surrogate awaiting the low surrogate following it */
+	private char highSurrogate;
+
+	private static final int INITIAL_SIZE = 1024;
+}
@@ -0,0 +1,60 @@
+package io.ably.lib.test.benchmark;
+
+import java.nio.charset.Charset;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import io.ably.lib.test.benchmark.MsgpackCodecBenchmark.Op;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.PresenceMessage;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.ProtocolSerializer;
+
+/**
+ * Compares the time, and the memory allocated, to encode and decode JSON
+ * ProtocolMessages with ProtocolSerializer, against a baseline that uses
+ * reflective Gson with the JsonSerializers building a tree for each message,
+ * and converts the text to and from a String, as the library did before
+ * its streaming TypeAdapters.
+ *
+ * Run with:
+ *   java -cp <test classpath> io.ably.lib.test.benchmark.JsonCodecBenchmark [iterations]
+ */
+public class JsonCodecBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+		final ProtocolMessage msg = MsgpackCodecBenchmark.protocolMessage();
+		final byte[] json = ProtocolSerializer.writeJSON(msg);
+		final Gson baseline = new GsonBuilder()
+				.registerTypeAdapter(Message.class, new Message.Serializer())
+				.registerTypeAdapter(PresenceMessage.class, new PresenceMessage.Serializer())
+				.registerTypeAdapter(PresenceMessage.Action.class, new PresenceMessage.ActionSerializer())
+				.registerTypeAdapter(ProtocolMessage.Action.class, new ProtocolMessage.ActionSerializer())
+				.create();
+		final Charset utf8 = Charset.forName("UTF-8");
+
+		System.out.println(String.format("%-28s %12s %14s", "operation", "ns/op", "bytes alloc/op"));
+		for(int round = 0; round < 3; round++) {
+			/* the first round warms up */
+			boolean report = (round > 0);
+			MsgpackCodecBenchmark.run("encode (baseline)", iterations, report, new Op() {
+				@Override
+				public Object run() throws Exception { return baseline.toJson(msg).getBytes(utf8); }
+			});
+			MsgpackCodecBenchmark.run("encode", iterations, report, new Op() {
+				@Override
+				public Object run() throws Exception { return ProtocolSerializer.writeJSON(msg); }
+			});
+			MsgpackCodecBenchmark.run("decode (baseline)", iterations, report, new Op() {
+				@Override
+				public Object run() throws Exception { return baseline.fromJson(new String(json, utf8), ProtocolMessage.class); }
+			});
+			MsgpackCodecBenchmark.run("decode", iterations, report, new Op() {
+				@Override
+				public Object run() throws Exception { return ProtocolSerializer.readJSON(json); }
+			});
+		}
+	}
+}
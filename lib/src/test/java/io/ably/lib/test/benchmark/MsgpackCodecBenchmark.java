@@ -0,0 +1,208 @@
+package io.ably.lib.test.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.msgpack.core.MessageFormat;
+import org.msgpack.core.MessagePacker;
+import org.msgpack.core.MessageUnpacker;
+
+import io.ably.lib.types.Message;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.ProtocolSerializer;
+import io.ably.lib.util.Serialisation;
+
+/**
+ * Compares the time, and the memory allocated, to encode and decode msgpack
+ * ProtocolMessages with ProtocolSerializer, against a baseline codec that
+ * reads each field name as an interned String and compares it, and writes
+ * each with packString() to a new ByteArrayOutputStream, as the library
+ * did before field names were pre-encoded.
+ *
+ * Run with:
+ *   java -cp <test classpath> io.ably.lib.test.benchmark.MsgpackCodecBenchmark [iterations]
+ *
+ * Allocation is measured only on JVMs whose ThreadMXBean reports it.
+ */
+public class MsgpackCodecBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+		ProtocolMessage message = protocolMessage();
+		final byte[] packed = ProtocolSerializer.writeMsgpack(message);
+
+		System.out.println(String.format("%-28s %12s %14s", "operation", "ns/op", "bytes alloc/op"));
+		for(int round = 0; round < 3; round++) {
+			final ProtocolMessage msg = message;
+			/* the first round warms up */
+			boolean report = (round > 0);
+			run("encode (baseline)", iterations, report, new Op() {
+				@Override
+				public Object run() throws Exception { return Baseline.write(msg); }
+			});
+			run("encode", iterations, report, new Op() {
+				@Override
+				public Object run() throws Exception { return ProtocolSerializer.writeMsgpack(msg); }
+			});
+			run("decode (baseline)", iterations, report, new Op() {
+				@Override
+				public Object run() throws Exception { return Baseline.read(packed); }
+			});
+			run("decode", iterations, report, new Op() {
+				@Override
+				public Object run() throws Exception { return ProtocolSerializer.readMsgpack(packed); }
+			});
+		}
+	}
+
+	interface Op {
+		Object run() throws Exception;
+	}
+
+	static void run(String name, int iterations, boolean report, Op op) throws Exception {
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		int sink = 0;
+		for(int i = 0; i < iterations; i++)
+			sink += (op.run() != null) ? 1 : 0;
+		long elapsed = System.nanoTime() - start;
+		allocated = allocatedBytes() - allocated;
+		if(sink != iterations)
+			throw new RuntimeException(name + " failed");
+		if(report)
+			System.out.println(String.format("%-28s %12.1f %14s", name,
+					(double)elapsed / iterations,
+					(allocated < 0) ? "n/a" : String.format("%.1f", (double)allocated / iterations)));
+	}
+
+	/* the bytes allocated by this thread, or -1 if not supported */
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+
+	/**
+	 * A message typical of those received on a busy channel
+	 */
+	static ProtocolMessage protocolMessage() {
+		ProtocolMessage msg = new ProtocolMessage(ProtocolMessage.Action.message, "orders:eu-west-1");
+		msg.id = "hUy3SWjSuh:0";
+		msg.connectionId = "hUy3SWjSuh";
+		msg.timestamp = 1500000000000L;
+		msg.msgSerial = 1234L;
+		msg.messages = new Message[5];
+		for(int i = 0; i < msg.messages.length; i++) {
+			Message message = new Message("order", "{\"orderId\":\"ord-" + (100000 + i) + "\",\"status\":\"paid\",\"currency\":\"EUR\"}");
+			message.clientId = "client-" + i;
+			message.connectionId = msg.connectionId;
+			message.encoding = "json";
+			message.timestamp = msg.timestamp + i;
+			msg.messages[i] = message;
+		}
+		return msg;
+	}
+
+	/**
+	 * The codec before field names were pre-encoded, for the fields
+	 * of the benchmark message
+	 */
+	private static class Baseline {
+
+		static byte[] write(ProtocolMessage message) throws IOException {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			MessagePacker packer = Serialisation.msgpackPackerConfig.newPacker(out);
+			packer.packMapHeader(5);
+			packer.packString("action");
+			packer.packInt(message.action.getValue());
+			packer.packString("id");
+			packer.packString(message.id);
+			packer.packString("channel");
+			packer.packString(message.channel);
+			packer.packString("msgSerial");
+			packer.packLong(message.msgSerial.longValue());
+			packer.packString("messages");
+			packer.packArrayHeader(message.messages.length);
+			for(Message msg : message.messages) {
+				packer.packMapHeader(6);
+				packer.packString("timestamp");
+				packer.packLong(msg.timestamp);
+				packer.packString("clientId");
+				packer.packString(msg.clientId);
+				packer.packString("connectionId");
+				packer.packString(msg.connectionId);
+				packer.packString("encoding");
+				packer.packString(msg.encoding);
+				packer.packString("data");
+				packer.packString(msg.data.toString());
+				packer.packString("name");
+				packer.packString(msg.name);
+			}
+			packer.flush();
+			return out.toByteArray();
+		}
+
+		static ProtocolMessage read(byte[] packed) throws IOException {
+			MessageUnpacker unpacker = Serialisation.msgpackUnpackerConfig.newUnpacker(packed);
+			ProtocolMessage message = new ProtocolMessage();
+			int fieldCount = unpacker.unpackMapHeader();
+			for(int i = 0; i < fieldCount; i++) {
+				String fieldName = unpacker.unpackString().intern();
+				if(unpacker.getNextFormat().equals(MessageFormat.NIL)) { unpacker.unpackNil(); continue; }
+
+				if(fieldName == "action") {
+					message.action = ProtocolMessage.Action.findByValue(unpacker.unpackInt());
+				} else if(fieldName == "id") {
+					message.id = unpacker.unpackString();
+				} else if(fieldName == "channel") {
+					message.channel = unpacker.unpackString();
+				} else if(fieldName == "connectionId") {
+					message.connectionId = unpacker.unpackString();
+				} else if(fieldName == "msgSerial") {
+					message.msgSerial = Long.valueOf(unpacker.unpackLong());
+				} else if(fieldName == "timestamp") {
+					message.timestamp = unpacker.unpackLong();
+				} else if(fieldName == "messages") {
+					message.messages = new Message[unpacker.unpackArrayHeader()];
+					for(int j = 0; j < message.messages.length; j++)
+						message.messages[j] = readMessage(unpacker);
+				} else {
+					unpacker.skipValue();
+				}
+			}
+			return message;
+		}
+
+		private static Message readMessage(MessageUnpacker unpacker) throws IOException {
+			Message message = new Message();
+			int fieldCount = unpacker.unpackMapHeader();
+			for(int i = 0; i < fieldCount; i++) {
+				String fieldName = unpacker.unpackString().intern();
+				if(unpacker.getNextFormat().equals(MessageFormat.NIL)) { unpacker.unpackNil(); continue; }
+
+				switch(fieldName) {
+					case "timestamp":
+						message.timestamp = unpacker.unpackLong(); break;
+					case "id":
+						message.id = unpacker.unpackString(); break;
+					case "clientId":
+						message.clientId = unpacker.unpackString(); break;
+					case "connectionId":
+						message.connectionId = unpacker.unpackString(); break;
+					case "encoding":
+						message.encoding = unpacker.unpackString(); break;
+					case "data":
+						message.data = unpacker.unpackString(); break;
+					case "name":
+						message.name = unpacker.unpackString(); break;
+					default:
+						unpacker.skipValue(); break;
+				}
+			}
+			return message;
+		}
+	}
+}
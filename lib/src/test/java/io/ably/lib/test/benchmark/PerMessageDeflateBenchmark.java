@@ -0,0 +1,124 @@
+package io.ably.lib.test.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.CompletionListener;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.util.DeflateWebSocketServer;
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+
+/**
+ * Measures the effect of permessage-deflate on the bytes sent, and on the
+ * client CPU time, per published message, against a DeflateWebSocketServer
+ * standing in for the realtime service.
+ *
+ * Run with:
+ *   java -cp <test classpath> io.ably.lib.test.benchmark.PerMessageDeflateBenchmark [messages]
+ *
+ * The CPU time is that of all threads other than the server's, so it
+ * includes encoding and sending each message as well as compressing it.
+ */
+public class PerMessageDeflateBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int count = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+		Defaults.TRANSPORT = "io.ably.lib.transport.NioWebSocketTransport$Factory";
+
+		System.out.println(String.format("%-38s %14s %14s %8s %18s", "configuration", "payload B/msg", "wire B/msg", "ratio", "client CPU us/msg"));
+		for(boolean binary : new boolean[] { false, true }) {
+			run("uncompressed", binary, false, false, count);
+			run("deflate", binary, true, false, count);
+			run("deflate, no context takeover", binary, true, true, count);
+		}
+		System.exit(0);
+	}
+
+	private static void run(String name, boolean binary, boolean deflate, boolean noContextTakeover, int count) throws Exception {
+		DeflateWebSocketServer server = new DeflateWebSocketServer();
+		ClientOptions opts = new ClientOptions("appId.keyId:keySecret");
+		opts.autoConnect = false;
+		opts.tls = false;
+		opts.realtimeHost = opts.restHost = "localhost";
+		opts.port = server.getPort();
+		opts.useBinaryProtocol = binary;
+		opts.perMessageDeflate = deflate;
+		opts.deflateClientNoContextTakeover = noContextTakeover;
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			ably.connection.connect();
+			new ConnectionWaiter(ably.connection).waitFor(ConnectionState.connected);
+			Channel channel = ably.channels.get("benchmark");
+
+			/* warm up */
+			publish(channel, count / 10);
+			long wireBytes = server.wireBytesReceived.get(), payloadBytes = server.payloadBytesReceived.get();
+			long cpuTime = clientCpuTime();
+
+			publish(channel, count);
+			wireBytes = server.wireBytesReceived.get() - wireBytes;
+			payloadBytes = server.payloadBytesReceived.get() - payloadBytes;
+			cpuTime = clientCpuTime() - cpuTime;
+
+			System.out.println(String.format("%-38s %14.1f %14.1f %8.2f %18.2f",
+					name + (binary ? " (msgpack)" : " (json)"),
+					(double)payloadBytes / count,
+					(double)wireBytes / count,
+					(double)payloadBytes / wireBytes,
+					cpuTime / 1000.0 / count));
+		} finally {
+			ably.close();
+			server.stop();
+		}
+	}
+
+	/**
+	 * Publish messages typical of a JSON-heavy application, waiting for them to be acked.
+	 */
+	private static void publish(Channel channel, int count) throws Exception {
+		final CountDownLatch latch = new CountDownLatch(count);
+		CompletionListener listener = new CompletionListener() {
+			@Override
+			public void onSuccess() { latch.countDown(); }
+			@Override
+			public void onError(ErrorInfo reason) { latch.countDown(); }
+		};
+		Random random = new Random(0);
+		for(int i = 0; i < count; i++) {
+			String data = "{\"orderId\":\"ord-" + (100000 + random.nextInt(900000)) + "\","
+					+ "\"customer\":{\"id\":" + random.nextInt(10000) + ",\"tier\":\"" + TIERS[random.nextInt(TIERS.length)] + "\",\"region\":\"eu-west-1\"},"
+					+ "\"items\":[{\"sku\":\"SKU-" + random.nextInt(500) + "\",\"quantity\":" + (1 + random.nextInt(5)) + ",\"price\":" + random.nextInt(10000) / 100.0 + "},"
+					+ "{\"sku\":\"SKU-" + random.nextInt(500) + "\",\"quantity\":" + (1 + random.nextInt(5)) + ",\"price\":" + random.nextInt(10000) / 100.0 + "}],"
+					+ "\"status\":\"" + STATUSES[random.nextInt(STATUSES.length)] + "\",\"currency\":\"EUR\",\"timestamp\":" + (1500000000000L + i) + "}";
+			channel.publish("order", data, listener);
+		}
+		if(!latch.await(60, TimeUnit.SECONDS))
+			throw new RuntimeException("Timed out waiting for acks");
+	}
+
+	private static long clientCpuTime() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long total = 0;
+		for(long id : threads.getAllThreadIds()) {
+			ThreadInfo info = threads.getThreadInfo(id);
+			if(info == null || info.getThreadName().startsWith("local-ws-server"))
+				continue;
+			long time = threads.getThreadCpuTime(id);
+			if(time > 0)
+				total += time;
+		}
+		return total;
+	}
+
+	private static final String[] TIERS = { "bronze", "silver", "gold", "platinum" };
+	private static final String[] STATUSES = { "created", "paid", "packed", "shipped", "delivered" };
+}
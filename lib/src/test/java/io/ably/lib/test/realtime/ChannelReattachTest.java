@@ -0,0 +1,194 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.ChannelState;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.realtime.ReattachProgress;
+import io.ably.lib.test.common.Helpers.ChannelWaiter;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.util.LocalServerTransport;
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.ProtocolMessage.Action;
+import io.ably.lib.types.ProtocolSerializer;
+
+/**
+ * Tests for the rate-limited resumption of channels
+ * after the connection becomes connected
+ */
+public class ChannelReattachTest {
+
+	private String oldTransport;
+	private long oldRequestTimeout;
+
+	@Before
+	public void setUp() {
+		oldTransport = Defaults.TRANSPORT;
+		oldRequestTimeout = Defaults.realtimeRequestTimeout;
+		Defaults.TRANSPORT = LocalServerTransport.Factory.class.getName();
+	}
+
+	@After
+	public void tearDown() {
+		Defaults.TRANSPORT = oldTransport;
+		Defaults.realtimeRequestTimeout = oldRequestTimeout;
+		LocalServerTransport.autoAttach = true;
+	}
+
+	private static List<Channel> attachChannels(AblyRealtime ably, String prefix, int count) throws Exception {
+		ably.connection.connect();
+		new ConnectionWaiter(ably.connection).waitFor(ConnectionState.connected);
+		List<Channel> channels = new ArrayList<Channel>();
+		for(int i = 0; i < count; i++) {
+			Channel channel = ably.channels.get(prefix + i);
+			channel.attach();
+			new ChannelWaiter(channel).waitFor(ChannelState.attached);
+			channels.add(channel);
+		}
+		return channels;
+	}
+
+	private static List<String> sent(Action action, int from) {
+		List<String> names = new ArrayList<String>();
+		List<ProtocolMessage> messages = LocalServerTransport.lastCreatedTransport.getSentMessages();
+		for(ProtocolMessage message : messages.subList(from, messages.size()))
+			if(message.action == action)
+				names.add(message.channel);
+		return names;
+	}
+
+	/* messages are sent on the ConnectionManager thread */
+	private static List<String> awaitSent(Action action, int from, int count) throws Exception {
+		long deadline = System.currentTimeMillis() + 5000;
+		while(sent(action, from).size() < count && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		Thread.sleep(50);
+		return sent(action, from);
+	}
+
+	private static void deliverAttached(String channelName) throws Exception {
+		LocalServerTransport.lastCreatedTransport.deliver(ProtocolSerializer.fromJSON("{\"action\":11,\"channel\":\"" + channelName + "\"}"));
+	}
+
+	/**
+	 * Verify that suspended channels are reattached with no more than
+	 * channelReattachMaxInFlight attaches in flight, subscribed
+	 * channels first, and that progress is reported
+	 */
+	@Test
+	public void reattach_limits_in_flight() throws Exception {
+		ClientOptions opts = ConnectionManagerLoopTest.localOptions();
+		opts.channelReattachMaxInFlight = 2;
+		opts.channelReattachRate = 0;
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			List<Channel> channels = attachChannels(ably, "reattach_in_flight_", 5);
+			channels.get(4).subscribe(new Channel.MessageListener() {
+				@Override
+				public void onMessage(Message message) {}
+			});
+
+			LocalServerTransport.autoAttach = false;
+			ably.channels.suspendAll(new ErrorInfo("Connection suspended", 80002));
+			int from = LocalServerTransport.lastCreatedTransport.getSentMessages().size();
+			ably.channels.reattachAll();
+
+			List<String> attaches = awaitSent(Action.attach, from, 2);
+			assertEquals("Verify attaches limited to max in flight", 2, attaches.size());
+			assertEquals("Verify subscribed channel reattached first", "reattach_in_flight_4", attaches.get(0));
+			ReattachProgress progress = ably.connection.getReattachProgress();
+			assertEquals("Verify total", 5, progress.total);
+			assertEquals("Verify in flight", 2, progress.inFlight);
+			assertEquals("Verify pending", 3, progress.pending);
+
+			/* each completed attach releases one more */
+			deliverAttached(attaches.get(0));
+			assertEquals("Verify next attach sent", 3, awaitSent(Action.attach, from, 3).size());
+			for(int i = 3; i <= 5; i++)
+				for(String name : awaitSent(Action.attach, from, i))
+					if(ably.channels.get(name).state == ChannelState.attaching)
+						deliverAttached(name);
+			for(Channel channel : channels)
+				new ChannelWaiter(channel).waitFor(ChannelState.attached);
+			progress = ably.connection.getReattachProgress();
+			assertEquals("Verify all attaches sent once", 5, sent(Action.attach, from).size());
+			assertEquals("Verify all completed", 5, progress.completed);
+			assertTrue("Verify complete", progress.isComplete());
+			for(Channel channel : channels)
+				assertEquals("Verify channel attached", ChannelState.attached, channel.state);
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that attached channels are synced no faster than channelReattachRate
+	 */
+	@Test
+	public void reattach_rate_limited() throws Exception {
+		ClientOptions opts = ConnectionManagerLoopTest.localOptions();
+		opts.channelReattachMaxInFlight = 1;
+		opts.channelReattachRate = 5;
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			attachChannels(ably, "reattach_rate_", 5);
+			Thread.sleep(100);
+			int from = LocalServerTransport.lastCreatedTransport.getSentMessages().size();
+			long start = System.currentTimeMillis();
+			ably.channels.reattachAll();
+			assertEquals("Verify burst limited", 1, awaitSent(Action.sync, from, 1).size());
+
+			long deadline = start + 5000;
+			while(!ably.connection.getReattachProgress().isComplete() && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			long elapsed = System.currentTimeMillis() - start;
+			assertEquals("Verify all channels synced", 5, awaitSent(Action.sync, from, 5).size());
+			assertTrue("Verify syncs spread at the rate: " + elapsed + "ms", elapsed >= 720);
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that attaches in flight are timed out together, and the
+	 * channels suspended to be retried later
+	 */
+	@Test
+	public void reattach_timeout() throws Exception {
+		Defaults.realtimeRequestTimeout = 200;
+		ClientOptions opts = ConnectionManagerLoopTest.localOptions();
+		opts.channelReattachRate = 0;
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			List<Channel> channels = attachChannels(ably, "reattach_timeout_", 3);
+			LocalServerTransport.autoAttach = false;
+			ably.channels.suspendAll(new ErrorInfo("Connection suspended", 80002));
+			ably.channels.reattachAll();
+			for(Channel channel : channels)
+				assertEquals("Verify channel attaching", ChannelState.attaching, channel.state);
+
+			for(Channel channel : channels)
+				new ChannelWaiter(channel).waitFor(ChannelState.suspended);
+			ReattachProgress progress = ably.connection.getReattachProgress();
+			assertEquals("Verify all failed", 3, progress.failed);
+			assertEquals("Verify none in flight", 0, progress.inFlight);
+			assertTrue("Verify complete", progress.isComplete());
+		} finally {
+			ably.close();
+		}
+	}
+}
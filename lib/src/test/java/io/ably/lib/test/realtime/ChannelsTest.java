@@ -0,0 +1,146 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.util.LocalServerTransport;
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.ProtocolSerializer;
+
+/**
+ * Tests for the channel registry when used from many threads
+ */
+public class ChannelsTest {
+
+	private String oldTransport;
+
+	@Before
+	public void setUp() {
+		oldTransport = Defaults.TRANSPORT;
+		Defaults.TRANSPORT = LocalServerTransport.Factory.class.getName();
+	}
+
+	@After
+	public void tearDown() {
+		Defaults.TRANSPORT = oldTransport;
+	}
+
+	/**
+	 * Verify that threads getting the same channel concurrently
+	 * all get the same instance
+	 */
+	@Test
+	public void channels_get_concurrent() throws Exception {
+		final AblyRealtime ably = new AblyRealtime(ConnectionManagerLoopTest.localOptions());
+		try {
+			final int threadCount = 8;
+			final CountDownLatch start = new CountDownLatch(1);
+			final List<Channel> results = new ArrayList<Channel>();
+			List<Thread> threads = new ArrayList<Thread>();
+			for(int i = 0; i < threadCount; i++) {
+				Thread thread = new Thread() {
+					@Override
+					public void run() {
+						try {
+							start.await();
+						} catch(InterruptedException e) {
+							return;
+						}
+						Channel channel = ably.channels.get("channels_get_concurrent");
+						synchronized(results) { results.add(channel); }
+					}
+				};
+				thread.start();
+				threads.add(thread);
+			}
+			start.countDown();
+			for(Thread thread : threads)
+				thread.join(5000);
+			assertEquals("Verify all threads completed", threadCount, results.size());
+			for(Channel channel : results)
+				assertSame("Verify same channel instance", results.get(0), channel);
+			assertEquals("Verify one channel registered", 1, ably.channels.size());
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that channels can be created and released from many threads
+	 * while messages are dispatched and all channels are iterated
+	 */
+	@Test
+	public void channels_create_release_while_iterating() throws Exception {
+		final AblyRealtime ably = new AblyRealtime(ConnectionManagerLoopTest.localOptions());
+		try {
+			ably.connection.connect();
+			new ConnectionWaiter(ably.connection).waitFor(ConnectionState.connected);
+			final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+			final long end = System.currentTimeMillis() + 500;
+			List<Thread> threads = new ArrayList<Thread>();
+			for(int i = 0; i < 4; i++) {
+				final int id = i;
+				threads.add(new Thread() {
+					@Override
+					public void run() {
+						try {
+							for(int n = 0; System.currentTimeMillis() < end; n++) {
+								String name = "channels_churn_" + id + "_" + (n % 20);
+								ably.channels.get(name);
+								if(n % 3 == 0)
+									ably.channels.release(name);
+							}
+						} catch(Throwable t) {
+							error.compareAndSet(null, t);
+						}
+					}
+				});
+			}
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						while(System.currentTimeMillis() < end) {
+							ably.channels.suspendAll(new ErrorInfo("Connection suspended", 80002));
+							for(Channel channel : ably.channels.values())
+								channel.name.length();
+							/* a message for a channel that may or may not exist */
+							LocalServerTransport.lastCreatedTransport.deliver(ProtocolSerializer.fromJSON("{\"action\":13,\"channel\":\"channels_churn_0_1\"}"));
+						}
+					} catch(Throwable t) {
+						error.compareAndSet(null, t);
+					}
+				}
+			});
+			for(Thread thread : threads)
+				thread.start();
+			for(Thread thread : threads)
+				thread.join(5000);
+			if(error.get() != null)
+				throw new AssertionError("Unexpected exception", error.get());
+			for(Thread thread : threads)
+				assertFalse("Verify thread completed", thread.isAlive());
+
+			/* a message for a channel that does not exist does not create it */
+			LocalServerTransport.lastCreatedTransport.deliver(ProtocolSerializer.fromJSON("{\"action\":13,\"channel\":\"channels_nonexistent\"}"));
+			assertFalse("Verify channel not created", ably.channels.containsKey("channels_nonexistent"));
+		} finally {
+			ably.close();
+		}
+	}
+}
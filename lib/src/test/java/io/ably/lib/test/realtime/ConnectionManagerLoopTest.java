@@ -0,0 +1,196 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.CompletionListener;
+import io.ably.lib.realtime.ConnectionEvent;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.realtime.ConnectionStateListener;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.util.LocalServerTransport;
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.ProtocolSerializer;
+
+/**
+ * Tests for the ConnectionManager event loop, using an in-process transport
+ */
+public class ConnectionManagerLoopTest {
+
+	private String oldTransport;
+
+	@Before
+	public void setUp() {
+		oldTransport = Defaults.TRANSPORT;
+		Defaults.TRANSPORT = LocalServerTransport.Factory.class.getName();
+		LocalServerTransport.autoAck = true;
+	}
+
+	@After
+	public void tearDown() {
+		Defaults.TRANSPORT = oldTransport;
+		LocalServerTransport.autoAck = true;
+	}
+
+	static ClientOptions localOptions() throws AblyException {
+		ClientOptions opts = new ClientOptions("appId.keyId:keySecret");
+		opts.autoConnect = false;
+		return opts;
+	}
+
+	static class CountingCompletionListener implements CompletionListener {
+		CountingCompletionListener(int expected) { latch = new CountDownLatch(expected); }
+		@Override
+		public void onSuccess() { successes.incrementAndGet(); latch.countDown(); }
+		@Override
+		public void onError(ErrorInfo reason) { errors.incrementAndGet(); latch.countDown(); }
+		final AtomicInteger successes = new AtomicInteger();
+		final AtomicInteger errors = new AtomicInteger();
+		final CountDownLatch latch;
+	}
+
+	/**
+	 * Publish before the connection is established, and verify that
+	 * the messages are queued and then sent in order once connected
+	 */
+	@Test
+	public void loop_queued_then_sent_in_order() throws Exception {
+		AblyRealtime ably = new AblyRealtime(localOptions());
+		try {
+			Channel channel = ably.channels.get("loop_queued");
+			CountingCompletionListener listener = new CountingCompletionListener(3);
+			ably.connection.connect();
+			new ConnectionWaiter(ably.connection).waitFor(ConnectionState.connected);
+			channel.attach();
+			for(int i = 0; i < 3; i++)
+				channel.publish("event", "data" + i, listener);
+
+			assertTrue("Publishes not completed", listener.latch.await(5, TimeUnit.SECONDS));
+			assertEquals(3, listener.successes.get());
+
+			long expectedSerial = 0;
+			for(ProtocolMessage msg : LocalServerTransport.lastCreatedTransport.getSentMessages()) {
+				if(msg.action == ProtocolMessage.Action.message)
+					assertEquals("Unexpected msgSerial", Long.valueOf(expectedSerial++), msg.msgSerial);
+			}
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Publish concurrently from several threads, and verify that every
+	 * message is sent exactly once with contiguous msgSerials
+	 */
+	@Test
+	public void loop_concurrent_send() throws Exception {
+		AblyRealtime ably = new AblyRealtime(localOptions());
+		try {
+			ably.connection.connect();
+			new ConnectionWaiter(ably.connection).waitFor(ConnectionState.connected);
+			final int threads = 8, perThread = 250;
+			final CountingCompletionListener listener = new CountingCompletionListener(threads * perThread);
+			final Channel[] channels = new Channel[threads];
+			for(int i = 0; i < threads; i++) {
+				channels[i] = ably.channels.get("loop_concurrent_" + i);
+				channels[i].attach();
+			}
+			Thread[] publishers = new Thread[threads];
+			for(int i = 0; i < threads; i++) {
+				final Channel channel = channels[i];
+				publishers[i] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							for(int j = 0; j < perThread; j++)
+								channel.publish("event", "data", listener);
+						} catch(AblyException e) {}
+					}
+				};
+				publishers[i].start();
+			}
+			for(Thread t : publishers)
+				t.join();
+
+			assertTrue("Publishes not completed", listener.latch.await(10, TimeUnit.SECONDS));
+			assertEquals(threads * perThread, listener.successes.get());
+
+			List<ProtocolMessage> sent = LocalServerTransport.lastCreatedTransport.getSentMessages();
+			long expectedSerial = 0;
+			for(ProtocolMessage msg : sent) {
+				if(msg.action == ProtocolMessage.Action.message)
+					assertEquals("Unexpected msgSerial", Long.valueOf(expectedSerial++), msg.msgSerial);
+			}
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that messages queued while connecting are failed, exactly once,
+	 * when the connection becomes suspended
+	 */
+	@Test
+	public void loop_queued_failed_on_suspend() throws Exception {
+		AblyRealtime ably = new AblyRealtime(localOptions());
+		try {
+			CountingCompletionListener listener = new CountingCompletionListener(1);
+			ably.connection.connectionManager.send(new ProtocolMessage(ProtocolMessage.Action.message, "loop_failed"), true, listener);
+			ably.connection.connectionManager.requestState(ConnectionState.suspended);
+			ably.connection.connect();
+			assertTrue("Queued message not failed", listener.latch.await(5, TimeUnit.SECONDS));
+			Thread.sleep(100);
+			assertEquals(1, listener.errors.get());
+			assertEquals(0, listener.successes.get());
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that a CONNECTED message received while connected, as on
+	 * reauth, does not record a connect latency for the host
+	 */
+	@Test
+	public void loop_reauth_latency_unchanged() throws Exception {
+		AblyRealtime ably = new AblyRealtime(localOptions());
+		try {
+			ably.connection.connect();
+			new ConnectionWaiter(ably.connection).waitFor(ConnectionState.connected);
+			String host = LocalServerTransport.lastCreatedTransport.getHost();
+			double latency = ably.http.getHostHealth().getLatency(host);
+			assertTrue("Verify connect latency recorded", latency >= 0);
+
+			final CountDownLatch updated = new CountDownLatch(1);
+			ably.connection.on(ConnectionEvent.update, new ConnectionStateListener() {
+				@Override
+				public void onConnectionStateChanged(ConnectionStateChange state) {
+					updated.countDown();
+				}
+			});
+			Thread.sleep(200);
+			LocalServerTransport.lastCreatedTransport.deliver(ProtocolSerializer.fromJSON(
+					"{\"action\":4,\"connectionId\":\"" + ably.connection.id + "\",\"connectionSerial\":-1,"
+					+ "\"connectionDetails\":{\"clientId\":\"*\",\"connectionKey\":\"local-key\",\"maxIdleInterval\":0}}"));
+			assertTrue("Verify reauth processed", updated.await(5, TimeUnit.SECONDS));
+			assertEquals("Verify latency unchanged", latency, ably.http.getHostHealth().getLatency(host), 0);
+		} finally {
+			ably.close();
+		}
+	}
+}
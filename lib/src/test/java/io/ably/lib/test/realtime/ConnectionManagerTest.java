@@ -24,6 +24,7 @@ import io.ably.lib.test.common.Helpers;
 import io.ably.lib.test.common.ParameterizedTest;
 import io.ably.lib.test.common.Helpers.ConnectionWaiter;
 import io.ably.lib.transport.ConnectionManager;
+import io.ably.lib.transport.ConnectivityProbe;
 import io.ably.lib.transport.Defaults;
 import io.ably.lib.types.AblyException;
 import io.ably.lib.types.ClientOptions;
@@ -112,8 +113,8 @@ public class ConnectionManagerTest extends ParameterizedTest {
 
 		ConnectionManager connectionManager = new ConnectionManager(ably, connection) {
 			@Override
-			protected boolean checkConnectivity() {
-				return false;
+			protected void checkConnectivity(ConnectivityProbe.Listener listener) {
+				listener.onResult(false);
 			}
 		};
 
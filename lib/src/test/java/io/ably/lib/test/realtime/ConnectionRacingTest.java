@@ -0,0 +1,150 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.realtime.ConnectionStateListener;
+import io.ably.lib.test.util.LocalServerTransport;
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.types.ClientOptions;
+
+/**
+ * Tests for racing connection attempts to fallback hosts,
+ * using an in-process transport
+ */
+public class ConnectionRacingTest {
+
+	private String oldTransport;
+
+	@Before
+	public void setUp() {
+		oldTransport = Defaults.TRANSPORT;
+		Defaults.TRANSPORT = LocalServerTransport.Factory.class.getName();
+		LocalServerTransport.createdTransports.clear();
+	}
+
+	@After
+	public void tearDown() {
+		Defaults.TRANSPORT = oldTransport;
+		LocalServerTransport.unresponsiveHosts.clear();
+		LocalServerTransport.createdTransports.clear();
+	}
+
+	private static CountDownLatch connectedLatch(AblyRealtime ably) {
+		final CountDownLatch latch = new CountDownLatch(1);
+		ably.connection.on(ConnectionState.connected, new ConnectionStateListener() {
+			@Override
+			public void onConnectionStateChanged(ConnectionStateChange state) {
+				latch.countDown();
+			}
+		});
+		return latch;
+	}
+
+	private static List<String> createdHosts() {
+		List<String> hosts = new ArrayList<String>();
+		synchronized(LocalServerTransport.createdTransports) {
+			for(LocalServerTransport transport : LocalServerTransport.createdTransports)
+				hosts.add(transport.getHost());
+		}
+		return hosts;
+	}
+
+	/**
+	 * Verify that, with connectionRacing, when the primary host does not
+	 * respond, a connection is made to a fallback host after the racing
+	 * delay, and the attempt to the primary host is abandoned
+	 */
+	@Test
+	public void racing_connects_to_fallback() throws Exception {
+		LocalServerTransport.unresponsiveHosts.add(Defaults.HOST_REALTIME);
+		ClientOptions opts = ConnectionManagerLoopTest.localOptions();
+		opts.connectionRacing = true;
+		opts.connectionRacingDelay = 100;
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			CountDownLatch connected = connectedLatch(ably);
+			long start = System.currentTimeMillis();
+			ably.connection.connect();
+			assertTrue("Verify connected", connected.await(5, TimeUnit.SECONDS));
+			long elapsed = System.currentTimeMillis() - start;
+			assertTrue("Verify connected without waiting for the connect timeout", elapsed < Defaults.TIMEOUT_CONNECT / 2);
+
+			List<String> hosts = createdHosts();
+			assertEquals("Verify one racing attempt", 2, hosts.size());
+			assertEquals("Verify first attempt to primary host", Defaults.HOST_REALTIME, hosts.get(0));
+			assertTrue("Verify racing attempt to fallback host", Arrays.asList(Defaults.HOST_FALLBACKS).contains(hosts.get(1)));
+			assertEquals("Verify connected to fallback host", hosts.get(1), ably.connection.connectionManager.getHost());
+			assertTrue("Verify attempt to primary host abandoned", LocalServerTransport.createdTransports.get(0).isAborted());
+			assertFalse("Verify connected transport not aborted", LocalServerTransport.createdTransports.get(1).isAborted());
+
+			/* no further attempts are started once connected */
+			Thread.sleep(300);
+			assertEquals("Verify no further attempts", 2, createdHosts().size());
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that racing attempts are staggered through all the
+	 * candidate hosts, each tried once
+	 */
+	@Test
+	public void racing_staggered() throws Exception {
+		LocalServerTransport.unresponsiveHosts.add(Defaults.HOST_REALTIME);
+		/* no host responds */
+		LocalServerTransport.unresponsiveHosts.addAll(Arrays.asList(Defaults.HOST_FALLBACKS));
+		ClientOptions opts = ConnectionManagerLoopTest.localOptions();
+		opts.connectionRacing = true;
+		opts.connectionRacingDelay = 50;
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			CountDownLatch connected = connectedLatch(ably);
+			ably.connection.connect();
+			/* wait until all fallback hosts have been tried */
+			long deadline = System.currentTimeMillis() + 5000;
+			while(createdHosts().size() < Defaults.HOST_FALLBACKS.length + 1 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			List<String> hosts = createdHosts();
+			assertEquals("Verify an attempt to each host", Defaults.HOST_FALLBACKS.length + 1, hosts.size());
+			assertEquals("Verify no host tried twice", hosts.size(), new HashSet<String>(hosts).size());
+			assertFalse("Verify not connected", connected.await(100, TimeUnit.MILLISECONDS));
+			assertEquals("Verify still connecting", ConnectionState.connecting, ably.connection.state);
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that, without connectionRacing, an unresponsive primary host
+	 * is the only one tried until the connect timeout
+	 */
+	@Test
+	public void no_racing_by_default() throws Exception {
+		LocalServerTransport.unresponsiveHosts.add(Defaults.HOST_REALTIME);
+		AblyRealtime ably = new AblyRealtime(ConnectionManagerLoopTest.localOptions());
+		try {
+			CountDownLatch connected = connectedLatch(ably);
+			ably.connection.connect();
+			assertFalse("Verify not connected", connected.await(1, TimeUnit.SECONDS));
+			assertEquals("Verify single attempt", Arrays.asList(Defaults.HOST_REALTIME), createdHosts());
+		} finally {
+			ably.close();
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fi.iki.elonen.NanoHTTPD;
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.realtime.ConnectionStateListener;
+import io.ably.lib.test.util.LocalServerTransport;
+import io.ably.lib.transport.ConnectivityProbe;
+import io.ably.lib.transport.Defaults;
+
+/**
+ * Tests for the asynchronous, cached connectivity check
+ */
+public class ConnectivityProbeTest {
+
+	/**
+	 * A check that counts its invocations, and optionally
+	 * blocks until released
+	 */
+	private static class TestCheck implements ConnectivityProbe.Check {
+		TestCheck(boolean connected, boolean block) {
+			this.connected = connected;
+			if(!block)
+				release.countDown();
+		}
+		@Override
+		public boolean isConnected() {
+			count.incrementAndGet();
+			try {
+				release.await(10, TimeUnit.SECONDS);
+			} catch(InterruptedException e) {}
+			return connected;
+		}
+		final boolean connected;
+		final AtomicInteger count = new AtomicInteger();
+		final CountDownLatch release = new CountDownLatch(1);
+	}
+
+	private static class TestListener implements ConnectivityProbe.Listener {
+		@Override
+		public void onResult(boolean connected) {
+			this.connected = connected;
+			this.thread = Thread.currentThread();
+			latch.countDown();
+		}
+		volatile boolean connected;
+		volatile Thread thread;
+		final CountDownLatch latch = new CountDownLatch(1);
+	}
+
+	private String oldTransport;
+
+	@Before
+	public void setUp() {
+		oldTransport = Defaults.TRANSPORT;
+		Defaults.TRANSPORT = LocalServerTransport.Factory.class.getName();
+		LocalServerTransport.createdTransports.clear();
+	}
+
+	@After
+	public void tearDown() {
+		Defaults.TRANSPORT = oldTransport;
+		LocalServerTransport.failingHosts.clear();
+		LocalServerTransport.createdTransports.clear();
+		ConnectivityProbe.setDefault(null);
+	}
+
+	/**
+	 * Verify that callers while a check is in progress share its result,
+	 * which is delivered on the checking thread, and that the result
+	 * is then cached until it expires
+	 */
+	@Test
+	public void probe_shared_and_cached() throws Exception {
+		TestCheck check = new TestCheck(true, true);
+		ConnectivityProbe probe = new ConnectivityProbe(check, 300);
+		TestListener first = new TestListener(), second = new TestListener();
+		probe.check(first);
+		probe.check(second);
+		assertFalse("Verify the caller does not wait for the result", first.latch.await(100, TimeUnit.MILLISECONDS));
+
+		check.release.countDown();
+		assertTrue("Verify result delivered", first.latch.await(5, TimeUnit.SECONDS));
+		assertTrue("Verify result delivered", second.latch.await(5, TimeUnit.SECONDS));
+		assertTrue("Verify result", first.connected && second.connected);
+		assertTrue("Verify result delivered on checking thread", first.thread != Thread.currentThread());
+		assertEquals("Verify a single check", 1, check.count.get());
+
+		TestListener cached = new TestListener();
+		probe.check(cached);
+		assertEquals("Verify cached result delivered immediately", 0, cached.latch.getCount());
+		assertEquals("Verify cached result delivered on calling thread", Thread.currentThread(), cached.thread);
+		assertEquals("Verify cached result used", 1, check.count.get());
+
+		Thread.sleep(400);
+		assertEquals("Verify cached result expired", null, probe.getCachedResult());
+		TestListener expired = new TestListener();
+		probe.check(expired);
+		assertTrue("Verify result delivered", expired.latch.await(5, TimeUnit.SECONDS));
+		assertEquals("Verify check repeated", 2, check.count.get());
+	}
+
+	/**
+	 * Verify the URL check against a local stand-in for the check URL
+	 */
+	@Test
+	public void probe_url_check() throws Exception {
+		NanoHTTPD server = new NanoHTTPD(27332) {
+			@Override
+			public Response serve(IHTTPSession session) {
+				String body = session.getUri().equals("/up.txt") ? "yes" : "no";
+				return newFixedLengthResponse(Response.Status.OK, NanoHTTPD.MIME_PLAINTEXT, body);
+			}
+		};
+		server.start(NanoHTTPD.SOCKET_READ_TIMEOUT, true);
+		try {
+			assertTrue("Verify connected", new ConnectivityProbe.UrlCheck("http://localhost:27332/up.txt", "yes").isConnected());
+			assertFalse("Verify not connected", new ConnectivityProbe.UrlCheck("http://localhost:27332/down.txt", "yes").isConnected());
+		} finally {
+			server.stop();
+		}
+		assertFalse("Verify not connected", new ConnectivityProbe.UrlCheck("http://localhost:27332/up.txt", "yes").isConnected());
+	}
+
+	private static CountDownLatch stateLatch(AblyRealtime ably, ConnectionState state) {
+		final CountDownLatch latch = new CountDownLatch(1);
+		ably.connection.on(state, new ConnectionStateListener() {
+			@Override
+			public void onConnectionStateChanged(ConnectionStateChange state) {
+				latch.countDown();
+			}
+		});
+		return latch;
+	}
+
+	/**
+	 * Verify that, after a connection attempt fails, the connection
+	 * falls back to another host once the check has succeeded
+	 */
+	@Test
+	public void probe_connection_fallback() throws Exception {
+		TestCheck check = new TestCheck(true, false);
+		ConnectivityProbe.setDefault(new ConnectivityProbe(check));
+		LocalServerTransport.failingHosts.add(Defaults.HOST_REALTIME);
+		AblyRealtime ably = new AblyRealtime(ConnectionManagerLoopTest.localOptions());
+		try {
+			CountDownLatch connected = stateLatch(ably, ConnectionState.connected);
+			ably.connection.connect();
+			assertTrue("Verify connected", connected.await(5, TimeUnit.SECONDS));
+			assertEquals("Verify check made", 1, check.count.get());
+			assertTrue("Verify connected to fallback host", !Defaults.HOST_REALTIME.equals(ably.connection.connectionManager.getHost()));
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that the ConnectionManager continues to handle requests while
+	 * a check is in progress, and that a request supersedes the check
+	 */
+	@Test
+	public void probe_does_not_block_connection() throws Exception {
+		TestCheck check = new TestCheck(true, true);
+		ConnectivityProbe.setDefault(new ConnectivityProbe(check));
+		LocalServerTransport.failingHosts.add(Defaults.HOST_REALTIME);
+		AblyRealtime ably = new AblyRealtime(ConnectionManagerLoopTest.localOptions());
+		try {
+			CountDownLatch closed = stateLatch(ably, ConnectionState.closed);
+			ably.connection.connect();
+			long deadline = System.currentTimeMillis() + 5000;
+			while(check.count.get() == 0 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals("Verify check started", 1, check.count.get());
+			assertEquals("Verify connecting while checking", ConnectionState.connecting, ably.connection.state);
+
+			ably.close();
+			assertTrue("Verify close handled while checking", closed.await(1, TimeUnit.SECONDS));
+
+			check.release.countDown();
+			Thread.sleep(200);
+			assertEquals("Verify no fallback after close", 1, LocalServerTransport.createdTransports.size());
+			assertEquals("Verify still closed", ConnectionState.closed, ably.connection.state);
+		} finally {
+			check.release.countDown();
+			ably.close();
+		}
+	}
+}
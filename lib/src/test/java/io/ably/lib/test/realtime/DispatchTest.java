@@ -0,0 +1,154 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.ChannelState;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers.ChannelWaiter;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.util.LocalServerTransport;
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.ProtocolSerializer;
+import io.ably.lib.util.InMemoryMetrics;
+import io.ably.lib.util.Metrics;
+
+/**
+ * Tests for delivering messages to listeners on a dispatch executor
+ */
+public class DispatchTest {
+
+	private String oldTransport;
+
+	@Before
+	public void setUp() {
+		oldTransport = Defaults.TRANSPORT;
+		Defaults.TRANSPORT = LocalServerTransport.Factory.class.getName();
+	}
+
+	@After
+	public void tearDown() {
+		Defaults.TRANSPORT = oldTransport;
+	}
+
+	private static void deliverMessage(String channelName, String id, String name) throws Exception {
+		LocalServerTransport.lastCreatedTransport.deliver(ProtocolSerializer.fromJSON(
+				"{\"action\":15,\"channel\":\"" + channelName + "\",\"id\":\"" + id + "\",\"messages\":[{\"name\":\"" + name + "\",\"data\":\"data\"}]}"));
+	}
+
+	/**
+	 * Verify that messages on a channel are delivered in order,
+	 * on a thread other than the one reading from the connection
+	 */
+	@Test
+	public void dispatch_in_order() throws Exception {
+		ClientOptions opts = ConnectionManagerLoopTest.localOptions();
+		opts.asyncDispatch = true;
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			ably.connection.connect();
+			new ConnectionWaiter(ably.connection).waitFor(ConnectionState.connected);
+			final int count = 500;
+			final List<String> received = new ArrayList<String>();
+			final List<Thread> threads = new ArrayList<Thread>();
+			final CountDownLatch done = new CountDownLatch(count);
+			Channel channel = ably.channels.get("dispatch_in_order");
+			channel.subscribe(new Channel.MessageListener() {
+				@Override
+				public void onMessage(Message message) {
+					synchronized(received) {
+						received.add(message.name);
+						threads.add(Thread.currentThread());
+					}
+					done.countDown();
+				}
+			});
+			for(int i = 0; i < count; i++)
+				deliverMessage("dispatch_in_order", "id" + i, "event" + i);
+			assertTrue("Verify all delivered", done.await(10, TimeUnit.SECONDS));
+			for(int i = 0; i < count; i++) {
+				assertEquals("Verify delivery order", "event" + i, received.get(i));
+				assertNotSame("Verify delivered on dispatch thread", Thread.currentThread(), threads.get(i));
+			}
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that a slow listener on one channel does not delay delivery
+	 * on another, or reading from the connection, and that the channel's
+	 * queue depth is visible
+	 */
+	@Test
+	public void dispatch_slow_listener_isolated() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		InMemoryMetrics metrics = new InMemoryMetrics();
+		ClientOptions opts = ConnectionManagerLoopTest.localOptions();
+		opts.asyncDispatch = true;
+		opts.dispatchExecutor = executor;
+		opts.metrics = metrics;
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			ably.connection.connect();
+			new ConnectionWaiter(ably.connection).waitFor(ConnectionState.connected);
+			final CountDownLatch release = new CountDownLatch(1);
+			final CountDownLatch slowDone = new CountDownLatch(5);
+			final CountDownLatch fastDone = new CountDownLatch(5);
+			Channel slow = ably.channels.get("dispatch_slow");
+			Channel fast = ably.channels.get("dispatch_fast");
+			slow.subscribe(new Channel.MessageListener() {
+				@Override
+				public void onMessage(Message message) {
+					try {
+						release.await(10, TimeUnit.SECONDS);
+					} catch(InterruptedException e) {}
+					slowDone.countDown();
+				}
+			});
+			fast.subscribe(new Channel.MessageListener() {
+				@Override
+				public void onMessage(Message message) {
+					fastDone.countDown();
+				}
+			});
+			new ChannelWaiter(slow).waitFor(ChannelState.attached);
+			new ChannelWaiter(fast).waitFor(ChannelState.attached);
+
+			for(int i = 0; i < 5; i++)
+				deliverMessage("dispatch_slow", "slow" + i, "event");
+			for(int i = 0; i < 5; i++)
+				deliverMessage("dispatch_fast", "fast" + i, "event");
+			assertTrue("Verify fast channel delivered", fastDone.await(5, TimeUnit.SECONDS));
+			assertEquals("Verify slow channel queue depth", 5, slow.getDispatchQueueDepth());
+			assertEquals("Verify queue depth metric", 5, metrics.getGauge(Metrics.CHANNEL_DISPATCH_QUEUE, "dispatch_slow"));
+
+			release.countDown();
+			assertTrue("Verify slow channel delivered", slowDone.await(5, TimeUnit.SECONDS));
+			long deadline = System.currentTimeMillis() + 5000;
+			while(slow.getDispatchQueueDepth() > 0 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals("Verify slow channel queue drained", 0, slow.getDispatchQueueDepth());
+			assertEquals("Verify queue depth metric drained", 0, metrics.getGauge(Metrics.CHANNEL_DISPATCH_QUEUE, "dispatch_slow"));
+		} finally {
+			ably.close();
+			executor.shutdown();
+		}
+	}
+}
@@ -4,6 +4,8 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Test;
 
@@ -175,4 +177,84 @@ public class EventEmitterTest {
 		assertNull(listener.counts.get(MyEvents.event_1));
 	}
 
+	/**
+	 * Register a "once" listener, and verify it is called only once
+	 * when the event is emitted concurrently from several threads
+	 */
+	@Test
+	public void once_concurrent_emit() throws InterruptedException {
+		final MyEmitter emitter = new MyEmitter();
+		final AtomicInteger count = new AtomicInteger();
+		emitter.once(MyEvents.event_0, new MyListener() {
+			@Override
+			public void onMyThingHappened(MyEventPayload theThing) {
+				count.incrementAndGet();
+			}
+		});
+		Thread[] threads = new Thread[4];
+		for(int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j = 0; j < 100; j++)
+						emitter.emit(MyEvents.event_0, "once_concurrent_emit");
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread thread : threads)
+			thread.join();
+		assertEquals(1, count.get());
+	}
+
+	/**
+	 * Register and remove listeners while events are emitted concurrently,
+	 * and verify that emitting is unaffected, and that a listener
+	 * registered throughout receives every event
+	 */
+	@Test
+	public void on_off_concurrent_emit() throws InterruptedException {
+		final MyEmitter emitter = new MyEmitter();
+		final AtomicInteger count = new AtomicInteger();
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		emitter.on(new MyListener() {
+			@Override
+			public void onMyThingHappened(MyEventPayload theThing) {
+				count.incrementAndGet();
+			}
+		});
+		Thread churn = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for(int i = 0; i < 2000; i++) {
+						CountingListener listener = new CountingListener();
+						emitter.on(listener);
+						emitter.on(MyEvents.event_1, listener);
+						emitter.off(listener);
+					}
+				} catch(Throwable t) {
+					error.compareAndSet(null, t);
+				}
+			}
+		};
+		Thread emit = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for(int i = 0; i < 2000; i++)
+						emitter.emit(MyEvents.event_0, "on_off_concurrent_emit");
+				} catch(Throwable t) {
+					error.compareAndSet(null, t);
+				}
+			}
+		};
+		churn.start();
+		emit.start();
+		churn.join();
+		emit.join();
+		assertNull(error.get());
+		assertEquals(2000, count.get());
+	}
+
 }
@@ -0,0 +1,183 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.realtime.WritabilityListener;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.realtime.ConnectionManagerLoopTest.CountingCompletionListener;
+import io.ably.lib.test.util.LocalServerTransport;
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.FlowControlPolicy;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.ProtocolMessage;
+
+public class FlowControlTest {
+
+	private String oldTransport;
+
+	@Before
+	public void setUp() {
+		oldTransport = Defaults.TRANSPORT;
+		Defaults.TRANSPORT = LocalServerTransport.Factory.class.getName();
+		LocalServerTransport.autoAck = false;
+	}
+
+	@After
+	public void tearDown() {
+		Defaults.TRANSPORT = oldTransport;
+		LocalServerTransport.autoAck = true;
+	}
+
+	private static ProtocolMessage publish(String channel, String data) {
+		ProtocolMessage msg = new ProtocolMessage(ProtocolMessage.Action.message, channel);
+		msg.messages = new Message[] { new Message("event", data) };
+		return msg;
+	}
+
+	private static List<ProtocolMessage> sentMessages() {
+		List<ProtocolMessage> sent = new ArrayList<ProtocolMessage>();
+		for(ProtocolMessage msg : LocalServerTransport.lastCreatedTransport.getSentMessages())
+			if(msg.action == ProtocolMessage.Action.message)
+				sent.add(msg);
+		return sent;
+	}
+
+	private static void waitForSent(int count) throws InterruptedException {
+		for(int i = 0; i < 100 && sentMessages().size() < count; i++)
+			Thread.sleep(20);
+		assertEquals(count, sentMessages().size());
+	}
+
+	private static AblyRealtime connect(int maxInFlight, FlowControlPolicy policy) throws Exception {
+		ClientOptions opts = ConnectionManagerLoopTest.localOptions();
+		opts.maxInFlightMessages = maxInFlight;
+		opts.flowControlPolicy = policy;
+		opts.flowControlTimeout = 200;
+		AblyRealtime ably = new AblyRealtime(opts);
+		ably.connection.connect();
+		new ConnectionWaiter(ably.connection).waitFor(ConnectionState.connected);
+		return ably;
+	}
+
+	/**
+	 * With the hold policy, publishes beyond the window are held, and
+	 * are sent as acks arrive; writability listeners are notified
+	 */
+	@Test
+	public void flow_control_hold() throws Exception {
+		AblyRealtime ably = connect(5, FlowControlPolicy.hold);
+		try {
+			final List<Boolean> changes = new ArrayList<Boolean>();
+			ably.connection.addWritabilityListener(new WritabilityListener() {
+				@Override
+				public void onWritabilityChanged(boolean writable) {
+					synchronized(changes) { changes.add(writable); }
+				}
+			});
+			CountingCompletionListener listener = new CountingCompletionListener(12);
+			for(int i = 0; i < 12; i++)
+				ably.connection.connectionManager.send(publish("flow_hold", "data" + i), true, listener);
+
+			waitForSent(5);
+			Thread.sleep(50);
+			assertEquals("Expected publishes to be held", 5, sentMessages().size());
+			assertFalse(ably.connection.isWritable());
+
+			LocalServerTransport.lastCreatedTransport.ack(0, 3);
+			waitForSent(8);
+			LocalServerTransport.lastCreatedTransport.ack(3, 5);
+			waitForSent(12);
+			LocalServerTransport.lastCreatedTransport.ack(8, 4);
+
+			assertTrue("Publishes not completed", listener.latch.await(5, TimeUnit.SECONDS));
+			assertEquals(12, listener.successes.get());
+			for(int i = 0; i < 50 && !ably.connection.isWritable(); i++)
+				Thread.sleep(20);
+			assertTrue(ably.connection.isWritable());
+			synchronized(changes) {
+				assertTrue(changes.size() >= 2);
+				assertEquals(Boolean.FALSE, changes.get(0));
+				assertEquals(Boolean.TRUE, changes.get(changes.size() - 1));
+			}
+
+			long expectedSerial = 0;
+			for(ProtocolMessage msg : sentMessages()) {
+				assertEquals(Long.valueOf(expectedSerial), msg.msgSerial);
+				assertEquals("data" + expectedSerial++, msg.messages[0].data);
+			}
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * With the fail policy, publishes beyond the window fail
+	 */
+	@Test
+	public void flow_control_fail() throws Exception {
+		AblyRealtime ably = connect(2, FlowControlPolicy.fail);
+		try {
+			CountingCompletionListener listener = new CountingCompletionListener(2);
+			for(int i = 0; i < 4; i++)
+				ably.connection.connectionManager.send(publish("flow_fail", "data" + i), true, listener);
+			assertTrue("Publishes not failed", listener.latch.await(5, TimeUnit.SECONDS));
+			assertEquals(2, listener.errors.get());
+			waitForSent(2);
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * With the block policy, a publish blocks while the window is full,
+	 * and fails if it is not opened within the timeout
+	 */
+	@Test
+	public void flow_control_block() throws Exception {
+		AblyRealtime ably = connect(2, FlowControlPolicy.block);
+		try {
+			for(int i = 0; i < 2; i++)
+				ably.connection.connectionManager.send(publish("flow_block", "data" + i), true, null);
+			waitForSent(2);
+			for(int i = 0; i < 50 && ably.connection.isWritable(); i++)
+				Thread.sleep(20);
+			assertFalse(ably.connection.isWritable());
+
+			long start = System.currentTimeMillis();
+			try {
+				ably.connection.connectionManager.send(publish("flow_block", "data2"), true, null);
+				fail("Expected publish to time out");
+			} catch(AblyException e) {
+				assertEquals(42910, e.errorInfo.code);
+				assertTrue(System.currentTimeMillis() - start >= 150);
+			}
+
+			new Thread() {
+				@Override
+				public void run() {
+					try { Thread.sleep(50); } catch(InterruptedException e) {}
+					LocalServerTransport.lastCreatedTransport.ack(0, 2);
+				}
+			}.start();
+			ably.connection.connectionManager.send(publish("flow_block", "data2"), true, null);
+			waitForSent(3);
+		} finally {
+			ably.close();
+		}
+	}
+}
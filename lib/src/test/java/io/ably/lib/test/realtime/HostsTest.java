@@ -5,6 +5,8 @@ import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.isEmptyOrNullString;
 import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -14,6 +16,7 @@ import java.util.Arrays;
 import org.junit.Test;
 
 import io.ably.lib.transport.Defaults;
+import io.ably.lib.transport.HostHealth;
 import io.ably.lib.transport.Hosts;
 import io.ably.lib.types.ClientOptions;
 
@@ -186,6 +189,77 @@ public class HostsTest {
 		}
 	}
 
+	/**
+	 * Expect the primary host first, then the fallback hosts ordered by
+	 * health: fast hosts, then hosts with no history, then slow hosts
+	 */
+	@Test
+	public void hosts_candidates_ordered_by_health() throws Exception {
+		ClientOptions options = new ClientOptions();
+		Hosts hosts = new Hosts(Defaults.HOST_REALTIME, Defaults.HOST_REALTIME, options);
+		HostHealth health = hosts.getHealth();
+		health.onSuccess("C.ably-realtime.com", 2000);
+		health.onSuccess("D.ably-realtime.com", 50);
+		health.onSuccess("A.ably-realtime.com", 100);
+
+		String[] candidates = hosts.getCandidates();
+		assertEquals("Verify all hosts are candidates", Defaults.HOST_FALLBACKS.length + 1, candidates.length);
+		assertEquals("Verify primary host first", Defaults.HOST_REALTIME, candidates[0]);
+		assertEquals("Verify fastest fallback next", "D.ably-realtime.com", candidates[1]);
+		assertEquals("Verify fast fallback next", "A.ably-realtime.com", candidates[2]);
+		assertEquals("Verify slow fallback last", "C.ably-realtime.com", candidates[5]);
+		assertEquals("Verify next candidate", "A.ably-realtime.com", Hosts.getNextCandidate(candidates, "D.ably-realtime.com"));
+		assertThat(Hosts.getNextCandidate(candidates, "C.ably-realtime.com"), is(equalTo(null)));
+
+		/* failures outweigh latency */
+		health.onFailure("D.ably-realtime.com");
+		candidates = hosts.getCandidates();
+		assertEquals("Verify failing fallback demoted", "A.ably-realtime.com", candidates[1]);
+	}
+
+	/**
+	 * Expect a host that fails repeatedly to be put in a cooldown, during
+	 * which it is tried last, and to be restored on expiry of the cooldown
+	 */
+	@Test
+	public void hosts_candidates_cooldown() throws Exception {
+		ClientOptions options = new ClientOptions();
+		Hosts hosts = new Hosts(Defaults.HOST_REALTIME, Defaults.HOST_REALTIME, options, new HostHealth(2, 200, 1000));
+		HostHealth health = hosts.getHealth();
 
+		health.onFailure(Defaults.HOST_REALTIME);
+		assertTrue("Verify host available after one failure", health.isAvailable(Defaults.HOST_REALTIME));
+		assertEquals("Verify primary host first", Defaults.HOST_REALTIME, hosts.getCandidates()[0]);
 
+		health.onFailure(Defaults.HOST_REALTIME);
+		assertFalse("Verify host in cooldown", health.isAvailable(Defaults.HOST_REALTIME));
+		String[] candidates = hosts.getCandidates();
+		assertThat("Verify primary host not first", candidates[0], is(not(equalTo(Defaults.HOST_REALTIME))));
+		assertEquals("Verify primary host last", Defaults.HOST_REALTIME, candidates[candidates.length - 1]);
+
+		Thread.sleep(300);
+		assertTrue("Verify cooldown expired", health.isAvailable(Defaults.HOST_REALTIME));
+		assertEquals("Verify primary host first", Defaults.HOST_REALTIME, hosts.getCandidates()[0]);
+
+		/* a further failure doubles the cooldown */
+		health.onFailure(Defaults.HOST_REALTIME);
+		Thread.sleep(300);
+		assertFalse("Verify cooldown doubled", health.isAvailable(Defaults.HOST_REALTIME));
+
+		health.onSuccess(Defaults.HOST_REALTIME, 100);
+		assertTrue("Verify success ends cooldown", health.isAvailable(Defaults.HOST_REALTIME));
+	}
+
+	/**
+	 * Expect only the primary host when fallback is not permitted,
+	 * even if it is in a cooldown
+	 */
+	@Test
+	public void hosts_candidates_overridden_host() throws Exception {
+		ClientOptions options = new ClientOptions();
+		String host = "overridden.ably.io";
+		Hosts hosts = new Hosts(host, Defaults.HOST_REALTIME, options, new HostHealth(1, 10000, 10000));
+		hosts.getHealth().onFailure(host);
+		assertTrue("Verify only the primary host", Arrays.equals(new String[] { host }, hosts.getCandidates()));
+	}
 }
@@ -0,0 +1,133 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.ChannelState;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.realtime.Presence;
+import io.ably.lib.test.common.Helpers.ChannelWaiter;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.util.LocalServerTransport;
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.MessageDecodeException;
+import io.ably.lib.types.PresenceMessage;
+import io.ably.lib.types.ProtocolSerializer;
+
+/**
+ * Tests for deferring the decoding of received message data
+ */
+public class LazyDecodingTest {
+
+	private String oldTransport;
+	private AblyRealtime ably;
+
+	@Before
+	public void setUp() throws Exception {
+		oldTransport = Defaults.TRANSPORT;
+		Defaults.TRANSPORT = LocalServerTransport.Factory.class.getName();
+		ClientOptions opts = ConnectionManagerLoopTest.localOptions();
+		opts.lazyDecoding = true;
+		ably = new AblyRealtime(opts);
+		ably.connection.connect();
+		new ConnectionWaiter(ably.connection).waitFor(ConnectionState.connected);
+	}
+
+	@After
+	public void tearDown() {
+		ably.close();
+		Defaults.TRANSPORT = oldTransport;
+	}
+
+	/**
+	 * Verify that message data is decoded when first read, and that
+	 * a decode error is raised when the data is read
+	 */
+	@Test
+	public void lazy_decode_messages() throws Exception {
+		Channel channel = ably.channels.get("lazy_decode_messages");
+		final List<Message> received = new ArrayList<Message>();
+		channel.subscribe(new Channel.MessageListener() {
+			@Override
+			public void onMessage(Message message) {
+				received.add(message);
+			}
+		});
+
+		LocalServerTransport.lastCreatedTransport.deliver(ProtocolSerializer.fromJSON(
+				"{\"action\":15,\"channel\":\"lazy_decode_messages\",\"id\":\"msg\",\"messages\":["
+				+ "{\"name\":\"json\",\"encoding\":\"json\",\"data\":\"{\\\"a\\\":1}\"},"
+				+ "{\"name\":\"text\",\"data\":\"plain\"},"
+				+ "{\"name\":\"cipher\",\"encoding\":\"cipher+aes-128-cbc/base64\",\"data\":\"AQI=\"}]}"));
+		assertEquals(3, received.size());
+
+		Message json = received.get(0);
+		assertTrue("Verify decode deferred", json.isDecodePending());
+		assertEquals("Verify data as received", "json", json.encoding);
+		Object data = json.getData();
+		assertTrue("Verify data decoded", data instanceof JsonObject);
+		assertFalse(json.isDecodePending());
+		assertSame("Verify decoded data kept", data, json.getData());
+		assertEquals(null, json.encoding);
+
+		Message text = received.get(1);
+		assertFalse("Verify unencoded data needs no decode", text.isDecodePending());
+		assertEquals("plain", text.getData());
+
+		Message cipher = received.get(2);
+		for(int i = 0; i < 2; i++) {
+			try {
+				cipher.getData();
+				fail("Expected decode error");
+			} catch(MessageDecodeException e) {
+				assertEquals(91200, e.errorInfo.code);
+			}
+		}
+	}
+
+	/**
+	 * Verify that presence message data is decoded when first read
+	 */
+	@Test
+	public void lazy_decode_presence() throws Exception {
+		Channel channel = ably.channels.get("lazy_decode_presence");
+		channel.attach();
+		new ChannelWaiter(channel).waitFor(ChannelState.attached);
+		final List<PresenceMessage> received = new ArrayList<PresenceMessage>();
+		channel.presence.subscribe(new Presence.PresenceListener() {
+			@Override
+			public void onPresenceMessage(PresenceMessage message) {
+				received.add(message);
+			}
+		});
+
+		LocalServerTransport.lastCreatedTransport.deliver(ProtocolSerializer.fromJSON(
+				"{\"action\":14,\"channel\":\"lazy_decode_presence\",\"presence\":["
+				+ "{\"action\":2,\"clientId\":\"a\",\"connectionId\":\"remote\",\"id\":\"remote:0:0\",\"timestamp\":1,"
+				+ "\"encoding\":\"base64\",\"data\":\"AQID\"}]}"));
+		assertEquals(1, received.size());
+
+		PresenceMessage member = received.get(0);
+		assertTrue("Verify decode deferred", member.isDecodePending());
+		assertEquals("AQID", member.data);
+		PresenceMessage copy = (PresenceMessage)member.clone();
+		assertEquals("Verify data decoded", 3, ((byte[])member.getData()).length);
+		assertEquals("Verify copy decoded independently", 3, ((byte[])copy.getData()).length);
+	}
+}
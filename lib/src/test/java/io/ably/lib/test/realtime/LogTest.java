@@ -0,0 +1,160 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import io.ably.lib.util.AsyncLogHandler;
+import io.ably.lib.util.Log;
+import io.ably.lib.util.Log.LogHandler;
+
+/**
+ * Tests of parameterised logging and the asynchronous log handler
+ */
+public class LogTest {
+
+	private static class CapturingHandler implements LogHandler {
+		@Override
+		public synchronized void println(int severity, String tag, String msg, Throwable tr) {
+			messages.add(msg);
+		}
+		synchronized List<String> getMessages() { return new ArrayList<String>(messages); }
+		private final List<String> messages = new ArrayList<String>();
+	}
+
+	private static class CountingArg {
+		@Override
+		public String toString() { ++count; return "arg"; }
+		int count;
+	}
+
+	@After
+	public void restoreLog() {
+		Log.setLevel(Log.defaultLevel);
+		Log.setHandler(null);
+	}
+
+	/**
+	 * Verify that arguments are substituted for each {} in turn
+	 */
+	@Test
+	public void log_parameters() {
+		CapturingHandler capture = new CapturingHandler();
+		Log.setHandler(capture);
+		Log.setLevel(Log.VERBOSE);
+		Log.v("tag", "one {}", 1);
+		Log.d("tag", "{} and {}", "a", null);
+		Log.i("tag", "{}, {}, {}", 1, 2, 3);
+		Log.w("tag", "extra {}", 1, 2, 3);
+		Log.e("tag", "missing {} {}", "x");
+		Log.e("tag", "none", 1);
+		List<String> messages = capture.getMessages();
+		assertEquals("Verify all records logged", 6, messages.size());
+		assertEquals("one 1", messages.get(0));
+		assertEquals("a and null", messages.get(1));
+		assertEquals("1, 2, 3", messages.get(2));
+		assertEquals("extra 1", messages.get(3));
+		assertEquals("missing x {}", messages.get(4));
+		assertEquals("none", messages.get(5));
+	}
+
+	/**
+	 * Verify that no message is formatted below the log level
+	 */
+	@Test
+	public void log_level_checked() {
+		CapturingHandler capture = new CapturingHandler();
+		Log.setHandler(capture);
+		Log.setLevel(Log.WARN);
+		CountingArg arg = new CountingArg();
+		Log.v("tag", "{}", arg);
+		Log.d("tag", "{} {}", arg, arg);
+		Log.i("tag", "{} {} {}", arg, arg, arg);
+		assertTrue("Verify not loggable", !Log.isLoggable(Log.INFO));
+		assertEquals("Verify no arguments formatted", 0, arg.count);
+		assertEquals("Verify nothing logged", 0, capture.getMessages().size());
+
+		Log.w("tag", "{}", arg);
+		assertTrue("Verify loggable", Log.isLoggable(Log.WARN));
+		assertEquals("Verify argument formatted", 1, arg.count);
+		assertEquals("Verify record logged", 1, capture.getMessages().size());
+	}
+
+	/**
+	 * Verify that records from concurrent threads are all passed to
+	 * the handler, and those from each thread in order
+	 */
+	@Test
+	public void async_handler_delivers_in_order() throws InterruptedException {
+		CapturingHandler capture = new CapturingHandler();
+		final AsyncLogHandler async = new AsyncLogHandler(capture, 1 << 16);
+		Log.setHandler(async);
+		Log.setLevel(Log.VERBOSE);
+		final int threadCount = 4, recordCount = 5000;
+		Thread[] threads = new Thread[threadCount];
+		for(int i = 0; i < threadCount; i++) {
+			final int id = i;
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for(int j = 0; j < recordCount; j++)
+						Log.v("tag", "{}:{}", id, j);
+				}
+			});
+			threads[i].start();
+		}
+		for(Thread thread : threads)
+			thread.join();
+		assertTrue("Verify records flushed", async.flush(10000));
+
+		List<String> messages = capture.getMessages();
+		assertEquals("Verify no records dropped", 0, async.getDroppedCount());
+		assertEquals("Verify all records delivered", threadCount * recordCount, messages.size());
+		int[] next = new int[threadCount];
+		for(String message : messages) {
+			String[] parts = message.split(":");
+			int id = Integer.parseInt(parts[0]);
+			assertEquals("Verify records in order", next[id]++, Integer.parseInt(parts[1]));
+		}
+	}
+
+	/**
+	 * Verify that, when the handler does not keep up, logging does not
+	 * block, and the records dropped are counted and reported
+	 */
+	@Test
+	public void async_handler_drops_when_full() throws InterruptedException {
+		final CountDownLatch release = new CountDownLatch(1);
+		final CapturingHandler capture = new CapturingHandler();
+		AsyncLogHandler async = new AsyncLogHandler(new LogHandler() {
+			@Override
+			public void println(int severity, String tag, String msg, Throwable tr) {
+				try { release.await(10, TimeUnit.SECONDS); } catch(InterruptedException e) {}
+				capture.println(severity, tag, msg, tr);
+			}
+		}, 16);
+		for(int i = 0; i < 100; i++)
+			async.println(Log.INFO, "tag", "record " + i, null);
+		long dropped = async.getDroppedCount();
+		assertTrue("Verify records dropped", dropped >= 100 - 16 - 1);
+
+		release.countDown();
+		assertTrue("Verify records flushed", async.flush(10000));
+		/* the report of dropped records follows the records delivered */
+		async.flush(1000);
+		long deadline = System.currentTimeMillis() + 5000;
+		while(capture.getMessages().size() < 100 - dropped + 1 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		List<String> messages = capture.getMessages();
+		assertEquals("Verify records delivered and drop reported", 100 - dropped + 1, messages.size());
+		assertEquals("Verify first record delivered", "record 0", messages.get(0));
+		assertEquals("Verify drop reported", dropped + " log records dropped", messages.get(messages.size() - 1));
+	}
+}
@@ -0,0 +1,191 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.util.LocalServerTransport;
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.MessageFilter;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.ProtocolSerializer;
+
+/**
+ * Tests for subscribing to channels with message filters
+ */
+public class MessageFilterTest {
+
+	private String oldTransport;
+	private AblyRealtime ably;
+
+	@Before
+	public void setUp() throws Exception {
+		oldTransport = Defaults.TRANSPORT;
+		Defaults.TRANSPORT = LocalServerTransport.Factory.class.getName();
+		ably = new AblyRealtime(ConnectionManagerLoopTest.localOptions());
+		ably.connection.connect();
+		new ConnectionWaiter(ably.connection).waitFor(ConnectionState.connected);
+	}
+
+	@After
+	public void tearDown() {
+		ably.close();
+		Defaults.TRANSPORT = oldTransport;
+	}
+
+	private static class RecordingListener implements Channel.MessageListener {
+		final List<String> names = new ArrayList<String>();
+		final List<Message> messages = new ArrayList<Message>();
+		@Override
+		public void onMessage(Message message) {
+			names.add(message.name);
+			messages.add(message);
+		}
+	}
+
+	private static ProtocolMessage deliver(String channelName, String messagesJSON) throws Exception {
+		ProtocolMessage msg = ProtocolSerializer.fromJSON(
+				"{\"action\":15,\"channel\":\"" + channelName + "\",\"id\":\"msg\",\"connectionId\":\"conn\",\"messages\":" + messagesJSON + "}");
+		LocalServerTransport.lastCreatedTransport.deliver(msg);
+		return msg;
+	}
+
+	private static MessageFilter filter(String name) {
+		return new MessageFilter(name);
+	}
+
+	/**
+	 * Verify that name patterns with wildcards select the messages delivered
+	 */
+	@Test
+	public void filter_name_patterns() throws Exception {
+		Channel channel = ably.channels.get("filter_name_patterns");
+		RecordingListener exact = new RecordingListener();
+		RecordingListener prefix = new RecordingListener();
+		RecordingListener suffix = new RecordingListener();
+		RecordingListener infix = new RecordingListener();
+		RecordingListener all = new RecordingListener();
+		RecordingListener unnamed = new RecordingListener();
+		channel.subscribe(filter("orders.created"), exact);
+		channel.subscribe(filter("orders.*"), prefix);
+		channel.subscribe(filter("*.created"), suffix);
+		channel.subscribe(filter("orders.*.eu"), infix);
+		channel.subscribe(filter("*"), all);
+		channel.subscribe(new MessageFilter(), unnamed);
+
+		deliver("filter_name_patterns", "[{\"name\":\"orders.created\"},{\"name\":\"orders.updated.eu\"},{\"name\":\"users.created\"},{\"name\":\"orders\"},{}]");
+
+		assertEquals("[orders.created]", exact.names.toString());
+		assertEquals("[orders.created, orders.updated.eu]", prefix.names.toString());
+		assertEquals("[orders.created, users.created]", suffix.names.toString());
+		assertEquals("[orders.updated.eu]", infix.names.toString());
+		assertEquals("[orders.created, orders.updated.eu, users.created, orders, null]", all.names.toString());
+		assertEquals("[orders.created, orders.updated.eu, users.created, orders, null]", unnamed.names.toString());
+
+		/* unsubscribing removes only that subscription */
+		channel.unsubscribe(filter("orders.*"), prefix);
+		channel.unsubscribe(exact);
+		deliver("filter_name_patterns", "[{\"name\":\"orders.deleted\"},{\"name\":\"orders.created\"}]");
+		assertEquals("Verify prefix filter still subscribed", "[orders.created, orders.updated.eu, orders.deleted, orders.created]", prefix.names.toString());
+		assertEquals("Verify listener unsubscribed", 1, exact.names.size());
+	}
+
+	/**
+	 * Verify the predicates on clientId, connectionId, encoding and data type
+	 */
+	@Test
+	public void filter_predicates() throws Exception {
+		Channel channel = ably.channels.get("filter_predicates");
+		MessageFilter byClient = new MessageFilter();
+		byClient.clientId = "alice";
+		MessageFilter byConnection = new MessageFilter();
+		byConnection.connectionId = "other";
+		MessageFilter json = new MessageFilter("event.*");
+		json.dataType = MessageFilter.DataType.json;
+		MessageFilter unencoded = new MessageFilter();
+		unencoded.encoding = "";
+		RecordingListener clientListener = new RecordingListener();
+		RecordingListener connectionListener = new RecordingListener();
+		RecordingListener jsonListener = new RecordingListener();
+		RecordingListener unencodedListener = new RecordingListener();
+		channel.subscribe(byClient, clientListener);
+		channel.subscribe(byConnection, connectionListener);
+		channel.subscribe(json, jsonListener);
+		channel.subscribe(unencoded, unencodedListener);
+
+		/* changing a filter after subscribing has no effect */
+		byClient.clientId = "bob";
+
+		deliver("filter_predicates", "[" +
+				"{\"name\":\"event.a\",\"clientId\":\"alice\",\"data\":\"text\"}," +
+				"{\"name\":\"event.b\",\"clientId\":\"bob\",\"encoding\":\"json\",\"data\":\"{\\\"a\\\":1}\"}," +
+				"{\"name\":\"event.c\",\"connectionId\":\"other\",\"encoding\":\"base64\",\"data\":\"AQI=\"}]");
+
+		assertEquals("[event.a]", clientListener.names.toString());
+		assertEquals("[event.c]", connectionListener.names.toString());
+		assertEquals("[event.b]", jsonListener.names.toString());
+		assertTrue("Verify json decoded", jsonListener.messages.get(0).data instanceof JsonObject);
+		assertEquals("[event.a]", unencodedListener.names.toString());
+		assertEquals("Verify base64 decoded", 2, ((byte[])connectionListener.messages.get(0).data).length);
+	}
+
+	/**
+	 * Verify that messages no listener wants are not decoded
+	 */
+	@Test
+	public void filter_unwanted_not_decoded() throws Exception {
+		Channel channel = ably.channels.get("filter_unwanted");
+		MessageFilter filter = new MessageFilter();
+		filter.clientId = "wanted";
+		RecordingListener listener = new RecordingListener();
+		channel.subscribe(filter, listener);
+
+		ProtocolMessage msg = deliver("filter_unwanted", "[" +
+				"{\"name\":\"a\",\"clientId\":\"wanted\",\"encoding\":\"json\",\"data\":\"{}\"}," +
+				"{\"name\":\"b\",\"clientId\":\"unwanted\",\"encoding\":\"json\",\"data\":\"{}\"}]");
+
+		assertEquals("[a]", listener.names.toString());
+		assertNull("Verify wanted message decoded", msg.messages[0].encoding);
+		assertEquals("Verify unwanted message not decoded", "json", msg.messages[1].encoding);
+		assertEquals("Verify derived fields populated", "conn", msg.messages[1].connectionId);
+
+		/* a listener for all messages wants every message */
+		RecordingListener all = new RecordingListener();
+		channel.subscribe(all);
+		msg = deliver("filter_unwanted", "[{\"name\":\"c\",\"clientId\":\"unwanted\",\"encoding\":\"json\",\"data\":\"{}\"}]");
+		assertNull("Verify message decoded", msg.messages[0].encoding);
+		assertEquals("[c]", all.names.toString());
+	}
+
+	/**
+	 * Verify that a listener subscribed with a null name receives
+	 * only messages with no name, and can be unsubscribed
+	 */
+	@Test
+	public void subscribe_null_name() throws Exception {
+		Channel channel = ably.channels.get("subscribe_null_name");
+		RecordingListener unnamed = new RecordingListener();
+		channel.subscribe((String)null, unnamed);
+
+		deliver("subscribe_null_name", "[{\"name\":\"a\"},{}]");
+		assertEquals("[null]", unnamed.names.toString());
+
+		channel.unsubscribe((String)null, unnamed);
+		deliver("subscribe_null_name", "[{}]");
+		assertEquals("Verify listener unsubscribed", 1, unnamed.names.size());
+	}
+}
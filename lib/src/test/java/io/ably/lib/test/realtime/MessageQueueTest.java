@@ -0,0 +1,174 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.realtime.ConnectionManagerLoopTest.CountingCompletionListener;
+import io.ably.lib.test.util.LocalServerTransport;
+import io.ably.lib.transport.ConnectionManager;
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.transport.MessageQueue;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.QueueOverflowPolicy;
+
+public class MessageQueueTest {
+
+	private String oldTransport;
+
+	@Before
+	public void setUp() {
+		oldTransport = Defaults.TRANSPORT;
+		Defaults.TRANSPORT = LocalServerTransport.Factory.class.getName();
+		LocalServerTransport.autoAck = true;
+	}
+
+	@After
+	public void tearDown() {
+		Defaults.TRANSPORT = oldTransport;
+	}
+
+	private static ProtocolMessage publish(String channel, String data) {
+		ProtocolMessage msg = new ProtocolMessage(ProtocolMessage.Action.message, channel);
+		msg.messages = new Message[] { new Message("event", data) };
+		return msg;
+	}
+
+	private static ClientOptions limitOptions(int maxCount, long maxBytes, QueueOverflowPolicy policy) {
+		ClientOptions opts = new ClientOptions();
+		opts.maxQueuedMessages = maxCount;
+		opts.maxQueuedBytes = maxBytes;
+		opts.queueOverflowPolicy = policy;
+		return opts;
+	}
+
+	/**
+	 * With rejectNewest, messages beyond the limit are rejected, and
+	 * the queue depth is reported
+	 */
+	@Test
+	public void queue_reject_newest() {
+		MessageQueue queue = new MessageQueue(limitOptions(3, 0, QueueOverflowPolicy.rejectNewest));
+		CountingCompletionListener listener = new CountingCompletionListener(1);
+		for(int i = 0; i < 3; i++)
+			assertTrue(queue.add(publish("channel" + i, "data"), listener, false));
+		assertFalse(queue.add(publish("channel3", "data"), listener, false));
+		assertEquals(3, queue.getQueuedCount());
+		assertEquals(3 * ("event".length() + "data".length()), queue.getQueuedBytes());
+
+		/* other messages are not subject to the limit */
+		assertTrue(queue.add(new ProtocolMessage(ProtocolMessage.Action.attach, "channel4"), null, false));
+		assertEquals(3, queue.getQueuedCount());
+
+		for(int i = 0; i < 4; i++)
+			queue.poll();
+		assertNull(queue.poll());
+		assertEquals(0, queue.getQueuedCount());
+		assertEquals(0, queue.getQueuedBytes());
+		assertEquals(0, listener.errors.get());
+	}
+
+	/**
+	 * With dropOldest, the oldest publishes are failed to make room,
+	 * but other queued messages are retained
+	 */
+	@Test
+	public void queue_drop_oldest() {
+		MessageQueue queue = new MessageQueue(limitOptions(2, 0, QueueOverflowPolicy.dropOldest));
+		CountingCompletionListener dropped = new CountingCompletionListener(2);
+		CountingCompletionListener kept = new CountingCompletionListener(2);
+		queue.add(new ProtocolMessage(ProtocolMessage.Action.attach, "channel"), null, false);
+		queue.add(publish("channel0", "data0"), dropped, false);
+		queue.add(publish("channel1", "data1"), dropped, false);
+		queue.add(publish("channel2", "data2"), kept, false);
+		queue.add(publish("channel3", "data3"), kept, false);
+		assertEquals(2, dropped.errors.get());
+		assertEquals(2, queue.getQueuedCount());
+
+		assertEquals(ProtocolMessage.Action.attach, queue.poll().msg.action);
+		assertEquals("channel2", queue.poll().msg.channel);
+		assertEquals("channel3", queue.poll().msg.channel);
+		assertTrue(queue.isEmpty());
+	}
+
+	/**
+	 * The byte limit applies to the estimated size of the messages, but a
+	 * single message larger than the limit is accepted into an empty queue
+	 */
+	@Test
+	public void queue_max_bytes() {
+		/* each message is 5 bytes of name plus its data */
+		MessageQueue queue = new MessageQueue(limitOptions(0, 25, QueueOverflowPolicy.rejectNewest));
+		assertTrue(queue.add(publish("channel0", "0123456789"), null, false));
+		assertFalse(queue.add(publish("channel1", "0123456789"), null, false));
+		assertTrue(queue.add(publish("channel2", "0"), null, false));
+		assertEquals(21, queue.getQueuedBytes());
+		queue.poll();
+		queue.poll();
+		assertTrue(queue.add(publish("channel3", "012345678901234567890123456789"), null, false));
+		assertFalse(queue.add(publish("channel4", "0"), null, false));
+		assertEquals(35, queue.getQueuedBytes());
+	}
+
+	/**
+	 * With block, a reservation waits for room in the queue, or times out
+	 */
+	@Test
+	public void queue_block() throws InterruptedException {
+		final MessageQueue queue = new MessageQueue(limitOptions(1, 0, QueueOverflowPolicy.block));
+		assertTrue(queue.reserve(publish("channel", "data"), 0));
+		assertFalse(queue.reserve(publish("channel", "data"), 50));
+		queue.add(publish("channel", "data"), null, true);
+		assertEquals(1, queue.getQueuedCount());
+
+		new Thread() {
+			@Override
+			public void run() {
+				try { Thread.sleep(100); } catch(InterruptedException e) {}
+				queue.poll();
+			}
+		}.start();
+		long start = System.currentTimeMillis();
+		assertTrue(queue.reserve(publish("channel", "data"), 5000));
+		assertTrue(System.currentTimeMillis() - start < 5000);
+	}
+
+	/**
+	 * Publish beyond the queue limit before connecting, and verify that the
+	 * excess messages fail and the remainder are sent once connected
+	 */
+	@Test
+	public void queue_limit_connection() throws Exception {
+		ClientOptions opts = ConnectionManagerLoopTest.localOptions();
+		opts.maxQueuedMessages = 5;
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			ConnectionManager connectionManager = ably.connection.connectionManager;
+			CountingCompletionListener listener = new CountingCompletionListener(8);
+			for(int i = 0; i < 8; i++)
+				connectionManager.send(publish("queue_limit", "data" + i), true, listener);
+			ably.connection.connect();
+			new ConnectionWaiter(ably.connection).waitFor(ConnectionState.connected);
+
+			assertTrue("Publishes not completed", listener.latch.await(5, TimeUnit.SECONDS));
+			assertEquals(5, listener.successes.get());
+			assertEquals(3, listener.errors.get());
+			assertEquals(0, connectionManager.getQueuedMessageCount());
+		} finally {
+			ably.close();
+		}
+	}
+}
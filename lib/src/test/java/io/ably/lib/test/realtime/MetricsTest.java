@@ -0,0 +1,203 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fi.iki.elonen.NanoHTTPD;
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.ChannelState;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.rest.AblyRest;
+import io.ably.lib.test.common.Helpers.ChannelWaiter;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.realtime.ConnectionManagerLoopTest.CountingCompletionListener;
+import io.ably.lib.test.util.LocalServerTransport;
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.ProtocolSerializer;
+import io.ably.lib.util.InMemoryMetrics;
+import io.ably.lib.util.Metrics;
+
+/**
+ * Tests for the metrics recorded by the library
+ */
+public class MetricsTest {
+
+	private String oldTransport;
+
+	@Before
+	public void setUp() {
+		oldTransport = Defaults.TRANSPORT;
+		Defaults.TRANSPORT = LocalServerTransport.Factory.class.getName();
+		LocalServerTransport.autoAck = true;
+	}
+
+	@After
+	public void tearDown() {
+		Defaults.TRANSPORT = oldTransport;
+		LocalServerTransport.autoAck = true;
+	}
+
+	private static void awaitGauge(InMemoryMetrics metrics, String name, String tag, long value) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while(metrics.getGauge(name, tag) != value && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals("Verify gauge " + name, value, metrics.getGauge(name, tag));
+	}
+
+	private static void awaitCount(InMemoryMetrics metrics, String name, String tag, long value) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while(metrics.getCount(name, tag) < value && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals("Verify count " + name, value, metrics.getCount(name, tag));
+	}
+
+	/**
+	 * Verify the connection and channel metrics recorded when
+	 * connecting, then publishing and receiving messages
+	 */
+	@Test
+	public void metrics_connection_and_channel() throws Exception {
+		InMemoryMetrics metrics = new InMemoryMetrics();
+		ClientOptions opts = ConnectionManagerLoopTest.localOptions();
+		opts.metrics = metrics;
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			ably.connection.connect();
+			new ConnectionWaiter(ably.connection).waitFor(ConnectionState.connected);
+			assertEquals("Verify connecting counted", 1, metrics.getCount(Metrics.CONNECTION_STATE, "connecting"));
+			assertEquals("Verify connected counted", 1, metrics.getCount(Metrics.CONNECTION_STATE, "connected"));
+			assertEquals("Verify connected frame counted", 1, metrics.getCount(Metrics.CONNECTION_FRAMES_IN, "connected"));
+
+			Channel channel = ably.channels.get("metrics_channel");
+			channel.attach();
+			new ChannelWaiter(channel).waitFor(ChannelState.attached);
+			CountingCompletionListener listener = new CountingCompletionListener(3);
+			channel.publish("event", "one", listener);
+			channel.publish("event", "two", listener);
+			channel.publish("event", "three", listener);
+			assertTrue("Verify publishes completed", listener.latch.await(5, TimeUnit.SECONDS));
+			assertEquals("Verify published counted", 3, metrics.getCount(Metrics.CHANNEL_PUBLISHED, "metrics_channel"));
+			assertEquals("Verify attach frame counted", 1, metrics.getCount(Metrics.CONNECTION_FRAMES_OUT, "attach"));
+			/* the local transport acks each message before send() returns */
+			awaitCount(metrics, Metrics.CONNECTION_FRAMES_OUT, "message", 3);
+			assertEquals("Verify ack frames counted", 3, metrics.getCount(Metrics.CONNECTION_FRAMES_IN, "ack"));
+
+			ProtocolMessage msg = ProtocolSerializer.fromJSON("{\"action\":15,\"channel\":\"metrics_channel\",\"id\":\"remote:0\","
+					+ "\"messages\":[{\"name\":\"a\",\"data\":\"1\"},{\"name\":\"b\",\"data\":\"2\"}]}");
+			LocalServerTransport.lastCreatedTransport.deliver(msg);
+			awaitCount(metrics, Metrics.CHANNEL_DELIVERED, "metrics_channel", 2);
+			awaitGauge(metrics, Metrics.CONNECTION_IN_FLIGHT_MESSAGES, null, 0);
+			awaitGauge(metrics, Metrics.CONNECTION_QUEUED_MESSAGES, null, 0);
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify the gauges of queued and in-flight messages
+	 */
+	@Test
+	public void metrics_queue_depths() throws Exception {
+		LocalServerTransport.autoAck = false;
+		InMemoryMetrics metrics = new InMemoryMetrics();
+		ClientOptions opts = ConnectionManagerLoopTest.localOptions();
+		opts.metrics = metrics;
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			ably.connection.connect();
+			new ConnectionWaiter(ably.connection).waitFor(ConnectionState.connected);
+			Channel channel = ably.channels.get("metrics_queue");
+			channel.attach();
+			new ChannelWaiter(channel).waitFor(ChannelState.attached);
+			CountingCompletionListener listener = new CountingCompletionListener(3);
+			channel.publish("event", "one", listener);
+			channel.publish("event", "two", listener);
+			channel.publish("event", "three", listener);
+			awaitGauge(metrics, Metrics.CONNECTION_IN_FLIGHT_MESSAGES, null, 3);
+			assertTrue("Verify in-flight bytes measured", metrics.getGauge(Metrics.CONNECTION_IN_FLIGHT_BYTES, null) > 0);
+
+			LocalServerTransport.lastCreatedTransport.ack(0, 3);
+			assertTrue("Verify publishes completed", listener.latch.await(5, TimeUnit.SECONDS));
+			awaitGauge(metrics, Metrics.CONNECTION_IN_FLIGHT_MESSAGES, null, 0);
+			awaitGauge(metrics, Metrics.CONNECTION_IN_FLIGHT_BYTES, null, 0);
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify the presence member count and sync duration
+	 */
+	@Test
+	public void metrics_presence() throws Exception {
+		InMemoryMetrics metrics = new InMemoryMetrics();
+		ClientOptions opts = ConnectionManagerLoopTest.localOptions();
+		opts.metrics = metrics;
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			ably.connection.connect();
+			new ConnectionWaiter(ably.connection).waitFor(ConnectionState.connected);
+			Channel channel = ably.channels.get("metrics_presence");
+			channel.attach();
+			new ChannelWaiter(channel).waitFor(ChannelState.attached);
+			/* attached without presence, so the sync ends immediately */
+			awaitGauge(metrics, Metrics.PRESENCE_MEMBERS, "metrics_presence", 0);
+			assertNotNull("Verify sync recorded", metrics.getSummary(Metrics.PRESENCE_SYNC_TIME, "metrics_presence"));
+
+			ProtocolMessage msg = ProtocolSerializer.fromJSON("{\"action\":14,\"channel\":\"metrics_presence\",\"presence\":["
+					+ "{\"action\":2,\"clientId\":\"a\",\"connectionId\":\"remote\",\"id\":\"remote:0:0\",\"timestamp\":1},"
+					+ "{\"action\":2,\"clientId\":\"b\",\"connectionId\":\"remote\",\"id\":\"remote:0:1\",\"timestamp\":1}]}");
+			LocalServerTransport.lastCreatedTransport.deliver(msg);
+			awaitGauge(metrics, Metrics.PRESENCE_MEMBERS, "metrics_presence", 2);
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify the HTTP metrics recorded when a request to the primary
+	 * host fails, and is repeated to a fallback host
+	 */
+	@Test
+	public void metrics_http_fallback() throws Exception {
+		NanoHTTPD server = new NanoHTTPD(27333) {
+			@Override
+			public Response serve(IHTTPSession session) {
+				if(session.getHeaders().get("host").startsWith("localhost"))
+					return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, NanoHTTPD.MIME_PLAINTEXT, "failed");
+				return newFixedLengthResponse(Response.Status.OK, "application/json", "[1000]");
+			}
+		};
+		server.start(NanoHTTPD.SOCKET_READ_TIMEOUT, true);
+		try {
+			InMemoryMetrics metrics = new InMemoryMetrics();
+			ClientOptions opts = new ClientOptions();
+			opts.token = "local-token";
+			opts.restHost = "localhost";
+			opts.fallbackHosts = new String[] {"127.0.0.1"};
+			opts.port = 27333;
+			opts.tls = false;
+			opts.metrics = metrics;
+			AblyRest ably = new AblyRest(opts);
+			assertEquals("Verify response from fallback host", 1000, ably.time());
+
+			assertEquals("Verify failure counted", 1, metrics.getCount(Metrics.HTTP_RESPONSES_5XX, "localhost"));
+			assertEquals("Verify fallback counted", 1, metrics.getCount(Metrics.HTTP_FALLBACKS, "127.0.0.1"));
+			assertEquals("Verify success counted", 1, metrics.getCount(Metrics.HTTP_RESPONSES_2XX, "127.0.0.1"));
+			assertEquals("Verify request times recorded", 1, metrics.getSummary(Metrics.HTTP_REQUEST_TIME, "localhost").getCount());
+			assertEquals("Verify request times recorded", 1, metrics.getSummary(Metrics.HTTP_REQUEST_TIME, "127.0.0.1").getCount());
+		} finally {
+			server.stop();
+		}
+	}
+}
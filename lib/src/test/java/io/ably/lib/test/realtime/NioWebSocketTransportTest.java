@@ -0,0 +1,543 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.CustomSSLWebSocketServerFactory;
+import org.java_websocket.server.WebSocketServer;
+import org.junit.After;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.loader.ResourceLoader;
+import io.ably.lib.test.realtime.ConnectionManagerLoopTest.CountingCompletionListener;
+import io.ably.lib.test.util.DeflateWebSocketServer;
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.ProtocolSerializer;
+
+/**
+ * Tests of NioWebSocketTransport against a local WebSocket server
+ * that implements the minimum of the realtime protocol.
+ */
+public class NioWebSocketTransportTest {
+
+	private String oldTransport;
+	private LocalWebSocketServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		oldTransport = Defaults.TRANSPORT;
+		Defaults.TRANSPORT = "io.ably.lib.transport.NioWebSocketTransport$Factory";
+		server = new LocalWebSocketServer();
+		server.start();
+		assertTrue("Verify server started", server.started.await(10, TimeUnit.SECONDS));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Defaults.TRANSPORT = oldTransport;
+		server.stop();
+	}
+
+	private static class LocalWebSocketServer extends WebSocketServer {
+		LocalWebSocketServer() {
+			super(new InetSocketAddress("localhost", 0));
+		}
+
+		@Override
+		public void onStart() { started.countDown(); }
+
+		@Override
+		public void onOpen(WebSocket conn, ClientHandshake handshake) {
+			binary = handshake.getResourceDescriptor().contains("format=msgpack");
+			reply(conn, "{\"action\":4,\"connectionId\":\"nio-" + connectionCount.incrementAndGet() + "\",\"connectionSerial\":-1,"
+					+ "\"connectionDetails\":{\"clientId\":\"*\",\"connectionKey\":\"nio-key\",\"maxIdleInterval\":0}}");
+		}
+
+		@Override
+		public void onClose(WebSocket conn, int code, String reason, boolean remote) {}
+
+		@Override
+		public void onMessage(WebSocket conn, String message) {
+			try {
+				onProtocolMessage(conn, ProtocolSerializer.fromJSON(message));
+			} catch(Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public void onMessage(WebSocket conn, ByteBuffer message) {
+			try {
+				byte[] bytes = new byte[message.remaining()];
+				message.get(bytes);
+				onProtocolMessage(conn, ProtocolSerializer.readMsgpack(bytes));
+			} catch(Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public void onError(WebSocket conn, Exception ex) {}
+
+		private void onProtocolMessage(WebSocket conn, ProtocolMessage msg) {
+			switch(msg.action) {
+			case attach:
+				reply(conn, "{\"action\":11,\"channel\":\"" + msg.channel + "\"}");
+				break;
+			case message:
+				received.addAndGet(msg.messages.length);
+				reply(conn, "{\"action\":1,\"msgSerial\":" + msg.msgSerial + ",\"count\":1}");
+				break;
+			case close:
+				reply(conn, "{\"action\":8}");
+				break;
+			default:
+			}
+		}
+
+		private void reply(WebSocket conn, String json) {
+			try {
+				if(binary) {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					MessagePacker packer = MessagePack.newDefaultPacker(out);
+					pack(new JsonParser().parse(json), packer);
+					packer.flush();
+					conn.send(out.toByteArray());
+				} else
+					conn.send(json);
+			} catch(Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		/* the library only serialises the fields that clients send,
+		 * so transcode the server's JSON replies directly */
+		private static void pack(JsonElement element, MessagePacker packer) throws IOException {
+			if(element.isJsonObject()) {
+				Set<Map.Entry<String, JsonElement>> entries = element.getAsJsonObject().entrySet();
+				packer.packMapHeader(entries.size());
+				for(Map.Entry<String, JsonElement> entry : entries) {
+					packer.packString(entry.getKey());
+					pack(entry.getValue(), packer);
+				}
+			} else if(element.getAsJsonPrimitive().isNumber()) {
+				packer.packLong(element.getAsLong());
+			} else {
+				packer.packString(element.getAsString());
+			}
+		}
+
+		final CountDownLatch started = new CountDownLatch(1);
+		final AtomicInteger connectionCount = new AtomicInteger();
+		final AtomicInteger received = new AtomicInteger();
+		volatile boolean binary;
+	}
+
+	private ClientOptions options(boolean binary) throws Exception {
+		ClientOptions opts = ConnectionManagerLoopTest.localOptions();
+		opts.tls = false;
+		opts.realtimeHost = "localhost";
+		opts.restHost = "localhost";
+		opts.port = server.getPort();
+		opts.useBinaryProtocol = binary;
+		return opts;
+	}
+
+	private void connect_publish_close(boolean binary) throws Exception {
+		connect_publish_close(options(binary), server);
+	}
+
+	private static void connect_publish_close(ClientOptions opts, LocalWebSocketServer server) throws Exception {
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably.connection);
+			ably.connection.connect();
+			connectionWaiter.waitFor(ConnectionState.connected);
+			assertEquals("Verify connected state reached", ConnectionState.connected, ably.connection.state);
+			assertTrue("Verify connection id", ably.connection.id.startsWith("nio-"));
+
+			/* publish enough, and large enough, messages to exercise
+			 * the extended frame lengths and partial writes */
+			int count = 100;
+			CountingCompletionListener listener = new CountingCompletionListener(count);
+			Channel channel = ably.channels.get("nio");
+			StringBuilder data = new StringBuilder();
+			for(int i = 0; i < 100000; i++)
+				data.append((char)('a' + i % 26));
+			for(int i = 0; i < count; i++)
+				channel.publish("event", (i % 10 == 0) ? data.toString() : "data-" + i, listener);
+			assertTrue("Verify all publishes completed", listener.latch.await(20, TimeUnit.SECONDS));
+			assertEquals("Verify all publishes succeeded", count, listener.successes.get());
+			assertEquals("Verify server received every message", count, server.received.get());
+
+			ably.close();
+			connectionWaiter.waitFor(ConnectionState.closed);
+			assertEquals("Verify closed state reached", ConnectionState.closed, ably.connection.state);
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that the transport connects, publishes and closes using the JSON protocol
+	 */
+	@Test
+	public void nio_connect_publish_close_json() throws Exception {
+		connect_publish_close(false);
+	}
+
+	/**
+	 * Verify that the transport connects, publishes and closes using the msgpack protocol
+	 */
+	@Test
+	public void nio_connect_publish_close_binary() throws Exception {
+		connect_publish_close(true);
+	}
+
+	/**
+	 * Create an SSLContext with the key, or trusting the certificate,
+	 * of the self-signed test keystore for localhost
+	 */
+	private static SSLContext sslContext(boolean server) throws Exception {
+		KeyStore keyStore = KeyStore.getInstance("JKS");
+		keyStore.load(new ByteArrayInputStream(new ResourceLoader().read("local/localhost.jks")), KEYSTORE_PASSWORD);
+		SSLContext sslContext = SSLContext.getInstance("TLS");
+		if(server) {
+			KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keyManagers.init(keyStore, KEYSTORE_PASSWORD);
+			sslContext.init(keyManagers.getKeyManagers(), null, null);
+		} else {
+			TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			trustManagers.init(keyStore);
+			sslContext.init(null, trustManagers.getTrustManagers(), null);
+		}
+		return sslContext;
+	}
+
+	private static final char[] KEYSTORE_PASSWORD = "password".toCharArray();
+
+	/**
+	 * Verify that the transport connects, publishes and closes over TLS,
+	 * trusting a self-signed certificate with ClientOptions.sslContext,
+	 * and that the connection fails if the certificate is not trusted
+	 */
+	@Test
+	public void nio_tls() throws Exception {
+		LocalWebSocketServer tlsServer = new LocalWebSocketServer();
+		/* the test server does not support TLS 1.3 */
+		tlsServer.setWebSocketFactory(new CustomSSLWebSocketServerFactory(sslContext(true), new String[] { "TLSv1.2" }, null));
+		tlsServer.start();
+		try {
+			assertTrue("Verify server started", tlsServer.started.await(10, TimeUnit.SECONDS));
+			ClientOptions opts = options(true);
+			opts.tls = true;
+			opts.tlsPort = tlsServer.getPort();
+			opts.sslContext = sslContext(false);
+			connect_publish_close(opts, tlsServer);
+
+			opts = options(true);
+			opts.tls = true;
+			opts.tlsPort = tlsServer.getPort();
+			AblyRealtime ably = new AblyRealtime(opts);
+			try {
+				ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably.connection);
+				ably.connection.connect();
+				connectionWaiter.waitFor(ConnectionState.disconnected);
+				assertEquals("Verify untrusted certificate refused", 1, tlsServer.connectionCount.get());
+			} finally {
+				ably.close();
+			}
+		} finally {
+			tlsServer.stop();
+		}
+	}
+
+	/**
+	 * Verify that a connection attempt to a port with no server fails,
+	 * leaving the connection disconnected
+	 */
+	@Test
+	public void nio_connect_refused() throws Exception {
+		ClientOptions opts = options(false);
+		server.stop();
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably.connection);
+			ably.connection.connect();
+			connectionWaiter.waitFor(ConnectionState.disconnected);
+			assertEquals("Verify disconnected state reached", ConnectionState.disconnected, ably.connection.state);
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Close the transport, as the ConnectionManager does when a closed state
+	 * is requested, once the connection attempt has reached the point where
+	 * the given latch is released, and verify that the transport reports
+	 * that it closed without waiting for the connection timeout
+	 */
+	private void close_before_open(ClientOptions opts, CountDownLatch reached) throws Exception {
+		opts.realtimeRequestTimeout = 60000;
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably.connection);
+			ably.connection.connect();
+			assertTrue("Verify connection attempt started", reached.await(10, TimeUnit.SECONDS));
+			ably.connection.connectionManager.requestState(ConnectionState.closed);
+			assertTrue("Verify transport closed", connectionWaiter.waitFor(ConnectionState.disconnected, 1, 10000));
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that the transport can be closed before the server
+	 * has accepted the connection
+	 */
+	@Test
+	public void nio_close_while_connecting() throws Exception {
+		ServerSocket listener = new ServerSocket(0, 1, InetAddress.getByName("localhost"));
+		List<Socket> backlog = new ArrayList<Socket>();
+		try {
+			/* fill the listen backlog, so that further connection
+			 * attempts are left incomplete */
+			while(true) {
+				Socket socket = new Socket();
+				try {
+					socket.connect(listener.getLocalSocketAddress(), 200);
+					backlog.add(socket);
+				} catch(SocketTimeoutException e) {
+					socket.close();
+					break;
+				}
+			}
+			ClientOptions opts = options(false);
+			opts.port = listener.getLocalPort();
+			close_before_open(opts, new CountDownLatch(0));
+		} finally {
+			for(Socket socket : backlog)
+				socket.close();
+			listener.close();
+		}
+	}
+
+	/**
+	 * Verify that the transport can be closed while waiting for the
+	 * response to the WebSocket handshake, and that the socket is closed
+	 */
+	@Test
+	public void nio_close_during_handshake() throws Exception {
+		final ServerSocket listener = new ServerSocket(0, 1, InetAddress.getByName("localhost"));
+		final CountDownLatch requested = new CountDownLatch(1);
+		final CountDownLatch socketClosed = new CountDownLatch(1);
+		Thread server = new Thread() {
+			@Override
+			public void run() {
+				try {
+					/* read the handshake request, and never respond */
+					Socket socket = listener.accept();
+					InputStream in = socket.getInputStream();
+					byte[] buffer = new byte[4096];
+					int read;
+					while((read = in.read(buffer)) > 0)
+						if(new String(buffer, 0, read, "ISO-8859-1").contains("\r\n\r\n"))
+							requested.countDown();
+					socketClosed.countDown();
+					socket.close();
+				} catch(IOException e) {}
+			}
+		};
+		server.start();
+		try {
+			ClientOptions opts = options(false);
+			opts.port = listener.getLocalPort();
+			close_before_open(opts, requested);
+			assertTrue("Verify socket closed", socketClosed.await(10, TimeUnit.SECONDS));
+		} finally {
+			listener.close();
+			server.join(10000);
+		}
+	}
+
+	/**
+	 * Verify that a connection attempt to a host that cannot be resolved
+	 * fails, leaving the connection disconnected
+	 */
+	@Test
+	public void nio_connect_unknown_host() throws Exception {
+		ClientOptions opts = options(false);
+		opts.realtimeHost = "nio-unknown-host.invalid";
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably.connection);
+			ably.connection.connect();
+			connectionWaiter.waitFor(ConnectionState.disconnected);
+			assertEquals("Verify disconnected state reached", ConnectionState.disconnected, ably.connection.state);
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Publish messages to a DeflateWebSocketServer, with every tenth message
+	 * below the compression threshold, and wait for them to be acked
+	 */
+	private static void publish_deflate(DeflateWebSocketServer deflateServer, ClientOptions opts, int count) throws Exception {
+		opts.port = deflateServer.getPort();
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			ConnectionWaiter connectionWaiter = new ConnectionWaiter(ably.connection);
+			ably.connection.connect();
+			connectionWaiter.waitFor(ConnectionState.connected);
+			assertEquals("Verify connected state reached", ConnectionState.connected, ably.connection.state);
+
+			CountingCompletionListener listener = new CountingCompletionListener(count);
+			Channel channel = ably.channels.get("deflate");
+			for(int i = 0; i < count; i++) {
+				String data = (i % 10 == 0) ? "x" : "{\"sensor\":\"temperature\",\"reading\":" + i + ",\"unit\":\"celsius\",\"location\":\"warehouse-7\",\"status\":\"nominal\",\"calibrated\":true}";
+				channel.publish("reading", data, listener);
+			}
+			assertTrue("Verify all publishes completed", listener.latch.await(20, TimeUnit.SECONDS));
+			assertEquals("Verify all publishes succeeded", count, listener.successes.get());
+			assertEquals("Verify server received every message", count, deflateServer.messagesReceived.get());
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that permessage-deflate is negotiated, that messages above the
+	 * threshold are compressed, and that the compressed messages are
+	 * decompressed correctly by the server
+	 */
+	@Test
+	public void nio_deflate() throws Exception {
+		DeflateWebSocketServer deflateServer = new DeflateWebSocketServer();
+		try {
+			ClientOptions opts = options(false);
+			opts.perMessageDeflate = true;
+			opts.deflateThreshold = 150;
+			publish_deflate(deflateServer, opts, 100);
+			assertEquals("Verify extension offered", "permessage-deflate", deflateServer.lastOffer);
+			assertEquals("Verify extension accepted", "permessage-deflate", deflateServer.lastAccepted);
+			/* the attach and every tenth message are below the threshold */
+			assertEquals("Verify messages above the threshold were compressed", 90, deflateServer.compressedFramesReceived.get());
+			assertTrue("Verify compression ratio", deflateServer.wireBytesReceived.get() * 3 < deflateServer.payloadBytesReceived.get());
+		} finally {
+			deflateServer.stop();
+		}
+	}
+
+	/**
+	 * Verify that permessage-deflate works without context takeover,
+	 * using the msgpack protocol
+	 */
+	@Test
+	public void nio_deflate_no_context_takeover() throws Exception {
+		DeflateWebSocketServer deflateServer = new DeflateWebSocketServer();
+		try {
+			ClientOptions opts = options(true);
+			opts.perMessageDeflate = true;
+			opts.deflateThreshold = 150;
+			opts.deflateClientNoContextTakeover = true;
+			opts.deflateServerNoContextTakeover = true;
+			publish_deflate(deflateServer, opts, 100);
+			assertEquals("Verify extension offered", "permessage-deflate; client_no_context_takeover; server_no_context_takeover", deflateServer.lastOffer);
+			assertEquals("Verify messages above the threshold were compressed", 90, deflateServer.compressedFramesReceived.get());
+			assertTrue("Verify some compression", deflateServer.wireBytesReceived.get() < deflateServer.payloadBytesReceived.get());
+		} finally {
+			deflateServer.stop();
+		}
+	}
+
+	/**
+	 * Verify that messages are sent uncompressed if the server
+	 * does not accept permessage-deflate
+	 */
+	@Test
+	public void nio_deflate_declined() throws Exception {
+		DeflateWebSocketServer deflateServer = new DeflateWebSocketServer();
+		deflateServer.acceptDeflate = false;
+		try {
+			ClientOptions opts = options(false);
+			opts.perMessageDeflate = true;
+			opts.deflateThreshold = 150;
+			publish_deflate(deflateServer, opts, 50);
+			assertEquals("Verify extension offered", "permessage-deflate", deflateServer.lastOffer);
+			assertEquals("Verify no messages were compressed", 0, deflateServer.compressedFramesReceived.get());
+			assertEquals("Verify no messages were compressed", deflateServer.payloadBytesReceived.get(), deflateServer.wireBytesReceived.get());
+		} finally {
+			deflateServer.stop();
+		}
+	}
+
+	/**
+	 * Verify that a smaller server window is offered, and that window
+	 * sizes outside the range allowed by RFC 7692 are rejected
+	 */
+	@Test
+	public void nio_deflate_window_bits() throws Exception {
+		DeflateWebSocketServer deflateServer = new DeflateWebSocketServer();
+		try {
+			ClientOptions opts = options(false);
+			opts.perMessageDeflate = true;
+			opts.deflateServerMaxWindowBits = 8;
+			publish_deflate(deflateServer, opts, 10);
+			assertEquals("Verify window offered", "permessage-deflate; server_max_window_bits=8", deflateServer.lastOffer);
+		} finally {
+			deflateServer.stop();
+		}
+
+		for(int bits : new int[] { 0, 7, 16 }) {
+			ClientOptions opts = options(false);
+			opts.perMessageDeflate = true;
+			opts.deflateServerMaxWindowBits = bits;
+			try {
+				new AblyRealtime(opts);
+				fail("Expected window bits " + bits + " to be rejected");
+			} catch(AblyException e) {
+				assertEquals(40000, e.errorInfo.code);
+			}
+		}
+	}
+}
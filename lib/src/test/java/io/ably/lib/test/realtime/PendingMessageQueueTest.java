@@ -0,0 +1,123 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import io.ably.lib.realtime.CompletionListener;
+import io.ably.lib.transport.ConnectionManager.QueuedMessage;
+import io.ably.lib.transport.PendingMessageQueue;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.ProtocolMessage;
+
+public class PendingMessageQueueTest {
+
+	/* records the order in which messages are completed; acks are
+	 * recorded as +serial and nacks as -(serial + 1) */
+	private static class Recorder {
+		QueuedMessage message(final long serial) {
+			return new QueuedMessage(new ProtocolMessage(ProtocolMessage.Action.message), new CompletionListener() {
+				@Override
+				public void onSuccess() { results.add(serial); }
+				@Override
+				public void onError(ErrorInfo reason) { results.add(-(serial + 1)); }
+			});
+		}
+		final List<Long> results = new ArrayList<Long>();
+	}
+
+	private static void push(PendingMessageQueue queue, Recorder recorder, long from, long to) {
+		for(long serial = from; serial < to; serial++)
+			queue.push(recorder.message(serial));
+	}
+
+	/**
+	 * Ack messages in batches, across wraparound of the buffer and
+	 * while it grows, and verify that every message is acked in order
+	 */
+	@Test
+	public void pending_ack_in_order() {
+		PendingMessageQueue queue = new PendingMessageQueue(4);
+		Recorder recorder = new Recorder();
+		long pushed = 0, acked = 0;
+		for(int round = 0; round < 50; round++) {
+			int n = (round * 7) % 23 + 1;
+			push(queue, recorder, pushed, pushed + n);
+			pushed += n;
+			int ackCount = (int)Math.min(pushed - acked, (round * 5) % 17 + 1);
+			queue.ack(acked, ackCount, null);
+			acked += ackCount;
+			assertEquals(pushed - acked, queue.size());
+			assertEquals(acked, queue.getStartSerial());
+		}
+		queue.ack(acked, (int)(pushed - acked), null);
+		assertEquals(0, queue.size());
+		assertEquals(pushed, recorder.results.size());
+		for(int i = 0; i < pushed; i++)
+			assertEquals(Long.valueOf(i), recorder.results.get(i));
+	}
+
+	/**
+	 * An ack beyond the start of the queue implicitly nacks the earlier
+	 * messages; an ack that overlaps already acked messages only
+	 * acks the remainder
+	 */
+	@Test
+	public void pending_ack_gaps_and_overlaps() {
+		PendingMessageQueue queue = new PendingMessageQueue();
+		Recorder recorder = new Recorder();
+		push(queue, recorder, 0, 10);
+		queue.ack(2, 3, null);
+		assertEquals(5, queue.size());
+		assertEquals(5L, queue.getStartSerial());
+		queue.ack(3, 4, null);
+		assertEquals(3, queue.size());
+		assertEquals(7L, queue.getStartSerial());
+		Long[] expected = new Long[] {-1L, -2L, 2L, 3L, 4L, 5L, 6L};
+		assertEquals(expected.length, recorder.results.size());
+		for(int i = 0; i < expected.length; i++)
+			assertEquals(expected[i], recorder.results.get(i));
+	}
+
+	/**
+	 * Nack and reset fail the relevant messages
+	 */
+	@Test
+	public void pending_nack_and_reset() {
+		PendingMessageQueue queue = new PendingMessageQueue();
+		Recorder recorder = new Recorder();
+		push(queue, recorder, 0, 6);
+		queue.nack(0, 2, new ErrorInfo("nacked", 500, 50000));
+		assertEquals(4, queue.size());
+		queue.removeLast();
+		queue.reset(5, new ErrorInfo("reset", 500, 50000));
+		assertEquals(0, queue.size());
+		assertEquals(0L, queue.getStartSerial());
+		Long[] expected = new Long[] {-1L, -2L, -3L, -4L, -5L};
+		assertEquals(expected.length, recorder.results.size());
+		for(int i = 0; i < expected.length; i++)
+			assertEquals(expected[i], recorder.results.get(i));
+	}
+
+	/**
+	 * Ack one message at a time with a very large number in flight;
+	 * with an ArrayList-backed queue this is quadratic
+	 */
+	@Test(timeout = 10000)
+	public void pending_ack_high_depth() {
+		int depth = 200000;
+		PendingMessageQueue queue = new PendingMessageQueue();
+		QueuedMessage msg = new QueuedMessage(new ProtocolMessage(ProtocolMessage.Action.message), null);
+		for(int i = 0; i < depth; i++)
+			queue.push(msg);
+		for(int i = 0; i < depth; i++) {
+			queue.ack(i, 1, null);
+			queue.push(msg);
+		}
+		assertEquals(depth, queue.size());
+		assertEquals((long)depth, queue.getStartSerial());
+	}
+}
@@ -0,0 +1,128 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.realtime.PingListener;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.util.LocalServerTransport;
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.ProtocolMessage;
+
+public class PingTest {
+
+	private String oldTransport;
+
+	@Before
+	public void setUp() {
+		oldTransport = Defaults.TRANSPORT;
+		Defaults.TRANSPORT = LocalServerTransport.Factory.class.getName();
+		LocalServerTransport.replyToHeartbeats = true;
+	}
+
+	@After
+	public void tearDown() {
+		Defaults.TRANSPORT = oldTransport;
+		LocalServerTransport.replyToHeartbeats = true;
+	}
+
+	private static class CountingPingListener implements PingListener {
+		CountingPingListener(int expected) { latch = new CountDownLatch(expected); }
+		@Override
+		public void onSuccess(long roundTripTime) { successes.incrementAndGet(); rtt.set(roundTripTime); latch.countDown(); }
+		@Override
+		public void onError(ErrorInfo reason) { errors.incrementAndGet(); latch.countDown(); }
+		final AtomicInteger successes = new AtomicInteger();
+		final AtomicInteger errors = new AtomicInteger();
+		final AtomicLong rtt = new AtomicLong(-1);
+		final CountDownLatch latch;
+	}
+
+	private static List<ProtocolMessage> sentHeartbeats() {
+		List<ProtocolMessage> sent = new ArrayList<ProtocolMessage>();
+		for(ProtocolMessage msg : LocalServerTransport.lastCreatedTransport.getSentMessages())
+			if(msg.action == ProtocolMessage.Action.heartbeat)
+				sent.add(msg);
+		return sent;
+	}
+
+	/**
+	 * Verify that each ping sends a heartbeat with a distinct id, is
+	 * completed by the matching response, and updates the round trip time
+	 */
+	@Test
+	public void ping_correlated_responses() throws Exception {
+		AblyRealtime ably = new AblyRealtime(ConnectionManagerLoopTest.localOptions());
+		try {
+			ably.connection.connect();
+			new ConnectionWaiter(ably.connection).waitFor(ConnectionState.connected);
+			assertEquals(-1, ably.connection.getRoundTripTime());
+
+			int count = 50;
+			int threadsBefore = Thread.activeCount();
+			CountingPingListener listener = new CountingPingListener(count);
+			for(int i = 0; i < count; i++)
+				ably.connection.ping(listener);
+			assertTrue("Pings not completed", listener.latch.await(5, TimeUnit.SECONDS));
+			assertEquals(count, listener.successes.get());
+			assertTrue("Expected no thread per ping", Thread.activeCount() < threadsBefore + count);
+
+			Set<String> ids = new HashSet<String>();
+			for(ProtocolMessage msg : sentHeartbeats())
+				ids.add(msg.id);
+			assertEquals(count, ids.size());
+			assertTrue(ably.connection.getRoundTripTime() >= 0);
+			assertTrue(ably.connection.getAverageRoundTripTime() >= 0);
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that a response only completes the ping it identifies
+	 */
+	@Test
+	public void ping_response_for_other_ping() throws Exception {
+		LocalServerTransport.replyToHeartbeats = false;
+		AblyRealtime ably = new AblyRealtime(ConnectionManagerLoopTest.localOptions());
+		try {
+			ably.connection.connect();
+			new ConnectionWaiter(ably.connection).waitFor(ConnectionState.connected);
+			CountingPingListener first = new CountingPingListener(1);
+			CountingPingListener second = new CountingPingListener(1);
+			ably.connection.ping(first);
+			ably.connection.ping(second);
+			for(int i = 0; i < 50 && sentHeartbeats().size() < 2; i++)
+				Thread.sleep(20);
+			List<ProtocolMessage> heartbeats = sentHeartbeats();
+			assertEquals(2, heartbeats.size());
+			assertNotEquals(heartbeats.get(0).id, heartbeats.get(1).id);
+
+			ProtocolMessage response = new ProtocolMessage(ProtocolMessage.Action.heartbeat);
+			response.id = heartbeats.get(1).id;
+			LocalServerTransport.lastCreatedTransport.deliver(response);
+			assertTrue(second.latch.await(1, TimeUnit.SECONDS));
+			assertEquals(1, second.successes.get());
+			assertEquals(1, first.latch.getCount());
+		} finally {
+			ably.close();
+		}
+	}
+}
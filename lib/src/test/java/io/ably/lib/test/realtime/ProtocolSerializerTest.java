@@ -0,0 +1,275 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+import org.msgpack.core.MessagePacker;
+
+import com.google.gson.JsonObject;
+
+import io.ably.lib.types.Message;
+import io.ably.lib.types.MessageDecodeException;
+import io.ably.lib.types.MessageSerializer;
+import io.ably.lib.types.PresenceMessage;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.ProtocolSerializer;
+import io.ably.lib.util.Serialisation;
+
+/**
+ * Tests of decoding msgpack ProtocolMessages from ByteBuffers
+ */
+public class ProtocolSerializerTest {
+
+	private static byte[] randomBytes(int size) {
+		byte[] bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		return bytes;
+	}
+
+	private static byte[] toBytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+	private static ProtocolMessage binaryProtocolMessage() {
+		ProtocolMessage msg = new ProtocolMessage(ProtocolMessage.Action.message, "binary");
+		msg.messages = new Message[] {
+			new Message("large", randomBytes(65536)),
+			new Message("text", "text data"),
+			new Message("small", randomBytes(100))
+		};
+		PresenceMessage presence = new PresenceMessage(PresenceMessage.Action.enter, "client");
+		presence.data = randomBytes(300);
+		msg.presence = new PresenceMessage[] { presence };
+		return msg;
+	}
+
+	/**
+	 * Wrap the packed message as each kind of buffer that may be received:
+	 * array-backed at a non-zero offset, read-only, and direct
+	 */
+	private static ByteBuffer[] buffers(byte[] packed) {
+		byte[] padded = new byte[packed.length + 10];
+		System.arraycopy(packed, 0, padded, 7, packed.length);
+		ByteBuffer direct = ByteBuffer.allocateDirect(packed.length);
+		direct.put(packed).flip();
+		return new ByteBuffer[] {
+			ByteBuffer.wrap(padded, 7, packed.length),
+			ByteBuffer.wrap(padded, 7, packed.length).asReadOnlyBuffer(),
+			direct
+		};
+	}
+
+	/**
+	 * Verify that a ProtocolMessage is decoded from each kind of buffer,
+	 * with binary data copied, and the buffer's position unchanged
+	 */
+	@Test
+	public void decode_bytebuffer() throws Exception {
+		ProtocolMessage msg = binaryProtocolMessage();
+		for(ByteBuffer buffer : buffers(ProtocolSerializer.writeMsgpack(msg))) {
+			int position = buffer.position();
+			ProtocolMessage decoded = ProtocolSerializer.readMsgpack(buffer, false);
+			assertEquals("Verify buffer position unchanged", position, buffer.position());
+			assertEquals("Verify channel", "binary", decoded.channel);
+			assertEquals("Verify message count", 3, decoded.messages.length);
+			assertArrayEquals("Verify large data", (byte[])msg.messages[0].data, (byte[])decoded.messages[0].data);
+			assertEquals("Verify text data", "text data", decoded.messages[1].data);
+			assertArrayEquals("Verify small data", (byte[])msg.messages[2].data, (byte[])decoded.messages[2].data);
+			assertArrayEquals("Verify presence data", (byte[])msg.presence[0].data, (byte[])decoded.presence[0].data);
+		}
+	}
+
+	/**
+	 * Verify that, with sliceBinaryData, binary data is a read-only slice
+	 * of the received buffer, and is not copied
+	 */
+	@Test
+	public void decode_bytebuffer_slices() throws Exception {
+		ProtocolMessage msg = binaryProtocolMessage();
+		for(ByteBuffer buffer : buffers(ProtocolSerializer.writeMsgpack(msg))) {
+			ProtocolMessage decoded = ProtocolSerializer.readMsgpack(buffer, true);
+			assertTrue("Verify data is a ByteBuffer", decoded.messages[0].data instanceof ByteBuffer);
+			ByteBuffer large = (ByteBuffer)decoded.messages[0].data;
+			assertTrue("Verify data is read-only", large.isReadOnly());
+			assertArrayEquals("Verify large data", (byte[])msg.messages[0].data, toBytes(large));
+			assertEquals("Verify text data", "text data", decoded.messages[1].data);
+			assertArrayEquals("Verify small data", (byte[])msg.messages[2].data, toBytes((ByteBuffer)decoded.messages[2].data));
+			assertArrayEquals("Verify presence data", (byte[])msg.presence[0].data, toBytes((ByteBuffer)decoded.presence[0].data));
+
+			if(buffer.hasArray()) {
+				/* the slice shares the content of the received buffer */
+				byte[] array = buffer.array();
+				for(int i = 0; i < array.length; i++)
+					array[i] = (byte)~array[i];
+				byte[] largeData = (byte[])msg.messages[0].data;
+				assertEquals("Verify data not copied", (byte)~largeData[0], large.get(0));
+				assertEquals("Verify data not copied", (byte)~largeData[largeData.length - 1], large.get(large.limit() - 1));
+				/* restore the content, which the next buffer shares */
+				for(int i = 0; i < array.length; i++)
+					array[i] = (byte)~array[i];
+			}
+		}
+	}
+
+	/**
+	 * Verify that sliced data is decoded according to its encoding,
+	 * and can be re-encoded for publishing
+	 */
+	@Test
+	public void decode_bytebuffer_slices_encoding() throws Exception {
+		Message[] messages = new Message[] { new Message("utf8", "café".getBytes("UTF-8")) };
+		messages[0].encoding = "utf-8";
+		ByteBuffer direct = ByteBuffer.allocateDirect(1024);
+		direct.put(MessageSerializer.asMsgpackRequest(messages).getEncoded()).flip();
+		Message decoded = MessageSerializer.readMsgpack(direct, true)[0];
+		assertTrue("Verify data is a ByteBuffer", decoded.data instanceof ByteBuffer);
+		decoded.decode(null);
+		assertEquals("Verify utf-8 data decoded", "café", decoded.data);
+
+		Message binary = MessageSerializer.readMsgpack(ByteBuffer.wrap(MessageSerializer.asMsgpackRequest(new Message[] { new Message("binary", randomBytes(20)) }).getEncoded()), true)[0];
+		binary.encode(null);
+		assertArrayEquals("Verify sliced data re-encoded as byte[]", randomBytes(20), (byte[])binary.data);
+	}
+
+	/**
+	 * Verify that field names are written as packString() would write them,
+	 * and that successive messages encoded on a thread are independent
+	 */
+	@Test
+	public void encode_reuses_packer() throws Exception {
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		MessagePacker packer = Serialisation.msgpackPackerConfig.newPacker(expected);
+		packer.packMapHeader(3);
+		packer.packString("action").packInt(ProtocolMessage.Action.attach.getValue());
+		packer.packString("channel").packString("keys");
+		packer.packString("msgSerial").packLong(7);
+		packer.flush();
+		ProtocolMessage attach = new ProtocolMessage(ProtocolMessage.Action.attach, "keys");
+		attach.msgSerial = 7L;
+		assertArrayEquals("Verify encoding unchanged", expected.toByteArray(), ProtocolSerializer.writeMsgpack(attach));
+
+		byte[] large = ProtocolSerializer.writeMsgpack(binaryProtocolMessage());
+		assertArrayEquals("Verify small message after large", expected.toByteArray(), ProtocolSerializer.writeMsgpack(attach));
+		assertArrayEquals("Verify large message repeated", large, ProtocolSerializer.writeMsgpack(binaryProtocolMessage()));
+	}
+
+	/**
+	 * Verify that fields with unknown names, including names longer
+	 * than any known name, are skipped
+	 */
+	@Test
+	public void decode_unknown_fields() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		MessagePacker packer = Serialisation.msgpackPackerConfig.newPacker(out);
+		packer.packMapHeader(5);
+		packer.packString("action").packInt(ProtocolMessage.Action.message.getValue());
+		packer.packString("chanel").packString("misspelt");
+		packer.packString("a field name longer than any field name of the protocol").packMapHeader(1).packString("id").packString("nested");
+		packer.packString("channel").packString("unknown");
+		packer.packString("messages").packArrayHeader(1);
+		packer.packMapHeader(3);
+		packer.packString("nam").packString("short");
+		packer.packString("name").packString("event");
+		packer.packString("names").packString("long");
+		packer.flush();
+		ProtocolMessage decoded = ProtocolSerializer.readMsgpack(out.toByteArray());
+		assertEquals(ProtocolMessage.Action.message, decoded.action);
+		assertEquals("unknown", decoded.channel);
+		assertEquals("Verify nested field not read", null, decoded.id);
+		assertEquals(1, decoded.messages.length);
+		assertEquals("event", decoded.messages[0].name);
+	}
+
+	/**
+	 * Verify that a ProtocolMessage written as JSON is read back
+	 * with the same fields, and binary data base64 encoded
+	 */
+	@Test
+	public void json_round_trip() throws Exception {
+		ProtocolMessage msg = binaryProtocolMessage();
+		msg.msgSerial = 12L;
+		msg.id = "json:0";
+		msg.messages[1].clientId = "client";
+		byte[] json = ProtocolSerializer.writeJSON(msg);
+
+		JsonObject tree = (JsonObject)Serialisation.gsonParser.parse(new String(json, "UTF-8"));
+		assertEquals(ProtocolMessage.Action.message.getValue(), tree.get("action").getAsInt());
+		assertTrue("Verify zero fields omitted", !tree.has("flags") && !tree.has("timestamp"));
+		assertEquals("base64", tree.getAsJsonArray("messages").get(0).getAsJsonObject().get("encoding").getAsString());
+
+		ProtocolMessage decoded = ProtocolSerializer.readJSON(json);
+		assertEquals(ProtocolMessage.Action.message, decoded.action);
+		assertEquals("binary", decoded.channel);
+		assertEquals("json:0", decoded.id);
+		assertEquals(Long.valueOf(12), decoded.msgSerial);
+		assertEquals(3, decoded.messages.length);
+		assertEquals("large", decoded.messages[0].name);
+		decoded.messages[0].decode(null);
+		assertArrayEquals("Verify large data", (byte[])msg.messages[0].data, (byte[])decoded.messages[0].data);
+		assertEquals("text data", decoded.messages[1].data);
+		assertEquals("client", decoded.messages[1].clientId);
+		assertEquals(PresenceMessage.Action.enter, decoded.presence[0].action);
+		assertEquals("client", decoded.presence[0].clientId);
+		decoded.presence[0].decode(null);
+		assertArrayEquals("Verify presence data", (byte[])msg.presence[0].data, (byte[])decoded.presence[0].data);
+	}
+
+	/**
+	 * Verify that text in every UTF-8 sequence length, including surrogate
+	 * pairs spanning the reader's buffer, is written and read as UTF-8
+	 */
+	@Test
+	public void json_utf8() throws Exception {
+		StringBuilder text = new StringBuilder();
+		for(int i = 0; i < 700; i++)
+			text.append("a\u00e9\u2713\ud83d\ude00");
+		ProtocolMessage msg = new ProtocolMessage(ProtocolMessage.Action.message, "caf\u00e9");
+		msg.messages = new Message[] { new Message("\ud83d\ude00", text.toString()) };
+		byte[] json = ProtocolSerializer.writeJSON(msg);
+		assertEquals("Verify UTF-8", new String(json, "UTF-8"), Serialisation.gson.toJson(msg));
+
+		ProtocolMessage decoded = ProtocolSerializer.readJSON(json);
+		assertEquals("caf\u00e9", decoded.channel);
+		assertEquals("\ud83d\ude00", decoded.messages[0].name);
+		assertEquals(text.toString(), decoded.messages[0].data);
+		assertEquals("Verify malformed UTF-8 replaced", "a\ufffdb",
+				ProtocolSerializer.readJSON(new byte[] { '{', '"', 'c', 'h', 'a', 'n', 'n', 'e', 'l', '"', ':', '"', 'a', (byte)0xe2, (byte)0x9c, 'b', '"', '}' }).channel);
+	}
+
+	/**
+	 * Verify that JSON fields that are null, unknown, or nested
+	 * objects are read as the service sends them
+	 */
+	@Test
+	public void json_read_fields() throws Exception {
+		String json = "{\"action\":9,\"flags\":1,\"unknown\":{\"a\":[1,2]},\"channel\":null,"
+				+ "\"error\":{\"message\":\"failed\",\"statusCode\":400,\"code\":40000},"
+				+ "\"connectionDetails\":{\"connectionKey\":\"key\",\"maxMessageSize\":65536},"
+				+ "\"messages\":[{\"name\":\"object\",\"data\":{\"a\":1},\"extra\":true},"
+				+ "{\"name\":\"cipher\",\"encoding\":\"cipher+aes-128-cbc\",\"data\":\"AQI=\",\"timestamp\":5}]}";
+		ProtocolMessage decoded = ProtocolSerializer.readJSON(json.getBytes("UTF-8"));
+		assertEquals(ProtocolMessage.Action.error, decoded.action);
+		assertEquals(1, decoded.flags);
+		assertEquals(null, decoded.channel);
+		assertEquals(40000, decoded.error.code);
+		assertEquals("failed", decoded.error.message);
+		assertEquals("key", decoded.connectionDetails.connectionKey);
+		assertEquals(Long.valueOf(65536), decoded.connectionDetails.maxMessageSize);
+		assertTrue("Verify object data read as JSON", decoded.messages[0].data instanceof JsonObject);
+		assertEquals(5, decoded.messages[1].timestamp);
+		assertEquals("cipher+aes-128-cbc", ProtocolSerializer.fromJSON(json).messages[1].encoding);
+		try {
+			decoded.messages[1].decode(null);
+			fail("Expected decode error");
+		} catch(MessageDecodeException e) {}
+	}
+}
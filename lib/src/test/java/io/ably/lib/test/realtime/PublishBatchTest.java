@@ -0,0 +1,121 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.realtime.ConnectionManagerLoopTest.CountingCompletionListener;
+import io.ably.lib.test.util.LocalServerTransport;
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.types.ClientOptions;
+import io.ably.lib.types.Message;
+import io.ably.lib.types.ProtocolMessage;
+
+/**
+ * Tests for batching of publishes while connected
+ */
+public class PublishBatchTest {
+
+	private String oldTransport;
+
+	@Before
+	public void setUp() {
+		oldTransport = Defaults.TRANSPORT;
+		Defaults.TRANSPORT = LocalServerTransport.Factory.class.getName();
+		LocalServerTransport.autoAck = true;
+	}
+
+	@After
+	public void tearDown() {
+		Defaults.TRANSPORT = oldTransport;
+	}
+
+	private static int countMessages(String channel, int[] frames) {
+		int count = 0;
+		for(ProtocolMessage msg : LocalServerTransport.lastCreatedTransport.getSentMessages()) {
+			if(msg.action == ProtocolMessage.Action.message && channel.equals(msg.channel)) {
+				++frames[0];
+				count += msg.messages.length;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Publish a burst of messages with batching enabled, and verify
+	 * that they are sent in fewer ProtocolMessages, in order, and that
+	 * every listener is called when the batch is acked
+	 */
+	@Test
+	public void publish_batch_merges_messages() throws Exception {
+		ClientOptions opts = ConnectionManagerLoopTest.localOptions();
+		opts.publishBatchLinger = 50;
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			ably.connection.connect();
+			new ConnectionWaiter(ably.connection).waitFor(ConnectionState.connected);
+			Channel channel = ably.channels.get("publish_batch");
+			channel.attach();
+			int count = 200;
+			CountingCompletionListener listener = new CountingCompletionListener(count);
+			for(int i = 0; i < count; i++)
+				channel.publish("event", "data" + i, listener);
+
+			assertTrue("Publishes not completed", listener.latch.await(5, TimeUnit.SECONDS));
+			assertEquals(count, listener.successes.get());
+
+			int[] frames = new int[1];
+			assertEquals(count, countMessages("publish_batch", frames));
+			assertTrue("Expected messages to be batched", frames[0] < count / 10);
+
+			int i = 0;
+			for(ProtocolMessage msg : LocalServerTransport.lastCreatedTransport.getSentMessages())
+				if(msg.action == ProtocolMessage.Action.message)
+					for(Message message : msg.messages)
+						assertEquals("Unexpected message order", "data" + i++, message.data);
+		} finally {
+			ably.close();
+		}
+	}
+
+	/**
+	 * Verify that a batch is sent as soon as it reaches the maximum size,
+	 * without waiting for the linger time to expire
+	 */
+	@Test
+	public void publish_batch_max_bytes() throws Exception {
+		ClientOptions opts = ConnectionManagerLoopTest.localOptions();
+		opts.publishBatchLinger = 60000;
+		opts.publishBatchMaxBytes = 100;
+		AblyRealtime ably = new AblyRealtime(opts);
+		try {
+			ably.connection.connect();
+			new ConnectionWaiter(ably.connection).waitFor(ConnectionState.connected);
+			Channel channel = ably.channels.get("publish_batch_max");
+			channel.attach();
+			/* each message is 5 + 45 = 50 bytes, so each pair fills a batch */
+			String data = "0123456789012345678901234567890123456789abcde";
+			CountingCompletionListener listener = new CountingCompletionListener(4);
+			for(int i = 0; i < 4; i++)
+				channel.publish("event", data, listener);
+
+			assertTrue("Publishes not completed", listener.latch.await(5, TimeUnit.SECONDS));
+			assertEquals(4, listener.successes.get());
+
+			int[] frames = new int[1];
+			assertEquals(4, countMessages("publish_batch_max", frames));
+			assertEquals(2, frames[0]);
+		} finally {
+			ably.close();
+		}
+	}
+}
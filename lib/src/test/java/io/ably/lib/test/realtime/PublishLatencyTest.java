@@ -0,0 +1,156 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.ChannelState;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers.ChannelWaiter;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.realtime.ConnectionManagerLoopTest.CountingCompletionListener;
+import io.ably.lib.test.util.LocalServerTransport;
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.types.ChannelOptions;
+import io.ably.lib.util.LatencyHistogram;
+
+/**
+ * Tests for the latency histogram, and the publish latencies
+ * recorded for connections and channels
+ */
+public class PublishLatencyTest {
+
+	private String oldTransport;
+
+	@Before
+	public void setUp() {
+		oldTransport = Defaults.TRANSPORT;
+		Defaults.TRANSPORT = LocalServerTransport.Factory.class.getName();
+		LocalServerTransport.autoAck = true;
+	}
+
+	@After
+	public void tearDown() {
+		Defaults.TRANSPORT = oldTransport;
+		LocalServerTransport.autoAck = true;
+	}
+
+	private static void assertWithin(String message, long expected, long actual) {
+		assertTrue(message + ": expected " + expected + " but was " + actual,
+				actual >= expected && actual <= expected + expected / 16 + 1);
+	}
+
+	/**
+	 * Verify the percentiles read from a histogram are within
+	 * the precision of its buckets
+	 */
+	@Test
+	public void histogram_percentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for(int i = 10000; i > 0; i--)
+			histogram.record(i);
+		LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+		assertEquals("Verify count", 10000, snapshot.getCount());
+		assertEquals("Verify min", 1, snapshot.getMin());
+		assertEquals("Verify max", 10000, snapshot.getMax());
+		assertEquals("Verify mean", 5000.5, snapshot.getMean(), 0.001);
+		assertWithin("Verify p50", 5000, snapshot.getP50());
+		assertWithin("Verify p90", 9000, snapshot.getP90());
+		assertWithin("Verify p99", 9900, snapshot.getP99());
+		assertEquals("Verify p99.9 limited to max", 10000, snapshot.getP999());
+		assertEquals("Verify p0", 1, snapshot.getPercentile(0));
+
+		/* small values are exact; large ones keep their precision */
+		histogram.reset();
+		histogram.record(7);
+		histogram.record(3000000000L);
+		histogram.record(Long.MAX_VALUE);
+		snapshot = histogram.getSnapshot();
+		assertEquals("Verify small value exact", 7, snapshot.getPercentile(30));
+		assertWithin("Verify large value", 3000000000L, snapshot.getPercentile(60));
+		assertEquals("Verify largest value", Long.MAX_VALUE, snapshot.getPercentile(100));
+	}
+
+	/**
+	 * Verify interval snapshots contain only the values recorded since
+	 * the previous one, and that reset discards all values
+	 */
+	@Test
+	public void histogram_interval_and_reset() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for(int i = 0; i < 100; i++)
+			histogram.record(100);
+		LatencyHistogram.Snapshot first = histogram.getIntervalSnapshot();
+		assertEquals("Verify first interval", 100, first.getCount());
+		assertEquals("Verify first interval", 100, first.getP99());
+
+		for(int i = 0; i < 50; i++)
+			histogram.record(2000);
+		LatencyHistogram.Snapshot second = histogram.getIntervalSnapshot();
+		assertEquals("Verify second interval", 50, second.getCount());
+		assertWithin("Verify second interval", 2000, second.getP50());
+		assertTrue("Verify second interval excludes earlier values", second.getMin() > 100);
+		assertEquals("Verify second interval mean", 2000.0, second.getMean(), 0.001);
+		assertEquals("Verify totals", 150, histogram.getSnapshot().getCount());
+
+		assertEquals("Verify empty interval", 0, histogram.getIntervalSnapshot().getCount());
+		histogram.reset();
+		assertEquals("Verify reset", 0, histogram.getSnapshot().getCount());
+		assertEquals("Verify reset", 0, histogram.getSnapshot().getP99());
+		histogram.record(5);
+		assertEquals("Verify interval after reset", 1, histogram.getIntervalSnapshot().getCount());
+	}
+
+	/**
+	 * Verify that the time from publish to ACK is recorded for the
+	 * connection, and for a channel that records it
+	 */
+	@Test
+	public void publish_latency_recorded() throws Exception {
+		LocalServerTransport.autoAck = false;
+		AblyRealtime ably = new AblyRealtime(ConnectionManagerLoopTest.localOptions());
+		try {
+			ably.connection.connect();
+			new ConnectionWaiter(ably.connection).waitFor(ConnectionState.connected);
+			ChannelOptions channelOptions = new ChannelOptions();
+			channelOptions.recordPublishLatency = true;
+			Channel recorded = ably.channels.get("latency_recorded", channelOptions);
+			Channel unrecorded = ably.channels.get("latency_unrecorded");
+			recorded.attach();
+			unrecorded.attach();
+			new ChannelWaiter(recorded).waitFor(ChannelState.attached);
+			new ChannelWaiter(unrecorded).waitFor(ChannelState.attached);
+			assertNull("Verify latency not recorded by default", unrecorded.getPublishLatency());
+
+			CountingCompletionListener listener = new CountingCompletionListener(2);
+			recorded.publish("event", "data", listener);
+			unrecorded.publish("event", "data", listener);
+			long deadline = System.currentTimeMillis() + 5000;
+			while(LocalServerTransport.lastCreatedTransport.getSentMessages().size() < 4 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			Thread.sleep(50);
+			LocalServerTransport.lastCreatedTransport.ack(0, 2);
+			assertTrue("Verify publishes completed", listener.latch.await(5, TimeUnit.SECONDS));
+
+			LatencyHistogram.Snapshot connectionLatency = ably.connection.getPublishLatency().getSnapshot();
+			assertEquals("Verify connection latencies", 2, connectionLatency.getCount());
+			assertTrue("Verify latency measured", connectionLatency.getMin() >= 50000);
+			assertNotNull("Verify channel latency recorded", recorded.getPublishLatency());
+			assertEquals("Verify channel latencies", 1, recorded.getPublishLatency().getSnapshot().getCount());
+
+			ably.channels.release("latency_recorded");
+			assertNull("Verify channel latency discarded on release", ably.connection.connectionManager.getChannelPublishLatency("latency_recorded"));
+		} finally {
+			ably.close();
+		}
+	}
+}
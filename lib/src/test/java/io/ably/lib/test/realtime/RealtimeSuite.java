@@ -14,8 +14,28 @@ import io.ably.lib.test.common.Setup;
 @RunWith(Suite.class)
 @SuiteClasses({
 	ConnectionManagerTest.class,
+	ConnectionManagerLoopTest.class,
+	PublishBatchTest.class,
+	PendingMessageQueueTest.class,
+	MessageQueueTest.class,
+	FlowControlTest.class,
+	PingTest.class,
+	ProtocolSerializerTest.class,
+	LogTest.class,
+	NioWebSocketTransportTest.class,
 	HostsTest.class,
+	ConnectionRacingTest.class,
+	ConnectivityProbeTest.class,
+	MetricsTest.class,
+	PublishLatencyTest.class,
+	RecoveryStateTest.class,
+	ChannelReattachTest.class,
+	ChannelsTest.class,
+	DispatchTest.class,
+	MessageFilterTest.class,
+	LazyDecodingTest.class,
 	EventEmitterTest.class,
+	SchedulerTest.class,
 	RealtimeHttpHeaderTest.class,
 	RealtimeAuthTest.class,
 	RealtimeReauthTest.class,
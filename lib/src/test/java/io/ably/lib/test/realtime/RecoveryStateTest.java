@@ -0,0 +1,143 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.ably.lib.realtime.AblyRealtime;
+import io.ably.lib.realtime.Channel;
+import io.ably.lib.realtime.ChannelState;
+import io.ably.lib.realtime.ConnectionState;
+import io.ably.lib.test.common.Helpers.ChannelWaiter;
+import io.ably.lib.test.common.Helpers.ConnectionWaiter;
+import io.ably.lib.test.util.LocalServerTransport;
+import io.ably.lib.transport.Defaults;
+import io.ably.lib.transport.FileRecoveryStore;
+import io.ably.lib.transport.RecoveryState;
+import io.ably.lib.types.ClientOptions;
+
+/**
+ * Tests for checkpointing the recovery state to a RecoveryStore,
+ * and restoring it in a new client
+ */
+public class RecoveryStateTest {
+
+	private String oldTransport;
+	private File file;
+
+	@Before
+	public void setUp() throws Exception {
+		oldTransport = Defaults.TRANSPORT;
+		Defaults.TRANSPORT = LocalServerTransport.Factory.class.getName();
+		file = File.createTempFile("recovery", ".json");
+		file.delete();
+	}
+
+	@After
+	public void tearDown() {
+		Defaults.TRANSPORT = oldTransport;
+		file.delete();
+	}
+
+	private static RecoveryState awaitState(FileRecoveryStore store, int channelCount) throws Exception {
+		long deadline = System.currentTimeMillis() + 5000;
+		RecoveryState state = store.load();
+		while((state == null || state.channels.size() != channelCount) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+			state = store.load();
+		}
+		return state;
+	}
+
+	/**
+	 * Verify that a FileRecoveryStore returns the state saved,
+	 * replaces it on each save, and returns null once cleared
+	 */
+	@Test
+	public void file_store_save_load_clear() throws Exception {
+		FileRecoveryStore store = new FileRecoveryStore(file);
+		assertNull("Verify no state initially", store.load());
+
+		RecoveryState state = new RecoveryState();
+		state.recoveryKey = "key:1";
+		state.timestamp = 1234L;
+		state.channels.add(new RecoveryState.Channel("channel", "attach:1", "sync:1"));
+		store.save(state);
+		RecoveryState loaded = store.load();
+		assertEquals("Verify recovery key", "key:1", loaded.recoveryKey);
+		assertEquals("Verify timestamp", 1234L, loaded.timestamp);
+		assertEquals("Verify channels", 1, loaded.channels.size());
+		assertEquals("Verify channel name", "channel", loaded.channels.get(0).name);
+		assertEquals("Verify attach serial", "attach:1", loaded.channels.get(0).attachSerial);
+		assertEquals("Verify sync serial", "sync:1", loaded.channels.get(0).syncChannelSerial);
+
+		state.recoveryKey = "key:2";
+		state.channels.clear();
+		store.save(state);
+		loaded = store.load();
+		assertEquals("Verify state replaced", "key:2", loaded.recoveryKey);
+		assertEquals("Verify state replaced", 0, loaded.channels.size());
+		assertFalse("Verify no temporary file left", new File(file.getPath() + ".tmp").exists());
+
+		store.clear();
+		assertNull("Verify state cleared", store.load());
+	}
+
+	/**
+	 * Verify that a client checkpoints its connection and attached channels,
+	 * that a new client with the same store recovers them, and that the state
+	 * is cleared when the connection is closed
+	 */
+	@Test
+	public void recovery_state_checkpoint_and_restore() throws Exception {
+		FileRecoveryStore store = new FileRecoveryStore(file);
+		ClientOptions opts = ConnectionManagerLoopTest.localOptions();
+		opts.recoveryStore = store;
+		opts.recoveryCheckpointInterval = 50;
+		AblyRealtime ably = new AblyRealtime(opts);
+		ably.connection.connect();
+		new ConnectionWaiter(ably.connection).waitFor(ConnectionState.connected);
+		Channel channel = ably.channels.get("recovery_state");
+		channel.attach();
+		new ChannelWaiter(channel).waitFor(ChannelState.attached);
+
+		RecoveryState state = awaitState(store, 1);
+		assertNotNull("Verify state checkpointed", state);
+		assertEquals("Verify recovery key", "local-key:-1", state.recoveryKey);
+		assertEquals("Verify channel checkpointed", 1, state.channels.size());
+		assertEquals("Verify channel checkpointed", "recovery_state", state.channels.get(0).name);
+		assertTrue("Verify timestamp", state.timestamp > 0);
+
+		/* a new client, as after a process restart */
+		ClientOptions restartOpts = ConnectionManagerLoopTest.localOptions();
+		restartOpts.recoveryStore = store;
+		restartOpts.recoveryCheckpointInterval = 50;
+		restartOpts.autoConnect = true;
+		AblyRealtime restarted = new AblyRealtime(restartOpts);
+		try {
+			assertNull("Verify options unchanged", restartOpts.recover);
+			assertTrue("Verify channel restored", restarted.channels.containsKey("recovery_state"));
+			new ConnectionWaiter(restarted.connection).waitFor(ConnectionState.connected);
+			assertEquals("Verify recovery key used", "local-key", LocalServerTransport.lastCreatedTransport.getConnectParam("recover"));
+			new ChannelWaiter(restarted.channels.get("recovery_state")).waitFor(ChannelState.attached);
+			assertEquals("Verify channel reattached", ChannelState.attached, restarted.channels.get("recovery_state").state);
+		} finally {
+			ably.close();
+			restarted.close();
+		}
+
+		new ConnectionWaiter(restarted.connection).waitFor(ConnectionState.closed);
+		long deadline = System.currentTimeMillis() + 5000;
+		while(store.load() != null && System.currentTimeMillis() < deadline)
+			Thread.sleep(20);
+		assertNull("Verify state cleared on close", store.load());
+	}
+}
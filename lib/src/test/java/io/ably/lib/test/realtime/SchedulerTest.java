@@ -0,0 +1,78 @@
+package io.ably.lib.test.realtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import io.ably.lib.util.Scheduler;
+
+public class SchedulerTest {
+
+	private static class CountingTask extends Scheduler.Task {
+		@Override
+		public void run() {
+			count.incrementAndGet();
+			latch.countDown();
+		}
+		final AtomicInteger count = new AtomicInteger();
+		final CountDownLatch latch = new CountDownLatch(1);
+	}
+
+	/**
+	 * Schedule a task and verify it runs once after the delay
+	 */
+	@Test
+	public void scheduler_runs_task() throws InterruptedException {
+		CountingTask task = Scheduler.getDefault().schedule(new CountingTask(), 50);
+		assertTrue("Task did not run", task.latch.await(5, TimeUnit.SECONDS));
+		Thread.sleep(100);
+		assertEquals(1, task.count.get());
+	}
+
+	/**
+	 * Cancel a scheduled task and verify it never runs
+	 */
+	@Test
+	public void scheduler_cancel() throws InterruptedException {
+		CountingTask task = Scheduler.getDefault().schedule(new CountingTask(), 100);
+		assertTrue(task.cancel());
+		assertTrue(task.isCancelled());
+		assertFalse("Cancelled task ran", task.latch.await(300, TimeUnit.MILLISECONDS));
+		assertEquals(0, task.count.get());
+	}
+
+	/**
+	 * Verify that a task cancelled before being scheduled is never run
+	 */
+	@Test
+	public void scheduler_cancel_before_schedule() throws InterruptedException {
+		CountingTask task = new CountingTask();
+		task.cancel();
+		Scheduler.getDefault().execute(task);
+		assertFalse("Cancelled task ran", task.latch.await(200, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Verify that many timers share the scheduler thread
+	 */
+	@Test
+	public void scheduler_shared_thread() throws InterruptedException {
+		final int count = 1000;
+		final CountDownLatch latch = new CountDownLatch(count);
+		int threadsBefore = Thread.activeCount();
+		for(int i = 0; i < count; i++) {
+			Scheduler.getDefault().schedule(new Scheduler.Task() {
+				@Override
+				public void run() { latch.countDown(); }
+			}, 20);
+		}
+		assertTrue("Threads created per task", Thread.activeCount() <= threadsBefore + 1);
+		assertTrue("Tasks did not run", latch.await(5, TimeUnit.SECONDS));
+	}
+}
@@ -299,6 +299,75 @@ public class HttpTest {
 		assertThat("Unexpected response", responseActual2, is(equalTo(responseExpected)));
 	}
 
+	/**
+	 * <strong>This method mocks the API behavior</strong>
+	 * <p>
+	 * Validates {@link Http} stops trying the default primary host first once
+	 * it has failed {@link Defaults#HOST_FAILURE_THRESHOLD} times in succession,
+	 * so that later requests go directly to a fallback host.
+	 * </p>
+	 *
+	 * @throws AblyException
+	 */
+	@Test
+	public void http_ably_execute_skips_failing_host() throws AblyException {
+		ClientOptions options = new ClientOptions("not:a.key");
+		AblyRest ably = new AblyRest(options);
+
+		Http http = Mockito.spy(new Http(ably.options, ably.auth));
+
+		final String responseExpected = "Lorem Ipsum";
+		ArgumentCaptor<URL> url = ArgumentCaptor.forClass(URL.class);
+
+		/* Partially mock http: the primary host always fails, fallback hosts succeed */
+		Answer answer = new Answer<String>() {
+			@Override
+			public String answer(InvocationOnMock invocation) throws Throwable {
+				URL url = (URL)invocation.getArguments()[0];
+				if (url.getHost().equals(Defaults.HOST_REST))
+					throw AblyException.fromErrorInfo(ErrorInfo.fromResponseStatus("Internal Server Error", 500));
+				return responseExpected;
+			}
+		};
+
+		doAnswer(answer)
+				.when(http)
+				.httpExecute(
+						url.capture(),
+						any(Proxy.class),
+						anyString(),
+						aryEq(new Param[0]),
+						any(Http.RequestBody.class),
+						anyBoolean(),
+						any(Http.ResponseHandler.class)
+				);
+
+		int requestCount = Defaults.HOST_FAILURE_THRESHOLD + 1;
+		for (int i = 0; i < requestCount; i++) {
+			String responseActual = (String) http.ablyHttpExecute(
+					"", /* Ignore */
+					"", /* Ignore */
+					new Param[0], /* Ignore */
+					new Param[0], /* Ignore */
+					mock(Http.RequestBody.class), /* Ignore */
+					mock(Http.ResponseHandler.class) /* Ignore */
+			);
+			assertThat("Unexpected response", responseActual, is(equalTo(responseExpected)));
+		}
+
+		/* each request up to the threshold tries the primary host, then a fallback;
+		 * the last goes directly to the fallback host that succeeded */
+		List<URL> urls = url.getAllValues();
+		assertThat("Unexpected request count", urls.size(), is(equalTo(2 * Defaults.HOST_FAILURE_THRESHOLD + 1)));
+		for (int i = 0; i < Defaults.HOST_FAILURE_THRESHOLD; i++) {
+			assertThat("Unexpected default primary host", urls.get(2 * i).getHost(), is(equalTo(Defaults.HOST_REST)));
+			assertThat("Unexpected host fallback", urls.get(2 * i + 1).getHost().matches(PATTERN_HOST_FALLBACK), is(true));
+		}
+		String lastHost = urls.get(urls.size() - 1).getHost();
+		assertThat("Unexpected host fallback", lastHost.matches(PATTERN_HOST_FALLBACK), is(true));
+		assertThat("Unexpected host fallback", lastHost, is(equalTo(urls.get(urls.size() - 2).getHost())));
+	}
+
 	/**
 	 * <strong>This method mocks the API behavior</strong>
 	 * <p>
@@ -0,0 +1,269 @@
+package io.ably.lib.test.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Inflater;
+
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.ProtocolSerializer;
+import io.ably.lib.util.Base64Coder;
+
+/**
+ * A minimal WebSocket server that stands in for the realtime service,
+ * supporting the permessage-deflate extension (RFC 7692), so that
+ * compression can be tested and measured without network access.
+ *
+ * The server accepts the extension if it is offered (unless disabled), and
+ * counts the bytes of the message frames it receives, both as sent and
+ * decompressed. It replies to connect, attach, heartbeat, message and close
+ * as the service would, always with uncompressed JSON.
+ */
+public class DeflateWebSocketServer implements Runnable {
+
+	public DeflateWebSocketServer() throws IOException {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+		Thread thread = new Thread(this, "local-ws-server");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	public void stop() {
+		try {
+			serverSocket.close();
+		} catch(IOException e) {}
+	}
+
+	/* if false, the permessage-deflate extension is never accepted */
+	public volatile boolean acceptDeflate = true;
+
+	/* the value of the Sec-WebSocket-Extensions request header of the last connection */
+	public volatile String lastOffer;
+
+	/* the value of the Sec-WebSocket-Extensions response header of the last connection */
+	public volatile String lastAccepted;
+
+	/* the number of message and presence messages received */
+	public final AtomicInteger messagesReceived = new AtomicInteger();
+
+	/* the number of data frames received with the RSV1 (compressed) bit set */
+	public final AtomicInteger compressedFramesReceived = new AtomicInteger();
+
+	/* the total payload size of data frames received, as sent */
+	public final AtomicLong wireBytesReceived = new AtomicLong();
+
+	/* the total payload size of data frames received, once decompressed */
+	public final AtomicLong payloadBytesReceived = new AtomicLong();
+
+	@Override
+	public void run() {
+		int count = 0;
+		while(true) {
+			try {
+				final Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							serve(socket);
+						} catch(IOException e) {
+						} finally {
+							try { socket.close(); } catch(IOException e) {}
+						}
+					}
+				}, "local-ws-server-" + (++count));
+				thread.setDaemon(true);
+				thread.start();
+			} catch(IOException e) {
+				return;
+			}
+		}
+	}
+
+	private void serve(Socket socket) throws IOException {
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		OutputStream out = socket.getOutputStream();
+
+		/* handshake */
+		Map<String, String> headers = readHeaders(in);
+		lastOffer = headers.get("sec-websocket-extensions");
+		Inflater inflater = null;
+		boolean serverNoContextTakeover = false;
+		StringBuilder response = new StringBuilder("HTTP/1.1 101 Switching Protocols\r\n"
+				+ "Upgrade: websocket\r\nConnection: Upgrade\r\n"
+				+ "Sec-WebSocket-Accept: " + accept(headers.get("sec-websocket-key")) + "\r\n");
+		String accepted = null;
+		if(acceptDeflate && lastOffer != null && lastOffer.startsWith("permessage-deflate")) {
+			/* the Deflater always uses a 15-bit window, and these
+			 * replies are not compressed, so other parameters are
+			 * accepted as offered */
+			accepted = "permessage-deflate";
+			if(lastOffer.contains("client_no_context_takeover"))
+				accepted += "; client_no_context_takeover";
+			if(lastOffer.contains("server_no_context_takeover")) {
+				accepted += "; server_no_context_takeover";
+				serverNoContextTakeover = true;
+			}
+			response.append("Sec-WebSocket-Extensions: ").append(accepted).append("\r\n");
+			inflater = new Inflater(true);
+		}
+		lastAccepted = accepted;
+		out.write(response.append("\r\n").toString().getBytes("ISO-8859-1"));
+		send(out, "{\"action\":4,\"connectionId\":\"ws-" + connectionCount.incrementAndGet() + "\",\"connectionSerial\":-1,"
+				+ "\"connectionDetails\":{\"clientId\":\"*\",\"connectionKey\":\"ws-key\",\"maxIdleInterval\":0}}");
+
+		/* frames; the client does not fragment messages */
+		while(true) {
+			int b0 = in.readUnsignedByte(), b1 = in.readUnsignedByte();
+			int opcode = b0 & 0x0f;
+			boolean rsv1 = (b0 & 0x40) != 0;
+			long length = b1 & 0x7f;
+			if(length == 126)
+				length = in.readUnsignedShort();
+			else if(length == 127)
+				length = in.readLong();
+			byte[] mask = new byte[4];
+			if((b1 & 0x80) != 0)
+				in.readFully(mask);
+			byte[] payload = new byte[(int)length];
+			in.readFully(payload);
+			for(int i = 0; i < payload.length; i++)
+				payload[i] ^= mask[i & 3];
+
+			if(opcode == 0x8) {
+				writeFrame(out, 0x8, Arrays.copyOf(payload, Math.min(payload.length, 2)));
+				return;
+			}
+			if(opcode != 0x1 && opcode != 0x2)
+				continue;
+			wireBytesReceived.addAndGet(payload.length);
+			if(rsv1) {
+				if(inflater == null)
+					throw new IOException("Unexpected compressed frame");
+				compressedFramesReceived.incrementAndGet();
+				payload = inflate(inflater, payload);
+				if(serverNoContextTakeover)
+					inflater.reset();
+			}
+			payloadBytesReceived.addAndGet(payload.length);
+			ProtocolMessage msg;
+			try {
+				msg = (opcode == 0x2) ? ProtocolSerializer.readMsgpack(payload) : ProtocolSerializer.fromJSON(new String(payload, "UTF-8"));
+			} catch(Exception e) {
+				throw new IOException(e);
+			}
+			onProtocolMessage(out, msg);
+		}
+	}
+
+	private void onProtocolMessage(OutputStream out, ProtocolMessage msg) throws IOException {
+		switch(msg.action) {
+		case heartbeat:
+			send(out, (msg.id == null) ? "{\"action\":0}" : "{\"action\":0,\"id\":\"" + msg.id + "\"}");
+			break;
+		case attach:
+			send(out, "{\"action\":11,\"channel\":\"" + msg.channel + "\"}");
+			break;
+		case detach:
+			send(out, "{\"action\":13,\"channel\":\"" + msg.channel + "\"}");
+			break;
+		case message:
+		case presence:
+			messagesReceived.addAndGet((msg.messages != null) ? msg.messages.length : msg.presence.length);
+			send(out, "{\"action\":1,\"msgSerial\":" + msg.msgSerial + ",\"count\":1}");
+			break;
+		case close:
+			send(out, "{\"action\":8}");
+			break;
+		default:
+		}
+	}
+
+	private static Map<String, String> readHeaders(InputStream in) throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		int matched = 0;
+		while(matched < 4) {
+			int b = in.read();
+			if(b < 0)
+				throw new IOException("Unexpected end of handshake");
+			header.write(b);
+			matched = (b == ((matched % 2 == 0) ? '\r' : '\n')) ? matched + 1 : ((b == '\r') ? 1 : 0);
+		}
+		Map<String, String> headers = new HashMap<String, String>();
+		for(String line : header.toString("ISO-8859-1").split("\r\n")) {
+			int colon = line.indexOf(':');
+			if(colon > 0)
+				headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+		}
+		return headers;
+	}
+
+	private static String accept(String key) throws IOException {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest((key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes("ISO-8859-1"));
+			return new String(Base64Coder.encode(digest));
+		} catch(Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static byte[] inflate(Inflater inflater, byte[] payload) throws IOException {
+		byte[] input = Arrays.copyOf(payload, payload.length + 4);
+		input[payload.length + 2] = input[payload.length + 3] = (byte)0xff;
+		inflater.setInput(input);
+		ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+		byte[] buffer = new byte[16384];
+		try {
+			int length;
+			do {
+				length = inflater.inflate(buffer);
+				inflated.write(buffer, 0, length);
+			} while(length == buffer.length || !inflater.needsInput());
+		} catch(Exception e) {
+			throw new IOException(e);
+		}
+		return inflated.toByteArray();
+	}
+
+	private static void send(OutputStream out, String json) throws IOException {
+		writeFrame(out, 0x1, json.getBytes("UTF-8"));
+	}
+
+	private static synchronized void writeFrame(OutputStream out, int opcode, byte[] payload) throws IOException {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		frame.write(0x80 | opcode);
+		if(payload.length < 126) {
+			frame.write(payload.length);
+		} else if(payload.length <= 0xffff) {
+			frame.write(126);
+			frame.write(payload.length >> 8);
+			frame.write(payload.length);
+		} else {
+			frame.write(127);
+			for(int i = 7; i >= 0; i--)
+				frame.write((int)((long)payload.length >> (8 * i)));
+		}
+		frame.write(payload);
+		out.write(frame.toByteArray());
+		out.flush();
+	}
+
+	private final ServerSocket serverSocket;
+	private final AtomicInteger connectionCount = new AtomicInteger();
+}
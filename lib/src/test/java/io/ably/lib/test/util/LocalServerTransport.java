@@ -0,0 +1,183 @@
+package io.ably.lib.test.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import io.ably.lib.transport.ConnectionManager;
+import io.ably.lib.transport.ITransport;
+import io.ably.lib.types.AblyException;
+import io.ably.lib.types.ErrorInfo;
+import io.ably.lib.types.Param;
+import io.ably.lib.types.ProtocolMessage;
+import io.ably.lib.types.ProtocolMessage.Action;
+import io.ably.lib.types.ProtocolSerializer;
+
+/**
+ * A transport that simulates the minimum of realtime service behaviour
+ * in-process, so that connection and channel handling can be tested
+ * without network access.
+ *
+ * The transport connects immediately, attaches (unless disabled) and detaches
+ * channels when requested, replies to heartbeats (unless disabled), and (unless disabled) acks
+ * every message and presence ProtocolMessage as soon as it is sent.
+ * Connection attempts to any of unresponsiveHosts never complete, and
+ * those to any of failingHosts fail immediately.
+ */
+public class LocalServerTransport implements ITransport {
+
+	public static class Factory implements ITransport.Factory {
+		@Override
+		public ITransport getTransport(TransportParams transportParams, ConnectionManager connectionManager) {
+			lastCreatedTransport = new LocalServerTransport(transportParams, connectionManager);
+			createdTransports.add(lastCreatedTransport);
+			return lastCreatedTransport;
+		}
+	}
+
+	public static volatile LocalServerTransport lastCreatedTransport;
+
+	/* if false, ack-requiring messages are recorded but not acked */
+	public static volatile boolean autoAck = true;
+
+	/* if false, attaches are recorded but not answered */
+	public static volatile boolean autoAttach = true;
+
+	/* if false, heartbeats are recorded but not answered */
+	public static volatile boolean replyToHeartbeats = true;
+
+	/* hosts that never respond to a connection attempt */
+	public static final Set<String> unresponsiveHosts = Collections.synchronizedSet(new HashSet<String>());
+
+	/* hosts that refuse a connection attempt */
+	public static final Set<String> failingHosts = Collections.synchronizedSet(new HashSet<String>());
+
+	/* all transports created, in order */
+	public static final List<LocalServerTransport> createdTransports = Collections.synchronizedList(new ArrayList<LocalServerTransport>());
+
+	LocalServerTransport(TransportParams params, ConnectionManager connectionManager) {
+		this.params = params;
+		this.connectionManager = connectionManager;
+	}
+
+	@Override
+	public void connect(ConnectListener connectListener) {
+		if(unresponsiveHosts.contains(params.getHost()))
+			return;
+		if(failingHosts.contains(params.getHost())) {
+			connectListener.onTransportUnavailable(this, params, new ErrorInfo("Connection refused", 503, 80000));
+			return;
+		}
+		connectListener.onTransportAvailable(this, params);
+		receive("{\"action\":4,\"connectionId\":\"local-" + (++connectionCount) + "\",\"connectionSerial\":-1,"
+				+ "\"connectionDetails\":{\"clientId\":\"*\",\"connectionKey\":\"local-key\",\"maxIdleInterval\":0}}");
+	}
+
+	@Override
+	public void close(boolean sendDisconnect) {
+		if(sendDisconnect)
+			receive("{\"action\":8}");
+	}
+
+	@Override
+	public void abort(ErrorInfo reason) {
+		aborted = true;
+	}
+
+	@Override
+	public void send(ProtocolMessage msg) throws AblyException {
+		synchronized(sent) {
+			sent.add(msg);
+		}
+		switch(msg.action) {
+		case heartbeat:
+			if(!replyToHeartbeats)
+				break;
+			receive((msg.id == null) ? "{\"action\":0}" : "{\"action\":0,\"id\":\"" + msg.id + "\"}");
+			break;
+		case attach:
+			if(!autoAttach)
+				break;
+			receive("{\"action\":11,\"channel\":\"" + msg.channel + "\"}");
+			break;
+		case detach:
+			receive("{\"action\":13,\"channel\":\"" + msg.channel + "\"}");
+			break;
+		case close:
+			receive("{\"action\":8}");
+			break;
+		case message:
+		case presence:
+			if(autoAck)
+				ack(msg.msgSerial, 1);
+			break;
+		default:
+		}
+	}
+
+	@Override
+	public String getHost() {
+		return params.getHost();
+	}
+
+	public boolean isAborted() {
+		return aborted;
+	}
+
+	/**
+	 * Get the value of a query parameter of the connection request,
+	 * or null if it is not present.
+	 */
+	public String getConnectParam(String key) {
+		for(Param param : params.getConnectParams(new Param[0]))
+			if(param.key.equals(key))
+				return param.value;
+		return null;
+	}
+
+	/**
+	 * Ack a range of messages, as the service would.
+	 */
+	public void ack(long msgSerial, int count) {
+		ProtocolMessage ack = new ProtocolMessage(Action.ack);
+		ack.msgSerial = msgSerial;
+		ack.count = count;
+		deliver(ack);
+	}
+
+	/**
+	 * Deliver a message to the ConnectionManager, as if received from the service.
+	 */
+	public void deliver(ProtocolMessage msg) {
+		try {
+			connectionManager.onMessage(this, msg);
+		} catch(AblyException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Get a copy of the messages sent so far on this transport.
+	 */
+	public List<ProtocolMessage> getSentMessages() {
+		synchronized(sent) {
+			return new ArrayList<ProtocolMessage>(sent);
+		}
+	}
+
+	private void receive(String json) {
+		try {
+			deliver(ProtocolSerializer.fromJSON(json));
+		} catch(AblyException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private final TransportParams params;
+	private final ConnectionManager connectionManager;
+	private final List<ProtocolMessage> sent = new ArrayList<ProtocolMessage>();
+	private volatile boolean aborted;
+	private static int connectionCount;
+}